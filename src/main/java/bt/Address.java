@@ -1,5 +1,8 @@
 package bt;
 
+import bt.compiler.Machine;
+import bt.compiler.MachineHistory;
+
 /**
  * A burstcoin address.
  * 
@@ -17,6 +20,8 @@ public class Address {
 	String rsAddress;
 	long balance;
 	Contract contract;
+	Machine machine;
+	MachineHistory history;
 	boolean sleeping;
 	
 	/**
@@ -64,6 +69,31 @@ public class Address {
 		return contract;
 	}
 	
+	/**
+	 * @return the underlying compiled contract machine or null
+	 */
+	@EmulatorWarning
+	public Machine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * @return the steps executed by the compiled contract since its creation
+	 */
+	@EmulatorWarning
+	public long getMachineSteps() {
+		return machine == null ? 0L : ((EmulatedMachineApi) machine.getApi()).totalSteps;
+	}
+
+	/**
+	 * @return the block by block state of the compiled contract, when recorded
+	 *         by the emulator
+	 */
+	@EmulatorWarning
+	public MachineHistory getMachineHistory() {
+		return history;
+	}
+
 	/**
 	 * @return true if it is a sleeping contract
 	 */
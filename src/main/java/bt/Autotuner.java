@@ -0,0 +1,347 @@
+package bt;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Field;
+import bt.compiler.Method;
+
+/**
+ * Finds the {@link CompilerOptions} with the lowest steps (or fee) for a
+ * contract on a given workload, among the ones fitting the code page limit.
+ *
+ * The workload is either a recorded transaction file (see
+ * {@link TransactionReplay}) or random transactions as generated by the
+ * {@link Fuzzer}. Each candidate is compiled and run on its own emulator, in
+ * parallel, and must end with the same field values as the default options.
+ * The fee objective adds the registration fee (proportional to the pages) to
+ * the step fees of the workload.
+ */
+public class Autotuner {
+
+	public enum Objective {
+		STEPS, FEE
+	}
+
+	/**
+	 * A candidate evaluated on the workload.
+	 */
+	public static class Result {
+		CompilerOptions options;
+		int codePages, dataPages;
+		long steps;
+		long fee;
+		String error;
+
+		public CompilerOptions getOptions() {
+			return options;
+		}
+
+		public int getCodePages() {
+			return codePages;
+		}
+
+		public long getSteps() {
+			return steps;
+		}
+
+		public long getFee() {
+			return fee;
+		}
+
+		/**
+		 * @return why this candidate cannot be used (compile error, too large or a
+		 *         different result) or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null)
+				return String.format("%-30s  %s", error, options);
+			return String.format("%5d %10d %14d  %s", codePages, steps, fee, options);
+		}
+	}
+
+	/**
+	 * The passes tried on and off, each combination a candidate. The constant
+	 * pool and the constructor evaluation only run with the initial data, the
+	 * contract registered through the {@link Compiler}.
+	 */
+	static final List<BiConsumer<CompilerOptions, Boolean>> SWITCHES = Arrays.asList(CompilerOptions::setPeephole,
+			CompilerOptions::setConstantFolding, CompilerOptions::setInlining, CompilerOptions::setConstantPool,
+			CompilerOptions::setConstructorEvaluation, CompilerOptions::setPackedBooleans);
+
+	Class<? extends Contract> contract;
+	Objective objective = Objective.STEPS;
+	int maxCodePages = BT.getMaxMachineCodePages();
+	int threads = Runtime.getRuntime().availableProcessors();
+	Path workload;
+	long seed = 1;
+	int blocks = 50;
+
+	Fuzzer fuzzer;
+	List<List<Fuzzer.Tx>> generated;
+	Map<String, Long> reference;
+
+	public Autotuner(Class<? extends Contract> contract) throws Exception {
+		this.contract = contract;
+		fuzzer = new Fuzzer(contract);
+	}
+
+	public void setObjective(Objective objective) {
+		this.objective = objective;
+	}
+
+	public void setMaxCodePages(int maxCodePages) {
+		this.maxCodePages = maxCodePages;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Uses the recorded transactions on the given file as workload, instead of
+	 * random ones.
+	 */
+	public void setWorkload(Path workload) {
+		this.workload = workload;
+	}
+
+	/**
+	 * Sets the random workload, the number of blocks with up to 3 transactions
+	 * each.
+	 */
+	public void setRandomWorkload(long seed, int blocks) {
+		this.seed = seed;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * @return the call counts of the public methods on the workload, the most
+	 *         called first
+	 */
+	List<String> getCalledMethods(Compiler comp, Address contract) {
+		HashMap<Long, String> byHash = new HashMap<>();
+		for (Method m : comp.getMethods())
+			byHash.put(m.getHash(), m.getName());
+		HashMap<String, Long> calls = new HashMap<>();
+		for (Transaction tx : contract.machine == null ? Collections.<Transaction>emptyList()
+				: ((EmulatedMachineApi) contract.machine.getApi()).emu.getTxs()) {
+			if (tx.receiver != contract || tx.msg == null)
+				continue;
+			String name = byHash.get(EmulatedMachineApi.getMessageValues(tx)[0]);
+			if (name != null)
+				calls.merge(name, 1L, Long::sum);
+		}
+		ArrayList<String> ret = new ArrayList<>(calls.keySet());
+		ret.sort((a, b) -> Long.compare(calls.get(b), calls.get(a)));
+		return ret;
+	}
+
+	/**
+	 * @return the options to evaluate
+	 */
+	List<CompilerOptions> candidates(List<String> calledMethods) {
+		ArrayList<CompilerOptions> ret = new ArrayList<>();
+		for (int inlineSize : new int[] { new CompilerOptions().getMaxInlineSize(), 16, 64 }) {
+			for (boolean byCalls : new boolean[] { false, true }) {
+				if (byCalls && calledMethods.size() < 2)
+					continue;
+				CompilerOptions o = new CompilerOptions();
+				o.setMaxInlineSize(inlineSize);
+				if (byCalls) {
+					o.setDispatchOrder(calledMethods);
+					o.setMaxLinearDispatch(Integer.MAX_VALUE);
+				}
+				ret.add(o);
+			}
+		}
+		// the passes on and off, on the default frames and dispatch
+		String defaults = new CompilerOptions().toString();
+		for (int on = 0; on < 1 << SWITCHES.size(); on++) {
+			CompilerOptions o = new CompilerOptions();
+			for (int i = 0; i < SWITCHES.size(); i++)
+				SWITCHES.get(i).accept(o, (on & 1 << i) != 0);
+			if (!o.toString().equals(defaults))
+				ret.add(o);
+		}
+		// moving frames, only used when forced
+		for (int localIncrements : new int[] { 2, 3, 4, Integer.MAX_VALUE }) {
+			for (int frameIncrements = 0; frameIncrements <= 4; frameIncrements++) {
+				for (boolean byCalls : new boolean[] { false, true }) {
+					if (byCalls && calledMethods.size() < 2)
+						continue;
+					CompilerOptions o = new CompilerOptions();
+					o.setStaticFrames(false);
+					o.setMaxLocalIncrements(localIncrements);
+					o.setMaxFrameIncrements(frameIncrements);
+					if (byCalls) {
+						o.setDispatchOrder(calledMethods);
+						o.setMaxLinearDispatch(Integer.MAX_VALUE);
+					}
+					ret.add(o);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Compiles with the given options and runs the workload.
+	 */
+	Result evaluate(CompilerOptions options) throws Exception {
+		Result r = new Result();
+		r.options = options;
+		Compiler comp = BT.compileContract(contract, options);
+		if (!comp.getErrors().isEmpty()) {
+			r.error = "not compiled";
+			return r;
+		}
+		r.codePages = comp.getCodeNPages();
+		r.dataPages = comp.getDataPages();
+		if (r.codePages > maxCodePages) {
+			r.error = "too large, " + r.codePages + " pages";
+			return r;
+		}
+
+		Address c = run(comp);
+		r.steps = c.getMachineSteps();
+		r.fee = r.steps * Contract.STEP_FEE + BT.getMinRegisteringFee(comp).toNQT().longValue();
+		if (reference != null && !reference.equals(getValues(comp, c)))
+			r.error = "different results";
+		return r;
+	}
+
+	Address run(Compiler comp) throws Exception {
+		Emulator emu = new Emulator(new Random(seed));
+		Address[] users = Fuzzer.createUsers(emu);
+		Address c = emu.getAddress(Fuzzer.CONTRACT_ID);
+		emu.createCompiledContract(users[0], c, comp, fuzzer.activationFee);
+		emu.forgeBlock();
+		if (workload != null)
+			new TransactionReplay(emu, c).replay(workload);
+		else {
+			for (List<Fuzzer.Tx> txs : generated) {
+				for (Fuzzer.Tx tx : txs)
+					Fuzzer.send(emu, users, c, tx);
+				emu.forgeBlock();
+			}
+		}
+		return c;
+	}
+
+	static Map<String, Long> getValues(Compiler comp, Address c) {
+		HashMap<String, Long> ret = new HashMap<>();
+		for (Field f : comp.getFields())
+			ret.put(f.getName(), f.getValue(c.getMachine().getData(f.getAddress())));
+		// not the balance, which also depends on the steps
+		return ret;
+	}
+
+	/**
+	 * Evaluates all candidates.
+	 *
+	 * @return the results, the best first and the invalid ones last
+	 */
+	public List<Result> tune() throws Exception {
+		if (workload == null) {
+			fuzzer.nblocks = blocks;
+			generated = fuzzer.generate(new Random(seed));
+		}
+		Compiler comp = BT.compileContract(contract);
+		Address c = run(comp);
+		reference = getValues(comp, c);
+		List<String> calledMethods = getCalledMethods(comp, c);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Result> results = new ArrayList<>();
+		try {
+			ArrayList<Callable<Result>> tasks = new ArrayList<>();
+			for (CompilerOptions o : candidates(calledMethods))
+				tasks.add(() -> evaluate(o));
+			for (Future<Result> f : executor.invokeAll(tasks))
+				results.add(f.get());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		results.sort((a, b) -> {
+			if ((a.error == null) != (b.error == null))
+				return a.error == null ? -1 : 1;
+			int cmp = objective == Objective.FEE ? Long.compare(a.fee, b.fee) : Long.compare(a.steps, b.steps);
+			return cmp != 0 ? cmp : Integer.compare(a.codePages, b.codePages);
+		});
+		return results;
+	}
+
+	public static void printReport(PrintStream out, List<Result> results) {
+		out.println(String.format("%5s %10s %14s  %s", "pages", "steps", "fee", "options"));
+		for (Result r : results)
+			out.println(r);
+	}
+
+	/**
+	 * Prints the candidates evaluated for the given contract, the best first.
+	 *
+	 * Usage: Autotuner [-workload file] [-seed seed] [-blocks n] [-fee] [-pages
+	 * n] class
+	 */
+	public static void main(String[] args) throws Exception {
+		Path workload = null;
+		long seed = 1;
+		int blocks = 50;
+		Objective objective = Objective.STEPS;
+		int pages = BT.getMaxMachineCodePages();
+		Class<? extends Contract> contract = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-workload"))
+				workload = Paths.get(args[++i]);
+			else if (args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("-blocks"))
+				blocks = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-fee"))
+				objective = Objective.FEE;
+			else if (args[i].equals("-pages"))
+				pages = Integer.parseInt(args[++i]);
+			else
+				contract = Class.forName(args[i]).asSubclass(Contract.class);
+		}
+		if (contract == null) {
+			System.out.println("Usage: Autotuner [-workload file] [-seed seed] [-blocks n] [-fee] [-pages n] class");
+			return;
+		}
+
+		Autotuner tuner = new Autotuner(contract);
+		tuner.setWorkload(workload);
+		tuner.setRandomWorkload(seed, blocks);
+		tuner.setObjective(objective);
+		tuner.setMaxCodePages(pages);
+		List<Result> results = tuner.tune();
+		printReport(System.out, results);
+		Result best = results.get(0);
+		if (best.error == null)
+			System.out.println("Best for " + contract.getName() + ": " + best.options);
+		else
+			System.out.println("No candidate fits " + pages + " pages");
+	}
+}
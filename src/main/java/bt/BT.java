@@ -6,6 +6,7 @@ import java.nio.ByteOrder;
 import java.security.InvalidParameterException;
 
 import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
 import bt.compiler.Field;
 import bt.compiler.Method;
 import io.reactivex.Single;
@@ -99,9 +100,20 @@ public class BT {
      * @throws IOException
      */
     public static Compiler compileContract(Class<? extends Contract> contractClass) throws IOException {
-        Compiler comp = new Compiler(contractClass);
+        return compileContract(contractClass, new CompilerOptions());
+    }
+
+    /**
+     * Compile the given contract with the given code generation options.
+     *
+     * @see Autotuner
+     */
+    public static Compiler compileContract(Class<? extends Contract> contractClass, CompilerOptions options)
+            throws IOException {
+        Compiler comp = new Compiler(contractClass, options);
         comp.compile();
-        comp.link();
+        if (comp.getErrors().isEmpty())
+            comp.link();
         return comp;
     }
 
@@ -123,18 +135,7 @@ public class BT {
             if (nargs > 3)
                 throw new InvalidParameterException("Maximum number of parameters is currently 3");
 
-            if (arg instanceof Boolean)
-                b.putLong(((Boolean) arg) ? 1 : 0);
-            else if (arg instanceof Integer)
-                b.putLong((Integer) arg);
-            else if (arg instanceof Long)
-                b.putLong((Long) arg);
-            else if (arg instanceof Address)
-                b.putLong(((Address) arg).id);
-            else if (arg instanceof Timestamp)
-                b.putLong(((Timestamp) arg).value);
-            else
-                throw new InvalidParameterException("Unsupported argument type: " + arg.getClass().getName());
+            b.putLong(getArgumentValue(arg));
         }
         if (nargs != method.getNArgs()) {
             throw new InvalidParameterException(
@@ -144,6 +145,23 @@ public class BT {
         return b.array();
     }
 
+    /**
+     * @return the long value of a method call argument
+     */
+    static long getArgumentValue(Object arg) {
+        if (arg instanceof Boolean)
+            return ((Boolean) arg) ? 1 : 0;
+        if (arg instanceof Integer)
+            return (Integer) arg;
+        if (arg instanceof Long)
+            return (Long) arg;
+        if (arg instanceof Address)
+            return ((Address) arg).id;
+        if (arg instanceof Timestamp)
+            return ((Timestamp) arg).value;
+        throw new InvalidParameterException("Unsupported argument type: " + arg.getClass().getName());
+    }
+
     /**
      * Call a method on the given contract address.
      */
@@ -276,9 +294,20 @@ public class BT {
      * @see BT#activateCIP20(boolean)
      */
     public static SignumValue getMinRegisteringFee(Compiler compiledContract, boolean includeCode) {
+        return getMinRegisteringFee(includeCode ? compiledContract.getCodeNPages() : 0,
+        		compiledContract.getDataPages(), compiledContract.getCallStackPages(),
+        		compiledContract.getUserStackPages());
+    }
+
+    /**
+     * @return the minimum fee to register a contract with the given pages, as
+     *         passed to the registerContract methods
+     *
+     * @see BT#activateCIP20(boolean)
+     */
+    public static SignumValue getMinRegisteringFee(int codePages, int dPages, int csPages, int usPages) {
     	SignumValue baseFee = SignumValue.fromNQT(CIP20_ACTIVATED ? Contract.FEE_QUANT*10L : Contract.ONE_BURST);
-        return baseFee.multiply(2 + compiledContract.getDataPages() +
-        		(includeCode ? compiledContract.getCodeNPages() : 0));
+        return baseFee.multiply(codePages + dPages + csPages + usPages);
     }
 
     /**
@@ -337,7 +366,21 @@ public class BT {
      */
     public static Single<TransactionBroadcast> registerContract(String passphrase, Compiler compiledContract,
             String name, String description, SignumValue activationFee, SignumValue fee, int deadline) {
-        return registerContract(passphrase, compiledContract.getCode(), compiledContract.getDataPages(), name, description, null, activationFee, fee, deadline);
+        return registerContract(passphrase, compiledContract, name, description, new long[0], activationFee, fee,
+                deadline, null);
+    }
+
+    /**
+     * Register the given contract with the given values for its first fields,
+     * see {@link Compiler#getInitialData(long[])}, and with the pages counted
+     * by {@link #getMinRegisteringFee(Compiler)}.
+     */
+    public static Single<TransactionBroadcast> registerContract(String passphrase, Compiler compiledContract,
+            String name, String description, long[] fieldValues, SignumValue activationFee, SignumValue fee,
+            int deadline, String referenceTxFullHash) {
+        return registerContract(passphrase, compiledContract.getCode(), compiledContract.getDataPages(),
+                compiledContract.getCallStackPages(), compiledContract.getUserStackPages(), name, description,
+                compiledContract.getInitialData(fieldValues), activationFee, fee, deadline, referenceTxFullHash);
     }
 
     /**
@@ -354,10 +397,16 @@ public class BT {
      *
      * @return the response
      * @throws Exception
+     * @deprecated registers one call stack and one user stack page, while
+     *             {@link #getMinRegisteringFee(Compiler)} counts the ones of the
+     *             compiled code, and the data given replaces the initial data of
+     *             the {@link Compiler}: use
+     *             {@link #registerContract(String, Compiler, String, String, long[], SignumValue, SignumValue, int, String)}
      */
+    @Deprecated
     public static Single<TransactionBroadcast> registerContract(String passphrase, byte[] code, int dPages,
             String name, String description, long[] data, SignumValue activationFee, SignumValue fee, int deadline) {
-    	return registerContract(passphrase, code, dPages, name, description, data, activationFee, fee, deadline, null);
+    	return registerContract(passphrase, code, dPages, 1, 1, name, description, data, activationFee, fee, deadline, null);
     }
 
     /**
@@ -374,9 +423,27 @@ public class BT {
      *
      * @return the response
      * @throws Exception
+     * @deprecated registers one call stack and one user stack page, while
+     *             {@link #getMinRegisteringFee(Compiler)} counts the ones of the
+     *             compiled code, and the data given replaces the initial data of
+     *             the {@link Compiler}: use
+     *             {@link #registerContract(String, Compiler, String, String, long[], SignumValue, SignumValue, int, String)}
      */
+    @Deprecated
     public static Single<TransactionBroadcast> registerContract(String passphrase, byte[] code, int dPages,
             String name, String description, long[] data, SignumValue activationFee, SignumValue fee, int deadline, String referenceTxFullHash) {
+        return registerContract(passphrase, code, dPages, 1, 1, name, description, data, activationFee, fee, deadline, referenceTxFullHash);
+    }
+
+    /**
+     * Register the given contract with the given data and stack pages, see
+     * {@link Compiler#getCallStackPages()} and
+     * {@link Compiler#getUserStackPages()}, paying at least
+     * {@link #getMinRegisteringFee(int, int, int, int)} for them.
+     */
+    public static Single<TransactionBroadcast> registerContract(String passphrase, byte[] code, int dPages,
+            int csPages, int usPages, String name, String description, long[] data, SignumValue activationFee,
+            SignumValue fee, int deadline, String referenceTxFullHash) {
         byte[] pubkey = bc.getPublicKey(passphrase);
 
         ByteBuffer dataBuffer = ByteBuffer.allocate(data==null ? 0 : data.length*8);
@@ -386,14 +453,14 @@ public class BT {
         }
 
         if(code == null) {
-            return bns.generateCreateATTransaction(pubkey, fee, activationFee, deadline, name, description, code, dataBuffer.array(), dPages, 1, 1, referenceTxFullHash)
+            return bns.generateCreateATTransaction(pubkey, fee, activationFee, deadline, name, description, code, dataBuffer.array(), dPages, csPages, usPages, referenceTxFullHash)
                     .flatMap(unsignedTransactionBytes -> {
                         byte[] signedTransactionBytes = bc.signTransaction(passphrase, unsignedTransactionBytes);
                         return bns.broadcastTransaction(signedTransactionBytes);
                     });
         }
 
-        byte[] creationBytes = SignumCrypto.getInstance().getATCreationBytes((short) (CIP20_ACTIVATED ? 2 : 1), code, dataBuffer.array(), (short) dPages, (short) 1, (short) 1, activationFee);
+        byte[] creationBytes = SignumCrypto.getInstance().getATCreationBytes((short) (CIP20_ACTIVATED ? 2 : 1), code, dataBuffer.array(), (short) dPages, (short) csPages, (short) usPages, activationFee);
         return bns.generateCreateATTransaction(pubkey, fee, deadline, name, description, creationBytes, referenceTxFullHash)
                 .flatMap(unsignedTransactionBytes -> {
                     byte[] signedTransactionBytes = bc.signTransaction(passphrase, unsignedTransactionBytes);
@@ -447,6 +514,17 @@ public class BT {
         return b.getLong(address * 8);
     }
 
+    /**
+     * Returns the current value of a given field, also if packed with others.
+     *
+     * @param contract a smart contract response
+     * @param field    the field, check {@link Compiler#getField(String)}
+     * @return the current value of the given field
+     */
+    public static long getContractFieldValue(AT contract, Field field) {
+        return field.getValue(getContractFieldValue(contract, field.getAddress()));
+    }
+
     /**
      * @param contract
      * @return the balance for the given contract
@@ -76,7 +76,7 @@ public abstract class Contract {
 	 * @param ad the address
 	 */
 	protected void sendBalance(Address ad) {
-		sendAmount(this.address.balance, ad);
+		sendAmount(getCurrentBalance(), ad);
 	}
 
 	/**
@@ -86,6 +86,9 @@ public abstract class Contract {
 	 * @param receiver
 	 */
 	protected void sendAmount(long amount, Address receiver) {
+		// as on chain, no transaction for a zero amount
+		if (amount <= 0)
+			return;
 		Emulator.getInstance().send(address, receiver, amount);
 	}
 
@@ -278,7 +281,8 @@ public abstract class Contract {
 	 * @return the current balance of this contract
 	 */
 	protected long getCurrentBalance() {
-		return address.balance;
+		// amounts already sent in this block are not available anymore
+		return Math.max(0L, address.balance - Emulator.getInstance().getPendingAmount(address));
 	}
 
 	@EmulatorWarning
@@ -348,6 +352,7 @@ public abstract class Contract {
 		else {
 			sleepUntil = new Timestamp(Emulator.getInstance().getCurrentBlock().height + nblocks, 0);
 			address.setSleeping(true);
+			Emulator.getInstance().signal();
 			try {
 				semaphore.acquire();
 			} catch (InterruptedException e) {
@@ -356,6 +361,7 @@ public abstract class Contract {
 		}
 		address.setSleeping(false);
 		sleepUntil = null;
+		Emulator.getInstance().signal();
 	}
 
 	/**
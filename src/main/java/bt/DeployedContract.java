@@ -0,0 +1,283 @@
+package bt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import bt.compiler.Machine;
+import signumj.entity.SignumAddress;
+import signumj.entity.response.AT;
+
+/**
+ * The state of a contract deployed on chain (code, data, balance, etc.), to be
+ * imported on the {@link Emulator} with
+ * {@link Emulator#importContract(DeployedContract)} and then receive
+ * candidate transactions offline.
+ *
+ * The dump file is the JSON returned by the node for the getAT request, so the
+ * response of a node can also be saved directly. The node does not report the
+ * machine registers and stacks, the contract is imported as waiting for a new
+ * transaction (see {@link Machine#restoreIdle(boolean)}), which is the case
+ * for contracts not sleeping.
+ */
+public class DeployedContract {
+
+	long id;
+	long creator;
+	String name;
+	String description;
+	byte[] code;
+	byte[] data;
+	long balance;
+	long previousBalance;
+	long minActivation;
+	int creationHeight;
+	int nextBlock;
+	boolean dead, finished, stopped;
+
+	/** Not reported by the node, the ones used by this compiler by default */
+	int callStackPages = 1;
+	int userStackPages = 1;
+
+	DeployedContract() {
+	}
+
+	/**
+	 * @return the state of the given contract as reported by a node
+	 */
+	public static DeployedContract fromAT(AT at) {
+		DeployedContract c = new DeployedContract();
+		c.id = at.getId().getSignedLongId();
+		c.creator = at.getCreator().getSignedLongId();
+		c.name = at.getName();
+		c.description = at.getDescription();
+		c.code = at.getMachineCode();
+		c.data = at.getMachineData();
+		c.balance = at.getBalance().toNQT().longValue();
+		c.previousBalance = at.getPreviousBalance() == null ? c.balance
+				: at.getPreviousBalance().toNQT().longValue();
+		c.minActivation = at.getMinimumActivation().toNQT().longValue();
+		c.creationHeight = at.getCreationHeight();
+		c.nextBlock = at.getNextBlock();
+		c.dead = at.isDead();
+		c.finished = at.isFinished();
+		c.stopped = at.isStopped();
+		return c;
+	}
+
+	/**
+	 * @return the current state of the given contract, from the node set on
+	 *         {@link BT}
+	 */
+	public static DeployedContract fetch(SignumAddress contract) {
+		return fromAT(BT.getNode().getAt(contract).blockingGet());
+	}
+
+	/**
+	 * @return the state of a compiled contract running on the emulator, as if it
+	 *         was deployed
+	 */
+	public static DeployedContract fromAddress(Address contract) {
+		Machine m = contract.getMachine();
+		if (m == null)
+			throw new IllegalArgumentException("not a compiled contract: " + contract);
+		EmulatedMachineApi api = (EmulatedMachineApi) m.getApi();
+
+		DeployedContract c = new DeployedContract();
+		c.id = contract.id;
+		c.creator = api.creator.id;
+		c.name = contract.rsAddress;
+		c.code = m.getCode();
+		c.data = toBytes(m.getData());
+		c.setStackPages(m.getCallStackPages(), m.getUserStackPages());
+		c.balance = contract.balance;
+		c.previousBalance = api.previousBalance;
+		c.minActivation = api.activationFee;
+		c.creationHeight = (int) api.creationHeight;
+		c.nextBlock = (int) api.emu.currentBlock.height;
+		c.dead = m.isDead();
+		c.finished = m.isFinished();
+		c.stopped = m.isStopped();
+		return c;
+	}
+
+	/**
+	 * Loads a dump saved with {@link #save(Path)} or a getAT response saved from
+	 * a node.
+	 */
+	public static DeployedContract load(Path file) throws IOException {
+		try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			return fromJson(JsonParser.parseReader(in).getAsJsonObject());
+		}
+	}
+
+	public void save(Path file) throws IOException {
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			gson.toJson(toJson(), out);
+		}
+	}
+
+	static DeployedContract fromJson(JsonObject json) {
+		DeployedContract c = new DeployedContract();
+		c.id = Long.parseUnsignedLong(json.get("at").getAsString());
+		c.creator = Long.parseUnsignedLong(json.get("creator").getAsString());
+		c.name = getString(json, "name");
+		c.description = getString(json, "description");
+		c.code = fromHex(json.get("machineCode").getAsString());
+		c.data = fromHex(json.get("machineData").getAsString());
+		c.balance = getLong(json, "balanceNQT");
+		c.previousBalance = json.has("prevBalanceNQT") ? getLong(json, "prevBalanceNQT") : c.balance;
+		c.minActivation = getLong(json, "minActivation");
+		c.creationHeight = (int) getLong(json, "creationBlock");
+		c.nextBlock = (int) getLong(json, "nextBlock");
+		c.dead = getBoolean(json, "dead");
+		c.finished = getBoolean(json, "finished");
+		c.stopped = getBoolean(json, "stopped");
+		if (json.has("callStackPages"))
+			c.callStackPages = json.get("callStackPages").getAsInt();
+		if (json.has("userStackPages"))
+			c.userStackPages = json.get("userStackPages").getAsInt();
+		return c;
+	}
+
+	JsonObject toJson() {
+		JsonObject json = new JsonObject();
+		json.addProperty("at", Long.toUnsignedString(id));
+		json.addProperty("creator", Long.toUnsignedString(creator));
+		json.addProperty("name", name);
+		json.addProperty("description", description);
+		json.addProperty("machineCode", toHex(code));
+		json.addProperty("machineData", toHex(data));
+		json.addProperty("balanceNQT", Long.toString(balance));
+		json.addProperty("prevBalanceNQT", Long.toString(previousBalance));
+		json.addProperty("minActivation", Long.toString(minActivation));
+		json.addProperty("creationBlock", creationHeight);
+		json.addProperty("nextBlock", nextBlock);
+		json.addProperty("dead", dead);
+		json.addProperty("finished", finished);
+		json.addProperty("stopped", stopped);
+		json.addProperty("callStackPages", callStackPages);
+		json.addProperty("userStackPages", userStackPages);
+		return json;
+	}
+
+	static String getString(JsonObject json, String key) {
+		JsonElement e = json.get(key);
+		return e == null || e.isJsonNull() ? null : e.getAsString();
+	}
+
+	static long getLong(JsonObject json, String key) {
+		JsonElement e = json.get(key);
+		// amounts come as strings, possibly above the signed range
+		return e == null || e.isJsonNull() ? 0L : new BigInteger(e.getAsString()).longValue();
+	}
+
+	static boolean getBoolean(JsonObject json, String key) {
+		JsonElement e = json.get(key);
+		return e != null && !e.isJsonNull() && e.getAsBoolean();
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] ret = new byte[hex.length() / 2];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return ret;
+	}
+
+	static byte[] toBytes(long[] cells) {
+		ByteBuffer b = ByteBuffer.allocate(cells.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+		b.asLongBuffer().put(cells);
+		return b.array();
+	}
+
+	/**
+	 * @return the data as little endian cells, padded to whole pages
+	 */
+	long[] getDataCells() {
+		int pages = Math.max(1, (data.length + Machine.CELLS_PER_PAGE * 8 - 1) / (Machine.CELLS_PER_PAGE * 8));
+		long[] ret = new long[pages * Machine.CELLS_PER_PAGE];
+		ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(ret, 0, data.length / 8);
+		return ret;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getCreator() {
+		return creator;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public byte[] getCode() {
+		return code;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public long getBalance() {
+		return balance;
+	}
+
+	public long getMinActivation() {
+		return minActivation;
+	}
+
+	public int getCreationHeight() {
+		return creationHeight;
+	}
+
+	/**
+	 * @return the height the contract runs next, the emulator is moved to at
+	 *         least this height when importing
+	 */
+	public int getNextBlock() {
+		return nextBlock;
+	}
+
+	public boolean isDead() {
+		return dead;
+	}
+
+	/**
+	 * @return true if the contract was sleeping or stopped in the middle of an
+	 *         execution, which cannot be resumed on import
+	 */
+	public boolean isStopped() {
+		return stopped && !finished;
+	}
+
+	/**
+	 * Sets the stack pages used when registering the contract, not reported by
+	 * the node.
+	 */
+	public void setStackPages(int callStackPages, int userStackPages) {
+		this.callStackPages = callStackPages;
+		this.userStackPages = userStackPages;
+	}
+}
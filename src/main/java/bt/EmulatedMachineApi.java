@@ -0,0 +1,206 @@
+package bt;
+
+import java.lang.reflect.Method;
+
+import org.objectweb.asm.Type;
+
+import bt.compiler.Compiler;
+import bt.compiler.Machine;
+import bt.compiler.MachineApi;
+
+/**
+ * The blockchain functions for a compiled contract running on the
+ * {@link Emulator}.
+ *
+ * One instance per hosted {@link Machine}, keeping the AT state that is not
+ * part of the machine itself (creator, creation block, activation fee, etc.).
+ */
+class EmulatedMachineApi implements MachineApi {
+
+	Emulator emu;
+	Address address;
+	Address creator;
+	long creationHeight;
+	long activationFee;
+	long previousBalance;
+	long sleepUntil;
+	long spent;
+	/** Steps executed on all blocks */
+	long totalSteps;
+
+	/**
+	 * The last transaction loaded on A, the only one kept here so the pruned
+	 * blocks are not held, see {@link Emulator#pruneBlocks(long)}
+	 */
+	Transaction txInA;
+
+	EmulatedMachineApi(Emulator emu, Transaction creationTx, long creationHeight) {
+		this(emu, creationTx.receiver, creationTx.sender, creationHeight, creationTx.amount);
+	}
+
+	EmulatedMachineApi(Emulator emu, Address address, Address creator, long creationHeight, long activationFee) {
+		this.emu = emu;
+		this.address = address;
+		this.creator = creator;
+		this.creationHeight = creationHeight;
+		this.activationFee = activationFee;
+	}
+
+	/**
+	 * @return the balance available for the running machine
+	 */
+	long getAvailable(Machine m) {
+		return Math.max(0L, address.balance - m.getSteps() * emu.machineStepFee - spent);
+	}
+
+	Transaction getTxInA(Machine m) {
+		long id = m.getA(0);
+		if (txInA != null && txInA.getId() == id)
+			return txInA;
+		// an id set on A by the contract itself
+		return id == 0 ? null : emu.getTx(id);
+	}
+
+	static long[] getMessageValues(Transaction tx) {
+		long[] ret = new long[4];
+		if (tx.msg == null)
+			return ret;
+		if (tx.msg.method != null) {
+			Method method = tx.msg.method;
+			ret[0] = Compiler.getMethodSignature(method.getName(), Type.getMethodDescriptor(method));
+			for (int i = 0; tx.msg.args != null && i < tx.msg.args.length && i < 3; i++) {
+				if (tx.msg.args[i] != null)
+					ret[i + 1] = BT.getArgumentValue(tx.msg.args[i]);
+			}
+			return ret;
+		}
+		System.arraycopy(tx.msg.value, 0, ret, 0, 4);
+		return ret;
+	}
+
+	@Override
+	public long getBlockTimestamp(Machine m) {
+		return emu.currentBlock.height << 32;
+	}
+
+	@Override
+	public long getCreationTimestamp(Machine m) {
+		return creationHeight << 32;
+	}
+
+	@Override
+	public long getLastBlockTimestamp(Machine m) {
+		return emu.prevBlock.height << 32;
+	}
+
+	@Override
+	public void putLastBlockHashInA(Machine m) {
+		for (int i = 0; i < 4; i++)
+			m.setA(i, emu.prevBlock.hash.value[i]);
+	}
+
+	@Override
+	public void aToTxAfterTimestamp(Machine m, long timestamp) {
+		Transaction tx = emu.getTxAfter(address, new Timestamp(timestamp >> 32, timestamp & 0xffffffffL),
+				emu.prevBlock.height);
+		txInA = tx;
+		m.setA(0, tx == null ? 0 : tx.getId());
+		for (int i = 1; i < 4; i++)
+			m.setA(i, 0);
+	}
+
+	@Override
+	public long getTypeForTxInA(Machine m) {
+		Transaction tx = getTxInA(m);
+		if (tx == null)
+			return -1;
+		return tx.type == Transaction.TYPE_METHOD_CALL ? Transaction.TYPE_MESSAGING : tx.type;
+	}
+
+	@Override
+	public long getAmountForTxInA(Machine m) {
+		Transaction tx = getTxInA(m);
+		if (tx == null)
+			return -1;
+		return Math.max(0L, tx.amount - activationFee);
+	}
+
+	@Override
+	public long getTimestampForTxInA(Machine m) {
+		Transaction tx = getTxInA(m);
+		if (tx == null)
+			return -1;
+		return tx.ts.value;
+	}
+
+	@Override
+	public long getRandomIdForTxInA(Machine m) {
+		Transaction tx = getTxInA(m);
+		if (tx == null)
+			return -1;
+		return Math.abs(tx.block.hash.value[0] ^ tx.getId());
+	}
+
+	@Override
+	public void messageFromTxInAToB(Machine m) {
+		Transaction tx = getTxInA(m);
+		long[] msg = tx == null ? new long[4] : getMessageValues(tx);
+		for (int i = 0; i < 4; i++)
+			m.setB(i, msg[i]);
+	}
+
+	@Override
+	public void bToAddressOfTxInA(Machine m) {
+		Transaction tx = getTxInA(m);
+		m.setB(0, tx == null ? 0 : tx.sender.id);
+		for (int i = 1; i < 4; i++)
+			m.setB(i, 0);
+	}
+
+	@Override
+	public void bToAddressOfCreator(Machine m) {
+		m.setB(0, creator.id);
+		for (int i = 1; i < 4; i++)
+			m.setB(i, 0);
+	}
+
+	@Override
+	public long getCurrentBalance(Machine m) {
+		return getAvailable(m);
+	}
+
+	@Override
+	public long getPreviousBalance(Machine m) {
+		return previousBalance;
+	}
+
+	@Override
+	public void sendToAddressInB(Machine m, long amount) {
+		amount = Math.min(amount, getAvailable(m));
+		if (amount <= 0)
+			return;
+		spent += amount;
+		emu.send(address, emu.getAddress(m.getB(0)), amount);
+	}
+
+	@Override
+	public void sendAllToAddressInB(Machine m) {
+		sendToAddressInB(m, getAvailable(m));
+	}
+
+	@Override
+	public void sendOldToAddressInB(Machine m) {
+		sendToAddressInB(m, previousBalance);
+	}
+
+	@Override
+	public void sendAToAddressInB(Machine m) {
+		emu.send(address, emu.getAddress(m.getB(0)), 0,
+				Register.newInstance(m.getA(0), m.getA(1), m.getA(2), m.getA(3)));
+	}
+
+	@Override
+	public long addMinutesToTimestamp(Machine m, long timestamp, long minutes) {
+		return timestamp + ((minutes / 4) << 32);
+	}
+}
@@ -1,9 +1,22 @@
 package bt;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bt.compiler.Compiler;
+import bt.compiler.Machine;
+import bt.compiler.MachineArena;
+import bt.compiler.MachineHistory;
+import signumj.crypto.SignumCrypto;
 import signumj.entity.SignumAddress;
+import signumj.entity.SignumID;
 
 
 /**
@@ -14,11 +27,50 @@ import signumj.entity.SignumAddress;
  */
 public class Emulator {
 
+	private static Logger logger = LogManager.getLogger();
+
+	/**
+	 * Emulator for the current thread (and the contract threads it starts), when
+	 * not using the default instance.
+	 */
+	static final InheritableThreadLocal<Emulator> current = new InheritableThreadLocal<>();
+
 	static final Emulator instance = new Emulator();
 
 	Block genesis;
 	Transaction curTx;
 
+	/**
+	 * Maximum number of steps a compiled contract can execute per block.
+	 */
+	long machineMaxSteps = 100_000L;
+
+	/**
+	 * If compiled contracts should be translated to JVM code instead of interpreted.
+	 */
+	boolean translateMachines;
+
+	/**
+	 * If the compiled contracts state should be recorded block by block, see
+	 * {@link Address#getMachineHistory()}.
+	 */
+	boolean recordMachines;
+
+	/**
+	 * Off heap storage for the compiled contracts, null to keep them on heap.
+	 */
+	MachineArena machineArena;
+
+	/**
+	 * Fee charged per step of a compiled contract.
+	 */
+	long machineStepFee = Contract.STEP_FEE;
+
+	/**
+	 * Source for the block hashes, random if null.
+	 */
+	Random random;
+
 	/**
 	 * Block being forged, also representing the mempool.
 	 */
@@ -28,6 +80,10 @@ public class Emulator {
 	ArrayList<Block> blocks = new ArrayList<Block>();
 	ArrayList<Transaction> txs = new ArrayList<Transaction>();
 	ArrayList<Address> addresses = new ArrayList<Address>();
+	HashMap<String, Address> addressesByRs = new HashMap<>();
+	HashMap<Long, Address> addressesById = new HashMap<>();
+	/** Addresses hosting a contract (Java or compiled), in creation order */
+	ArrayList<Address> contracts = new ArrayList<Address>();
 
 	public ArrayList<Block> getBlocks() {
 		return blocks;
@@ -42,7 +98,16 @@ public class Emulator {
 	}
 
 	Emulator() {
-		currentBlock = genesis = new Block(null);
+		this(null);
+	}
+
+	/**
+	 * Creates a new emulator with block hashes from the given source, so that
+	 * executions can be reproduced.
+	 */
+	Emulator(Random random) {
+		this.random = random;
+		currentBlock = genesis = newBlock(null);
 		try {
 			forgeBlock();
 		} catch (Exception e) {
@@ -52,11 +117,7 @@ public class Emulator {
 	}
 
 	public Address findAddress(String rs) {
-		for (Address a : addresses) {
-			if (a.rsAddress.equals(rs))
-				return a;
-		}
-		return null;
+		return addressesByRs.get(rs);
 	}
 
 	public Address getAddress(String rs) {
@@ -73,12 +134,61 @@ public class Emulator {
 		}
 		ret = new Address(id, 0, rs);
 		addresses.add(ret);
+		addressesByRs.put(rs, ret);
 
 		return ret;
 	}
 
+	/**
+	 * @return the address for the given id
+	 */
+	public Address getAddress(long id) {
+		Address ret = addressesById.get(id);
+		if (ret == null) {
+			ret = getAddress(SignumCrypto.getInstance().rsEncode(SignumID.fromLong(id)));
+			addressesById.put(id, ret);
+		}
+		return ret;
+	}
+
 	public static Emulator getInstance() {
-		return instance;
+		Emulator emu = current.get();
+		return emu != null ? emu : instance;
+	}
+
+	/**
+	 * Sets the emulator used by the current thread, null for the default one.
+	 */
+	static void setCurrent(Emulator emu) {
+		if (emu == null)
+			current.remove();
+		else
+			current.set(emu);
+	}
+
+	Block newBlock(Block prev) {
+		Block b = new Block(prev);
+		if (random != null) {
+			for (int i = 0; i < b.hash.value.length; i++)
+				b.hash.value[i] = random.nextLong();
+		}
+		return b;
+	}
+
+	/**
+	 * Wakes up the emulator waiting on {@link #await(BooleanSupplier)}, to be
+	 * called by the contract threads after changing their state.
+	 */
+	synchronized void signal() {
+		notifyAll();
+	}
+
+	/**
+	 * Waits for a contract thread to reach the given condition.
+	 */
+	synchronized void await(BooleanSupplier condition) throws InterruptedException {
+		while (!condition.getAsBoolean())
+			wait();
 	}
 
 	public void send(Address from, Address to, long amount) {
@@ -86,6 +196,8 @@ public class Emulator {
 	}
 
 	public void send(Address from, Address to, long amount, String message) {
+		if (to == null) // unset address, as address 0 on the compiled code
+			to = getAddress(0L);
 		Transaction t = new Transaction(from, to, amount, Transaction.TYPE_PAYMENT,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
 		currentBlock.txs.add(t);
@@ -94,8 +206,10 @@ public class Emulator {
 	}
 
 	public void send(Address from, Address to, long amount, Register message) {
+		if (to == null) // unset address, as address 0 on the compiled code
+			to = getAddress(0L);
 		Transaction t = new Transaction(from, to, amount,
-				message.method != null ? Transaction.TYPE_METHOD_CALL : Transaction.TYPE_PAYMENT,
+				message != null && message.method != null ? Transaction.TYPE_METHOD_CALL : Transaction.TYPE_PAYMENT,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
 		currentBlock.txs.add(t);
 		t.block = currentBlock;
@@ -110,6 +224,145 @@ public class Emulator {
 		txs.add(t);
 	}
 	
+	/**
+	 * Creates a contract from its bytecode, executed by a {@link Machine}
+	 * instead of the Java class.
+	 */
+	public void createCompiledContract(Address from, Address to, Compiler compiled, long actFee) {
+		createCompiledContract(from, to,
+				machineArena == null ? new Machine(compiled) : new Machine(compiled, machineArena), actFee);
+	}
+
+	/**
+	 * Creates a contract from the given (not yet started) machine.
+	 */
+	public void createCompiledContract(Address from, Address to, Machine machine, long actFee) {
+		Transaction t = new Transaction(from, to, actFee, Transaction.TYPE_AT_CREATE,
+				new Timestamp(currentBlock.height, currentBlock.txs.size()), (String) null);
+		t.machine = machine;
+		currentBlock.txs.add(t);
+		t.block = currentBlock;
+		txs.add(t);
+	}
+
+	/**
+	 * Imports a contract deployed on chain, as a compiled contract waiting for
+	 * new transactions. The emulator is moved to the contract next block height
+	 * (if not already after it), so the timestamps stored by the contract are
+	 * still in the past.
+	 *
+	 * @return the contract address
+	 */
+	public Address importContract(DeployedContract deployed) {
+		Address contract = getAddress(deployed.id);
+		if (contract.machine != null || contract.contract != null)
+			throw new IllegalStateException("contract already on the emulator: " + contract);
+		if (deployed.isStopped())
+			logger.warn("{} was stopped on chain, importing as waiting for a new transaction", contract);
+
+		long[] data = deployed.getDataCells();
+		int dataPages = data.length / Machine.CELLS_PER_PAGE;
+		Machine m = machineArena == null
+				? new Machine(deployed.code, dataPages, deployed.callStackPages, deployed.userStackPages)
+				: new Machine(deployed.code, dataPages, deployed.callStackPages, deployed.userStackPages,
+						machineArena);
+		m.setData(data);
+		m.restoreIdle(deployed.dead);
+
+		EmulatedMachineApi api = new EmulatedMachineApi(this, contract, getAddress(deployed.creator),
+				deployed.creationHeight, deployed.minActivation);
+		api.previousBalance = deployed.previousBalance;
+		m.setApi(api);
+		if (translateMachines)
+			m.translate();
+
+		if (currentBlock.height < deployed.nextBlock)
+			setHeight(deployed.nextBlock);
+		contract.balance = deployed.balance;
+		contract.machine = m;
+		contracts.add(contract);
+		if (recordMachines)
+			contract.history = new MachineHistory(m, currentBlock.height);
+		return contract;
+	}
+
+	/**
+	 * Forges blocks until the block being forged is at the given height. When
+	 * there are no transactions pending and no contract to resume, the remaining
+	 * empty blocks are skipped with {@link #setHeight(long)}.
+	 */
+	public void forgeUntil(long height) throws Exception {
+		while (currentBlock.height < height) {
+			if (currentBlock.txs.isEmpty() && isIdle()) {
+				setHeight(height);
+				return;
+			}
+			forgeBlock();
+		}
+	}
+
+	/**
+	 * @return true if all contracts are waiting for a transaction (or dead)
+	 */
+	boolean isIdle() {
+		for (int i = 0; i < contracts.size(); i++) {
+			Address ad = contracts.get(i);
+			if (ad.machine != null && !ad.machine.isFinished())
+				return false;
+			if (ad.contract != null && ad.contract.sleepUntil != null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the block being forged to the given height, skipping the blocks in
+	 * between.
+	 */
+	public void setHeight(long height) {
+		if (height < currentBlock.height)
+			throw new IllegalArgumentException("height " + height + " is before the current " + currentBlock.height);
+		currentBlock.height = height;
+		for (int i = 0; i < currentBlock.txs.size(); i++)
+			currentBlock.txs.get(i).ts = new Timestamp(height, i);
+	}
+
+	public long getMachineMaxSteps() {
+		return machineMaxSteps;
+	}
+
+	public void setMachineMaxSteps(long machineMaxSteps) {
+		this.machineMaxSteps = machineMaxSteps;
+	}
+
+	public boolean isTranslateMachines() {
+		return translateMachines;
+	}
+
+	public void setTranslateMachines(boolean translateMachines) {
+		this.translateMachines = translateMachines;
+	}
+
+	public boolean isRecordMachines() {
+		return recordMachines;
+	}
+
+	public void setRecordMachines(boolean recordMachines) {
+		this.recordMachines = recordMachines;
+	}
+
+	public MachineArena getMachineArena() {
+		return machineArena;
+	}
+
+	/**
+	 * Sets the arena hosting the compiled contracts created from now on, for
+	 * emulating a large number of them.
+	 */
+	public void setMachineArena(MachineArena machineArena) {
+		this.machineArena = machineArena;
+	}
+
 	public void airDrop(String address, long amount) {
 		Address to = getAddress(address);
 		to.balance += amount;
@@ -123,24 +376,12 @@ public class Emulator {
 
 		// Transactions to postpone due to sleeping contracts
 		ArrayList<Transaction> pendTxs = new ArrayList<>();
-		Timestamp curBlockTs = new Timestamp(currentBlock.height, 0);
-
-		// check for sleeping contracts
-		for(Address ad : addresses){
-			if(ad.contract==null)
-				continue;
-
-			Contract c = ad.contract;
-			// sleeping contract
-			if(c.sleepUntil!=null && c.sleepUntil.le(curBlockTs)) {
-				// release to resume execution
-				c.semaphore.release();
-				Thread.sleep(100);
-			}
-		}
 
-		// process all pending transactions
-		for (Transaction tx : currentBlock.txs) {
+		// process all pending transactions, the ones sent while processing
+		// (contract constructors) are left for the next block
+		int ntxs = currentBlock.txs.size();
+		for (int i = 0; i < ntxs; i++) {
+			Transaction tx = currentBlock.txs.get(i);
 
 			// checking for sleeping contracts
 			if (tx.receiver.isSleeping()) {
@@ -157,9 +398,26 @@ public class Emulator {
 				tx.receiver.balance += amount;
 			}
 
-			if (tx.type == Transaction.TYPE_AT_CREATE) {
+			if (tx.type == Transaction.TYPE_AT_CREATE && tx.machine != null) {
+				// compiled contract
+				tx.machine.setApi(new EmulatedMachineApi(this, tx, currentBlock.height));
+				if (translateMachines)
+					tx.machine.translate();
+				if (tx.receiver.machine == null)
+					contracts.add(tx.receiver);
+				tx.receiver.machine = tx.machine;
+				if (recordMachines)
+					tx.receiver.history = new MachineHistory(tx.machine, currentBlock.height);
+				// run the constructor now, as for the Java contracts
+				runMachine(tx.receiver, false);
+				if (tx.receiver.history != null)
+					tx.receiver.history.record(currentBlock.height);
+			}
+			else if (tx.type == Transaction.TYPE_AT_CREATE) {
 				// set the current creator variables
 				curTx = tx;
+				boolean isContract = tx.receiver.contract != null;
+				boolean[] constructed = new boolean[1];
 				
 				Thread ct = new Thread() {
 					public void run() {
@@ -174,25 +432,55 @@ public class Emulator {
 						} catch (Exception ex) {
 							ex.printStackTrace();
 						}
+						constructed[0] = true;
+						signal();
 					}
 				};
 				
 				ct.start();
-				while(tx.receiver.contract == null && !tx.receiver.isSleeping()){
-					Thread.sleep(10);
-				}
-				if(!tx.receiver.isSleeping()) {
+				await(() -> constructed[0] || tx.receiver.isSleeping());
+				if (!isContract && tx.receiver.contract != null)
+					contracts.add(tx.receiver);
+				if(tx.receiver.contract != null && !tx.receiver.isSleeping()) {
 					tx.receiver.contract.semaphore.release();
 					tx.receiver.contract.running = false;
+
+					// as in the compiled code, the creation also runs a first block
+					tx.receiver.contract.blockStarted();
+					tx.receiver.contract.blockFinished();
 				}
 			}
 		}
 
+		List<Transaction> sentTxs = currentBlock.txs.subList(ntxs, currentBlock.txs.size());
+		pendTxs.addAll(sentTxs);
+		sentTxs.clear();
+
 		blocks.add(currentBlock);
 		prevBlock = currentBlock;
-		currentBlock = new Block(prevBlock);
+		currentBlock = newBlock(prevBlock);
 		currentBlock.txs.addAll(pendTxs);
 
+		// check for sleeping contracts, resuming along with the machines
+		Timestamp curBlockTs = new Timestamp(currentBlock.height, 0);
+		for (int i = 0; i < contracts.size(); i++) {
+			Contract c = contracts.get(i).contract;
+			// sleeping contract
+			if(c!=null && c.sleepUntil!=null && c.sleepUntil.le(curBlockTs)) {
+				// release to resume execution
+				Timestamp until = c.sleepUntil;
+				c.semaphore.release();
+				// wait for it to wake up and then to finish or sleep again
+				await(() -> c.sleepUntil != until);
+				await(() -> !c.running || c.sleepUntil != null);
+				// the permit taken on waking up
+				if(c.sleepUntil==null)
+					c.semaphore.release();
+			}
+		}
+
+		runMachines();
+
 		HashSet<Contract> contractsExecuted = new HashSet<>();
 		// run all contracts, operations will be pending to be forged in the next block
 		for (Transaction tx : prevBlock.txs) {
@@ -204,8 +492,9 @@ public class Emulator {
 			Contract c = tx.receiver.contract;
 			if (c != null && tx.type != Transaction.TYPE_AT_CREATE && tx.amount >= c.activationFee) {
 				// a contract received a message
+				if (contractsExecuted.add(c))
+					c.blockStarted();
 				c.setCurrentTx(tx);
-				contractsExecuted.add(c);
 
 				Thread ct = new Thread() {
 					public void run() {
@@ -227,9 +516,14 @@ public class Emulator {
 							ex.printStackTrace();
 							invoked = false;
 						}
-						if (!invoked) // invoke the default method "txReceived"
-							c.txReceived();
-						c.running = false;
+						try {
+							if (!invoked) // invoke the default method "txReceived"
+								c.txReceived();
+						} finally {
+							// also on errors, the emulator is waiting for it
+							c.running = false;
+							signal();
+						}
 					}
 				};
 
@@ -239,9 +533,7 @@ public class Emulator {
 				c.semaphore.acquire();
 				c.running = true;
 				ct.start();
-				while(c.running && c.sleepUntil==null){
-					Thread.sleep(10);
-				}
+				await(() -> !c.running || c.sleepUntil != null);
 				if(c.sleepUntil==null)
 					c.semaphore.release();
 			}
@@ -253,6 +545,52 @@ public class Emulator {
 		}
 	}
 
+	/**
+	 * Runs all the compiled contracts (machines) for the block just forged.
+	 */
+	void runMachines() {
+		// only a new transaction with the activation fee wakes up a finished machine
+		HashSet<Address> activated = new HashSet<>();
+		for (Transaction tx : prevBlock.txs) {
+			Machine m = tx.receiver == null ? null : tx.receiver.machine;
+			if (m != null && tx.type != Transaction.TYPE_AT_CREATE
+					&& tx.amount >= ((EmulatedMachineApi) m.getApi()).activationFee)
+				activated.add(tx.receiver);
+		}
+
+		// indexed loop, new contracts can be created by the contracts
+		for (int i = 0; i < contracts.size(); i++) {
+			Address ad = contracts.get(i);
+			if (ad.machine != null)
+				runMachine(ad, activated.contains(ad));
+			if (ad.history != null)
+				ad.history.record(currentBlock.height);
+		}
+	}
+
+	void runMachine(Address ad, boolean activated) {
+		Machine m = ad.machine;
+		EmulatedMachineApi api = (EmulatedMachineApi) m.getApi();
+		if (m.isDead())
+			return;
+		if (m.isFinished() && !activated)
+			return;
+		else if (api.sleepUntil > currentBlock.height)
+			return;
+
+		long maxSteps = machineStepFee > 0 ? Math.min(machineMaxSteps, ad.balance / machineStepFee) : machineMaxSteps;
+		if (maxSteps == 0)
+			return;
+
+		api.spent = 0;
+		m.run(maxSteps);
+		api.totalSteps += m.getSteps();
+		ad.balance -= m.getSteps() * machineStepFee;
+		api.previousBalance = ad.balance - api.spent;
+		if (m.isStopped())
+			api.sleepUntil = currentBlock.height + Math.max(1L, m.getSleepBlocks());
+	}
+
 	public Transaction getTxAfter(Address receiver, Timestamp ts) {
 		Block b = blocks.get(0);
 		while (b != null) {
@@ -267,10 +605,94 @@ public class Emulator {
 		return null;
 	}
 
+	/**
+	 * Get the first transaction received after the given timestamp, up to the
+	 * given block height.
+	 */
+	Transaction getTxAfter(Address receiver, Timestamp ts, long maxHeight) {
+		for (int h = getBlockIndex(ts.value >> 32); h < blocks.size(); h++) {
+			Block b = blocks.get(h);
+			if (b.height > maxHeight)
+				break;
+			// transactions of the timestamp block are on the position of their
+			// timestamp, the ones before are not after it
+			int first = b.height == ts.value >> 32 ? (int) Math.min(ts.value & 0xffffffffL, b.txs.size()) : 0;
+			for (int i = first; i < b.txs.size(); i++) {
+				Transaction txi = b.txs.get(i);
+				if (txi.type != Transaction.TYPE_AT_CREATE && txi.receiver.equals(receiver)
+						&& !txi.getTimestamp().le(ts))
+					return txi;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the transaction with the given id, among the ones not pruned, null
+	 *         if not found
+	 */
+	Transaction getTx(long id) {
+		for (int i = txs.size() - 1; i >= 0; i--) {
+			Transaction tx = txs.get(i);
+			if (tx.getId() == id)
+				return tx;
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the blocks forged before the given height and their
+	 * transactions, to keep the memory bounded on long emulations. Contracts
+	 * cannot see these transactions anymore.
+	 *
+	 * The discarded blocks are unlinked from each other, so a transaction still
+	 * referenced (the last one read by a contract) holds only its own block.
+	 */
+	public void pruneBlocks(long height) {
+		int n = Math.min(getBlockIndex(height), blocks.size() - 1);
+		if (n <= 0)
+			return;
+		List<Block> pruned = blocks.subList(0, n);
+		for (Block b : pruned)
+			b.prev = b.next = null;
+		pruned.clear();
+		genesis = blocks.get(0);
+		genesis.prev = null;
+		txs.removeIf(tx -> tx.block != null && tx.block.height < blocks.get(0).height);
+	}
+
+	/**
+	 * @return the index of the first forged block not before the given height,
+	 *         heights can skip (see {@link #setHeight(long)})
+	 */
+	int getBlockIndex(long height) {
+		int low = 0, high = blocks.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (blocks.get(mid).height < height)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
 	public Block getPrevBlock() {
 		return prevBlock;
 	}
 
+	/**
+	 * @return the amount sent by the given address on the block being forged
+	 */
+	long getPendingAmount(Address from) {
+		long amount = 0;
+		for (Transaction tx : currentBlock.txs) {
+			if (tx.sender == from)
+				amount += tx.amount;
+		}
+		return amount;
+	}
+
 	public Block getCurrentBlock() {
 		return currentBlock;
 	}
@@ -0,0 +1,596 @@
+package bt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import bt.compiler.Compiler;
+import bt.compiler.Field;
+import bt.compiler.Machine;
+import bt.compiler.Profiler;
+
+/**
+ * Differential fuzzer for the compiler.
+ *
+ * Random transaction sequences are run on the Java emulation of a contract and
+ * on its compiled bytecode (see {@link Machine}), comparing the field values
+ * after every block. Each run uses its own pair of emulators, so runs are
+ * spread over all cores. Failing sequences are shrunk before being reported.
+ */
+public class Fuzzer {
+
+	static final int USERS = 4;
+	static final long USER_BALANCE = 1_000_000 * Contract.ONE_BURST;
+	static final long CONTRACT_ID = 0x0123456789abcdefL;
+	static final int MAX_SHRINK_RUNS = 200;
+	/** Seconds for each run, the Java emulation of endless loops never returns */
+	static final long RUN_TIMEOUT = 60;
+
+	/**
+	 * A transaction to send to the contract.
+	 */
+	static class Tx {
+		int sender;
+		long amount;
+		Method method;
+		long[] args;
+		long[] message;
+
+		Tx copy() {
+			Tx t = new Tx();
+			t.sender = sender;
+			t.amount = amount;
+			t.method = method;
+			t.args = args == null ? null : args.clone();
+			t.message = message == null ? null : message.clone();
+			return t;
+		}
+
+		@Override
+		public String toString() {
+			String ret = "user" + sender + " sends " + amount;
+			if (method != null) {
+				ret += ", " + method.getName() + "(";
+				for (int i = 0; i < args.length; i++)
+					ret += (i > 0 ? ", " : "") + args[i];
+				ret += ")";
+			} else if (message != null) {
+				ret += ", message " + Long.toHexString(message[0]) + " " + Long.toHexString(message[1]) + " "
+						+ Long.toHexString(message[2]) + " " + Long.toHexString(message[3]);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * A difference between the Java emulation and the bytecode execution.
+	 */
+	public static class Mismatch {
+		int block;
+		String field;
+		String expected, actual;
+
+		Mismatch(int block, String field, String expected, String actual) {
+			this.block = block;
+			this.field = field;
+			this.expected = expected;
+			this.actual = actual;
+		}
+
+		@Override
+		public String toString() {
+			return "block " + block + ", " + field + ": java " + expected + ", bytecode " + actual;
+		}
+	}
+
+	/**
+	 * A failing case, already shrunk.
+	 */
+	public static class Failure {
+		Class<? extends Contract> contract;
+		long seed;
+		List<List<Tx>> blocks;
+		Mismatch mismatch;
+
+		@Override
+		public String toString() {
+			String ret = contract.getName() + " (seed " + seed + "): " + mismatch + "\n";
+			for (int i = 0; i < blocks.size(); i++) {
+				ret += "  block " + (i + 1) + ":\n";
+				for (Tx tx : blocks.get(i))
+					ret += "    " + tx + "\n";
+			}
+			return ret;
+		}
+	}
+
+	Class<? extends Contract> contract;
+	Compiler compiled;
+	ArrayList<Method> methods = new ArrayList<>();
+	long activationFee = Contract.ONE_BURST;
+	int nblocks = 8;
+	int maxTxsPerBlock = 3;
+	boolean translate;
+	Profiler profiler;
+
+	public Fuzzer(Class<? extends Contract> contract) throws IOException {
+		this.contract = contract;
+		compiled = BT.compileContract(contract);
+
+		for (Method m : contract.getDeclaredMethods()) {
+			if (Modifier.isPublic(m.getModifiers()) && !Modifier.isStatic(m.getModifiers())
+					&& compiled.getMethod(m.getName()) != null && !m.getName().equals("txReceived"))
+				methods.add(m);
+		}
+		Collections.sort(methods, (a, b) -> a.getName().compareTo(b.getName()));
+
+		try {
+			java.lang.reflect.Field f = contract.getDeclaredField("ACTIVATION_FEE");
+			f.setAccessible(true);
+			activationFee = f.getLong(null);
+		} catch (Exception e) {
+			// no activation fee constant, keep the default one
+		}
+	}
+
+	/**
+	 * @return true if the contract compiled with no errors
+	 */
+	public boolean isValid() {
+		return compiled.getErrors().isEmpty();
+	}
+
+	public void setTranslate(boolean translate) {
+		this.translate = translate;
+	}
+
+	/**
+	 * Profiles the bytecode on the fuzzing runs (not on the shrinking ones),
+	 * runs must not be executed in parallel then.
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+
+	List<List<Tx>> generate(Random r) {
+		List<List<Tx>> blocks = new ArrayList<>();
+		for (int b = 0; b < nblocks; b++) {
+			List<Tx> txs = new ArrayList<>();
+			int n = r.nextInt(maxTxsPerBlock + 1);
+			for (int i = 0; i < n; i++) {
+				Tx tx = new Tx();
+				tx.sender = r.nextInt(USERS);
+				tx.amount = activationFee + (r.nextInt(3) == 0 ? 0 : randomAmount(r));
+				int kind = r.nextInt(10);
+				if (kind < 5 && methods.size() > 0) {
+					tx.method = methods.get(r.nextInt(methods.size()));
+					Class<?>[] params = tx.method.getParameterTypes();
+					tx.args = new long[params.length];
+					for (int a = 0; a < params.length; a++)
+						tx.args[a] = randomArg(r, params[a], b);
+				} else if (kind < 7) {
+					tx.message = new long[4];
+					for (int v = 0; v < 4; v++)
+						tx.message[v] = r.nextBoolean() ? r.nextInt(100) : r.nextLong();
+				}
+				txs.add(tx);
+			}
+			blocks.add(txs);
+		}
+		return blocks;
+	}
+
+	static long randomAmount(Random r) {
+		switch (r.nextInt(3)) {
+		case 0:
+			return r.nextInt(1000);
+		case 1:
+			return r.nextInt(100) * Contract.ONE_BURST;
+		default:
+			return (long) (r.nextDouble() * 10_000 * Contract.ONE_BURST);
+		}
+	}
+
+	static long randomArg(Random r, Class<?> type, int block) {
+		if (type == boolean.class)
+			return r.nextInt(2);
+		if (type == Address.class)
+			return r.nextInt(USERS);
+		if (type == Timestamp.class)
+			return (long) (block + r.nextInt(10)) << 32;
+		switch (r.nextInt(4)) {
+		case 0:
+			return 0;
+		case 1:
+			return r.nextInt(10);
+		case 2:
+			return r.nextInt(100_000) * Contract.ONE_BURST;
+		default:
+			return type == int.class ? r.nextInt() : r.nextLong();
+		}
+	}
+
+	/**
+	 * Runs the given blocks of transactions on both the Java emulation and the
+	 * bytecode.
+	 *
+	 * @return the first mismatch or null if none
+	 */
+	Mismatch run(List<List<Tx>> blocks, long seed, Profiler profiler) throws Exception {
+		Emulator javaEmu = new Emulator(new Random(seed));
+		Emulator atEmu = new Emulator(new Random(seed));
+		atEmu.machineStepFee = 0;
+		atEmu.translateMachines = translate;
+
+		Address[] javaUsers = createUsers(javaEmu);
+		Address[] atUsers = createUsers(atEmu);
+		Address javaContract = javaEmu.getAddress(CONTRACT_ID);
+		Address atContract = atEmu.getAddress(CONTRACT_ID);
+
+		try {
+			Emulator.setCurrent(javaEmu);
+			javaEmu.createConctract(javaUsers[0], javaContract, contract, activationFee);
+			javaEmu.forgeBlock();
+
+			Emulator.setCurrent(atEmu);
+			Machine machine = new Machine(compiled);
+			if (profiler != null)
+				profiler.attach(machine);
+			atEmu.createCompiledContract(atUsers[0], atContract, machine, activationFee);
+			atEmu.forgeBlock();
+
+			Mismatch mismatch = compare(0, javaContract, atContract);
+			for (int b = 0; b < blocks.size() && mismatch == null; b++) {
+				Emulator.setCurrent(javaEmu);
+				for (Tx tx : blocks.get(b))
+					send(javaEmu, javaUsers, javaContract, tx);
+				javaEmu.forgeBlock();
+
+				Emulator.setCurrent(atEmu);
+				for (Tx tx : blocks.get(b))
+					send(atEmu, atUsers, atContract, tx);
+				atEmu.forgeBlock();
+
+				mismatch = compare(b + 1, javaContract, atContract);
+			}
+			return mismatch;
+		} finally {
+			Emulator.setCurrent(null);
+		}
+	}
+
+	static Address[] createUsers(Emulator emu) {
+		Address[] users = new Address[USERS];
+		for (int i = 0; i < USERS; i++) {
+			users[i] = emu.getAddress(1000L + i);
+			emu.airDrop(users[i], USER_BALANCE);
+		}
+		return users;
+	}
+
+	static void send(Emulator emu, Address[] users, Address contract, Tx tx) {
+		if (tx.method != null) {
+			Class<?>[] params = tx.method.getParameterTypes();
+			Object[] args = new Object[3];
+			for (int i = 0; i < params.length; i++) {
+				long v = tx.args[i];
+				if (params[i] == boolean.class)
+					args[i] = v != 0;
+				else if (params[i] == int.class)
+					args[i] = (int) v;
+				else if (params[i] == Address.class)
+					args[i] = users[(int) v];
+				else if (params[i] == Timestamp.class)
+					args[i] = new Timestamp(v >> 32, v & 0xffffffffL);
+				else
+					args[i] = v;
+			}
+			emu.send(users[tx.sender], contract, tx.amount, Register.newMethodCall(tx.method, args));
+		} else if (tx.message != null) {
+			emu.send(users[tx.sender], contract, tx.amount,
+					Register.newInstance(tx.message[0], tx.message[1], tx.message[2], tx.message[3]));
+		} else
+			emu.send(users[tx.sender], contract, tx.amount);
+	}
+
+	Mismatch compare(int block, Address javaContract, Address atContract) {
+		Contract c = javaContract.contract;
+		Machine m = atContract.machine;
+		if (c == null || m == null)
+			return new Mismatch(block, "<created>", String.valueOf(c != null), String.valueOf(m != null));
+		if (m.isDead())
+			return new Mismatch(block, "<running>", "true", m.getError());
+
+		for (Field f : compiled.getFields()) {
+			Long expected = getJavaValue(c, f.getName());
+			if (expected == null)
+				continue;
+			long actual = f.getValue(m.getData(f.getAddress()));
+			if (expected != actual)
+				return new Mismatch(block, f.getName(), expected.toString(), Long.toString(actual));
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of the given field as stored in the AT data or null if
+	 *         it cannot be compared
+	 */
+	static Long getJavaValue(Contract c, String name) {
+		for (Class<?> clazz = c.getClass(); clazz != Contract.class; clazz = clazz.getSuperclass()) {
+			try {
+				java.lang.reflect.Field f = clazz.getDeclaredField(name);
+				f.setAccessible(true);
+				Object value = f.get(c);
+				Class<?> type = f.getType();
+				if (type == long.class || type == int.class || type == short.class || type == byte.class)
+					return ((Number) value).longValue();
+				if (type == char.class)
+					return (long) (Character) value;
+				if (type == boolean.class)
+					return (Boolean) value ? 1L : 0L;
+				if (type == Address.class)
+					return value == null ? 0L : ((Address) value).id;
+				if (type == Timestamp.class)
+					return value == null ? 0L : ((Timestamp) value).value;
+				// transactions, registers, etc. are not comparable
+				return null;
+			} catch (NoSuchFieldException e) {
+				// try the superclass
+			} catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fuzzes with the given seed, shrinking the transactions in case of a
+	 * mismatch.
+	 *
+	 * @return the failure or null if none
+	 */
+	public Failure fuzz(long seed) throws Exception {
+		List<List<Tx>> blocks = generate(new Random(seed));
+		Mismatch mismatch = run(blocks, seed, profiler);
+		if (mismatch == null)
+			return null;
+
+		Failure failure = new Failure();
+		failure.contract = contract;
+		failure.seed = seed;
+		failure.blocks = new ArrayList<>(blocks.subList(0, mismatch.block));
+		failure.mismatch = mismatch;
+		shrink(failure);
+		return failure;
+	}
+
+	/**
+	 * Greedily removes blocks and transactions (and simplifies the remaining
+	 * ones) while still having a mismatch.
+	 */
+	void shrink(Failure failure) throws Exception {
+		int runs = 0;
+		boolean progress = true;
+		while (progress && runs < MAX_SHRINK_RUNS) {
+			progress = false;
+
+			for (int b = failure.blocks.size() - 1; b >= 0 && runs < MAX_SHRINK_RUNS; b--) {
+				List<List<Tx>> candidate = copy(failure.blocks);
+				candidate.remove(b);
+				runs++;
+				progress |= accept(failure, candidate);
+			}
+
+			for (int b = 0; b < failure.blocks.size() && runs < MAX_SHRINK_RUNS; b++) {
+				for (int t = failure.blocks.get(b).size() - 1; t >= 0 && runs < MAX_SHRINK_RUNS; t--) {
+					List<List<Tx>> candidate = copy(failure.blocks);
+					candidate.get(b).remove(t);
+					runs++;
+					progress |= accept(failure, candidate);
+				}
+			}
+
+			for (int b = 0; b < failure.blocks.size() && runs < MAX_SHRINK_RUNS; b++) {
+				for (int t = 0; t < failure.blocks.get(b).size() && runs < MAX_SHRINK_RUNS; t++) {
+					Tx tx = failure.blocks.get(b).get(t);
+					if (tx.amount != activationFee) {
+						List<List<Tx>> candidate = copy(failure.blocks);
+						candidate.get(b).get(t).amount = activationFee;
+						runs++;
+						progress |= accept(failure, candidate);
+					}
+					if (tx.message != null) {
+						List<List<Tx>> candidate = copy(failure.blocks);
+						candidate.get(b).get(t).message = null;
+						runs++;
+						progress |= accept(failure, candidate);
+					}
+					for (int a = 0; tx.args != null && a < tx.args.length; a++) {
+						if (tx.args[a] == 0)
+							continue;
+						List<List<Tx>> candidate = copy(failure.blocks);
+						candidate.get(b).get(t).args[a] = 0;
+						runs++;
+						progress |= accept(failure, candidate);
+					}
+				}
+			}
+		}
+	}
+
+	private boolean accept(Failure failure, List<List<Tx>> candidate) throws Exception {
+		Mismatch m = run(candidate, failure.seed, null);
+		if (m == null)
+			return false;
+		failure.blocks = new ArrayList<>(candidate.subList(0, Math.min(m.block, candidate.size())));
+		failure.mismatch = m;
+		return true;
+	}
+
+	static List<List<Tx>> copy(List<List<Tx>> blocks) {
+		List<List<Tx>> ret = new ArrayList<>();
+		for (List<Tx> txs : blocks) {
+			List<Tx> copy = new ArrayList<>();
+			for (Tx tx : txs)
+				copy.add(tx.copy());
+			ret.add(copy);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the contract classes found on the given package
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Class<? extends Contract>> getContracts(String pkg) throws Exception {
+		ArrayList<String> names = new ArrayList<>();
+		String path = pkg.replace('.', '/');
+		Enumeration<URL> urls = Fuzzer.class.getClassLoader().getResources(path);
+		while (urls.hasMoreElements()) {
+			URL url = urls.nextElement();
+			if (url.getProtocol().equals("jar")) {
+				JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+					String name = e.nextElement().getName();
+					if (name.startsWith(path + "/") && name.indexOf('/', path.length() + 1) < 0)
+						names.add(name.substring(path.length() + 1));
+				}
+			} else {
+				String[] files = new File(url.toURI()).list();
+				if (files != null)
+					Collections.addAll(names, files);
+			}
+		}
+		Collections.sort(names);
+
+		List<Class<? extends Contract>> ret = new ArrayList<>();
+		for (String name : names) {
+			if (!name.endsWith(".class") || name.contains("$"))
+				continue;
+			try {
+				Class<?> c = Class.forName(pkg + "." + name.substring(0, name.length() - 6));
+				// the emulator needs a public class to create the contract
+				if (Contract.class.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers())
+						&& Modifier.isPublic(c.getModifiers()))
+					ret.add((Class<? extends Contract>) c);
+			} catch (Throwable e) {
+				// not loadable, skip
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Fuzzes the given contract classes (all samples and dapps if none) on all
+	 * available cores.
+	 *
+	 * With -profile the bytecode execution of the runs is profiled, printing the
+	 * report and writing the collapsed stacks to ClassName.collapsed.
+	 *
+	 * Usage: Fuzzer [-n runs] [-seed seed] [-translate] [-profile] [class...]
+	 */
+	public static void main(String[] args) throws Exception {
+		int runs = 20;
+		long seed = System.currentTimeMillis();
+		boolean translate = false;
+		boolean profile = false;
+		List<Class<? extends Contract>> contracts = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				runs = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("-translate"))
+				translate = true;
+			else if (args[i].equals("-profile"))
+				profile = true;
+			else
+				contracts.add(Class.forName(args[i]).asSubclass(Contract.class));
+		}
+		if (contracts.isEmpty()) {
+			contracts.addAll(getContracts("bt.sample"));
+			contracts.addAll(getContracts("bt.dapps"));
+		}
+
+		// a profiler cannot be shared by parallel runs
+		int threads = profile ? 1 : Runtime.getRuntime().availableProcessors();
+		System.out.println("Fuzzing " + contracts.size() + " contracts, " + runs + " runs each, seed " + seed
+				+ ", " + threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int failures = 0;
+		for (Class<? extends Contract> c : contracts) {
+			Fuzzer fuzzer = new Fuzzer(c);
+			if (!fuzzer.isValid()) {
+				System.out.println(c.getName() + ": not compiled, " + fuzzer.compiled.getErrors().get(0).getMessage());
+				continue;
+			}
+			fuzzer.setTranslate(translate);
+			if (profile)
+				fuzzer.setProfiler(new Profiler(fuzzer.compiled));
+
+			ArrayList<Callable<Failure>> tasks = new ArrayList<>();
+			for (int i = 0; i < runs; i++) {
+				long runSeed = seed + i;
+				tasks.add(() -> fuzzer.fuzz(runSeed));
+			}
+			List<Future<Failure>> results = executor.invokeAll(tasks,
+					RUN_TIMEOUT * ((runs + threads - 1) / threads), TimeUnit.SECONDS);
+			Failure first = null;
+			int failed = 0;
+			for (Future<Failure> f : results) {
+				Failure failure;
+				try {
+					failure = f.get();
+				} catch (CancellationException e) {
+					System.out.println(c.getName() + ": timed out");
+					failed++;
+					continue;
+				} catch (Exception e) {
+					System.out.println(c.getName() + ": " + e.getCause());
+					failed++;
+					continue;
+				}
+				if (failure != null) {
+					failed++;
+					if (first == null || failure.blocks.size() < first.blocks.size())
+						first = failure;
+				}
+			}
+			System.out.println(c.getName() + ": " + failed + " of " + runs + " runs failed");
+			if (first != null)
+				System.out.println(first);
+			failures += failed;
+
+			if (profile) {
+				fuzzer.profiler.printReport(System.out, 20);
+				try (PrintStream out = new PrintStream(c.getSimpleName() + ".collapsed")) {
+					fuzzer.profiler.printCollapsed(out);
+				}
+			}
+		}
+		executor.shutdownNow();
+		System.out.println(failures == 0 ? "No mismatches found" : failures + " failed runs");
+
+		// contract threads may be left sleeping
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
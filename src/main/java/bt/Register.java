@@ -27,10 +27,18 @@ public class Register {
 	
 	@EmulatorWarning
 	public static Register newMessage(String msg) {
-		Register r = new Register();
+		Register r = newMessage(msg.getBytes());
 		r.msg = msg;
-		
-		byte[] bytes = msg.getBytes();
+		return r;
+	}
+
+	/**
+	 * @return a register with the first 32 bytes of the given message, as
+	 *         received by a contract
+	 */
+	@EmulatorWarning
+	public static Register newMessage(byte[] bytes) {
+		Register r = new Register();
 		int pos = 0;
 		for (int j = 0; j < r.value.length; j++) {
 			for (int i = 0; i < 8 && pos < bytes.length; i++) {
@@ -1,5 +1,7 @@
 package bt;
 
+import bt.compiler.Machine;
+
 /**
  * Class representing a transaction.
  * 
@@ -23,6 +25,8 @@ public class Transaction {
 	Timestamp ts;
 	String msgString;
 	Register msg;
+	/** The compiled contract to create, for {@link #TYPE_AT_CREATE} only */
+	Machine machine;
 
 	/**
 	 * Users are not allowed to create new instances of this class, this function
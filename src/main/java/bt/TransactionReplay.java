@@ -0,0 +1,303 @@
+package bt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import signumj.entity.SignumAddress;
+
+/**
+ * Replays recorded transactions (for instance, the activity of a contract
+ * exported from a node) on the {@link Emulator}, keeping their heights and
+ * order.
+ *
+ * The file is read as a stream, either JSON lines or the compact binary format
+ * written by {@link #convert(Path, Path)}. Each JSON record has the fields
+ * height, sender, recipient (optional, the replayed contract if missing),
+ * amountNQT and message (optional, hexadecimal or text if messageIsText), also
+ * accepted inside an attachment object as on the node responses. Transactions
+ * of the same height are sent on the same block, the blocks in between are
+ * forged (or skipped when there is nothing to run, see
+ * {@link Emulator#forgeUntil(long)}).
+ *
+ * Transactions sent by the emulated contracts are skipped, they are produced
+ * by the contracts themselves during the replay.
+ */
+public class TransactionReplay {
+
+	/** "BTX1", header of the binary format */
+	static final int BINARY_MAGIC = 0x42545831;
+
+	static final int FLAG_RECIPIENT = 1;
+	static final int FLAG_TEXT = 2;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * A transaction read from the file, reused between records.
+	 */
+	static class Record {
+		long height, sender, recipient, amount;
+		boolean hasRecipient, text;
+		byte[] message;
+
+		void clear() {
+			height = sender = recipient = amount = 0;
+			hasRecipient = text = false;
+			message = null;
+		}
+	}
+
+	Emulator emu;
+	Address contract;
+	boolean fundSenders = true;
+	int keepBlocks;
+
+	long replayed, skipped;
+
+	/**
+	 * @param contract the recipient for records without one, can be null
+	 */
+	public TransactionReplay(Emulator emu, Address contract) {
+		this.emu = emu;
+		this.contract = contract;
+	}
+
+	/**
+	 * If the senders should receive the amount of each transaction just before
+	 * sending it (default), so that the recorded amounts are kept without
+	 * setting the balances up front.
+	 */
+	public void setFundSenders(boolean fundSenders) {
+		this.fundSenders = fundSenders;
+	}
+
+	/**
+	 * Keeps only the transactions of the last given number of blocks on the
+	 * emulator, for replaying long histories on bounded memory, 0 (default) to
+	 * keep all. Contracts looking for older transactions will not find them.
+	 */
+	public void setKeepBlocks(int keepBlocks) {
+		this.keepBlocks = keepBlocks;
+	}
+
+	/**
+	 * Replays the given file, binary or JSON lines, and forges a last block to
+	 * process the transactions of the last height.
+	 *
+	 * @return the number of transactions sent
+	 */
+	public long replay(Path file) throws Exception {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+			in.mark(4);
+			DataInputStream data = new DataInputStream(in);
+			boolean binary = false;
+			try {
+				binary = data.readInt() == BINARY_MAGIC;
+			} catch (EOFException e) {
+				// too short for the binary header
+			}
+			if (binary)
+				return replayBinary(data);
+			in.reset();
+			return replayJson(new InputStreamReader(in, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Replays JSON records, one after the other (usually one per line).
+	 */
+	public long replayJson(Reader in) throws Exception {
+		long start = replayed;
+		JsonReader json = new JsonReader(in);
+		json.setLenient(true);
+		Record r = new Record();
+		while (json.peek() != JsonToken.END_DOCUMENT) {
+			r.clear();
+			readJson(json, r);
+			feed(r);
+		}
+		emu.forgeBlock();
+		return replayed - start;
+	}
+
+	/**
+	 * Replays binary records, after the header.
+	 */
+	public long replayBinary(DataInputStream in) throws Exception {
+		long start = replayed;
+		Record r = new Record();
+		while (readBinary(in, r))
+			feed(r);
+		emu.forgeBlock();
+		return replayed - start;
+	}
+
+	void feed(Record r) throws Exception {
+		if (r.height > emu.currentBlock.height) {
+			if (keepBlocks > 0 && emu.blocks.size() > 2 * keepBlocks)
+				emu.pruneBlocks(emu.blocks.get(emu.blocks.size() - keepBlocks).height);
+			emu.forgeUntil(r.height);
+		}
+
+		Address from = emu.getAddress(r.sender);
+		if (from.machine != null || from.contract != null) {
+			skipped++;
+			return;
+		}
+		Address to = r.hasRecipient ? emu.getAddress(r.recipient) : contract;
+		if (fundSenders && r.amount > 0)
+			emu.airDrop(from, r.amount);
+
+		if (r.message == null)
+			emu.send(from, to, r.amount);
+		else if (r.text)
+			emu.send(from, to, r.amount, new String(r.message, StandardCharsets.UTF_8));
+		else
+			emu.send(from, to, r.amount, Register.newMessage(r.message));
+		replayed++;
+	}
+
+	static void readJson(JsonReader json, Record r) throws IOException {
+		String message = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			switch (name) {
+			case "height":
+				r.height = json.nextLong();
+				break;
+			case "sender":
+				r.sender = parseId(json.nextString());
+				break;
+			case "recipient":
+				r.recipient = parseId(json.nextString());
+				r.hasRecipient = true;
+				break;
+			case "amountNQT":
+				r.amount = json.nextLong();
+				break;
+			case "attachment":
+				// only the message fields, as on the node responses
+				json.beginObject();
+				while (json.hasNext()) {
+					String field = json.nextName();
+					if (field.equals("message"))
+						message = json.nextString();
+					else if (field.equals("messageIsText"))
+						r.text = json.nextBoolean();
+					else
+						json.skipValue();
+				}
+				json.endObject();
+				break;
+			case "message":
+				message = json.nextString();
+				break;
+			case "messageIsText":
+				r.text = json.nextBoolean();
+				break;
+			default:
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		if (message != null)
+			r.message = r.text ? message.getBytes(StandardCharsets.UTF_8) : DeployedContract.fromHex(message);
+	}
+
+	/**
+	 * @return the signed id for the given unsigned id or reed solomon address
+	 */
+	static long parseId(String id) {
+		if (!id.isEmpty() && Character.isDigit(id.charAt(0)))
+			return Long.parseUnsignedLong(id);
+		return SignumAddress.fromRs(id).getSignedLongId();
+	}
+
+	/**
+	 * @return false at the end of the stream
+	 */
+	static boolean readBinary(DataInputStream in, Record r) throws IOException {
+		r.clear();
+		try {
+			r.height = in.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+		r.sender = in.readLong();
+		r.recipient = in.readLong();
+		r.amount = in.readLong();
+		int flags = in.readUnsignedByte();
+		r.hasRecipient = (flags & FLAG_RECIPIENT) != 0;
+		r.text = (flags & FLAG_TEXT) != 0;
+		int length = in.readUnsignedShort();
+		if (length > 0) {
+			r.message = new byte[length];
+			in.readFully(r.message);
+		}
+		return true;
+	}
+
+	static void writeBinary(DataOutputStream out, Record r) throws IOException {
+		out.writeInt((int) r.height);
+		out.writeLong(r.sender);
+		out.writeLong(r.recipient);
+		out.writeLong(r.amount);
+		out.writeByte((r.hasRecipient ? FLAG_RECIPIENT : 0) | (r.text ? FLAG_TEXT : 0));
+		out.writeShort(r.message == null ? 0 : r.message.length);
+		if (r.message != null)
+			out.write(r.message);
+	}
+
+	/**
+	 * Converts a JSON lines file to the binary format, faster to replay.
+	 *
+	 * @return the number of records converted
+	 */
+	public static long convert(Path jsonLines, Path binary) throws IOException {
+		long n = 0;
+		try (Reader in = Files.newBufferedReader(jsonLines, StandardCharsets.UTF_8);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(binary), BUFFER_SIZE))) {
+			JsonReader json = new JsonReader(in);
+			json.setLenient(true);
+			out.writeInt(BINARY_MAGIC);
+			Record r = new Record();
+			while (json.peek() != JsonToken.END_DOCUMENT) {
+				r.clear();
+				readJson(json, r);
+				writeBinary(out, r);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of transactions sent so far
+	 */
+	public long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * @return the number of transactions skipped so far, sent by the emulated
+	 *         contracts
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+}
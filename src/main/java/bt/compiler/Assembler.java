@@ -0,0 +1,377 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Assembles the AT bytecode of a method, run after {@link Compiler} parses it
+ * and before linking.
+ *
+ * The code is decoded into instructions, keeping the labels, source lines and
+ * jump targets attached to them. A conditional branch over a JMP_ADR to a label,
+ * as the compiler emits the Java branches, becomes a single branch to the label
+ * with the opposite condition. When encoding, each branch takes the short form
+ * (1 byte relative offset) if its target is in reach and the long one (the
+ * opposite condition over a JMP_ADR) otherwise, growing the branches out of
+ * reach until none is left.
+ */
+class Assembler {
+
+	/** Stats name for the branches saved by the short form */
+	static final String SHORT_BRANCHES = "short-branches";
+
+	/** The size of a JMP_ADR, added by the long form of a branch */
+	static final int JMP_SIZE = 5;
+
+	static class Insn {
+		byte[] bytes;
+		/** Relative branch target */
+		Insn target;
+		/** Absolute jump target, label or method, also for branches in the long form */
+		LabelNode label;
+		Method method;
+		ArrayList<LabelNode> labels = new ArrayList<>();
+		Integer line;
+
+		int index;
+		int liveIn, liveOut;
+		/** What A and B hold before running it, see {@link Peephole#transfer(Insn, int[])} */
+		int[] registers;
+
+		Insn(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		byte op() {
+			return bytes[0];
+		}
+
+		int addr(int offset) {
+			return ByteBuffer.wrap(bytes, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		}
+
+		void setAddr(int offset, int address) {
+			ByteBuffer.wrap(bytes, offset, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(address);
+		}
+
+		/**
+		 * @return true for a conditional branch to a label
+		 */
+		boolean isLabelBranch() {
+			return label != null && isBranch(op());
+		}
+	}
+
+	Compiler compiler;
+	Method method;
+	Map<String, Peephole.Stats> stats;
+
+	ArrayList<Insn> code = new ArrayList<>();
+	/** After the last instruction, holding the labels and lines at the end */
+	Insn end = new Insn(new byte[] { OpCode.e_op_code_NOP });
+
+	Assembler(Compiler compiler, Method method, Map<String, Peephole.Stats> stats) {
+		this.compiler = compiler;
+		this.method = method;
+		this.stats = stats;
+	}
+
+	/**
+	 * Assembles the code of the method, updating its jumps, labels and source
+	 * lines. The code is kept as is if it cannot be decoded.
+	 */
+	void assemble() {
+		if (decode())
+			encode();
+	}
+
+	boolean decode() {
+		byte[] bytes = method.code.array();
+		int length = method.code.position();
+		TreeMap<Integer, Insn> positions = new TreeMap<>();
+		for (int p = 0; p < length;) {
+			int size = OpCode.size(bytes[p]);
+			if (size == 0 || p + size > length || !isSupported(bytes[p]))
+				return false;
+			byte[] b = new byte[size];
+			System.arraycopy(bytes, p, b, 0, size);
+			Insn insn = new Insn(b);
+			positions.put(p, insn);
+			code.add(insn);
+			p += size;
+		}
+		positions.put(length, end);
+
+		// relative branches
+		for (Map.Entry<Integer, Insn> e : positions.entrySet()) {
+			Insn insn = e.getValue();
+			if (isBranch(insn.op())) {
+				insn.target = positions.get(e.getKey() + insn.bytes[insn.bytes.length - 1]);
+				if (insn.target == null)
+					return false;
+			}
+		}
+		// absolute jumps
+		for (Method.Jump j : method.jumps) {
+			Insn insn = positions.get(j.position - 1);
+			if (insn == null)
+				return false;
+			insn.label = j.label;
+			insn.method = j.method;
+		}
+		// labels and lines
+		Iterator<AbstractInsnNode> ite = method.node.instructions.iterator();
+		while (ite.hasNext()) {
+			AbstractInsnNode node = ite.next();
+			if (node instanceof LabelNode) {
+				Integer p = compiler.labels.get(node);
+				Insn insn = p == null ? null : positions.get(p);
+				if (insn == null)
+					return false;
+				insn.labels.add((LabelNode) node);
+			}
+		}
+		for (Map.Entry<Integer, Integer> e : method.lines.entrySet()) {
+			Insn insn = positions.get(e.getKey());
+			if (insn == null)
+				return false;
+			insn.line = e.getValue();
+		}
+
+		mergeBranches();
+		return true;
+	}
+
+	/**
+	 * A branch over a JMP_ADR to a label becomes a branch to the label, with the
+	 * opposite condition.
+	 */
+	void mergeBranches() {
+		HashSet<Insn> branchTargets = new HashSet<>();
+		for (Insn insn : code) {
+			if (insn.target != null)
+				branchTargets.add(insn.target);
+		}
+		for (int i = 0; i + 1 < code.size(); i++) {
+			Insn insn = code.get(i);
+			Insn jmp = code.get(i + 1);
+			if (!isBranch(insn.op()) || insn.target != next(i + 1) || jmp.op() != OpCode.e_op_code_JMP_ADR
+					|| jmp.label == null || !jmp.labels.isEmpty() || jmp.line != null || branchTargets.contains(jmp))
+				continue;
+			insn.bytes[0] = invert(insn.op());
+			insn.target = null;
+			insn.label = jmp.label;
+			code.remove(i + 1);
+		}
+	}
+
+	/**
+	 * @return the target of a branch on this method, null if not a branch or
+	 *         for a label not found
+	 */
+	static Insn branchTarget(Insn insn, Map<LabelNode, Insn> labelTargets) {
+		if (!isBranch(insn.op()))
+			return null;
+		return insn.target != null ? insn.target : labelTargets.get(insn.label);
+	}
+
+	void encode() {
+		HashMap<LabelNode, Insn> labelTargets = new HashMap<>();
+		for (Insn insn : code) {
+			for (LabelNode l : insn.labels)
+				labelTargets.put(l, insn);
+		}
+		for (LabelNode l : end.labels)
+			labelTargets.put(l, end);
+
+		// start with all branches short, growing the ones out of reach
+		HashSet<Insn> far = new HashSet<>();
+		for (Insn insn : code) {
+			if (insn.isLabelBranch() && branchTarget(insn, labelTargets) == null)
+				far.add(insn);
+		}
+		IdentityHashMap<Insn, Integer> positions;
+		boolean changed = true;
+		do {
+			changed = false;
+			positions = new IdentityHashMap<>();
+			int p = 0;
+			for (Insn insn : code) {
+				positions.put(insn, p);
+				p += insn.bytes.length + (far.contains(insn) ? JMP_SIZE : 0);
+			}
+			positions.put(end, p);
+			for (Insn insn : code) {
+				Insn target = branchTarget(insn, labelTargets);
+				if (target == null || far.contains(insn))
+					continue;
+				int offset = positions.get(target) - positions.get(insn);
+				if (offset > Byte.MAX_VALUE || offset < Byte.MIN_VALUE) {
+					far.add(insn);
+					changed = true;
+				}
+			}
+		} while (changed);
+
+		ByteBuffer out = ByteBuffer.allocate(method.code.capacity());
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		ArrayList<Method.Jump> jumps = new ArrayList<>();
+		TreeMap<Integer, Integer> lines = new TreeMap<>();
+		int shortened = 0;
+		for (Insn insn : code) {
+			int position = out.position();
+			if (far.contains(insn)) {
+				// the opposite condition over a jump to the target
+				byte[] skip = insn.bytes.clone();
+				skip[0] = invert(insn.op());
+				skip[skip.length - 1] = (byte) (skip.length + JMP_SIZE);
+				out.put(skip);
+				LabelNode label = insn.label;
+				if (label == null) {
+					label = new LabelNode();
+					insn.target.labels.add(label);
+					shortened--;
+				}
+				out.put(OpCode.e_op_code_JMP_ADR);
+				jumps.add(new Method.Jump(out.position(), label));
+				out.putInt(0);
+				continue;
+			}
+			Insn target = branchTarget(insn, labelTargets);
+			if (target != null) {
+				insn.bytes[insn.bytes.length - 1] = (byte) (positions.get(target) - position);
+				if (insn.label != null)
+					shortened++;
+			} else if (insn.label != null)
+				jumps.add(new Method.Jump(position + 1, insn.label));
+			else if (insn.method != null)
+				jumps.add(new Method.Jump(position + 1, insn.method));
+			out.put(insn.bytes);
+		}
+		if (shortened != 0 && stats != null) {
+			Peephole.Stats s = stats.computeIfAbsent(SHORT_BRANCHES, Peephole.Stats::new);
+			s.count += shortened;
+			s.bytes += shortened * JMP_SIZE;
+			s.steps += shortened;
+		}
+
+		for (Insn insn : code)
+			setPosition(insn, positions.get(insn), lines);
+		setPosition(end, positions.get(end), lines);
+		method.code = out;
+		method.jumps = jumps;
+		method.lines = lines;
+	}
+
+	void setPosition(Insn insn, int position, Map<Integer, Integer> lines) {
+		for (LabelNode l : insn.labels)
+			compiler.labels.put(l, position);
+		if (insn.line != null)
+			lines.put(position, insn.line);
+	}
+
+	/**
+	 * @return the code size, with the branches to labels in the long form
+	 */
+	int getSize() {
+		int ret = 0;
+		for (Insn insn : code)
+			ret += insn.bytes.length + (insn.isLabelBranch() ? JMP_SIZE : 0);
+		return ret;
+	}
+
+	/**
+	 * @return the steps to run every instruction once, with the branches to
+	 *         labels in the long form
+	 */
+	int getSteps() {
+		int ret = 0;
+		for (Insn insn : code)
+			ret += OpCode.steps(insn.op()) + (insn.isLabelBranch() ? 1 : 0);
+		return ret;
+	}
+
+	/**
+	 * Removes the given instruction, its labels, line and incoming branches go
+	 * to the next one.
+	 */
+	void remove(int i) {
+		Insn insn = code.remove(i);
+		Insn next = i < code.size() ? code.get(i) : end;
+		next.labels.addAll(0, insn.labels);
+		if (next.line == null)
+			next.line = insn.line;
+		for (Insn other : code) {
+			if (other.target == insn)
+				other.target = next;
+		}
+	}
+
+	void replace(int i, byte[] bytes) {
+		Insn insn = code.get(i);
+		insn.bytes = bytes;
+		insn.target = null;
+		insn.label = null;
+		insn.method = null;
+	}
+
+	Insn next(int i) {
+		return i + 1 < code.size() ? code.get(i + 1) : end;
+	}
+
+	static boolean isSupported(byte op) {
+		return op != OpCode.e_op_code_SET_IDX && op != OpCode.e_op_code_IDX_DAT;
+	}
+
+	static boolean isBranch(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the branch with the opposite condition
+	 */
+	static byte invert(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_BZR_DAT:
+			return OpCode.e_op_code_BNZ_DAT;
+		case OpCode.e_op_code_BNZ_DAT:
+			return OpCode.e_op_code_BZR_DAT;
+		case OpCode.e_op_code_BGT_DAT:
+			return OpCode.e_op_code_BLE_DAT;
+		case OpCode.e_op_code_BLE_DAT:
+			return OpCode.e_op_code_BGT_DAT;
+		case OpCode.e_op_code_BLT_DAT:
+			return OpCode.e_op_code_BGE_DAT;
+		case OpCode.e_op_code_BGE_DAT:
+			return OpCode.e_op_code_BLT_DAT;
+		case OpCode.e_op_code_BEQ_DAT:
+			return OpCode.e_op_code_BNE_DAT;
+		case OpCode.e_op_code_BNE_DAT:
+			return OpCode.e_op_code_BEQ_DAT;
+		default:
+			throw new IllegalArgumentException("not a branch: " + op);
+		}
+	}
+}
@@ -24,6 +24,8 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
@@ -55,9 +57,12 @@ public class Compiler {
 
 	ClassNode cn;
 	ByteBuffer code;
+	CompilerOptions options;
 
 	LinkedList<StackVar> stack = new LinkedList<>();
 	StackVar pendingPush;
+	/** The stack on the labels jumped to, see {@link #jumpTo(Method, LabelNode)} */
+	HashMap<LabelNode, LinkedList<StackVar>> labelStacks = new HashMap<>();
 
 	HashMap<String, Method> methods = new HashMap<>();
 	HashMap<String, Field> fields = new HashMap<>();
@@ -71,10 +76,35 @@ public class Compiler {
 	int lastTxSender;
 	int lastTxAmount;
 	int tmpVar1, tmpVar2, tmpVar3, tmpVar4, tmpVar5, tmpVar6;
+	/** Data cells holding the values on the Java stack, one per stack position */
+	int operandStart, operandCells;
+	/** Operand cells left after the {@link Peephole} moves them to temporaries */
+	int operandCellsUsed;
 	int localStart;
 	boolean useLocal;
+	/** If the local variables have fixed addresses, see {@link #allocateFrames()} */
+	boolean staticFrames;
+	/** Data address after the last local variable, if not recursive */
+	int localsEnd;
+	/**
+	 * If there are recursive calls, with moving frames and the pages given by
+	 * {@link CompilerOptions#setRecursionPages(int, int, int)}
+	 */
+	boolean recursive;
+	/** Stack cells used by the linked code, see {@link StackSizer} */
+	int callStackCells, userStackCells;
 	int creator;
 	boolean useCreator;
+	/** If the sender and amount of the current transaction are read */
+	boolean useTxSender, useTxAmount;
+
+	/** Placeholder address of the first constant until placed, see {@link #constant(long)} */
+	static final int CONSTANTS = 1 << 30;
+	/** The constants read from data, by value, with their index */
+	LinkedHashMap<Long, Integer> constants = new LinkedHashMap<>();
+	int constantsStart;
+	/** The field values set by the constructor, by address, see {@link ConstructorEvaluator} */
+	HashMap<Integer, Long> initialValues = new HashMap<>();
 
 	/** If we have public methods other than txReceived */
 	boolean hasPublicMethods;
@@ -96,8 +126,19 @@ public class Compiler {
 
 	ArrayList<Error> errors = new ArrayList<>();
 
+	LinkedHashMap<String, Peephole.Stats> peepholeStats = Peephole.newStats();
+	/** Timestamp.addMinutes calls with the minutes already converted, see {@link ConstantFolder} */
+	HashSet<AbstractInsnNode> constantShifts = new HashSet<>();
+	/** Line of the call each line of inlined code was copied to, see {@link Inliner} */
+	HashMap<LineNumberNode, Integer> inlinedAt = new HashMap<>();
+
 	public Compiler(Class<? extends Contract> clazz) throws IOException {
+		this(clazz, new CompilerOptions());
+	}
+
+	public Compiler(Class<? extends Contract> clazz, CompilerOptions options) throws IOException {
 		this.className = clazz.getName();
+		this.options = options;
 		TargetCompilerVersion targetCompilerVersion = clazz.getAnnotation(TargetCompilerVersion.class);
 		if (targetCompilerVersion == null) {
 			logger.warn("WARNING: Target compiler version not specified");
@@ -123,8 +164,19 @@ public class Compiler {
 	static final int STACK_VAR_ADDRESS = 2;
 	static final int STACK_CONSTANT = 3;
 	static final int STACK_PUSH = 4;
+	static final int STACK_CELL = 5;
+
+	/** Stack positions with a data cell, deeper ones go to the user stack */
+	static final int MAX_OPERAND_CELLS = 16;
 
 	class StackVar {
+		StackVar(StackVar other) {
+			type = other.type;
+			address = other.address;
+			lvalue = other.lvalue;
+			svalue = other.svalue;
+		}
+
 		public StackVar(int type, Object value) {
 			this.type = type;
 			if (value instanceof String)
@@ -152,6 +204,8 @@ public class Compiler {
 				return "var addr: " + address;
 			case STACK_PUSH:
 				return "ustack";
+			case STACK_CELL:
+				return "cell: " + address;
 			case STACK_CONSTANT:
 			default:
 				return "cst: " + (svalue != null ? svalue : lvalue != null ? lvalue : address);
@@ -175,17 +229,83 @@ public class Compiler {
 		return code.position() / PAGE_SIZE + 1;
 	}
 
+	/**
+	 * @return the number of data cells used: the fields, the temporaries, the
+	 *         operand cells, the constants and the locals of the deepest chain of
+	 *         calls, see {@link #allocateFrames()}
+	 */
+	public int getDataCells() {
+		return localsEnd;
+	}
+
+	/**
+	 * @return the number of data pages needed by this contract, see
+	 *         {@link #getDataCells()}
+	 */
 	public int getDataPages() {
-		// check if this is actually enough
-		int nvars = localStart + 3;
-		int npages = nvars / 32 + 1;
+		int npages = pages(getDataCells());
+		if (recursive)
+			npages += options.recursionDataPages; // frames of recursive calls
 		return npages;
 	}
 
+	/**
+	 * @return the number of call stack pages needed by this contract, for the
+	 *         deepest chain of subroutine calls in the linked code
+	 */
+	public int getCallStackPages() {
+		return pages(callStackCells);
+	}
+
+	/**
+	 * @return the number of user stack pages needed by this contract, for the
+	 *         most values pushed at the same time by the linked code
+	 */
+	public int getUserStackPages() {
+		return pages(userStackCells);
+	}
+
+	private static int pages(int cells) {
+		return (cells + Machine.CELLS_PER_PAGE - 1) / Machine.CELLS_PER_PAGE;
+	}
+
+	/**
+	 * @return the initial data segment to register the contract with, holding
+	 *         the fields set by the constructor and the constants, see
+	 *         {@link CompilerOptions#setConstructorEvaluation(boolean)} and
+	 *         {@link CompilerOptions#setConstantPool(boolean)}
+	 */
+	public long[] getInitialData() {
+		return getInitialData(new long[0]);
+	}
+
+	/**
+	 * @return the initial data segment with the given values for the first
+	 *         fields, the ones set by the constructor replacing them as when run
+	 */
+	public long[] getInitialData(long[] fieldValues) {
+		int size = fieldValues.length;
+		for (int address : initialValues.keySet())
+			size = Math.max(size, address + 1);
+		if (!constants.isEmpty())
+			size = Math.max(size, constantsStart + constants.size());
+		long[] ret = new long[size];
+		System.arraycopy(fieldValues, 0, ret, 0, fieldValues.length);
+		for (Map.Entry<Integer, Long> v : initialValues.entrySet())
+			ret[v.getKey()] = v.getValue();
+		for (Map.Entry<Long, Integer> c : constants.entrySet())
+			ret[constantsStart + c.getValue()] = c.getKey();
+		return ret;
+	}
+
 	public String getClassName() {
 		return className;
 	}
 
+	public CompilerOptions getOptions() {
+		return options;
+	}
+
 	private void readFields() {
 
 		if (!cn.superName.replace('/', '.').equals(Contract.class.getName())) {
@@ -196,7 +316,11 @@ public class Compiler {
 		lastFreeVar = 0;
 		useLocal = false;
 		useCreator = false;
+		useTxSender = false;
+		useTxAmount = false;
 
+		// the cell of the booleans packed and the bits used
+		int packed = -1, packedBits = 64;
 		for (FieldNode f : cn.fields) {
 			logger.debug("field name: {}", f.name);
 			int nvars = 0;
@@ -234,11 +358,21 @@ public class Compiler {
 			}
 
 			Field fld = new Field();
-			fld.address = lastFreeVar;
 			fld.node = f;
 			fld.size = nvars;
 			fields.put(f.name, fld);
 
+			if (options.packedBooleans && desc.equals("Z")) {
+				if (packedBits == 64) {
+					packed = lastFreeVar++;
+					packedBits = 0;
+				}
+				fld.address = packed;
+				fld.bits = 1;
+				fld.bitOffset = packedBits++;
+				continue;
+			}
+			fld.address = lastFreeVar;
 			lastFreeVar += nvars;
 		}
 
@@ -321,11 +455,13 @@ public class Compiler {
 		// if zero we will FINISH (after the blockFinish method), otherwise continue
 		Method finishMethod = getMethod(FINISHED_METHOD);
 		boolean hasFinish = finishMethod != null && finishMethod.code.position() > 1;
-		if (hasPublicMethods || hasTxReceived) {
-			code.put(OpCode.e_op_code_BNZ_DAT);
+		boolean hasTx = hasPublicMethods || hasTxReceived;
+		int skipFinish = -1;
+		if (hasTx && !hasFinish) {
+			code.put(OpCode.e_op_code_FIZ_DAT);
 			code.putInt(lastTxReceived);
-			code.put((byte) (7 + (hasFinish ? 30 : 0)));
-		}
+		} else if (hasTx)
+			skipFinish = putBranch(code, OpCode.e_op_code_BNZ_DAT, lastTxReceived);
 		if (hasFinish) {
 			code.put(OpCode.e_op_code_JMP_SUB);
 			code.putInt(finishMethod.address);
@@ -342,30 +478,35 @@ public class Compiler {
 			code.putInt(tmpVar1);
 
 			// If zero we finish, otherwise we restart
-			code.put(OpCode.e_op_code_BZR_DAT);
+			code.put(OpCode.e_op_code_FIZ_DAT);
 			code.putInt(tmpVar1);
-			code.put((byte) 11);
 			
 			code.put(OpCode.e_op_code_JMP_ADR);
 			code.putInt(afterPCSAddress);
-		}
-		code.put(OpCode.e_op_code_FIN_IMD);
+		} else if (!hasTx)
+			code.put(OpCode.e_op_code_FIN_IMD);
+		if (skipFinish >= 0)
+			setBranchTarget(code, skipFinish);
 
 		if (hasPublicMethods || hasTxReceived) {
-			// Store the timestamp of the last transaction
+			// Store the timestamp of the last transaction, the next one comes after it
 			code.put(OpCode.e_op_code_EXT_FUN_RET);
 			code.putShort(OpCode.Get_Timestamp_For_Tx_In_A);
 			code.putInt(lastTxTimestamp);
-			// Get the sender of last transaction
-			code.put(OpCode.e_op_code_EXT_FUN);
-			code.putShort(OpCode.B_To_Address_Of_Tx_In_A);
-			code.put(OpCode.e_op_code_EXT_FUN_RET);
-			code.putShort(OpCode.Get_B1);
-			code.putInt(lastTxSender);
-			// Get the amount of last transaction
-			code.put(OpCode.e_op_code_EXT_FUN_RET);
-			code.putShort(OpCode.Get_Amount_For_Tx_In_A);
-			code.putInt(lastTxAmount);
+			if (useTxSender) {
+				// Get the sender of last transaction
+				code.put(OpCode.e_op_code_EXT_FUN);
+				code.putShort(OpCode.B_To_Address_Of_Tx_In_A);
+				code.put(OpCode.e_op_code_EXT_FUN_RET);
+				code.putShort(OpCode.Get_B1);
+				code.putInt(lastTxSender);
+			}
+			if (useTxAmount) {
+				// Get the amount of last transaction
+				code.put(OpCode.e_op_code_EXT_FUN_RET);
+				code.putShort(OpCode.Get_Amount_For_Tx_In_A);
+				code.putInt(lastTxAmount);
+			}
 		}
 
 		if (hasPublicMethods) {
@@ -378,39 +519,13 @@ public class Compiler {
 			code.putShort(OpCode.Get_B1);
 			code.putInt(tmpVar4);
 
-			for (Method m : methods.values()) {
-				if (m.node.name.equals(MAIN_METHOD) || m.node.name.equals(TX_RECEIVED_METHOD)
-						|| m.node.name.equals(INIT_METHOD) || !Modifier.isPublic(m.node.access))
-					continue;
-
-				if (m.node.name.equals(INIT_METHOD) && m.code.position() < 2)
-					continue; // empty constructor
-
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar1);
-				code.putLong(m.hash);
-
-				code.put(OpCode.e_op_code_SUB_DAT);
-				code.putInt(tmpVar1);
-				code.putInt(tmpVar4);
-
-				code.put(OpCode.e_op_code_BNZ_DAT);
-				code.putInt(tmpVar1);
-				code.put((byte) (16 + m.nargs * 7));
-
-				// load the arguments on the local vars
-				for (int i = 0; i < m.nargs; i++) {
-					useLocal = true;
-					code.put(OpCode.e_op_code_EXT_FUN_RET);
-					code.putShort((short) (OpCode.Get_B1 + i + 1));
-					code.putInt(localStart + 1 + m.localArgPos[i]);
-				}
-				// call the method
-				code.put(OpCode.e_op_code_JMP_SUB);
-				code.putInt(m.address);
-				// end this run (check for the next transaction)
-				code.put(OpCode.e_op_code_JMP_ADR);
-				code.putInt(afterBlockStartedAddress);
+			List<Method> dispatched = getDispatched();
+			if (dispatched.size() <= options.maxLinearDispatch)
+				scan(dispatched, afterBlockStartedAddress);
+			else {
+				dispatched.sort((a, b) -> Long.compare(a.hash, b.hash));
+				int notFound = code.position() + searchSize(dispatched, 0, dispatched.size());
+				search(dispatched, 0, dispatched.size(), notFound, afterBlockStartedAddress);
 			}
 		}
 
@@ -429,6 +544,429 @@ public class Compiler {
 		}
 	}
 
+	/**
+	 * Loads the arguments of the given public method from the message, calls it
+	 * and ends this run, see {@link #callSize(Method)}.
+	 */
+	private void call(Method m, int restartAddress) {
+		// load the arguments on the local vars
+		for (int i = 0; i < m.nargs; i++) {
+			useLocal |= !staticFrames;
+			code.put(OpCode.e_op_code_EXT_FUN_RET);
+			code.putShort((short) (OpCode.Get_B1 + i + 1));
+			code.putInt((staticFrames ? m.localsAddress : lastFreeVar) + m.localArgPos[i]);
+		}
+		// call the method
+		code.put(OpCode.e_op_code_JMP_SUB);
+		code.putInt(m.address);
+		// end this run (check for the next transaction)
+		code.put(OpCode.e_op_code_JMP_ADR);
+		code.putInt(restartAddress);
+	}
+
+	private static int callSize(Method m) {
+		return 10 + m.nargs * 7;
+	}
+
+	/**
+	 * Puts a conditional branch on the given addresses, its target set later by
+	 * {@link #setBranchTarget(ByteBuffer, int)}.
+	 *
+	 * @return the position of the branch
+	 */
+	private static int putBranch(ByteBuffer code, byte op, int... addresses) {
+		int position = code.position();
+		code.put(op);
+		for (int address : addresses)
+			code.putInt(address);
+		code.put((byte) 0); // offset, set later
+		return position;
+	}
+
+	/**
+	 * Sets the target of the branch at the given position to the current one.
+	 */
+	private static void setBranchTarget(ByteBuffer code, int branch) {
+		int offset = code.position() - branch;
+		if (offset > Byte.MAX_VALUE)
+			throw new IllegalStateException("branch out of reach: " + offset);
+		code.put(branch + OpCode.size(code.get(branch)) - 1, (byte) offset);
+	}
+
+	/**
+	 * Jumps to the label if the given IF_ICMPxx or IF_ACMPxx condition holds for
+	 * the values on the given addresses. The opposite branch skips the jump,
+	 * merged by the {@link Assembler} into a single compare-branch to the label.
+	 */
+	private void compareAndJump(Method m, ByteBuffer code, int condition, int a, int b, LabelNode label) {
+		jumpTo(m, label);
+		byte skip;
+		switch (condition) {
+		case IF_ICMPEQ:
+		case IF_ACMPEQ:
+			skip = OpCode.e_op_code_BNE_DAT;
+			break;
+		case IF_ICMPNE:
+		case IF_ACMPNE:
+			skip = OpCode.e_op_code_BEQ_DAT;
+			break;
+		case IF_ICMPLT:
+			skip = OpCode.e_op_code_BGE_DAT;
+			break;
+		case IF_ICMPGE:
+			skip = OpCode.e_op_code_BLT_DAT;
+			break;
+		case IF_ICMPGT:
+			skip = OpCode.e_op_code_BLE_DAT;
+			break;
+		default:
+			skip = OpCode.e_op_code_BGT_DAT;
+			break;
+		}
+		int branch = putBranch(code, skip, a, b);
+		code.put(OpCode.e_op_code_JMP_ADR);
+		m.jumps.add(new Method.Jump(code.position(), label));
+		code.putInt(0); // to be resolved later
+		setBranchTarget(code, branch);
+	}
+
+	/**
+	 * Compares the hash on tmpVar4 with the ones of the given methods, in turn,
+	 * falling through if none matches.
+	 */
+	private void scan(List<Method> dispatched, int restartAddress) {
+		for (Method m : dispatched) {
+			int hash = constantOperand(code, tmpVar1, m.hash);
+			int skip = putBranch(code, OpCode.e_op_code_BNE_DAT, tmpVar4, hash);
+			call(m, restartAddress);
+			setBranchTarget(code, skip);
+		}
+	}
+
+	/**
+	 * Binary search for the hash on tmpVar4 among the given methods, sorted by
+	 * hash. Each range is split on the hash in the middle, the lower half comes
+	 * right after the comparison, until small enough to be scanned.
+	 */
+	private void search(List<Method> sorted, int from, int to, int notFound, int restartAddress) {
+		if (to - from <= Math.max(1, options.maxLinearDispatch)) {
+			scan(sorted.subList(from, to), restartAddress);
+			if (to < sorted.size()) {
+				// the last range falls through
+				code.put(OpCode.e_op_code_JMP_ADR);
+				code.putInt(notFound);
+			}
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		int lowerSize = searchSize(sorted, from, middle);
+		int hash = constantOperand(code, tmpVar1, sorted.get(middle).hash);
+		int upper = -1;
+		if (10 + lowerSize <= Byte.MAX_VALUE)
+			upper = putBranch(code, OpCode.e_op_code_BGE_DAT, tmpVar4, hash);
+		else {
+			// upper half out of reach for a branch
+			int skip = putBranch(code, OpCode.e_op_code_BLT_DAT, tmpVar4, hash);
+			code.put(OpCode.e_op_code_JMP_ADR);
+			code.putInt(code.position() + 4 + lowerSize);
+			setBranchTarget(code, skip);
+		}
+		search(sorted, from, middle, notFound, restartAddress);
+		if (upper >= 0)
+			setBranchTarget(code, upper);
+		search(sorted, middle, to, notFound, restartAddress);
+	}
+
+	/**
+	 * @return the code size of {@link #search(List, int, int, int, int)}
+	 */
+	private int searchSize(List<Method> sorted, int from, int to) {
+		if (to - from <= Math.max(1, options.maxLinearDispatch)) {
+			int size = to < sorted.size() ? 5 : 0;
+			for (Method m : sorted.subList(from, to))
+				size += constantSize() + 10 + callSize(m);
+			return size;
+		}
+		int middle = (from + to) >>> 1;
+		int lowerSize = searchSize(sorted, from, middle);
+		return constantSize() + (10 + lowerSize <= Byte.MAX_VALUE ? 10 : 15) + lowerSize + searchSize(sorted, middle, to);
+	}
+
+	/**
+	 * @return the public methods called by the dispatcher, in the order they are
+	 *         checked
+	 */
+	private List<Method> getDispatched() {
+		ArrayList<Method> ret = new ArrayList<>();
+		for (Method m : getDispatchOrder()) {
+			if (m.node.name.equals(MAIN_METHOD) || m.node.name.equals(TX_RECEIVED_METHOD)
+					|| m.node.name.equals(INIT_METHOD) || !Modifier.isPublic(m.node.access))
+				continue;
+			ret.add(m);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the methods in the order they are checked by the dispatcher, see
+	 *         {@link CompilerOptions#setDispatchOrder(List)}
+	 */
+	private List<Method> getDispatchOrder() {
+		ArrayList<Method> ret = new ArrayList<>();
+		for (String name : options.dispatchOrder) {
+			Method m = methods.get(name);
+			if (m != null && !ret.contains(m))
+				ret.add(m);
+		}
+		for (Method m : methods.values()) {
+			if (!ret.contains(m))
+				ret.add(m);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gives the local variables of each method fixed data addresses, after the
+	 * ones of every method that can call it. Frames of methods never active at
+	 * the same time overlap and the locals are accessed directly. Recursive
+	 * calls are an error, as the stacks they need have no bound, unless allowed
+	 * by {@link CompilerOptions#setRecursionPages(int, int, int)}: the frames
+	 * then keep moving on localStart.
+	 *
+	 * The operand cells go after the static frames, as many as used when
+	 * parsing. Moving frames come after them instead, reserving as many as the
+	 * deepest Java stack.
+	 */
+	private void allocateFrames() {
+		staticFrames = options.staticFrames;
+
+		HashMap<Method, HashSet<Method>> callers = new HashMap<>();
+		for (Method m : methods.values())
+			callers.put(m, new HashSet<>());
+		for (Method m : methods.values()) {
+			for (Method mcall : getCallees(m))
+				callers.get(mcall).add(m);
+		}
+
+		HashMap<Method, Integer> offsets = new HashMap<>();
+		recursive = false;
+		for (Method m : methods.values()) {
+			if (frameOffset(m, callers, offsets, new HashSet<>()) < 0) {
+				List<Method> cycle = callCycle();
+				String names = "";
+				for (Method c : cycle)
+					names += c.node.name + " -> ";
+				names += cycle.get(0).node.name;
+				if (!options.recursion) {
+					addError(cycle.get(0).node.instructions.getFirst(), "Recursive calls are not supported: " + names);
+					return;
+				}
+				logger.info("Recursive calls {}, using moving frames", names);
+				staticFrames = false;
+				recursive = true;
+				break;
+			}
+		}
+
+		operandStart = localStart + 1;
+		operandCells = 0;
+		operandCellsUsed = 0;
+		if (!staticFrames) {
+			for (Method m : methods.values())
+				operandCells = Math.max(operandCells, m.node.maxStack);
+			operandCells = Math.min(operandCells, MAX_OPERAND_CELLS);
+		}
+		lastFreeVar = operandStart + operandCells;
+		localsEnd = lastFreeVar;
+		if (recursive)
+			return;
+		for (Method m : methods.values()) {
+			// moving frames end on the same address, after the deepest call
+			localsEnd = Math.max(localsEnd, lastFreeVar - 1 + offsets.get(m) + m.node.maxLocals);
+			if (staticFrames)
+				m.localsAddress = lastFreeVar + offsets.get(m);
+		}
+		if (staticFrames)
+			operandStart = localsEnd;
+	}
+
+	/**
+	 * @return the method called by the given instruction, null if not a call to a
+	 *         method of this contract
+	 */
+	Method getCallee(AbstractInsnNode insn) {
+		if (!(insn instanceof MethodInsnNode))
+			return null;
+		MethodInsnNode mi = (MethodInsnNode) insn;
+		if (!mi.owner.replace('/', '.').equals(className))
+			return null;
+		return methods.get(mi.name);
+	}
+
+	/**
+	 * @return the methods of this contract called by the given one
+	 */
+	Set<Method> getCallees(Method m) {
+		LinkedHashSet<Method> ret = new LinkedHashSet<>();
+		Iterator<AbstractInsnNode> ite = m.node.instructions.iterator();
+		while (ite.hasNext()) {
+			Method mcall = getCallee(ite.next());
+			if (mcall != null)
+				ret.add(mcall);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if the given method is called by another one of this contract
+	 */
+	boolean isCalled(Method m) {
+		for (Method other : methods.values()) {
+			if (getCallees(other).contains(m))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the given method is called by the entry code or the
+	 *         dispatcher
+	 */
+	static boolean isEntryPoint(MethodNode node) {
+		return Modifier.isPublic(node.access) || node.name.equals(INIT_METHOD)
+				|| node.name.equals(TX_RECEIVED_METHOD) || node.name.equals(STARTED_METHOD)
+				|| node.name.equals(FINISHED_METHOD);
+	}
+
+	/**
+	 * Removes the methods not reachable from the entry points, never called.
+	 */
+	private void removeUnreachableMethods() {
+		HashSet<Method> reachable = new HashSet<>();
+		LinkedList<Method> pending = new LinkedList<>();
+		for (Method m : methods.values()) {
+			if (isEntryPoint(m.node))
+				pending.add(m);
+		}
+		while (!pending.isEmpty()) {
+			Method m = pending.poll();
+			if (reachable.add(m))
+				pending.addAll(getCallees(m));
+		}
+		Iterator<Method> ite = methods.values().iterator();
+		while (ite.hasNext()) {
+			Method m = ite.next();
+			if (!reachable.contains(m)) {
+				logger.info("Method {} is never called, removed", m.node.name);
+				ite.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the methods of a cycle of calls, each calling the next and the
+	 *         last the first, empty if none
+	 */
+	private List<Method> callCycle() {
+		HashSet<Method> done = new HashSet<>();
+		for (Method m : methods.values()) {
+			List<Method> ret = callCycle(m, new ArrayList<>(), done);
+			if (!ret.isEmpty())
+				return ret;
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * @return a cycle of calls reached from the given method, not through the
+	 *         ones done
+	 */
+	private List<Method> callCycle(Method m, List<Method> path, Set<Method> done) {
+		int i = path.indexOf(m);
+		if (i >= 0)
+			return new ArrayList<>(path.subList(i, path.size()));
+		if (!done.add(m))
+			return new ArrayList<>();
+		path.add(m);
+		for (Method mcall : getCallees(m)) {
+			List<Method> ret = callCycle(mcall, path, done);
+			if (!ret.isEmpty())
+				return ret;
+		}
+		path.remove(path.size() - 1);
+		return new ArrayList<>();
+	}
+
+	/**
+	 * @return the position of the locals of the given method after the ones of
+	 *         its callers, -1 if it is called recursively
+	 */
+	private int frameOffset(Method m, Map<Method, HashSet<Method>> callers, Map<Method, Integer> offsets,
+			Set<Method> visiting) {
+		Integer ret = offsets.get(m);
+		if (ret != null)
+			return ret;
+		if (!visiting.add(m))
+			return -1;
+		int offset = 0;
+		for (Method caller : callers.get(m)) {
+			int callerOffset = frameOffset(caller, callers, offsets, visiting);
+			if (callerOffset < 0)
+				return -1;
+			offset = Math.max(offset, callerOffset + caller.node.maxLocals - 1);
+		}
+		visiting.remove(m);
+		offsets.put(m, offset);
+		return offset;
+	}
+
+	/**
+	 * Sets tmpVar2 to the data address of the given local variable.
+	 */
+	private void localAddress(ByteBuffer code, int var) {
+		if (var - 1 > options.maxLocalIncrements) {
+			int index = constantOperand(code, tmpVar2, var - 1);
+			if (index != tmpVar2) {
+				code.put(OpCode.e_op_code_SET_DAT);
+				code.putInt(tmpVar2);
+				code.putInt(index);
+			}
+			code.put(OpCode.e_op_code_ADD_DAT);
+			code.putInt(tmpVar2);
+			code.putInt(localStart);
+			return;
+		}
+		// tmpVar2 have the local index, starting at localStart
+		code.put(OpCode.e_op_code_SET_DAT);
+		code.putInt(tmpVar2);
+		code.putInt(localStart);
+
+		// increment the index if 2 or higher
+		for (int i = 0; i < var - 1; i++) {
+			code.put(OpCode.e_op_code_INC_DAT);
+			code.putInt(tmpVar2);
+		}
+	}
+
+	/**
+	 * Moves the local variables start position by the given number of variables,
+	 * forward (before a call) or back.
+	 */
+	private void shiftFrame(ByteBuffer code, int nvars, boolean forward) {
+		if (nvars <= options.maxFrameIncrements) {
+			for (int i = 0; i < nvars; i++) {
+				code.put(forward ? OpCode.e_op_code_INC_DAT : OpCode.e_op_code_DEC_DAT);
+				code.putInt(localStart);
+			}
+			return;
+		}
+		int size = constantOperand(code, tmpVar1, nvars);
+		code.put(forward ? OpCode.e_op_code_ADD_DAT : OpCode.e_op_code_SUB_DAT);
+		code.putInt(localStart);
+		code.putInt(size);
+	}
+
 	public void link() {
 		// we allow here a larger size, there will be an error when registering
 		// if we pass the actual limit
@@ -494,11 +1032,27 @@ public class Compiler {
 			}
 			code.put(m.code.array(), 0, m.code.position());
 		}
+
+		if (recursive) {
+			callStackCells = options.recursionCallStackPages * Machine.CELLS_PER_PAGE;
+			userStackCells = options.recursionUserStackPages * Machine.CELLS_PER_PAGE;
+			return;
+		}
+		try {
+			StackSizer stacks = new StackSizer(getCode());
+			callStackCells = stacks.getCallStackCells();
+			userStackCells = stacks.getUserStackCells();
+		} catch (IllegalStateException e) {
+			addError(null, "Stack size has no bound, " + e.getMessage());
+		}
 	}
 
 	private void readMethods() {
 		hasPublicMethods = false;
 		hasTxReceived = false;
+		constants.clear();
+		constantsStart = CONSTANTS;
+		initialValues.clear();
 
 		// First list all methods available
 		for (MethodNode mnode : cn.methods) {
@@ -518,6 +1072,19 @@ public class Compiler {
 			}
 		}
 
+		if (errors.size() > 0)
+			return;
+
+		if (options.inlining)
+			new Inliner(this).inline();
+		removeUnreachableMethods();
+		if (options.constantFolding) {
+			for (Method m : methods.values())
+				new ConstantFolder(this, m.node).fold();
+		}
+		if (options.constructorEvaluation)
+			new ConstructorEvaluator(this, methods.get(INIT_METHOD).node).evaluate();
+		allocateFrames();
 		if (errors.size() > 0)
 			return;
 
@@ -528,10 +1095,62 @@ public class Compiler {
 				logger.info("METHOD: {}, hash: {}", m.node.name, m.hash);
 			}
 			parseMethod(m);
+			if (options.peephole)
+				new Peephole(this, m, peepholeStats).optimize();
+			else
+				new Assembler(this, m, peepholeStats).assemble();
 
 			if (m.node.name.equals(TX_RECEIVED_METHOD) && m.code.position() > 1)
 				hasTxReceived = true;
 		}
+		for (Peephole.Stats s : peepholeStats.values())
+			logger.debug("peephole: {}", s);
+		if (staticFrames) {
+			// the cells are the last data, the unused ones are dropped
+			if (options.peephole)
+				operandCells = operandCellsUsed;
+			localsEnd = operandStart + operandCells;
+		}
+		placeConstants();
+	}
+
+	/**
+	 * Places the constants after the other data, before the moving frames, and
+	 * relocates the code reading them.
+	 */
+	private void placeConstants() {
+		if (options.constantPool) {
+			// the hashes compared by the dispatcher
+			for (Method m : getDispatched())
+				constant(m.hash);
+		}
+		int start = staticFrames ? localsEnd : lastFreeVar;
+		if (!staticFrames)
+			lastFreeVar += constants.size();
+		localsEnd += constants.size();
+		constantsStart = start;
+		if (constants.isEmpty())
+			return;
+		for (Method m : methods.values()) {
+			ByteBuffer code = m.code;
+			for (int pc = 0; pc < code.position();) {
+				byte op = code.get(pc);
+				for (int offset : Peephole.addressOffsets(op)) {
+					int address = code.getInt(pc + offset);
+					if (address >= CONSTANTS)
+						code.putInt(pc + offset, start + address - CONSTANTS);
+				}
+				pc += OpCode.size(op);
+			}
+		}
+	}
+
+	/**
+	 * @return the code savings of each peephole rule and of the short branches,
+	 *         see {@link Peephole} and {@link Assembler}
+	 */
+	public Collection<Peephole.Stats> getPeepholeStats() {
+		return peepholeStats.values();
 	}
 
 	/**
@@ -549,6 +1168,30 @@ public class Compiler {
 		return methods.get(name);
 	}
 
+	/**
+	 * @param address the code address
+	 * @return the method with code on the given address, null for the entry code
+	 */
+	public Method getMethodAt(int address) {
+		for (Method m : methods.values()) {
+			if (m.code.position() > 1 && address >= m.address && address < m.address + m.code.position())
+				return m;
+		}
+		return null;
+	}
+
+	/**
+	 * @param address the code address
+	 * @return the Java source line for the given code address, -1 if unknown
+	 */
+	public int getLineAt(int address) {
+		Method m = getMethodAt(address);
+		if (m == null)
+			return -1;
+		Map.Entry<Integer, Integer> line = m.lines.floorEntry(address - m.address);
+		return line == null ? -1 : line.getValue();
+	}
+
 	/**
 	 * @return the fields
 	 */
@@ -577,32 +1220,238 @@ public class Compiler {
 	}
 
 	/**
-	 * Push the variable on the given address to the stack.
+	 * @return the data address holding the given constant, set when registering
+	 *         the contract, see {@link #getInitialData()}
 	 */
-	StackVar pushVar(Method m, int address) {
-		/*
-		 * TODO: we can try to optimize this later, recalling that no code can go
-		 * between a pending push and its respective pop if (pendingPush != null) { //
-		 * is a tmp var, not a field, push to AT stack
-		 * m.code.put(OpCode.e_op_code_PSH_DAT); m.code.putInt(pendingPush.address);
-		 * pendingPush = null; }
-		 */
-
-		StackVar v = new StackVar(address >= tmpVar1 ? STACK_PUSH : STACK_FIELD, address);
-		stack.add(v);
+	int constant(long value) {
+		return constantsStart + constants.computeIfAbsent(value, v -> constants.size());
+	}
+
+	/**
+	 * @return the address to read the given constant from, the given temporary
+	 *         set to it without the constant pool
+	 */
+	int constantOperand(ByteBuffer code, int tmp, long value) {
+		if (options.constantPool)
+			return constant(value);
+		code.put(OpCode.e_op_code_SET_VAL);
+		code.putInt(tmp);
+		code.putLong(value);
+		return tmp;
+	}
+
+	/**
+	 * @return the code size of {@link #constantOperand(ByteBuffer, int, long)}
+	 */
+	int constantSize() {
+		return options.constantPool ? 0 : 13;
+	}
+
+	/**
+	 * Pushes the given constant, read from the constant pool as a field. Zero and
+	 * one are set instead, as the peephole turns them into single instructions.
+	 */
+	void pushConstant(Method m, long value) {
+		if (value == 0) {
+			m.code.put(OpCode.e_op_code_CLR_DAT);
+			m.code.putInt(tmpVar2);
+		} else if (value == 1 || value == -1 || !options.constantPool) {
+			m.code.put(OpCode.e_op_code_SET_VAL);
+			m.code.putInt(tmpVar2);
+			m.code.putLong(value);
+		} else {
+			pushVar(m, constant(value));
+			return;
+		}
+		pushVar(m, tmpVar2);
+	}
+
+	/**
+	 * Shifts as in Java: the count is masked to 0..31 for ints and 0..63 for
+	 * longs, as the AT gives zero out of 0..63, and int results are narrowed.
+	 * The narrowing shifts the int to the upper half and divides it back, a
+	 * signed division exact for the left shifts, and the masking is saved for
+	 * constant counts.
+	 */
+	void shift(Method m, AbstractInsnNode insn) {
+		ByteBuffer code = m.code;
+		int opcode = insn.getOpcode();
+		boolean wide = opcode == LSHL || opcode == LUSHR;
+		long mask = wide ? 63 : 31;
+		AbstractInsnNode prev = insn.getPrevious();
+		while (prev != null && prev.getOpcode() < 0 && !(prev instanceof LabelNode))
+			prev = prev.getPrevious();
+		Long count = prev == null ? null : ConstantFolder.constant(prev);
+
+		StackVar arg2 = popVar(m, tmpVar2, count == null);
+		StackVar arg1 = popVar(m, tmpVar1, true);
+		int shift = arg2.address;
+		if (count == null) {
+			int operand = constantOperand(code, tmpVar3, mask);
+			code.put(OpCode.e_op_code_AND_DAT);
+			code.putInt(shift);
+			code.putInt(operand);
+			if (opcode == ISHL) {
+				operand = constantOperand(code, tmpVar3, 32);
+				code.put(OpCode.e_op_code_ADD_DAT);
+				code.putInt(shift);
+				code.putInt(operand);
+			}
+		} else if (opcode == ISHL || (count & mask) != count)
+			shift = constantOperand(code, tmpVar3, (count & mask) + (opcode == ISHL ? 32 : 0));
+
+		if (opcode == IUSHR) {
+			int operand = constantOperand(code, tmpVar4, 32);
+			code.put(OpCode.e_op_code_SHL_DAT);
+			code.putInt(arg1.address);
+			code.putInt(operand);
+		}
+		logger.debug(opcode == ISHL || opcode == LSHL ? "SHL" : "SHR");
+		code.put(opcode == ISHL || opcode == LSHL ? OpCode.e_op_code_SHL_DAT : OpCode.e_op_code_SHR_DAT);
+		code.putInt(arg1.address);
+		code.putInt(shift);
+		if (!wide) {
+			int operand = constantOperand(code, tmpVar4, 1L << 32);
+			code.put(OpCode.e_op_code_DIV_DAT);
+			code.putInt(arg1.address);
+			code.putInt(operand);
+		}
+
+		pushVar(m, arg1.address);
+	}
+
+	/**
+	 * Reads or writes a boolean field packed with others on a cell, see
+	 * {@link CompilerOptions#setPackedBooleans(boolean)}. The value read is
+	 * pushed right away, as the cell may change before it is popped.
+	 */
+	void packedBoolean(Method m, Field field, boolean read) {
+		ByteBuffer code = m.code;
+		if (read) {
+			stack.pollLast(); // remove the 'this'
+			code.put(OpCode.e_op_code_SET_DAT);
+			code.putInt(tmpVar2);
+			code.putInt(field.address);
+			if (field.bitOffset > 0) {
+				int shift = constantOperand(code, tmpVar3, field.bitOffset);
+				code.put(OpCode.e_op_code_SHR_DAT);
+				code.putInt(tmpVar2);
+				code.putInt(shift);
+			}
+			int mask = constantOperand(code, tmpVar3, field.mask() >>> field.bitOffset);
+			code.put(OpCode.e_op_code_AND_DAT);
+			code.putInt(tmpVar2);
+			code.putInt(mask);
+			pushVar(m, tmpVar2);
+			return;
+		}
+		// a boolean, the bit cleared and then set if not zero
+		StackVar value = popVar(m, tmpVar1, false);
+		stack.pollLast(); // remove the 'this'
+		int clear = constantOperand(code, tmpVar3, ~field.mask());
+		code.put(OpCode.e_op_code_AND_DAT);
+		code.putInt(field.address);
+		code.putInt(clear);
+		int skip = putBranch(code, OpCode.e_op_code_BZR_DAT, value.address);
+		int set = constantOperand(code, tmpVar3, field.mask());
+		code.put(OpCode.e_op_code_BOR_DAT);
+		code.putInt(field.address);
+		code.putInt(set);
+		setBranchTarget(code, skip);
+	}
 
-		if (v.type == STACK_PUSH) {
-			// pendingPush = v;
-			// is a tmp var, not a field, push to AT stack
+	/**
+	 * Push the variable on the given address to the stack. Fields and locals are
+	 * read only when popped, or before a store or a call may change them, see
+	 * {@link #invalidate(Method, int)} and {@link #invalidateFields(Method)}.
+	 * Temporaries are copied to the operand cell of their stack position
+	 * (nothing to do if already there), or pushed to the user stack if too deep.
+	 */
+	StackVar pushVar(Method m, int address) {
+		if (!isTemporary(address) && !isOperandCell(address)) {
+			StackVar v = new StackVar(STACK_FIELD, address);
+			stack.add(v);
+			return v;
+		}
+		int cell = operandCell(stack.size());
+		if (cell < 0) {
+			StackVar v = new StackVar(STACK_PUSH, address);
+			stack.add(v);
 			m.code.put(OpCode.e_op_code_PSH_DAT);
-			m.code.putInt(v.address);
-			// pendingPush = null;
+			m.code.putInt(address);
+			return v;
+		}
+		if (address != cell) {
+			m.code.put(OpCode.e_op_code_SET_DAT);
+			m.code.putInt(cell);
+			m.code.putInt(address);
 		}
+		StackVar v = new StackVar(STACK_CELL, cell);
+		stack.add(v);
 		return v;
 	}
 
+	/**
+	 * @return the operand cell of the given stack position, -1 if too deep
+	 */
+	int operandCell(int position) {
+		if (position >= (staticFrames ? MAX_OPERAND_CELLS : operandCells))
+			return -1;
+		operandCells = Math.max(operandCells, position + 1);
+		return operandStart + position;
+	}
+
+	boolean isTemporary(int address) {
+		return address >= tmpVar1 && address <= tmpVar6;
+	}
+
+	boolean isOperandCell(int address) {
+		return address >= operandStart && address < operandStart + operandCells;
+	}
+
+	/**
+	 * Copies the values of the given field or local still to be read from the
+	 * stack to their operand cells, before writing it.
+	 */
+	void invalidate(Method m, int address) {
+		for (int i = 0; i < stack.size(); i++) {
+			StackVar var = stack.get(i);
+			if (var.type == STACK_FIELD && var.address == address)
+				readField(m, i);
+		}
+	}
+
+	/**
+	 * Copies the values of the fields still to be read from the stack to their
+	 * operand cells, before a call that may write them. The locals of the
+	 * caller and the constants stay, no call writes them.
+	 */
+	void invalidateFields(Method m) {
+		for (int i = 0; i < stack.size(); i++) {
+			StackVar var = stack.get(i);
+			if (var.type == STACK_FIELD && var.address < tmpVar1)
+				readField(m, i);
+		}
+	}
+
+	private void readField(Method m, int position) {
+		StackVar var = stack.get(position);
+		int cell = operandCell(position);
+		if (cell < 0)
+			return;
+		m.code.put(OpCode.e_op_code_SET_DAT);
+		m.code.putInt(cell);
+		m.code.putInt(var.address);
+		var.type = STACK_CELL;
+		var.address = cell;
+	}
+
 	/**
 	 * Pop the lastest added variable from the stack and store on the given address.
+	 *
+	 * Values forced to a temporary, to be overwritten by an operation, stay on
+	 * their operand cell instead, free once popped, so the result pushed back on
+	 * the same position needs no copy.
 	 * 
 	 * @param m
 	 * @param destAddress
@@ -622,13 +1471,16 @@ public class Compiler {
 			pendingPush = null;
 		}
 
+		if (forceCopy && isTemporary(destAddress) && var.type == STACK_CELL)
+			destAddress = var.address;
+
 		if (var.type == STACK_PUSH) {
 			// is a tmp var, pop needed
 			m.code.put(OpCode.e_op_code_POP_DAT);
 			m.code.putInt(destAddress);
 			var.address = destAddress;
-		} else if (var.type == STACK_FIELD) {
-			if (forceCopy) {
+		} else if (var.type == STACK_FIELD || var.type == STACK_CELL) {
+			if (forceCopy && var.address != destAddress) {
 				m.code.put(OpCode.e_op_code_SET_DAT);
 				m.code.putInt(destAddress);
 				m.code.putInt(var.address);
@@ -642,6 +1494,46 @@ public class Compiler {
 		return var;
 	}
 
+	/**
+	 * Moves the values on the stack to their operand cells, as expected when
+	 * reaching a label from different places.
+	 */
+	void materializeStack(Method m) {
+		ArrayList<StackVar> values = new ArrayList<>(stack);
+		for (int i = values.size() - 1; i >= 0; i--) {
+			StackVar var = values.get(i);
+			if (var.type != STACK_PUSH && var.type != STACK_FIELD)
+				continue;
+			int cell = operandCell(i);
+			if (var.type == STACK_PUSH && cell < 0)
+				break; // the ones below stay on the user stack
+			if (cell < 0)
+				continue;
+			m.code.put(var.type == STACK_PUSH ? OpCode.e_op_code_POP_DAT : OpCode.e_op_code_SET_DAT);
+			m.code.putInt(cell);
+			if (var.type == STACK_FIELD)
+				m.code.putInt(var.address);
+			var.type = STACK_CELL;
+			var.address = cell;
+		}
+	}
+
+	/**
+	 * Keeps the stack for a jump to the given label, with the values on their
+	 * operand cells.
+	 */
+	void jumpTo(Method m, LabelNode label) {
+		if (stack.isEmpty())
+			return;
+		materializeStack(m);
+		if (!labelStacks.containsKey(label)) {
+			LinkedList<StackVar> copy = new LinkedList<>();
+			for (StackVar var : stack)
+				copy.add(new StackVar(var));
+			labelStacks.put(label, copy);
+		}
+	}
+
 	private void parseMethod(Method m) {
 		ByteBuffer code = ByteBuffer.allocate(40 * Compiler.PAGE_SIZE);
 		code.order(ByteOrder.LITTLE_ENDIAN);
@@ -666,6 +1558,16 @@ public class Compiler {
 
 		StackVar arg1, arg2, arg3, arg4;
 
+		stack.clear();
+		labelStacks.clear();
+		HashSet<LabelNode> jumpTargets = new HashSet<>();
+		for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+			if (insn instanceof JumpInsnNode)
+				jumpTargets.add(((JumpInsnNode) insn).label);
+		}
+		// after an unconditional jump or return, until the next label
+		boolean jumped = false;
+
 		Iterator<AbstractInsnNode> ite = m.node.instructions.iterator();
 		while (ite.hasNext()) {
 			AbstractInsnNode insn = ite.next();
@@ -677,19 +1579,26 @@ public class Compiler {
 				// This is a label or line number information
 				if (insn instanceof LabelNode) {
 					LabelNode ln = (LabelNode) insn;
+					if (jumpTargets.contains(ln)) {
+						// the same stack, on the same operand cells, from everywhere
+						if (!jumped)
+							materializeStack(m);
+						LinkedList<StackVar> jumpStack = labelStacks.get(ln);
+						if (jumpStack != null) {
+							stack.clear();
+							for (StackVar var : jumpStack)
+								stack.add(new StackVar(var));
+						} else if (jumped)
+							stack.clear();
+					}
+					jumped = false;
 					labels.put(ln, code.position());
 					logger.debug("label: {}", ln.getLabel());
 				}
-				/*
-				 * else if(insn instanceof LineNumberNode) { LineNumberNode ln =
-				 * (LineNumberNode) insn;
-				 * 
-				 * System.out.println("line: " + ln.line); } else if(insn instanceof FrameNode)
-				 * { FrameNode fn = (FrameNode) insn;
-				 * 
-				 * System.out.println("frame type: " + fn.getType()); } else {
-				 * System.err.println(opcode); }
-				 */
+				else if (insn instanceof LineNumberNode) {
+					// source map, code from here on belongs to this line
+					m.lines.put(code.position(), ((LineNumberNode) insn).line);
+				}
 				continue;
 			}
 
@@ -708,18 +1617,11 @@ public class Compiler {
 			case ALOAD:
 				if (insn instanceof VarInsnNode) {
 					VarInsnNode vi = (VarInsnNode) insn;
-					if (vi.var > 0) {
+					if (vi.var > 0 && staticFrames) {
+						pushVar(m, m.localsAddress + vi.var - 1);
+					} else if (vi.var > 0) {
 						useLocal = true;
-						// tmpVar2 have the local index, starting at localStart
-						code.put(OpCode.e_op_code_SET_DAT);
-						code.putInt(tmpVar2);
-						code.putInt(localStart);
-
-						// increment the index if 2 or higher
-						for (int i = 0; i < vi.var - 1; i++) {
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
-						}
+						localAddress(code, vi.var);
 						// set tmpVar1 using the index on tmpVar2
 						code.put(OpCode.e_op_code_SET_IND);
 						code.putInt(tmpVar1);
@@ -745,20 +1647,19 @@ public class Compiler {
 						addError(insn, UNEXPECTED_ERROR);
 					// local 0 is 'this', others are stored after 'localStart' variable
 
+					if (staticFrames) {
+						StackVar value = stack.pollLast();
+						invalidate(m, m.localsAddress + vi.var - 1);
+						stack.add(value);
+						popVar(m, m.localsAddress + vi.var - 1, true);
+						logger.debug("store local: " + vi.var);
+						break;
+					}
 					arg1 = popVar(m, tmpVar1, false);
 					logger.debug("store local: " + vi.var);
 
-					// tmpVar2 have the local index, starting at localStart
 					useLocal = true;
-					code.put(OpCode.e_op_code_SET_DAT);
-					code.putInt(tmpVar2);
-					code.putInt(localStart);
-
-					// increment the index if 2 or higher
-					for (int i = 0; i < vi.var - 1; i++) {
-						code.put(OpCode.e_op_code_INC_DAT);
-						code.putInt(tmpVar2);
-					}
+					localAddress(code, vi.var);
 					// set var using the index on tmpVar2
 					code.put(OpCode.e_op_code_IND_DAT);
 					code.putInt(tmpVar2);
@@ -768,6 +1669,41 @@ public class Compiler {
 				}
 				break;
 
+			case IINC:
+				if (insn instanceof IincInsnNode) {
+					IincInsnNode ii = (IincInsnNode) insn;
+					int address = tmpVar1;
+					if (staticFrames) {
+						address = m.localsAddress + ii.var - 1;
+						invalidate(m, address);
+					} else {
+						useLocal = true;
+						localAddress(code, ii.var);
+						code.put(OpCode.e_op_code_SET_IND);
+						code.putInt(tmpVar1);
+						code.putInt(tmpVar2);
+					}
+					// a single instruction for the usual increments
+					if (ii.incr == 1 || ii.incr == -1) {
+						code.put(ii.incr == 1 ? OpCode.e_op_code_INC_DAT : OpCode.e_op_code_DEC_DAT);
+						code.putInt(address);
+					} else {
+						int incr = constantOperand(code, tmpVar3, ii.incr);
+						code.put(OpCode.e_op_code_ADD_DAT);
+						code.putInt(address);
+						code.putInt(incr);
+					}
+					if (!staticFrames) {
+						code.put(OpCode.e_op_code_IND_DAT);
+						code.putInt(tmpVar2);
+						code.putInt(tmpVar1);
+					}
+					logger.debug("increment local: " + ii.var);
+				} else {
+					addError(insn, UNEXPECTED_ERROR);
+				}
+				break;
+
 			case I2L:
 				break; // nothing needed
 			case L2I: // long 2 int
@@ -775,23 +1711,11 @@ public class Compiler {
 			case I2C: // int 2 char
 			case I2S: // int 2 short
 				arg1 = popVar(m, tmpVar1, true);
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
-				switch (opcode) {
-				case L2I:
-					code.putLong(0xFFFFFFFFL);
-					break;
-				case I2B:
-					code.putLong(0xFFL);
-					break;
-				case I2C:
-				case I2S:
-					code.putLong(0xFFFFL);
-					break;
-				}
+				int mask = constantOperand(code, tmpVar2,
+						opcode == L2I ? 0xFFFFFFFFL : opcode == I2B ? 0xFFL : 0xFFFFL);
 				code.put(OpCode.e_op_code_AND_DAT);
 				code.putInt(arg1.address);
-				code.putInt(tmpVar2);
+				code.putInt(mask);
 
 				pushVar(m, arg1.address);
 				break;
@@ -802,20 +1726,22 @@ public class Compiler {
 			case ICONST_3:
 			case ICONST_4:
 			case ICONST_5:
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
-				code.putLong(opcode - ICONST_0);
-
-				pushVar(m, tmpVar2);
+				pushConstant(m, opcode - ICONST_0);
 				logger.debug("iconstant : " + (opcode - ICONST_0));
 				break;
 
-			case LCONST_1:
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
-				code.putLong(opcode - LCONST_0);
+			case BIPUSH:
+			case SIPUSH:
+				if (insn instanceof IntInsnNode) {
+					pushConstant(m, ((IntInsnNode) insn).operand);
+					logger.debug("iconstant : " + ((IntInsnNode) insn).operand);
+				} else {
+					addError(insn, UNEXPECTED_ERROR);
+				}
+				break;
 
-				pushVar(m, tmpVar2);
+			case LCONST_1:
+				pushConstant(m, opcode - LCONST_0);
 				logger.debug("lconstant : " + (opcode - LCONST_0));
 				break;
 
@@ -893,8 +1819,15 @@ public class Compiler {
 				code.putInt(arg1.address);
 				code.putInt(arg2.address);
 
-				pushVar(m, tmpVar1);
+				pushVar(m, arg1.address);
 				break;
+			case ISHL:
+			case LSHL:
+			case IUSHR:
+			case LUSHR:
+				shift(m, insn);
+				break;
+
 			case INEG:
 			case LNEG:
 				logger.debug("neg");
@@ -924,15 +1857,16 @@ public class Compiler {
 				// Recalling that every method call will use JMP_SUB
 				logger.debug("return");
 				code.put(OpCode.e_op_code_RET_SUB);
+				jumped = true;
 				break;
 
 			case DUP: // duplicate the value on top of the stack
 			{
 				StackVar var = popVar(m, tmpVar1, false);
-				if (var.type == STACK_THIS) {
+				if (var.type == STACK_THIS || var.type == STACK_FIELD) {
 					stack.addLast(var);
-					stack.addLast(var);
-				} else if (var.type == STACK_PUSH) {
+					stack.addLast(new StackVar(var));
+				} else if (var.type == STACK_PUSH || var.type == STACK_CELL) {
 					pushVar(m, var.address);
 					pushVar(m, var.address);
 				} else {
@@ -970,16 +1904,22 @@ public class Compiler {
 
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar3);
-							if (mi.name.equals("ge"))
-								code.put(OpCode.e_op_code_BLT_DAT);
-							else
-								code.put(OpCode.e_op_code_BGT_DAT);
-							code.putInt(arg2.address);
-							code.putInt(arg1.address);
-							code.put((byte) 0x0f); // offset
+							int skip = putBranch(code,
+									mi.name.equals("ge") ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BGT_DAT,
+									arg2.address, arg1.address);
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar3);
+							setBranchTarget(code, skip);
 							pushVar(m, tmpVar3);
+						} else if (mi.name.equals("addMinutes") && constantShifts.contains(mi)) {
+							// the value to add was computed at compile time, added on a copy
+							// of the timestamp, which is left unchanged as in Java
+							arg2 = popVar(m, tmpVar2, false);
+							arg1 = popVar(m, tmpVar1, true);
+							code.put(OpCode.e_op_code_ADD_DAT);
+							code.putInt(arg1.address);
+							code.putInt(arg2.address);
+							pushVar(m, arg1.address);
 						} else if (mi.name.equals("addMinutes")) {
 							// we should have two arguments
 							arg2 = popVar(m, tmpVar2, false); // minutes
@@ -1014,9 +1954,11 @@ public class Compiler {
 							pushVar(m, lastTxTimestamp);
 						} else if (mi.name.equals("getCurrentTxSender")) {
 							stack.pollLast(); // remove the "this" from stack
+							useTxSender = true;
 							pushVar(m, lastTxSender);
 						} else if (mi.name.equals("getCurrentTxAmount")) {
 							stack.pollLast(); // remove the "this" from stack
+							useTxAmount = true;
 							pushVar(m, lastTxAmount);
 						} else if (mi.name.equals("getCurrentBalance")) {
 							stack.pollLast(); // remove the "this" from stack
@@ -1048,10 +1990,7 @@ public class Compiler {
 								addError(mi, ex.getMessage());
 							}
 
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar1);
-							code.putLong(value);
-							pushVar(m, tmpVar1);
+							pushConstant(m, value);
 						} else if (mi.name.equals("getAddress")) {
 							arg1 = popVar(m, tmpVar1, false); // the address
 							stack.pollLast(); // remove the "this" from stack
@@ -1084,13 +2023,10 @@ public class Compiler {
 							code.putInt(tmpVar1);
 							
 							// Get only the block height, removing the number of txs
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar2);
-							code.putLong(32L);
-
+							int shift = constantOperand(code, tmpVar2, 32L);
 							code.put(OpCode.e_op_code_SHR_DAT);
 							code.putInt(tmpVar1);
-							code.putInt(tmpVar2);
+							code.putInt(shift);
 							
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getPrevBlockHash")) {
@@ -1226,13 +2162,10 @@ public class Compiler {
 										c <<= 8 * i;
 										value += c;
 									}
-									code.put(OpCode.e_op_code_SET_VAL);
-									code.putInt(tmpVar1);
-									code.putLong(value);
-
+									int chunk = constantOperand(code, tmpVar1, value);
 									code.put(OpCode.e_op_code_EXT_FUN_DAT);
 									code.putShort((short) (OpCode.Set_A1 + a));
-									code.putInt(tmpVar1);
+									code.putInt(chunk);
 								}
 							}
 							else if (mi.desc.equals("(JLbt/Address;)V")) {
@@ -1303,38 +2236,52 @@ public class Compiler {
 								return;
 							}
 
+							if (mcall.nargs > Method.MAX_ARGS) {
+								addError(mi, "Methods with more than " + Method.MAX_ARGS + " arguments are not supported");
+								return;
+							}
+
 							// update the local variable start position to not conflict with this one
-							if (m.node.maxLocals > 1) {
+							if (!staticFrames && m.node.maxLocals > 1) {
 								useLocal = true;
-								code.put(OpCode.e_op_code_SET_VAL);
-								code.putInt(tmpVar1);
-								code.putLong(m.node.maxLocals - 1);
-								code.put(OpCode.e_op_code_ADD_DAT);
-								code.putInt(localStart);
-								code.putInt(tmpVar1);
+								shiftFrame(code, m.node.maxLocals - 1, true);
 							}
 
-							// load the arguments as local variables, tmpVar2 is the index
-							for (int i = 0; i < mcall.nargs; i++) {
-								if (i == 0) {
-									useLocal = true;
-									code.put(OpCode.e_op_code_SET_DAT);
-									code.putInt(tmpVar2);
-									code.putInt(localStart);
+							// load the arguments as local variables, the last one is on top of the stack
+							for (int i = mcall.nargs - 1; i >= 0; i--) {
+								if (staticFrames) {
+									popVar(m, mcall.localsAddress + mcall.localArgPos[i], true);
+									continue;
+								}
+								// tmpVar2 is the index, starting on the last argument
+								useLocal = true;
+								if (i == mcall.nargs - 1)
+									localAddress(code, 1 + mcall.localArgPos[i]);
+								else {
+									for (int j = 0; j < mcall.localArgSize[i]; j++) {
+										code.put(OpCode.e_op_code_DEC_DAT);
+										code.putInt(tmpVar2);
+									}
 								}
 
 								StackVar argi = popVar(m, tmpVar1, false);
 								code.put(OpCode.e_op_code_IND_DAT);
 								code.putInt(tmpVar2);
 								code.putInt(argi.address);
+							}
+							stack.pollLast(); // remove the 'this'
 
-								// increment the local postion, not needed if this is the last argument
-								for (int j = 0; i < mcall.nargs - 1 && j < mcall.localArgSize[i]; j++) {
-									code.put(OpCode.e_op_code_INC_DAT);
-									code.putInt(tmpVar2);
+							// the operand cells still in use are shared with the callee, the
+							// fields are read before it may write them
+							invalidateFields(m);
+							ArrayList<Integer> saved = new ArrayList<>();
+							for (StackVar var : stack) {
+								if (var.type == STACK_CELL) {
+									code.put(OpCode.e_op_code_PSH_DAT);
+									code.putInt(var.address);
+									saved.add(var.address);
 								}
 							}
-							stack.pollLast(); // remove the 'this'
 
 							// call method here
 							code.put(OpCode.e_op_code_JMP_SUB);
@@ -1342,19 +2289,23 @@ public class Compiler {
 							code.putInt(0); // address, to be resolved latter
 
 							// update the local variable start position back
-							if (m.node.maxLocals > 1) {
-								code.put(OpCode.e_op_code_SET_VAL);
-								code.putInt(tmpVar1);
-								code.putLong(m.node.maxLocals - 1);
-								code.put(OpCode.e_op_code_SUB_DAT);
-								code.putInt(localStart);
+							if (!staticFrames && m.node.maxLocals > 1)
+								shiftFrame(code, m.node.maxLocals - 1, false);
+
+							// check if the method has a return value, on the user stack
+							boolean result = !mcall.node.desc.endsWith("V");
+							if (result && !saved.isEmpty()) {
+								code.put(OpCode.e_op_code_POP_DAT);
 								code.putInt(tmpVar1);
 							}
-
-							// check if the method has a return value
-							if (!mcall.node.desc.endsWith("V")) {
-								stack.add(new StackVar(STACK_PUSH, 0));
+							for (int i = saved.size() - 1; i >= 0; i--) {
+								code.put(OpCode.e_op_code_POP_DAT);
+								code.putInt(saved.get(i));
 							}
+							if (result && !saved.isEmpty())
+								pushVar(m, tmpVar1);
+							else if (result)
+								stack.add(new StackVar(STACK_PUSH, 0));
 						}
 					} else if (owner.equals(Transaction.class.getName())) {
 						// call on a transaction object
@@ -1481,49 +2432,36 @@ public class Compiler {
 							code.put(OpCode.e_op_code_EXT_FUN_RET);
 							code.putShort((short) (OpCode.Get_B2));
 							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg2.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							int skip = putBranch(code, OpCode.e_op_code_BNE_DAT, tmpVar5, arg2.address);
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar1);
+							setBranchTarget(code, skip);
 							
 							// check 3
 							code.put(OpCode.e_op_code_EXT_FUN_RET);
 							code.putShort((short) (OpCode.Get_B3));
 							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg3.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							skip = putBranch(code, OpCode.e_op_code_BNE_DAT, tmpVar5, arg3.address);
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar1);
+							setBranchTarget(code, skip);
 							
 							// check 4
 							code.put(OpCode.e_op_code_EXT_FUN_RET);
 							code.putShort((short) (OpCode.Get_B4));
 							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg4.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							skip = putBranch(code, OpCode.e_op_code_BNE_DAT, tmpVar5, arg4.address);
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar1);
+							setBranchTarget(code, skip);
 							
 							// tmpVar1 is zero if match, so we return 1 if match
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
+							skip = putBranch(code, OpCode.e_op_code_BNZ_DAT, tmpVar1);
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar2);
+							setBranchTarget(code, skip);
 							
 							pushVar(m, tmpVar2);
 							
@@ -1562,22 +2500,17 @@ public class Compiler {
 						}
 					} else if (owner.equals(Object.class.getName())) {
 						if (mi.name.equals("equals")) {
-							arg1 = popVar(m, tmpVar1, true); // the obj 1
+							arg1 = popVar(m, tmpVar1, false); // the obj 1
 							arg2 = popVar(m, tmpVar2, false); // the obj 2
 
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(arg1.address);
-							code.putInt(arg2.address);
-
 							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
+							code.putInt(tmpVar3);
+							int skip = putBranch(code, OpCode.e_op_code_BNE_DAT, arg1.address, arg2.address);
 
 							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
-							pushVar(m, tmpVar2);
+							code.putInt(tmpVar3);
+							setBranchTarget(code, skip);
+							pushVar(m, tmpVar3);
 						} else {
 							addError(insn, UNEXPECTED_ERROR);
 						}
@@ -1592,6 +2525,9 @@ public class Compiler {
 							pushVar(m, values[pos].address);
 						}
 						else if (mi.name.equals("equals")) {
+							// Check_A_Equals_B would take 51 bytes, but 50 steps: four API calls to
+							// set A and B and the check, at 10 steps each, clobbering both. The
+							// BNE_DAT chain below is larger but runs in at most 14 steps.
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar5);
 
@@ -1599,35 +2535,26 @@ public class Compiler {
 							for (int i = values.length - 1; i >= 0; i--) {
 								StackVar other = popVar(m, tmpVar6, false);
 
-								code.put(OpCode.e_op_code_SUB_DAT);
-								code.putInt(values[i].address);
-								code.putInt(other.address);
-
-								code.put(OpCode.e_op_code_BNZ_DAT);
-								code.putInt(values[i].address);
-								code.put((byte) 0x0b); // offset
+								int skip = putBranch(code, OpCode.e_op_code_BNE_DAT, values[i].address, other.address);
 
 								code.put(OpCode.e_op_code_INC_DAT);
 								code.putInt(tmpVar5);
+								setBranchTarget(code, skip);
 							}
 							// tmpVar 5 must be equal 4
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar1);
-							code.putLong(4L);
-
+							int four = constantOperand(code, tmpVar1, 4L);
 							code.put(OpCode.e_op_code_SUB_DAT);
 							code.putInt(tmpVar5);
-							code.putInt(tmpVar1);
+							code.putInt(four);
 
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar2);
 
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							int skip = putBranch(code, OpCode.e_op_code_BNZ_DAT, tmpVar5);
 
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar2);
+							setBranchTarget(code, skip);
 
 							pushVar(m, tmpVar2);
 						} else
@@ -1648,6 +2575,10 @@ public class Compiler {
 					logger.debug((opcode == GETFIELD ? "get " : "put ") + "field: " + fi.name);
 
 					Field field = fields.get(fi.name);
+					if (field.bits != 0) {
+						packedBoolean(m, field, opcode == GETFIELD);
+						break;
+					}
 					if (opcode == GETFIELD) {
 						stack.pollLast(); // remove the 'this'
 						for (int i = 0; i < field.size; i++) {
@@ -1655,6 +2586,12 @@ public class Compiler {
 						}
 					} else {
 						// PUTFIELD
+						ArrayList<StackVar> values = new ArrayList<>();
+						for (int i = 0; i < field.size; i++)
+							values.add(0, stack.pollLast());
+						for (int i = 0; i < field.size; i++)
+							invalidate(m, field.address + i);
+						stack.addAll(values);
 						for (int i = field.size - 1; i >= 0; i--) {
 							popVar(m, field.address + i, true);
 						}
@@ -1682,10 +2619,7 @@ public class Compiler {
 						else {
 							addError(ld, "Invalid constant: " + ld.cst);
 						}
-						code.put(OpCode.e_op_code_SET_VAL);
-						code.putInt(tmpVar2);
-						code.putLong(value);
-						pushVar(m, tmpVar2);
+						pushConstant(m, value);
 					}
 				} else {
 					addError(insn, UNEXPECTED_ERROR);
@@ -1694,6 +2628,18 @@ public class Compiler {
 
 			case LCMP: // push 0 if the two longs are the same, 1 if value1 is greater than value2, -1
 						// otherwise
+				if (insn.getNext() instanceof JumpInsnNode && insn.getNext().getOpcode() >= IFEQ
+						&& insn.getNext().getOpcode() <= IFLE) {
+					// compared and branched at once, with the matching IF_ICMPxx
+					JumpInsnNode jmp = (JumpInsnNode) ite.next();
+					arg2 = popVar(m, tmpVar2, false);
+					arg1 = popVar(m, tmpVar1, false);
+					compareAndJump(m, code, jmp.getOpcode() - IFEQ + IF_ICMPEQ, arg1.address, arg2.address,
+							jmp.label);
+
+					logger.debug("lcmp if: " + jmp.label.getLabel());
+					break;
+				}
 				arg2 = popVar(m, tmpVar2, false);
 				arg1 = popVar(m, tmpVar1, true);
 				code.put(OpCode.e_op_code_SUB_DAT);
@@ -1720,42 +2666,37 @@ public class Compiler {
 					if (opcode != GOTO) {
 						arg1 = popVar(m, tmpVar1, false);
 					}
+					jumpTo(m, jmp.label);
+					jumped = opcode == GOTO;
 
-					// The idea is to branch on the negative of the command to skip
-					// the JMP_ADR command, BZR and similar commands cannot be used
-					// since the offset has only one byte (limite to -127 to 127).
+					// Branch on the negative of the command to skip the JMP_ADR,
+					// the Assembler turns it into a single branch to the label
+					// when in reach of the 1 byte offset.
+					int skip = -1;
 					switch (opcode) {
 					case IFEQ:
 					case IFNULL:
-						code.put(OpCode.e_op_code_BNZ_DAT);
-						code.putInt(arg1.address);
-						code.put((byte) 11);
+						skip = putBranch(code, OpCode.e_op_code_BNZ_DAT, arg1.address);
 						break;
 
 					case IFNE:
 					case IFNONNULL:
-						code.put(OpCode.e_op_code_BZR_DAT);
-						code.putInt(arg1.address);
-						code.put((byte) 11);
+						skip = putBranch(code, OpCode.e_op_code_BZR_DAT, arg1.address);
 						break;
 
 					case IFGE:
 					case IFGT:
 						code.put(OpCode.e_op_code_CLR_DAT);
 						code.putInt(tmpVar2);
-						code.put(opcode == IFGE ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BLE_DAT);
-						code.putInt(arg1.address);
-						code.putInt(tmpVar2);
-						code.put((byte) 15);
+						skip = putBranch(code, opcode == IFGE ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BLE_DAT,
+								arg1.address, tmpVar2);
 						break;
 					case IFLE:
 					case IFLT:
 						code.put(OpCode.e_op_code_CLR_DAT);
 						code.putInt(tmpVar2);
-						code.put(opcode == IFLE ? OpCode.e_op_code_BGT_DAT : OpCode.e_op_code_BGE_DAT);
-						code.putInt(arg1.address);
-						code.putInt(tmpVar2);
-						code.put((byte) 15);
+						skip = putBranch(code, opcode == IFLE ? OpCode.e_op_code_BGT_DAT : OpCode.e_op_code_BGE_DAT,
+								arg1.address, tmpVar2);
 						break;
 					case GOTO:
 						// do nothing, simply jump to the address
@@ -1765,6 +2706,8 @@ public class Compiler {
 					code.put(OpCode.e_op_code_JMP_ADR);
 					m.jumps.add(new Method.Jump(code.position(), jmp.label));
 					code.putInt(0); // address, to be resolved later
+					if (skip >= 0)
+						setBranchTarget(code, skip);
 
 					logger.debug("ifeq: " + jmp.label.getLabel());
 				} else {
@@ -1776,26 +2719,18 @@ public class Compiler {
 			case IF_ACMPNE:
 			case IF_ICMPEQ:
 			case IF_ICMPNE:
+			case IF_ICMPLT:
+			case IF_ICMPGE:
+			case IF_ICMPGT:
+			case IF_ICMPLE:
 				if (insn instanceof JumpInsnNode) {
 					JumpInsnNode jmp = (JumpInsnNode) insn;
 
-					arg1 = popVar(m, tmpVar1, true);
 					arg2 = popVar(m, tmpVar2, false);
+					arg1 = popVar(m, tmpVar1, false);
+					compareAndJump(m, code, opcode, arg1.address, arg2.address, jmp.label);
 
-					code.put(OpCode.e_op_code_SUB_DAT);
-					code.putInt(arg1.address);
-					code.putInt(arg2.address);
-
-					code.put(opcode == IF_ACMPEQ || opcode == IF_ICMPEQ ? OpCode.e_op_code_BNZ_DAT
-							: OpCode.e_op_code_BZR_DAT);
-					code.putInt(arg1.address);
-					code.put((byte) 11); // offset
-
-					code.put(OpCode.e_op_code_JMP_ADR);
-					m.jumps.add(new Method.Jump(code.position(), jmp.label));
-					code.putInt(0); // to be resolved later
-
-					logger.debug("ifeq: " + jmp.label.getLabel());
+					logger.debug("if_cmp: " + jmp.label.getLabel());
 				} else {
 					addError(insn, UNEXPECTED_ERROR);
 				}
@@ -1823,23 +2758,32 @@ public class Compiler {
 	void addError(AbstractInsnNode node, String error) {
 		// try to find a line number to report
 		int line = -1;
+		Integer call = null;
 		AbstractInsnNode prev = node;
 		while (prev != null) {
 			if (prev instanceof LineNumberNode) {
 				line = ((LineNumberNode) prev).line;
+				call = inlinedAt.get(prev);
 				break;
 			}
 			prev = prev.getPrevious();
 		}
-		String message = "line " + line + ": " + error;
+		String message = "line " + line + (call != null ? " (inlined on line " + call + ")" : "") + ": " + error;
 
 		errors.add(new Error(node, message));
 	}
 
 	public static long getMethodSignature(Method m) {
+		return getMethodSignature(m.node.name, m.node.desc);
+	}
+
+	/**
+	 * @return the signature (hash) of a method with the given name and descriptor
+	 */
+	public static long getMethodSignature(String name, String desc) {
 		SignumCrypto burstCrypto = SignumCrypto.getInstance();
 		MessageDigest sha256 = burstCrypto.getSha256();
-		return burstCrypto.hashToId(sha256.digest((m.node.name + m.node.desc).getBytes(StandardCharsets.UTF_8)))
+		return burstCrypto.hashToId(sha256.digest((name + desc).getBytes(StandardCharsets.UTF_8)))
 				.getSignedLongId(); // TODO replace
 	}
 
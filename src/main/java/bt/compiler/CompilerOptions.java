@@ -0,0 +1,251 @@
+package bt.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Code generation options for the {@link Compiler}, trading code size (pages
+ * and registration fee) for steps (fees on every activation).
+ *
+ * Check {@link bt.Autotuner} to find the best ones for a given workload.
+ */
+public class CompilerOptions {
+
+	boolean staticFrames = true;
+	boolean peephole = true;
+	boolean constantFolding = true;
+	boolean constantPool = false;
+	boolean constructorEvaluation = false;
+	boolean packedBooleans = false;
+	boolean inlining = true;
+	int maxInlineSize = 4;
+	int maxLocalIncrements = Integer.MAX_VALUE;
+	int maxFrameIncrements = 0;
+	int maxLinearDispatch = 4;
+	List<String> dispatchOrder = new ArrayList<>();
+	boolean recursion = false;
+	int recursionDataPages, recursionCallStackPages, recursionUserStackPages;
+
+	public CompilerOptions() {
+	}
+
+	public CompilerOptions(CompilerOptions other) {
+		staticFrames = other.staticFrames;
+		peephole = other.peephole;
+		constantFolding = other.constantFolding;
+		constantPool = other.constantPool;
+		constructorEvaluation = other.constructorEvaluation;
+		packedBooleans = other.packedBooleans;
+		inlining = other.inlining;
+		maxInlineSize = other.maxInlineSize;
+		maxLocalIncrements = other.maxLocalIncrements;
+		maxFrameIncrements = other.maxFrameIncrements;
+		maxLinearDispatch = other.maxLinearDispatch;
+		dispatchOrder = new ArrayList<>(other.dispatchOrder);
+		recursion = other.recursion;
+		recursionDataPages = other.recursionDataPages;
+		recursionCallStackPages = other.recursionCallStackPages;
+		recursionUserStackPages = other.recursionUserStackPages;
+	}
+
+	public boolean isStaticFrames() {
+		return staticFrames;
+	}
+
+	/**
+	 * Local variables on fixed data addresses, accessed directly (default). The
+	 * frames of methods that are never active at the same time share the same
+	 * addresses. When off, the frames move on each call instead. Ignored for
+	 * recursive calls, see {@link #setRecursionPages(int, int, int)}.
+	 */
+	public void setStaticFrames(boolean staticFrames) {
+		this.staticFrames = staticFrames;
+	}
+
+	public boolean isPeephole() {
+		return peephole;
+	}
+
+	/**
+	 * Rewrites the code of each method with the {@link Peephole} rules (default).
+	 */
+	public void setPeephole(boolean peephole) {
+		this.peephole = peephole;
+	}
+
+	public boolean isConstantFolding() {
+		return constantFolding;
+	}
+
+	/**
+	 * Propagates and folds constants on the Java bytecode, removing the branches
+	 * never taken, see {@link ConstantFolder} (default).
+	 */
+	public void setConstantFolding(boolean constantFolding) {
+		this.constantFolding = constantFolding;
+	}
+
+	public boolean isConstantPool() {
+		return constantPool;
+	}
+
+	/**
+	 * Constants other than 0, 1 and -1 are read from data cells set when
+	 * registering the contract, see {@link Compiler#getInitialData()}, instead
+	 * of set by a SET_VAL (13 bytes) on each use (off by default). The code only
+	 * runs with that initial data, so register it with the {@link Compiler}
+	 * rather than its code alone.
+	 */
+	public void setConstantPool(boolean constantPool) {
+		this.constantPool = constantPool;
+	}
+
+	public boolean isConstructorEvaluation() {
+		return constructorEvaluation;
+	}
+
+	/**
+	 * Fields set to constants by the constructor get their values on the initial
+	 * data, see {@link ConstructorEvaluator}, instead of by code run on the first
+	 * activation (off by default). As for {@link #setConstantPool(boolean)}, the
+	 * contract must be registered with {@link Compiler#getInitialData()}.
+	 */
+	public void setConstructorEvaluation(boolean constructorEvaluation) {
+		this.constructorEvaluation = constructorEvaluation;
+	}
+
+	public boolean isPackedBooleans() {
+		return packedBooleans;
+	}
+
+	/**
+	 * Boolean fields share cells, one bit each, saving data pages for more code
+	 * and steps on each access (off by default). Fields of other types keep a
+	 * cell each. The bit of each field is given by {@link Field#getBitOffset()},
+	 * see {@link Field#getValue(long)}.
+	 */
+	public void setPackedBooleans(boolean packedBooleans) {
+		this.packedBooleans = packedBooleans;
+	}
+
+	public boolean isInlining() {
+		return inlining;
+	}
+
+	/**
+	 * Copies the code of the helper methods called only once, or not larger
+	 * than {@link #setMaxInlineSize(int)}, on the callers instead of calling
+	 * them, see {@link Inliner} (default).
+	 */
+	public void setInlining(boolean inlining) {
+		this.inlining = inlining;
+	}
+
+	public int getMaxInlineSize() {
+		return maxInlineSize;
+	}
+
+	/**
+	 * Helper methods up to this number of Java bytecode instructions are inlined
+	 * on every call, larger ones only if called once.
+	 */
+	public void setMaxInlineSize(int maxInlineSize) {
+		this.maxInlineSize = maxInlineSize;
+	}
+
+	public int getMaxLocalIncrements() {
+		return maxLocalIncrements;
+	}
+
+	/**
+	 * Local variables are addressed from the frame start, incremented once per
+	 * local index (1 step, 5 bytes each). Above this number of increments the
+	 * index is added instead (2 steps, 18 bytes with the constant pool, 22
+	 * without). Only for moving frames.
+	 */
+	public void setMaxLocalIncrements(int maxLocalIncrements) {
+		this.maxLocalIncrements = maxLocalIncrements;
+	}
+
+	public int getMaxFrameIncrements() {
+		return maxFrameIncrements;
+	}
+
+	/**
+	 * Calling a method moves the frame start by the number of locals of the
+	 * caller and back. Up to this number of locals the frame start is
+	 * incremented and decremented (1 step, 5 bytes each), above it the size is
+	 * added and subtracted (1 step, 9 bytes with the constant pool, otherwise 2
+	 * steps, 22 bytes). Only for moving frames.
+	 */
+	public void setMaxFrameIncrements(int maxFrameIncrements) {
+		this.maxFrameIncrements = maxFrameIncrements;
+	}
+
+	public int getMaxLinearDispatch() {
+		return maxLinearDispatch;
+	}
+
+	/**
+	 * Up to this number of public methods, the dispatcher compares the method
+	 * hash of a transaction with each one in turn (2 steps each), see
+	 * {@link #setDispatchOrder(List)}. With more methods it runs a binary search
+	 * on the sorted hashes (about 2 steps per halving).
+	 */
+	public void setMaxLinearDispatch(int maxLinearDispatch) {
+		this.maxLinearDispatch = maxLinearDispatch;
+	}
+
+	public List<String> getDispatchOrder() {
+		return dispatchOrder;
+	}
+
+	/**
+	 * The public methods to check first when dispatching a transaction, the
+	 * most called ones first. Methods not listed come after, in the default
+	 * order. Only for the linear dispatch, see
+	 * {@link #setMaxLinearDispatch(int)}.
+	 */
+	public void setDispatchOrder(List<String> dispatchOrder) {
+		this.dispatchOrder = new ArrayList<>(dispatchOrder);
+	}
+
+	public boolean isRecursion() {
+		return recursion;
+	}
+
+	/**
+	 * Allows recursive calls, a compile error by default as the stacks they need
+	 * have no bound. Their frames move on each call, on the given extra data
+	 * pages, and the contract gets the given call stack and user stack pages
+	 * instead of the ones found on its code. Calls going deeper than these
+	 * pages hold stop the machine, so give enough for the deepest one.
+	 */
+	public void setRecursionPages(int dataPages, int callStackPages, int userStackPages) {
+		if (dataPages < 0 || callStackPages < 1 || userStackPages < 0)
+			throw new IllegalArgumentException("Invalid recursion pages: " + dataPages + ", " + callStackPages
+					+ ", " + userStackPages);
+		this.recursion = true;
+		this.recursionDataPages = dataPages;
+		this.recursionCallStackPages = callStackPages;
+		this.recursionUserStackPages = userStackPages;
+	}
+
+	@Override
+	public String toString() {
+		String switches = (peephole ? "peephole, " : "") + (constantFolding ? "constantFolding, " : "")
+				+ (constantPool ? "constantPool, " : "") + (constructorEvaluation ? "constructorEvaluation, " : "")
+				+ (packedBooleans ? "packedBooleans, " : "");
+		String inline = inlining ? "inlining, maxInlineSize=" + maxInlineSize + ", " : "";
+		String dispatch = "maxLinearDispatch=" + (maxLinearDispatch == Integer.MAX_VALUE ? "max" : maxLinearDispatch)
+				+ ", dispatchOrder=" + dispatchOrder;
+		if (recursion)
+			dispatch += ", recursionPages=" + recursionDataPages + "/" + recursionCallStackPages + "/"
+					+ recursionUserStackPages;
+		if (staticFrames)
+			return "staticFrames, " + switches + inline + dispatch;
+		return switches + inline + "maxLocalIncrements="
+				+ (maxLocalIncrements == Integer.MAX_VALUE ? "max" : maxLocalIncrements) + ", maxFrameIncrements="
+				+ maxFrameIncrements + ", " + dispatch;
+	}
+}
@@ -0,0 +1,672 @@
+package bt.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import bt.Timestamp;
+
+/**
+ * Constant propagation and folding on the Java bytecode of a method, before
+ * the {@link Compiler} generates the AT code.
+ *
+ * Known values are propagated through the locals and the operand stack,
+ * following only the branches that can be taken. Then loads of constant locals,
+ * operations on constants and constant conditions are replaced by their
+ * results, the code never reached is removed, as well as the stores to locals
+ * never loaded again. Values are folded as the compiled code computes them,
+ * with 64 bit arithmetic also for ints but for the shifts, and the narrowing
+ * conversions as masks, so the result does not depend on the folding. Divisions
+ * by zero are left for the runtime. Folded values keep the width of the ones
+ * replaced, int results not fitting an int are left for the runtime as well.
+ *
+ * Methods with instructions not supported by the compiler are not changed.
+ */
+class ConstantFolder {
+
+	private static Logger logger = LogManager.getLogger();
+
+	static final String TIMESTAMP = Timestamp.class.getName().replace('.', '/');
+
+	/**
+	 * A value on the stack or on a local, null constant if unknown.
+	 */
+	static class Value {
+		final Long constant;
+		final boolean wide;
+
+		Value(Long constant, boolean wide) {
+			this.constant = constant;
+			this.wide = wide;
+		}
+
+		Value merge(Value other) {
+			if (constant != null && constant.equals(other.constant))
+				return this;
+			return constant == null ? this : new Value(null, wide);
+		}
+	}
+
+	static final Value UNKNOWN = new Value(null, false);
+	static final Value UNKNOWN_WIDE = new Value(null, true);
+
+	static class Frame {
+		Value[] locals;
+		ArrayList<Value> stack = new ArrayList<>();
+
+		Frame(int maxLocals) {
+			locals = new Value[maxLocals];
+		}
+
+		Frame(Frame other) {
+			locals = other.locals.clone();
+			stack.addAll(other.stack);
+		}
+
+		Value pop() {
+			return stack.remove(stack.size() - 1);
+		}
+
+		Value peek(int depth) {
+			return stack.get(stack.size() - 1 - depth);
+		}
+
+		void push(Value v) {
+			stack.add(v);
+		}
+
+		/**
+		 * @return true if this frame changed
+		 */
+		boolean merge(Frame other) {
+			if (other.stack.size() != stack.size())
+				throw new IllegalStateException("stack size mismatch");
+			boolean changed = false;
+			for (int i = 0; i < locals.length; i++) {
+				Value v = locals[i].merge(other.locals[i]);
+				if (v != locals[i]) {
+					locals[i] = v;
+					changed = true;
+				}
+			}
+			for (int i = 0; i < stack.size(); i++) {
+				Value v = stack.get(i).merge(other.stack.get(i));
+				if (v != stack.get(i)) {
+					stack.set(i, v);
+					changed = true;
+				}
+			}
+			return changed;
+		}
+	}
+
+	Compiler compiler;
+	MethodNode node;
+	AbstractInsnNode[] insns;
+	HashMap<AbstractInsnNode, Integer> indexes = new HashMap<>();
+	Frame[] frames;
+	HashSet<LabelNode> targets = new HashSet<>();
+
+	int folded, branches, removed;
+
+	ConstantFolder(Compiler compiler, MethodNode node) {
+		this.compiler = compiler;
+		this.node = node;
+	}
+
+	/**
+	 * @return true if the method was changed
+	 */
+	boolean fold() {
+		if (!node.tryCatchBlocks.isEmpty() || node.instructions.size() == 0)
+			return false;
+		insns = node.instructions.toArray();
+		for (int i = 0; i < insns.length; i++) {
+			indexes.put(insns[i], i);
+			if (insns[i].getOpcode() >= 0 && !isSupported(insns[i]))
+				return false;
+			if (insns[i] instanceof JumpInsnNode)
+				targets.add(((JumpInsnNode) insns[i]).label);
+		}
+
+		try {
+			analyze();
+		} catch (IllegalStateException e) {
+			logger.debug("constant folding skipped for {}: {}", node.name, e.getMessage());
+			return false;
+		}
+		rewrite();
+		if (folded + branches + removed > 0)
+			logger.debug("{}: {} folded, {} branches resolved, {} removed", node.name, folded, branches, removed);
+		return folded + branches + removed > 0;
+	}
+
+	static boolean isSupported(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		switch (opcode) {
+		case NOP:
+		case ILOAD:
+		case LLOAD:
+		case ALOAD:
+		case ISTORE:
+		case LSTORE:
+		case ASTORE:
+		case I2L:
+		case L2I:
+		case I2B:
+		case I2C:
+		case I2S:
+		case ACONST_NULL:
+		case ICONST_M1:
+		case ICONST_0:
+		case ICONST_1:
+		case ICONST_2:
+		case ICONST_3:
+		case ICONST_4:
+		case ICONST_5:
+		case LCONST_0:
+		case LCONST_1:
+		case BIPUSH:
+		case SIPUSH:
+		case LDC:
+		case INEG:
+		case LNEG:
+		case LCMP:
+		case IRETURN:
+		case LRETURN:
+		case ARETURN:
+		case RETURN:
+		case DUP:
+		case POP:
+		case POP2:
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+		case INVOKEINTERFACE:
+		case GETFIELD:
+		case PUTFIELD:
+		case GOTO:
+			return true;
+		default:
+			return isBinary(opcode) || isCondition(opcode);
+		}
+	}
+
+	static boolean isBinary(int opcode) {
+		return opcode >= IADD && opcode <= LREM && (opcode - IADD) % 4 < 2
+				|| opcode >= IAND && opcode <= LXOR || opcode == ISHL || opcode == LSHL || opcode == IUSHR
+				|| opcode == LUSHR;
+	}
+
+	static boolean isCondition(int opcode) {
+		return opcode >= IFEQ && opcode <= IF_ACMPNE || opcode == IFNULL || opcode == IFNONNULL;
+	}
+
+	static boolean isWide(int opcode) {
+		switch (opcode) {
+		case LLOAD:
+		case LCONST_0:
+		case LCONST_1:
+		case I2L:
+		case LNEG:
+			return true;
+		default:
+			return opcode >= IADD && opcode <= LXOR && (opcode - IADD) % 2 == 1;
+		}
+	}
+
+	static Long constant(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		if (opcode >= ICONST_M1 && opcode <= ICONST_5)
+			return (long) (opcode - ICONST_0);
+		if (opcode == LCONST_0 || opcode == LCONST_1)
+			return (long) (opcode - LCONST_0);
+		if (opcode == ACONST_NULL)
+			return 0L;
+		if (opcode == BIPUSH || opcode == SIPUSH)
+			return (long) ((IntInsnNode) insn).operand;
+		if (insn instanceof LdcInsnNode) {
+			Object cst = ((LdcInsnNode) insn).cst;
+			if (cst instanceof Long)
+				return (Long) cst;
+			if (cst instanceof Integer)
+				return (long) (Integer) cst;
+		}
+		return null;
+	}
+
+	/**
+	 * Propagates the values, only through the branches that can be taken.
+	 */
+	void analyze() {
+		frames = new Frame[insns.length];
+		Frame start = new Frame(node.maxLocals);
+		for (int i = 0; i < start.locals.length; i++)
+			start.locals[i] = UNKNOWN;
+		LinkedList<Integer> work = new LinkedList<>();
+		frames[0] = start;
+		work.add(0);
+
+		while (!work.isEmpty()) {
+			int i = work.poll();
+			Frame f = new Frame(frames[i]);
+			AbstractInsnNode insn = insns[i];
+			int opcode = insn.getOpcode();
+			boolean next = execute(insn, f);
+
+			if (insn instanceof JumpInsnNode) {
+				Boolean taken = opcode == GOTO ? Boolean.TRUE : decide(opcode, frames[i]);
+				if (taken == null || taken)
+					flow(indexes.get(((JumpInsnNode) insn).label), f, work);
+				next = taken == null || !taken;
+			}
+			if (next) {
+				if (i + 1 >= insns.length)
+					throw new IllegalStateException("falling off the code");
+				flow(i + 1, f, work);
+			}
+		}
+	}
+
+	void flow(int target, Frame f, LinkedList<Integer> work) {
+		if (frames[target] == null) {
+			frames[target] = new Frame(f);
+			work.add(target);
+		} else if (frames[target].merge(f) && !work.contains(target))
+			work.add(target);
+	}
+
+	/**
+	 * Executes the given instruction on the frame.
+	 *
+	 * @return true if the execution continues on the next instruction
+	 */
+	boolean execute(AbstractInsnNode insn, Frame f) {
+		int opcode = insn.getOpcode();
+		if (opcode < 0 || opcode == NOP)
+			return true;
+
+		Long cst = constant(insn);
+		if (cst != null || opcode == LDC) {
+			boolean wide = opcode == LCONST_0 || opcode == LCONST_1
+					|| (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Long);
+			f.push(new Value(cst, wide));
+			return true;
+		}
+		if (isBinary(opcode) || opcode == LCMP) {
+			Value b = f.pop(), a = f.pop();
+			f.push(new Value(compute(opcode, a.constant, b.constant), opcode != LCMP && isWide(opcode)));
+			return true;
+		}
+		if (isCondition(opcode)) {
+			f.pop();
+			if (opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE)
+				f.pop();
+			return true;
+		}
+
+		switch (opcode) {
+		case ILOAD:
+		case LLOAD:
+		case ALOAD: {
+			f.push(f.locals[((VarInsnNode) insn).var]);
+			return true;
+		}
+		case ISTORE:
+		case LSTORE:
+		case ASTORE:
+			f.locals[((VarInsnNode) insn).var] = f.pop();
+			return true;
+		case I2L:
+		case L2I:
+		case I2B:
+		case I2C:
+		case I2S:
+		case INEG:
+		case LNEG: {
+			Value a = f.pop();
+			f.push(new Value(compute(opcode, a.constant, null), isWide(opcode)));
+			return true;
+		}
+		case DUP:
+			f.push(f.peek(0));
+			return true;
+		case POP:
+			f.pop();
+			return true;
+		case POP2:
+			// as the compiler, a single cell also if not wide
+			f.pop();
+			return true;
+		case GETFIELD:
+			f.pop();
+			f.push(((FieldInsnNode) insn).desc.equals("J") ? UNKNOWN_WIDE : UNKNOWN);
+			return true;
+		case PUTFIELD:
+			f.pop();
+			f.pop();
+			return true;
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+		case INVOKEINTERFACE: {
+			MethodInsnNode mi = (MethodInsnNode) insn;
+			for (int i = 0; i < Type.getArgumentTypes(mi.desc).length; i++)
+				f.pop();
+			if (opcode != INVOKESTATIC)
+				f.pop();
+			Type ret = Type.getReturnType(mi.desc);
+			if (ret != Type.VOID_TYPE)
+				f.push(ret == Type.LONG_TYPE ? UNKNOWN_WIDE : UNKNOWN);
+			return true;
+		}
+		case GOTO:
+			return false;
+		default:
+			// the returns
+			return false;
+		}
+	}
+
+	/**
+	 * @return the result as computed by the compiled code, null if unknown
+	 */
+	static Long compute(int opcode, Long a, Long b) {
+		if (a == null || (b == null && (isBinary(opcode) || opcode == LCMP)))
+			return null;
+		switch (opcode) {
+		case IADD:
+		case LADD:
+			return a + b;
+		case ISUB:
+		case LSUB:
+			return a - b;
+		case IMUL:
+		case LMUL:
+			return a * b;
+		case IDIV:
+		case LDIV:
+			return b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a / b;
+		case IREM:
+		case LREM:
+			return b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a % b;
+		case IAND:
+		case LAND:
+			return a & b;
+		case IOR:
+		case LOR:
+			return a | b;
+		case IXOR:
+		case LXOR:
+			return a ^ b;
+		case ISHL:
+			return (long) (a.intValue() << b.intValue());
+		case LSHL:
+			return a << b;
+		case IUSHR:
+			return (long) (a.intValue() >>> b.intValue());
+		case LUSHR:
+			return a >>> b;
+		case LCMP:
+			return (long) Long.compare(a, b);
+		case INEG:
+		case LNEG:
+			return -a;
+		case I2L:
+			return a;
+		case L2I:
+			return a & 0xFFFFFFFFL;
+		case I2B:
+			return a & 0xFFL;
+		case I2C:
+		case I2S:
+			return a & 0xFFFFL;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return if the conditional jump is taken with the given frame, null if not
+	 *         known
+	 */
+	static Boolean decide(int opcode, Frame f) {
+		Long a, b = 0L;
+		if (opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) {
+			a = f.peek(1).constant;
+			b = f.peek(0).constant;
+		} else
+			a = f.peek(0).constant;
+		if (a == null || b == null)
+			return null;
+		switch (opcode) {
+		case IFEQ:
+		case IFNULL:
+		case IF_ICMPEQ:
+		case IF_ACMPEQ:
+			return a.longValue() == b.longValue();
+		case IFNE:
+		case IFNONNULL:
+		case IF_ICMPNE:
+		case IF_ACMPNE:
+			return a.longValue() != b.longValue();
+		case IFLT:
+		case IF_ICMPLT:
+			return a < b;
+		case IFGE:
+		case IF_ICMPGE:
+			return a >= b;
+		case IFGT:
+		case IF_ICMPGT:
+			return a > b;
+		case IFLE:
+		case IF_ICMPLE:
+			return a <= b;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the instruction pushing the given constant as a long if wide,
+	 *         otherwise as an int, null if it does not fit an int
+	 */
+	static AbstractInsnNode constantInsn(long value, boolean wide) {
+		if (wide) {
+			if (value == 0L)
+				return new InsnNode(LCONST_0);
+			if (value == 1L)
+				return new InsnNode(LCONST_1);
+			return new LdcInsnNode(value);
+		}
+		if (value >= -1 && value <= 5)
+			return new InsnNode(ICONST_0 + (int) value);
+		if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			return new IntInsnNode(BIPUSH, (int) value);
+		if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			return new IntInsnNode(SIPUSH, (int) value);
+		if (value == (int) value)
+			return new LdcInsnNode((int) value);
+		return null;
+	}
+
+	/**
+	 * Replaces the given instruction by pops of its inputs, on top of the frame,
+	 * and the constant.
+	 */
+	void replace(InsnList list, AbstractInsnNode insn, Frame f, int inputs, AbstractInsnNode result) {
+		for (int i = 0; i < inputs; i++)
+			list.insertBefore(insn, new InsnNode(f.peek(i).wide ? POP2 : POP));
+		if (result != null)
+			list.insertBefore(insn, result);
+		list.remove(insn);
+	}
+
+	void rewrite() {
+		InsnList list = node.instructions;
+		for (int i = 0; i < insns.length; i++) {
+			AbstractInsnNode insn = insns[i];
+			int opcode = insn.getOpcode();
+			Frame f = frames[i];
+			if (opcode < 0)
+				continue;
+			if (f == null) {
+				// never reached
+				list.remove(insn);
+				removed++;
+				continue;
+			}
+
+			if (opcode == ILOAD || opcode == LLOAD || opcode == ALOAD) {
+				Value v = f.locals[((VarInsnNode) insn).var];
+				AbstractInsnNode c = null;
+				if (v.constant != null && opcode != ALOAD)
+					c = constantInsn(v.constant, opcode == LLOAD);
+				else if (v.constant != null && v.constant == 0L)
+					c = new InsnNode(ACONST_NULL);
+				if (c != null) {
+					replace(list, insn, f, 0, c);
+					folded++;
+				}
+			} else if (isBinary(opcode) || opcode == LCMP) {
+				Long r = compute(opcode, f.peek(1).constant, f.peek(0).constant);
+				AbstractInsnNode c = r == null ? null : constantInsn(r, opcode != LCMP && isWide(opcode));
+				if (c != null) {
+					replace(list, insn, f, 2, c);
+					folded++;
+				}
+			} else if (opcode == I2L || opcode == L2I || opcode == I2B || opcode == I2C || opcode == I2S
+					|| opcode == INEG || opcode == LNEG) {
+				Long r = compute(opcode, f.peek(0).constant, null);
+				AbstractInsnNode c = r == null || opcode == I2L ? null : constantInsn(r, isWide(opcode));
+				if (c != null) {
+					replace(list, insn, f, 1, c);
+					folded++;
+				}
+			} else if (isCondition(opcode)) {
+				Boolean taken = decide(opcode, f);
+				if (taken != null) {
+					int inputs = opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE ? 2 : 1;
+					replace(list, insn, f, inputs, taken ? new JumpInsnNode(GOTO, ((JumpInsnNode) insn).label) : null);
+					branches++;
+				}
+			} else if (opcode == INVOKEVIRTUAL && ((MethodInsnNode) insn).owner.equals(TIMESTAMP)
+					&& ((MethodInsnNode) insn).name.equals("addMinutes") && f.peek(0).constant != null) {
+				// the blocks to add to the timestamp as a constant, see Timestamp#addMinutes
+				long minutes = f.peek(0).constant;
+				list.insertBefore(insn, new InsnNode(POP2));
+				list.insertBefore(insn, constantInsn((minutes / 4) << 32, true));
+				compiler.constantShifts.add(insn);
+				folded++;
+			}
+		}
+
+		removeDeadStores(list);
+		removePurePops(list);
+		removeJumpsToNext(list);
+	}
+
+	/**
+	 * Stores to locals no longer loaded become pops.
+	 */
+	void removeDeadStores(InsnList list) {
+		HashSet<Integer> loaded = new HashSet<>();
+		for (AbstractInsnNode insn : list.toArray()) {
+			int opcode = insn.getOpcode();
+			if (opcode == ILOAD || opcode == LLOAD || opcode == ALOAD)
+				loaded.add(((VarInsnNode) insn).var);
+		}
+		for (AbstractInsnNode insn : list.toArray()) {
+			int opcode = insn.getOpcode();
+			if ((opcode == ISTORE || opcode == LSTORE || opcode == ASTORE)
+					&& !loaded.contains(((VarInsnNode) insn).var)) {
+				list.set(insn, new InsnNode(opcode == LSTORE ? POP2 : POP));
+				removed++;
+			}
+		}
+	}
+
+	/**
+	 * Removes values pushed only to be popped, if pushing has no side effects.
+	 */
+	void removePurePops(InsnList list) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (AbstractInsnNode insn : list.toArray()) {
+				if ((insn.getOpcode() != POP && insn.getOpcode() != POP2) || insn.getPrevious() == null)
+					continue;
+				AbstractInsnNode prev = previous(insn);
+				if (prev == null)
+					continue;
+				int opcode = prev.getOpcode();
+				if (constant(prev) != null || opcode == ILOAD || opcode == LLOAD || opcode == ALOAD) {
+					list.remove(prev);
+					list.remove(insn);
+					removed++;
+					changed = true;
+				} else if (opcode == GETFIELD) {
+					AbstractInsnNode owner = previous(prev);
+					if (owner != null && owner.getOpcode() == ALOAD && ((VarInsnNode) owner).var == 0) {
+						list.remove(owner);
+						list.remove(prev);
+						list.remove(insn);
+						removed++;
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the GOTO left by a branch always taken when it is followed by its
+	 * label.
+	 */
+	void removeJumpsToNext(InsnList list) {
+		for (AbstractInsnNode insn : list.toArray()) {
+			if (insn.getOpcode() != GOTO)
+				continue;
+			LabelNode label = ((JumpInsnNode) insn).label;
+			for (AbstractInsnNode n = insn.getNext(); n != null && n.getOpcode() < 0; n = n.getNext()) {
+				if (n == label) {
+					list.remove(insn);
+					removed++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the instruction before the given one, skipping line numbers and
+	 *         labels not jumped to, null if there is none
+	 */
+	AbstractInsnNode previous(AbstractInsnNode insn) {
+		for (AbstractInsnNode p = insn.getPrevious(); p != null; p = p.getPrevious()) {
+			if (p.getOpcode() >= 0)
+				return p;
+			if (p instanceof LabelNode && targets.contains(p))
+				return null;
+		}
+		return null;
+	}
+}
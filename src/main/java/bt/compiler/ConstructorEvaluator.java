@@ -0,0 +1,152 @@
+package bt.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import signumj.entity.SignumAddress;
+
+/**
+ * Evaluates the constructor stores of constants to fields at compile time,
+ * after the {@link ConstantFolder}, so the values go on the initial data
+ * segment (see {@link Compiler#getInitialData()}) instead of being set by
+ * code run on the first activation.
+ *
+ * A store is evaluated when it is the only one to the field, of a constant or
+ * a parsed address, and the constructor has no branches, does not read the
+ * field and does not call methods of the contract. Other statements, as an
+ * issueAsset or getBlockTimestamp call, are kept. A constructor left empty is
+ * not called at all.
+ */
+class ConstructorEvaluator {
+
+	private static Logger logger = LogManager.getLogger();
+
+	Compiler compiler;
+	MethodNode node;
+
+	ConstructorEvaluator(Compiler compiler, MethodNode node) {
+		this.compiler = compiler;
+		this.node = node;
+	}
+
+	/**
+	 * Removes the stores evaluated, with their values set on
+	 * {@link Compiler#initialValues}.
+	 */
+	void evaluate() {
+		if (!node.tryCatchBlocks.isEmpty())
+			return;
+		HashMap<String, Integer> stores = new HashMap<>();
+		HashSet<String> loaded = new HashSet<>();
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			if (insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode
+					|| insn instanceof LookupSwitchInsnNode || compiler.getCallee(insn) != null)
+				return;
+			if (insn.getOpcode() == PUTFIELD)
+				stores.merge(((FieldInsnNode) insn).name, 1, Integer::sum);
+			else if (insn.getOpcode() == GETFIELD)
+				loaded.add(((FieldInsnNode) insn).name);
+		}
+
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			if (insn.getOpcode() != PUTFIELD)
+				continue;
+			FieldInsnNode fi = (FieldInsnNode) insn;
+			Field field = compiler.getField(fi.name);
+			if (field == null || field.size != 1 || stores.get(fi.name) != 1 || loaded.contains(fi.name))
+				continue;
+
+			ArrayList<AbstractInsnNode> evaluated = new ArrayList<>();
+			Long value = value(previous(insn), evaluated);
+			if (value == null)
+				continue;
+			AbstractInsnNode self = previous(evaluated.get(evaluated.size() - 1));
+			if (!isThis(self))
+				continue;
+			evaluated.add(self);
+			evaluated.add(insn);
+			for (AbstractInsnNode e : evaluated)
+				node.instructions.remove(e);
+			// packed booleans share the cell with others
+			compiler.initialValues.merge(field.address, field.toCell(value), (a, b) -> a | b);
+			logger.debug("field {} set on the initial data: {}", fi.name, value);
+		}
+	}
+
+	/**
+	 * @return the constant pushed by the given instruction, with the ones
+	 *         computing it added to the given list, null if not a constant
+	 */
+	Long value(AbstractInsnNode insn, ArrayList<AbstractInsnNode> evaluated) {
+		if (insn == null)
+			return null;
+		int opcode = insn.getOpcode();
+		Long ret = null;
+		if (opcode >= ICONST_M1 && opcode <= ICONST_5)
+			ret = (long) (opcode - ICONST_0);
+		else if (opcode == LCONST_0 || opcode == LCONST_1)
+			ret = (long) (opcode - LCONST_0);
+		else if (opcode == ACONST_NULL)
+			ret = 0L;
+		else if (opcode == BIPUSH || opcode == SIPUSH)
+			ret = (long) ((IntInsnNode) insn).operand;
+		else if (opcode == LDC) {
+			Object cst = ((LdcInsnNode) insn).cst;
+			if (cst instanceof Long)
+				ret = (Long) cst;
+			else if (cst instanceof Integer)
+				ret = (long) (Integer) cst;
+		} else if (opcode == I2L) {
+			evaluated.add(insn);
+			return value(previous(insn), evaluated);
+		} else if (opcode == INVOKEVIRTUAL && ((MethodInsnNode) insn).name.equals("parseAddress")) {
+			AbstractInsnNode rs = previous(insn);
+			if (rs == null || rs.getOpcode() != LDC || !(((LdcInsnNode) rs).cst instanceof String)
+					|| !isThis(previous(rs)))
+				return null;
+			try {
+				ret = SignumAddress.fromRs((String) ((LdcInsnNode) rs).cst).getSignedLongId();
+			} catch (IllegalArgumentException ex) {
+				return null; // reported when compiling the call
+			}
+			evaluated.add(insn);
+			evaluated.add(rs);
+			insn = previous(rs);
+		}
+		if (ret != null)
+			evaluated.add(insn);
+		return ret;
+	}
+
+	static boolean isThis(AbstractInsnNode insn) {
+		return insn != null && insn.getOpcode() == ALOAD && ((VarInsnNode) insn).var == 0;
+	}
+
+	/**
+	 * @return the instruction before the given one, skipping line numbers and
+	 *         labels, null if there is none
+	 */
+	static AbstractInsnNode previous(AbstractInsnNode insn) {
+		for (AbstractInsnNode p = insn.getPrevious(); p != null; p = p.getPrevious()) {
+			if (p.getOpcode() >= 0)
+				return p;
+		}
+		return null;
+	}
+}
@@ -11,6 +11,9 @@ public class Field {
 	FieldNode node;
 	int size;
 	int address;
+	/** Bits of the cell used, 0 if not packed with other fields */
+	int bits;
+	int bitOffset;
 
 	/**
 	 * @return the name of this field
@@ -25,4 +28,40 @@ public class Field {
 	public int getAddress(){
 		return address;
 	}
+
+	/**
+	 * @return the number of bits of the cell holding this field, 0 if using all
+	 *         of it, see {@link CompilerOptions#setPackedBooleans(boolean)}
+	 */
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return the position of the lowest bit of this field on its cell
+	 */
+	public int getBitOffset() {
+		return bitOffset;
+	}
+
+	/**
+	 * @return the bits of the cell used by this field, all if not packed
+	 */
+	long mask() {
+		return bits == 0 ? -1L : ((1L << bits) - 1) << bitOffset;
+	}
+
+	/**
+	 * @return the value of this field from the value of its cell (the first one)
+	 */
+	public long getValue(long cell) {
+		return bits == 0 ? cell : (cell & mask()) >>> bitOffset;
+	}
+
+	/**
+	 * @return the given value in the bits of this field, zero elsewhere
+	 */
+	long toCell(long value) {
+		return bits == 0 ? value : (value << bitOffset) & mask();
+	}
 }
@@ -0,0 +1,256 @@
+package bt.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Inlines the calls to helper methods on the Java bytecode, before the
+ * {@link Compiler} generates the AT code.
+ *
+ * Helpers called only once, or not larger than
+ * {@link CompilerOptions#setMaxInlineSize(int)}, have their code copied on the
+ * caller: the arguments are stored on the locals of the copy, placed after the
+ * ones of the caller, and the returns jump to the code after the call. The
+ * copies of a helper on the same caller never run nested and the Java code
+ * sets each local before reading it, so they all share the same locals. This
+ * saves the JMP_SUB and RET_SUB of each call and the frame moves when not
+ * using static frames, besides letting the {@link ConstantFolder} see the
+ * arguments.
+ *
+ * Entry points, methods called recursively and methods with try/catch blocks
+ * are not inlined. Helpers are processed before their callers, so the code
+ * copied is already inlined.
+ *
+ * A contract only calls methods on itself, so the receiver is the 'this' of
+ * the caller and local 0 of the copy is kept, for instance callers and helpers
+ * never storing on it. The local variable table of the helper is copied with
+ * the locals moved and the stack map frames of the caller are dropped, as
+ * they no longer match. The copy keeps the source lines of the helper, with
+ * the line of the call recorded, see {@link Compiler#inlinedAt}, so errors on
+ * inlined code are reported on both.
+ */
+class Inliner {
+
+	private static Logger logger = LogManager.getLogger();
+
+	/** Returns of a method called once to still inline it */
+	static final int MAX_RETURNS = 2;
+
+	Compiler compiler;
+	HashMap<Method, Set<Method>> callees = new HashMap<>();
+	HashSet<Method> recursive = new HashSet<>();
+	/** Calls to each method left on the contract */
+	HashMap<Method, Integer> calls = new HashMap<>();
+
+	int inlined;
+
+	Inliner(Compiler compiler) {
+		this.compiler = compiler;
+	}
+
+	void inline() {
+		for (Method m : compiler.methods.values()) {
+			callees.put(m, compiler.getCallees(m));
+			calls.putIfAbsent(m, 0);
+			countCalls(m.node, 1);
+		}
+		for (Method m : compiler.methods.values()) {
+			if (reaches(m, m, new HashSet<>()))
+				recursive.add(m);
+		}
+
+		ArrayList<Method> order = new ArrayList<>();
+		HashSet<Method> visited = new HashSet<>();
+		for (Method m : compiler.methods.values())
+			postOrder(m, visited, order);
+		for (Method m : order)
+			inlineCalls(m);
+		if (inlined > 0)
+			logger.debug("{} calls inlined", inlined);
+	}
+
+	boolean reaches(Method from, Method to, Set<Method> visited) {
+		for (Method c : callees.get(from)) {
+			if (c == to || (visited.add(c) && reaches(c, to, visited)))
+				return true;
+		}
+		return false;
+	}
+
+	void postOrder(Method m, Set<Method> visited, ArrayList<Method> order) {
+		if (!visited.add(m))
+			return;
+		for (Method c : callees.get(m))
+			postOrder(c, visited, order);
+		order.add(m);
+	}
+
+	static int size(MethodNode node) {
+		int size = 0;
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			if (insn.getOpcode() >= 0)
+				size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Adds the given number to the calls counted for each call in the code.
+	 */
+	void countCalls(MethodNode node, int n) {
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			Method callee = compiler.getCallee(insn);
+			if (callee != null)
+				calls.merge(callee, n, Integer::sum);
+		}
+	}
+
+	boolean canInline(Method callee) {
+		MethodNode node = callee.node;
+		if (Compiler.isEntryPoint(node) || recursive.contains(callee) || (node.access & ACC_STATIC) != 0
+				|| !node.tryCatchBlocks.isEmpty() || storesThis(node))
+			return false;
+		// each return other than the last becomes a jump, larger than the RET_SUB
+		return size(node) <= compiler.options.maxInlineSize
+				|| (calls.get(callee) == 1 && returns(node) <= MAX_RETURNS);
+	}
+
+	static boolean storesThis(MethodNode node) {
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			if (insn.getOpcode() == ASTORE && ((VarInsnNode) insn).var == 0)
+				return true;
+		}
+		return false;
+	}
+
+	static int returns(MethodNode node) {
+		int returns = 0;
+		for (AbstractInsnNode insn : node.instructions.toArray()) {
+			if (insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN)
+				returns++;
+		}
+		return returns;
+	}
+
+	void inlineCalls(Method m) {
+		if ((m.node.access & ACC_STATIC) != 0)
+			return;
+		boolean changed = false;
+		// the copies of a helper never run nested, so they share its locals
+		HashMap<Method, Integer> bases = new HashMap<>();
+		for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+			Method callee = compiler.getCallee(insn);
+			if (callee != null && callee != m && insn.getOpcode() != INVOKESTATIC && canInline(callee)) {
+				inlineCall(m.node, insn, callee.node, bases.computeIfAbsent(callee, c -> m.node.maxLocals - 1));
+				calls.merge(callee, -1, Integer::sum);
+				countCalls(callee.node, 1);
+				inlined++;
+				changed = true;
+			}
+		}
+		if (changed) {
+			for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+				if (insn instanceof FrameNode)
+					m.node.instructions.remove(insn);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the given call by the code of the callee, its local i on the
+	 * local base + i of the caller, 'this' kept.
+	 */
+	void inlineCall(MethodNode caller, AbstractInsnNode call, MethodNode callee, int base) {
+		InsnList code = new InsnList();
+
+		Type[] args = Type.getArgumentTypes(callee.desc);
+		int[] pos = new int[args.length];
+		for (int i = 0, p = 1; i < args.length; p += args[i].getSize(), i++)
+			pos[i] = p;
+		// the last argument is on top of the stack
+		for (int i = args.length - 1; i >= 0; i--)
+			code.add(new VarInsnNode(args[i].getOpcode(ISTORE), base + pos[i]));
+		code.add(new InsnNode(POP)); // the 'this'
+
+		AbstractInsnNode last = callee.instructions.getLast();
+		while (last != null && last.getOpcode() < 0)
+			last = last.getPrevious();
+		int returns = returns(callee);
+		// with a single return at the end, a result is simply left on the stack
+		Type ret = Type.getReturnType(callee.desc);
+		int result = returns > 1 && ret.getSize() > 0 ? base + callee.maxLocals : -1;
+
+		HashMap<LabelNode, LabelNode> labels = new HashMap<>();
+		for (AbstractInsnNode insn : callee.instructions.toArray()) {
+			if (insn instanceof LabelNode)
+				labels.put((LabelNode) insn, new LabelNode());
+		}
+		LabelNode end = new LabelNode();
+		int line = -1;
+		for (AbstractInsnNode insn = call.getPrevious(); insn != null && line < 0; insn = insn.getPrevious()) {
+			if (insn instanceof LineNumberNode)
+				line = ((LineNumberNode) insn).line;
+		}
+		for (AbstractInsnNode insn : callee.instructions.toArray()) {
+			int opcode = insn.getOpcode();
+			if (insn instanceof FrameNode)
+				continue;
+			if (opcode >= IRETURN && opcode <= RETURN) {
+				if (result >= 0)
+					code.add(new VarInsnNode(ret.getOpcode(ISTORE), result));
+				if (insn != last)
+					code.add(new JumpInsnNode(GOTO, end));
+			} else if (insn instanceof VarInsnNode && ((VarInsnNode) insn).var > 0)
+				code.add(new VarInsnNode(opcode, base + ((VarInsnNode) insn).var));
+			else if (insn instanceof IincInsnNode)
+				code.add(new IincInsnNode(base + ((IincInsnNode) insn).var, ((IincInsnNode) insn).incr));
+			else if (insn instanceof LineNumberNode) {
+				LineNumberNode copy = (LineNumberNode) insn.clone(labels);
+				// a copy of inlined code keeps the outermost call
+				compiler.inlinedAt.put(copy, compiler.inlinedAt.getOrDefault(insn, line));
+				code.add(copy);
+			} else
+				code.add(insn.clone(labels));
+		}
+		code.add(end);
+		// the code after the call belongs to the line of the call again
+		if (line >= 0)
+			code.add(new LineNumberNode(line, end));
+
+		if (callee.localVariables != null) {
+			if (caller.localVariables == null)
+				caller.localVariables = new ArrayList<>();
+			for (LocalVariableNode v : callee.localVariables) {
+				if (v.index > 0)
+					caller.localVariables.add(new LocalVariableNode(v.name, v.desc, v.signature, labels.get(v.start),
+							labels.get(v.end), base + v.index));
+			}
+		}
+		if (result >= 0)
+			code.add(new VarInsnNode(ret.getOpcode(ILOAD), result));
+
+		caller.instructions.insert(call, code);
+		caller.instructions.remove(call);
+		caller.maxLocals = Math.max(caller.maxLocals, base + callee.maxLocals + (result >= 0 ? ret.getSize() : 0));
+		caller.maxStack += callee.maxStack;
+	}
+}
@@ -0,0 +1,830 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import signumj.crypto.SignumCrypto;
+
+/**
+ * A CIYAM AT virtual machine, executing locally the bytecode produced by
+ * {@link Compiler#getCode()}.
+ *
+ * Data, call stack and user stack are kept as long arrays with
+ * {@link #CELLS_PER_PAGE} cells per page. All op codes are implemented here, as
+ * well as the API functions operating on the A and B superregisters. The
+ * functions depending on the blockchain are forwarded to a {@link MachineApi}.
+ */
+public class Machine {
+
+	public static final int CELLS_PER_PAGE = Compiler.PAGE_SIZE / 8;
+
+	byte[] code;
+	long[] data;
+	long[] callStack;
+	long[] userStack;
+	int csp, usp;
+
+	int pc, pcs;
+	int err = -1;
+
+	long[] a = new long[4];
+	long[] b = new long[4];
+
+	boolean stopped, finished, dead;
+	long sleepBlocks;
+	long steps;
+	String error;
+
+	MachineApi api;
+	TranslatedCode translated;
+
+	/** Off heap storage of data and stacks, when hosted on a {@link MachineArena} */
+	MachineArena arena;
+	LongBuffer segment;
+	int dataCells, callStackCells, userStackCells;
+	/** Current call frame when attached to a {@link Profiler} */
+	Profiler.Frame profile;
+
+	private MessageDigest sha256, md5, ripemd160;
+
+	/**
+	 * Exception for the AT errors not already signaled by the JVM (index out of
+	 * bounds or division by zero).
+	 */
+	static class Fault extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Fault(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	/**
+	 * Creates a new machine for the given code, with the given number of pages
+	 * for data, call stack and user stack.
+	 */
+	public Machine(byte[] code, int dataPages, int callStackPages, int userStackPages) {
+		this.code = code;
+		this.dataCells = dataPages * CELLS_PER_PAGE;
+		this.callStackCells = callStackPages * CELLS_PER_PAGE;
+		this.userStackCells = userStackPages * CELLS_PER_PAGE;
+		this.data = new long[dataCells];
+		this.callStack = new long[callStackCells];
+		this.userStack = new long[userStackCells];
+	}
+
+	/**
+	 * Creates a new machine hosted on the given arena, data and stacks are kept
+	 * off heap when not running.
+	 */
+	public Machine(byte[] code, int dataPages, int callStackPages, int userStackPages, MachineArena arena) {
+		this.code = arena.intern(code);
+		this.arena = arena;
+		this.dataCells = dataPages * CELLS_PER_PAGE;
+		this.callStackCells = callStackPages * CELLS_PER_PAGE;
+		this.userStackCells = userStackPages * CELLS_PER_PAGE;
+		this.segment = arena.allocate(dataCells + callStackCells + userStackCells);
+	}
+
+	/**
+	 * Creates a new machine for the given compiled (and linked) contract, with
+	 * its initial data.
+	 */
+	public Machine(Compiler compiled) {
+		this(compiled.getCode(), compiled.getDataPages(), compiled.getCallStackPages(),
+				compiled.getUserStackPages());
+		setData(compiled.getInitialData());
+	}
+
+	/**
+	 * Creates a new machine for the given compiled (and linked) contract, hosted
+	 * on the given arena.
+	 */
+	public Machine(Compiler compiled, MachineArena arena) {
+		this(compiled.getCode(), compiled.getDataPages(), compiled.getCallStackPages(),
+				compiled.getUserStackPages(), arena);
+		setData(compiled.getInitialData());
+	}
+
+	/**
+	 * Copies data and stacks from the arena to heap arrays, if parked.
+	 *
+	 * @return true if the machine was parked
+	 */
+	boolean load() {
+		if (data != null)
+			return false;
+		data = arena.borrow(dataCells);
+		callStack = arena.borrow(callStackCells);
+		userStack = arena.borrow(userStackCells);
+		segment.position(0);
+		segment.get(data).get(callStack).get(userStack);
+		return true;
+	}
+
+	/**
+	 * Stores data and stacks back on the arena, releasing the heap arrays.
+	 */
+	void park() {
+		if (segment == null || data == null)
+			return;
+		segment.position(0);
+		segment.put(data).put(callStack).put(userStack);
+		arena.giveBack(data);
+		arena.giveBack(callStack);
+		arena.giveBack(userStack);
+		data = callStack = userStack = null;
+		sha256 = md5 = ripemd160 = null;
+	}
+
+	/**
+	 * Sets the initial data, as the data segment when registering a contract.
+	 */
+	public void setData(long[] initialData) {
+		boolean parked = load();
+		System.arraycopy(initialData, 0, data, 0, initialData.length);
+		if (parked)
+			park();
+	}
+
+	/**
+	 * Puts the machine in the state of a deployed contract waiting for a new
+	 * transaction, finished with the PC on the PCS (the address after the first
+	 * SET_PCS instruction). Other registers and the stacks are cleared, only the
+	 * data is kept.
+	 */
+	public void restoreIdle(boolean dead) {
+		pcs = 0;
+		for (int pc = 0; pc < code.length;) {
+			int size = OpCode.size(code[pc]);
+			if (size == 0)
+				break;
+			if (code[pc] == OpCode.e_op_code_SET_PCS) {
+				pcs = pc + 1;
+				break;
+			}
+			pc += size;
+		}
+		pc = pcs;
+		err = -1;
+		csp = usp = 0;
+		finished = true;
+		stopped = false;
+		this.dead = dead;
+		sleepBlocks = 0;
+		steps = 0;
+		error = null;
+	}
+
+	/**
+	 * @return the data cells (not a copy, unless parked on a {@link MachineArena})
+	 */
+	public long[] getData() {
+		if (data == null) {
+			long[] ret = new long[dataCells];
+			segment.position(0);
+			segment.get(ret);
+			return ret;
+		}
+		return data;
+	}
+
+	/**
+	 * @return the value on the given data address, check {@link Field#getAddress()}
+	 */
+	public long getData(int address) {
+		if (data == null)
+			return segment.get(address);
+		return data[address];
+	}
+
+	public byte[] getCode() {
+		return code;
+	}
+
+	public MachineApi getApi() {
+		return api;
+	}
+
+	public void setApi(MachineApi api) {
+		this.api = api;
+	}
+
+	/**
+	 * Translates the code into a JVM class (see {@link Translator}) to be used
+	 * instead of the interpreter.
+	 *
+	 * @return true if the code was translated
+	 */
+	public boolean translate() {
+		translated = Translator.translate(code, dataCells);
+		return translated != null;
+	}
+
+	public boolean isTranslated() {
+		return translated != null;
+	}
+
+	public int getPC() {
+		return pc;
+	}
+
+	public int getPCS() {
+		return pcs;
+	}
+
+	/**
+	 * @return the number of steps executed on the last call to {@link #run(long)}
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return true if the machine finished and is waiting for a new transaction
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return true if the machine stopped (or is sleeping) and should resume
+	 *         execution on a next block
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @return true if an error occurred with no error handler set
+	 */
+	public boolean isDead() {
+		return dead;
+	}
+
+	/**
+	 * @return the number of blocks to sleep if {@link #isStopped()}
+	 */
+	public long getSleepBlocks() {
+		return sleepBlocks;
+	}
+
+	/**
+	 * @return the last error message or null
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public long getA(int i) {
+		return a[i];
+	}
+
+	public void setA(int i, long value) {
+		a[i] = value;
+	}
+
+	public long getB(int i) {
+		return b[i];
+	}
+
+	public void setB(int i, long value) {
+		b[i] = value;
+	}
+
+	public int getCallStackDepth() {
+		return csp;
+	}
+
+	public int getUserStackDepth() {
+		return usp;
+	}
+
+	public int getCallStackPages() {
+		return callStackCells / CELLS_PER_PAGE;
+	}
+
+	public int getUserStackPages() {
+		return userStackCells / CELLS_PER_PAGE;
+	}
+
+	/**
+	 * Runs the machine until it finishes, stops, sleeps, dies or the given number
+	 * of steps is reached. In the later case a new call continues the execution
+	 * from where it was interrupted.
+	 *
+	 * @return the number of steps executed
+	 */
+	public long run(long maxSteps) {
+		stopped = false;
+		finished = false;
+		sleepBlocks = 0;
+		steps = 0;
+		boolean parked = load();
+		while (!dead) {
+			try {
+				if (translated == null || profile != null || !translated.execute(this, maxSteps))
+					execute(maxSteps);
+				break;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				fault("invalid address");
+			} catch (ArithmeticException e) {
+				fault("division by zero");
+			} catch (Fault e) {
+				fault(e.getMessage());
+			}
+		}
+		if (parked)
+			park();
+		return steps;
+	}
+
+	/**
+	 * Handles an error on the current instruction, jumping to the error address
+	 * if set or killing the machine otherwise.
+	 */
+	void fault(String message) {
+		error = "@" + pc + ": " + message;
+		if (err >= 0) {
+			pc = err;
+			return;
+		}
+		dead = true;
+		finished = true;
+	}
+
+	private void execute(long maxSteps) {
+		final byte[] code = this.code;
+		final long[] d = this.data;
+		int pc = this.pc;
+		long steps = this.steps;
+
+		while (true) {
+			byte op = code[pc];
+			int cost = OpCode.steps(op);
+			if (steps + cost > maxSteps) {
+				// out of steps, execution continues from here on a next run
+				this.pc = pc;
+				return;
+			}
+			steps += cost;
+			this.pc = pc;
+			this.steps = steps;
+			if (profile != null)
+				profile.steps[pc] += cost;
+
+			switch (op) {
+			case OpCode.e_op_code_NOP:
+				pc++;
+				break;
+			case OpCode.e_op_code_SET_VAL:
+				d[addr(code, pc + 1)] = value(code, pc + 5);
+				pc += 13;
+				break;
+			case OpCode.e_op_code_SET_DAT:
+				d[addr(code, pc + 1)] = d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_CLR_DAT:
+				d[addr(code, pc + 1)] = 0;
+				pc += 5;
+				break;
+			case OpCode.e_op_code_INC_DAT:
+				d[addr(code, pc + 1)]++;
+				pc += 5;
+				break;
+			case OpCode.e_op_code_DEC_DAT:
+				d[addr(code, pc + 1)]--;
+				pc += 5;
+				break;
+			case OpCode.e_op_code_NOT_DAT: {
+				int a1 = addr(code, pc + 1);
+				d[a1] = ~d[a1];
+				pc += 5;
+				break;
+			}
+			case OpCode.e_op_code_ADD_DAT:
+				d[addr(code, pc + 1)] += d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_SUB_DAT:
+				d[addr(code, pc + 1)] -= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_MUL_DAT:
+				d[addr(code, pc + 1)] *= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_DIV_DAT:
+				d[addr(code, pc + 1)] /= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_BOR_DAT:
+				d[addr(code, pc + 1)] |= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_AND_DAT:
+				d[addr(code, pc + 1)] &= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_XOR_DAT:
+				d[addr(code, pc + 1)] ^= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_MOD_DAT:
+				d[addr(code, pc + 1)] %= d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_SHL_DAT: {
+				int a1 = addr(code, pc + 1);
+				d[a1] = shl(d[a1], d[addr(code, pc + 5)]);
+				pc += 9;
+				break;
+			}
+			case OpCode.e_op_code_SHR_DAT: {
+				int a1 = addr(code, pc + 1);
+				d[a1] = shr(d[a1], d[addr(code, pc + 5)]);
+				pc += 9;
+				break;
+			}
+			case OpCode.e_op_code_SET_IND:
+				d[addr(code, pc + 1)] = d[index(d[addr(code, pc + 5)])];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_SET_IDX:
+				d[addr(code, pc + 1)] = d[index(d[addr(code, pc + 5)] + d[addr(code, pc + 9)])];
+				pc += 13;
+				break;
+			case OpCode.e_op_code_IND_DAT:
+				d[index(d[addr(code, pc + 1)])] = d[addr(code, pc + 5)];
+				pc += 9;
+				break;
+			case OpCode.e_op_code_IDX_DAT:
+				d[index(d[addr(code, pc + 1)] + d[addr(code, pc + 5)])] = d[addr(code, pc + 9)];
+				pc += 13;
+				break;
+			case OpCode.e_op_code_PSH_DAT:
+				if (usp >= userStack.length)
+					throw new Fault("user stack overflow");
+				userStack[usp++] = d[addr(code, pc + 1)];
+				pc += 5;
+				break;
+			case OpCode.e_op_code_POP_DAT:
+				if (usp == 0)
+					throw new Fault("user stack underflow");
+				d[addr(code, pc + 1)] = userStack[--usp];
+				pc += 5;
+				break;
+			case OpCode.e_op_code_JMP_SUB:
+				if (csp >= callStack.length)
+					throw new Fault("call stack overflow");
+				callStack[csp++] = pc + 5;
+				if (profile != null)
+					profile = profile.call(pc);
+				pc = addr(code, pc + 1);
+				break;
+			case OpCode.e_op_code_RET_SUB:
+				if (csp == 0)
+					throw new Fault("call stack underflow");
+				pc = (int) callStack[--csp];
+				if (profile != null)
+					profile = profile.ret();
+				break;
+			case OpCode.e_op_code_JMP_ADR:
+				pc = addr(code, pc + 1);
+				break;
+			case OpCode.e_op_code_BZR_DAT:
+				pc += d[addr(code, pc + 1)] == 0 ? code[pc + 5] : 6;
+				break;
+			case OpCode.e_op_code_BNZ_DAT:
+				pc += d[addr(code, pc + 1)] != 0 ? code[pc + 5] : 6;
+				break;
+			case OpCode.e_op_code_BGT_DAT:
+				pc += d[addr(code, pc + 1)] > d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_BLT_DAT:
+				pc += d[addr(code, pc + 1)] < d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_BGE_DAT:
+				pc += d[addr(code, pc + 1)] >= d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_BLE_DAT:
+				pc += d[addr(code, pc + 1)] <= d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_BEQ_DAT:
+				pc += d[addr(code, pc + 1)] == d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_BNE_DAT:
+				pc += d[addr(code, pc + 1)] != d[addr(code, pc + 5)] ? code[pc + 9] : 10;
+				break;
+			case OpCode.e_op_code_SLP_DAT:
+				sleepBlocks = Math.max(0L, d[addr(code, pc + 1)]);
+				stopped = true;
+				this.pc = pc + 5;
+				return;
+			case OpCode.e_op_code_FIZ_DAT:
+				if (d[addr(code, pc + 1)] == 0) {
+					finished = true;
+					this.pc = pcs;
+					return;
+				}
+				pc += 5;
+				break;
+			case OpCode.e_op_code_STZ_DAT:
+				if (d[addr(code, pc + 1)] == 0) {
+					stopped = true;
+					this.pc = pcs;
+					return;
+				}
+				pc += 5;
+				break;
+			case OpCode.e_op_code_FIN_IMD:
+				finished = true;
+				this.pc = pcs;
+				return;
+			case OpCode.e_op_code_STP_IMD:
+				stopped = true;
+				this.pc = pcs;
+				return;
+			case OpCode.e_op_code_SLP_IMD:
+				stopped = true;
+				this.pc = pc + 1;
+				return;
+			case OpCode.e_op_code_ERR_ADR:
+				err = addr(code, pc + 1);
+				pc += 5;
+				break;
+			case OpCode.e_op_code_SET_PCS:
+				pcs = pc + 1;
+				pc++;
+				break;
+			case OpCode.e_op_code_EXT_FUN:
+				function(fun(code, pc + 1), 0, 0);
+				pc += 3;
+				break;
+			case OpCode.e_op_code_EXT_FUN_DAT:
+				function(fun(code, pc + 1), d[addr(code, pc + 3)], 0);
+				pc += 7;
+				break;
+			case OpCode.e_op_code_EXT_FUN_DAT_2:
+				function(fun(code, pc + 1), d[addr(code, pc + 3)], d[addr(code, pc + 7)]);
+				pc += 11;
+				break;
+			case OpCode.e_op_code_EXT_FUN_RET:
+				d[addr(code, pc + 3)] = function(fun(code, pc + 1), 0, 0);
+				pc += 7;
+				break;
+			case OpCode.e_op_code_EXT_FUN_RET_DAT:
+				d[addr(code, pc + 3)] = function(fun(code, pc + 1), d[addr(code, pc + 7)], 0);
+				pc += 11;
+				break;
+			case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+				d[addr(code, pc + 3)] = function(fun(code, pc + 1), d[addr(code, pc + 7)],
+						d[addr(code, pc + 11)]);
+				pc += 15;
+				break;
+			default:
+				throw new Fault("invalid op code " + op);
+			}
+		}
+	}
+
+	static int addr(byte[] code, int p) {
+		return (code[p] & 0xff) | (code[p + 1] & 0xff) << 8 | (code[p + 2] & 0xff) << 16 | code[p + 3] << 24;
+	}
+
+	static long value(byte[] code, int p) {
+		return (addr(code, p) & 0xffffffffL) | (long) addr(code, p + 4) << 32;
+	}
+
+	static short fun(byte[] code, int p) {
+		return (short) ((code[p] & 0xff) | code[p + 1] << 8);
+	}
+
+	static long shl(long value, long shift) {
+		return shift < 0 || shift > 63 ? 0L : value << shift;
+	}
+
+	static long shr(long value, long shift) {
+		return shift < 0 || shift > 63 ? 0L : value >>> shift;
+	}
+
+	int index(long address) {
+		if (address < 0 || address >= data.length)
+			throw new Fault("invalid indirect address " + address);
+		return (int) address;
+	}
+
+	/**
+	 * Executes the given API function.
+	 *
+	 * @return the function result (if any)
+	 */
+	long function(short fun, long arg1, long arg2) {
+		switch (fun) {
+		case OpCode.Get_A1:
+		case OpCode.Get_A2:
+		case OpCode.Get_A3:
+		case OpCode.Get_A4:
+			return a[fun - OpCode.Get_A1];
+		case OpCode.Get_B1:
+		case OpCode.Get_B2:
+		case OpCode.Get_B3:
+		case OpCode.Get_B4:
+			return b[fun - OpCode.Get_B1];
+
+		case OpCode.Set_A1:
+		case OpCode.Set_A2:
+		case OpCode.Set_A3:
+		case OpCode.Set_A4:
+			a[fun - OpCode.Set_A1] = arg1;
+			return 0;
+		case OpCode.Set_B1:
+		case OpCode.Set_B2:
+		case OpCode.Set_B3:
+		case OpCode.Set_B4:
+			b[fun - OpCode.Set_B1] = arg1;
+			return 0;
+		case OpCode.Set_A1_A2:
+			a[0] = arg1;
+			a[1] = arg2;
+			return 0;
+		case OpCode.Set_A3_A4:
+			a[2] = arg1;
+			a[3] = arg2;
+			return 0;
+		case OpCode.Set_B1_B2:
+			b[0] = arg1;
+			b[1] = arg2;
+			return 0;
+		case OpCode.Set_B3_B4:
+			b[2] = arg1;
+			b[3] = arg2;
+			return 0;
+
+		case OpCode.Clear_A:
+			Arrays.fill(a, 0L);
+			return 0;
+		case OpCode.Clear_B:
+			Arrays.fill(b, 0L);
+			return 0;
+		case OpCode.Clear_A_And_B:
+			Arrays.fill(a, 0L);
+			Arrays.fill(b, 0L);
+			return 0;
+		case OpCode.Copy_A_From_B:
+			System.arraycopy(b, 0, a, 0, 4);
+			return 0;
+		case OpCode.Copy_B_From_A:
+			System.arraycopy(a, 0, b, 0, 4);
+			return 0;
+		case OpCode.Check_A_Is_Zero:
+			return a[0] == 0 && a[1] == 0 && a[2] == 0 && a[3] == 0 ? 1 : 0;
+		case OpCode.Check_B_Is_Zero:
+			return b[0] == 0 && b[1] == 0 && b[2] == 0 && b[3] == 0 ? 1 : 0;
+		case OpCode.Check_A_Equals_B:
+			return Arrays.equals(a, b) ? 1 : 0;
+		case OpCode.Swap_A_and_B: {
+			long[] tmp = a;
+			a = b;
+			b = tmp;
+			return 0;
+		}
+		case OpCode.OR_A_with_B:
+		case OpCode.OR_B_with_A:
+		case OpCode.AND_A_with_B:
+		case OpCode.AND_B_with_A:
+		case OpCode.XOR_A_with_B:
+		case OpCode.XOR_B_with_A: {
+			boolean toA = fun == OpCode.OR_A_with_B || fun == OpCode.AND_A_with_B || fun == OpCode.XOR_A_with_B;
+			long[] dest = toA ? a : b;
+			long[] other = toA ? b : a;
+			for (int i = 0; i < 4; i++) {
+				if (fun == OpCode.OR_A_with_B || fun == OpCode.OR_B_with_A)
+					dest[i] |= other[i];
+				else if (fun == OpCode.AND_A_with_B || fun == OpCode.AND_B_with_A)
+					dest[i] &= other[i];
+				else
+					dest[i] ^= other[i];
+			}
+			return 0;
+		}
+
+		case OpCode.MD5_A_To_B:
+			toRegister(digest(getMD5(), 2), b, 2);
+			return 0;
+		case OpCode.Check_MD5_A_With_B:
+			return Arrays.equals(digest(getMD5(), 2), fromRegister(b, 16)) ? 1 : 0;
+		case OpCode.HASH160_A_To_B:
+			toRegister(Arrays.copyOf(digest(getRipeMD160(), 3), 24), b, 3);
+			return 0;
+		case OpCode.Check_HASH160_A_With_B:
+			return Arrays.equals(digest(getRipeMD160(), 3), fromRegister(b, 20)) ? 1 : 0;
+		case OpCode.SHA256_A_To_B:
+			toRegister(digest(getSHA256(), 4), b, 4);
+			return 0;
+		case OpCode.Check_SHA256_A_With_B:
+			return Arrays.equals(digest(getSHA256(), 4), fromRegister(b, 32)) ? 1 : 0;
+
+		case OpCode.Get_Block_Timestamp:
+			return api.getBlockTimestamp(this);
+		case OpCode.Get_Creation_Timestamp:
+			return api.getCreationTimestamp(this);
+		case OpCode.Get_Last_Block_Timestamp:
+			return api.getLastBlockTimestamp(this);
+		case OpCode.Put_Last_Block_Hash_In_A:
+			api.putLastBlockHashInA(this);
+			return 0;
+		case OpCode.A_To_Tx_After_Timestamp:
+			api.aToTxAfterTimestamp(this, arg1);
+			return 0;
+		case OpCode.Get_Type_For_Tx_In_A:
+			return api.getTypeForTxInA(this);
+		case OpCode.Get_Amount_For_Tx_In_A:
+			return api.getAmountForTxInA(this);
+		case OpCode.Get_Timestamp_For_Tx_In_A:
+			return api.getTimestampForTxInA(this);
+		case OpCode.Get_Random_Id_For_Tx_In_A:
+			return api.getRandomIdForTxInA(this);
+		case OpCode.Message_From_Tx_In_A_To_B:
+			api.messageFromTxInAToB(this);
+			return 0;
+		case OpCode.B_To_Address_Of_Tx_In_A:
+			api.bToAddressOfTxInA(this);
+			return 0;
+		case OpCode.B_To_Address_Of_Creator:
+			api.bToAddressOfCreator(this);
+			return 0;
+		case OpCode.Get_Current_Balance:
+			return api.getCurrentBalance(this);
+		case OpCode.Get_Previous_Balance:
+			return api.getPreviousBalance(this);
+		case OpCode.Send_To_Address_In_B:
+			api.sendToAddressInB(this, arg1);
+			return 0;
+		case OpCode.Send_All_To_Address_In_B:
+			api.sendAllToAddressInB(this);
+			return 0;
+		case OpCode.Send_Old_To_Address_In_B:
+			api.sendOldToAddressInB(this);
+			return 0;
+		case OpCode.Send_A_To_Address_In_B:
+			api.sendAToAddressInB(this);
+			return 0;
+		case OpCode.Add_Minutes_To_Timestamp:
+			return api.addMinutesToTimestamp(this, arg1, arg2);
+
+		default:
+			throw new Fault("invalid function " + fun);
+		}
+	}
+
+	/**
+	 * @return the digest of the first n longs of A
+	 */
+	private byte[] digest(MessageDigest md, int n) {
+		return md.digest(fromRegister(a, n * 8));
+	}
+
+	private static byte[] fromRegister(long[] reg, int nbytes) {
+		ByteBuffer buff = ByteBuffer.allocate(32);
+		buff.order(ByteOrder.LITTLE_ENDIAN);
+		for (long v : reg)
+			buff.putLong(v);
+		return Arrays.copyOf(buff.array(), nbytes);
+	}
+
+	private static void toRegister(byte[] bytes, long[] reg, int n) {
+		ByteBuffer buff = ByteBuffer.wrap(Arrays.copyOf(bytes, n * 8));
+		buff.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < n; i++)
+			reg[i] = buff.getLong();
+	}
+
+	private MessageDigest getSHA256() {
+		if (sha256 == null)
+			sha256 = SignumCrypto.getInstance().getSha256();
+		return sha256;
+	}
+
+	private MessageDigest getRipeMD160() {
+		if (ripemd160 == null)
+			ripemd160 = SignumCrypto.getInstance().getRipeMD160();
+		return ripemd160;
+	}
+
+	private MessageDigest getMD5() {
+		if (md5 == null) {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new Fault(e.getMessage());
+			}
+		}
+		return md5;
+	}
+}
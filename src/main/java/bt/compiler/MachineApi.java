@@ -0,0 +1,110 @@
+package bt.compiler;
+
+/**
+ * The blockchain side of the AT API functions (EXT_FUN calls) available for a
+ * {@link Machine}.
+ *
+ * Functions operating only on the A and B superregisters are handled by the
+ * machine itself, the functions here depend on blocks, transactions and
+ * balances and have to be provided by the host (the {@link bt.Emulator} or a
+ * test harness).
+ */
+public interface MachineApi {
+
+	/**
+	 * @return the timestamp of the block being processed
+	 */
+	long getBlockTimestamp(Machine m);
+
+	/**
+	 * @return the timestamp of the block where the AT was created
+	 */
+	long getCreationTimestamp(Machine m);
+
+	/**
+	 * @return the timestamp of the previous block
+	 */
+	long getLastBlockTimestamp(Machine m);
+
+	/**
+	 * Puts the hash of the previous block in A.
+	 */
+	void putLastBlockHashInA(Machine m);
+
+	/**
+	 * Sets A1 to the id of the first transaction received by the AT after the
+	 * given timestamp (A2..A4 are cleared), zero if there is none.
+	 */
+	void aToTxAfterTimestamp(Machine m, long timestamp);
+
+	/**
+	 * @return the type of the transaction in A, -1 if invalid
+	 */
+	long getTypeForTxInA(Machine m);
+
+	/**
+	 * @return the amount of the transaction in A minus the activation fee, -1 if
+	 *         invalid
+	 */
+	long getAmountForTxInA(Machine m);
+
+	/**
+	 * @return the timestamp of the transaction in A, -1 if invalid
+	 */
+	long getTimestampForTxInA(Machine m);
+
+	/**
+	 * @return a pseudo random id for the transaction in A, -1 if invalid
+	 */
+	long getRandomIdForTxInA(Machine m);
+
+	/**
+	 * Sets B to the (first 32 bytes of the) message of the transaction in A.
+	 */
+	void messageFromTxInAToB(Machine m);
+
+	/**
+	 * Sets B1 to the sender of the transaction in A (B2..B4 are cleared).
+	 */
+	void bToAddressOfTxInA(Machine m);
+
+	/**
+	 * Sets B1 to the creator of the AT (B2..B4 are cleared).
+	 */
+	void bToAddressOfCreator(Machine m);
+
+	/**
+	 * @return the current balance of the AT
+	 */
+	long getCurrentBalance(Machine m);
+
+	/**
+	 * @return the balance the AT had when last running
+	 */
+	long getPreviousBalance(Machine m);
+
+	/**
+	 * Sends the given amount to the address in B1.
+	 */
+	void sendToAddressInB(Machine m, long amount);
+
+	/**
+	 * Sends the entire balance to the address in B1.
+	 */
+	void sendAllToAddressInB(Machine m);
+
+	/**
+	 * Sends the previous balance to the address in B1.
+	 */
+	void sendOldToAddressInB(Machine m);
+
+	/**
+	 * Sends the contents of A as a message to the address in B1.
+	 */
+	void sendAToAddressInB(Machine m);
+
+	/**
+	 * @return the given timestamp plus the given number of minutes
+	 */
+	long addMinutesToTimestamp(Machine m, long timestamp, long minutes);
+}
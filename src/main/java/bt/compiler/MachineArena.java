@@ -0,0 +1,144 @@
+package bt.compiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Off heap storage for hosting a large number of {@link Machine}s.
+ *
+ * Data, call stack and user stack of the hosted machines live on direct (or
+ * memory mapped) slabs, each machine with a segment following the layout of
+ * {@link Compiler#getDataPages()} plus the stack pages. A machine is copied to
+ * heap arrays only while running (or inspected) and parked back after, so the
+ * heap usage does not grow with the data of the hosted machines. Arrays are
+ * reused between runs and identical code is shared.
+ */
+public class MachineArena implements AutoCloseable {
+
+	/** Slab size in bytes */
+	static final int SLAB_SIZE = 64 << 20;
+
+	FileChannel channel;
+	ArrayList<ByteBuffer> slabs = new ArrayList<>();
+	ByteBuffer slab;
+	long allocated;
+
+	HashMap<Integer, ArrayDeque<long[]>> arrays = new HashMap<>();
+	HashMap<CodeKey, byte[]> codes = new HashMap<>();
+
+	private static class CodeKey {
+		final byte[] code;
+		final int hash;
+
+		CodeKey(byte[] code) {
+			this.code = code;
+			this.hash = Arrays.hashCode(code);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof CodeKey && Arrays.equals(code, ((CodeKey) o).code);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Creates an arena on direct memory, check the -XX:MaxDirectMemorySize
+	 * option for large ones.
+	 */
+	public MachineArena() {
+	}
+
+	/**
+	 * Creates an arena memory mapped on the given file, growing as needed.
+	 */
+	public MachineArena(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @return a new zeroed segment with the given number of cells
+	 */
+	synchronized LongBuffer allocate(int cells) {
+		int bytes = cells * 8;
+		if (bytes > SLAB_SIZE)
+			throw new IllegalArgumentException("segment too large: " + cells + " cells");
+		if (slab == null || slab.remaining() < bytes) {
+			try {
+				slab = channel == null ? ByteBuffer.allocateDirect(SLAB_SIZE)
+						: channel.map(FileChannel.MapMode.READ_WRITE, (long) slabs.size() * SLAB_SIZE, SLAB_SIZE);
+			} catch (IOException e) {
+				throw new IllegalStateException("could not map a new slab", e);
+			}
+			slabs.add(slab);
+		}
+		int position = slab.position();
+		slab.position(position + bytes);
+		ByteBuffer segment = slab.duplicate();
+		segment.position(position);
+		segment.limit(position + bytes);
+		allocated += bytes;
+		return segment.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+
+	/**
+	 * @return the shared instance of the given code
+	 */
+	synchronized byte[] intern(byte[] code) {
+		CodeKey key = new CodeKey(code);
+		byte[] ret = codes.get(key);
+		if (ret == null) {
+			ret = code;
+			codes.put(key, code);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return an array of the given length, reused if possible
+	 */
+	synchronized long[] borrow(int length) {
+		ArrayDeque<long[]> free = arrays.get(length);
+		if (free == null || free.isEmpty())
+			return new long[length];
+		return free.pop();
+	}
+
+	synchronized void giveBack(long[] array) {
+		arrays.computeIfAbsent(array.length, l -> new ArrayDeque<>()).push(array);
+	}
+
+	/**
+	 * @return the bytes allocated for the hosted machines
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * @return the number of distinct codes hosted
+	 */
+	public synchronized int getCodes() {
+		return codes.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+}
@@ -0,0 +1,239 @@
+package bt.compiler;
+
+import java.util.ArrayList;
+
+/**
+ * Block by block history of a {@link Machine} state, to rewind and seek
+ * without replaying from the creation.
+ *
+ * Each snapshot keeps only the cells changed since the previous one (data,
+ * call stack and user stack) as XOR deltas, so the memory used is proportional
+ * to the cells actually changing. The same delta moves the state forward or
+ * backward, applied directly on the machine, so seeking costs the size of the
+ * deltas in between. Recording compares the machine against a shadow copy of
+ * the last snapshot.
+ *
+ * Only the machine is restored, not the blockchain state around it (balances,
+ * transactions).
+ */
+public class MachineHistory {
+
+	/**
+	 * Changed cells of an array, with the XOR of the old and new values.
+	 */
+	static class Delta {
+		static final Delta EMPTY = new Delta(new int[0], new long[0]);
+
+		final int[] cells;
+		final long[] xor;
+
+		Delta(int[] cells, long[] xor) {
+			this.cells = cells;
+			this.xor = xor;
+		}
+
+		/**
+		 * @return the delta from the shadow to the current values, updating the
+		 *         shadow
+		 */
+		static Delta diff(long[] shadow, long[] current) {
+			int n = 0;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] != shadow[i])
+					n++;
+			}
+			if (n == 0)
+				return EMPTY;
+			int[] cells = new int[n];
+			long[] xor = new long[n];
+			n = 0;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] != shadow[i]) {
+					cells[n] = i;
+					xor[n++] = current[i] ^ shadow[i];
+					shadow[i] = current[i];
+				}
+			}
+			return new Delta(cells, xor);
+		}
+
+		void apply(long[] values) {
+			for (int i = 0; i < cells.length; i++)
+				values[cells[i]] ^= xor[i];
+		}
+	}
+
+	/**
+	 * The machine state after a block.
+	 */
+	static class Snapshot {
+		long height;
+		Delta data, callStack, userStack;
+
+		// registers and flags are small, kept as they are
+		int pc, pcs, err, csp, usp;
+		long[] a, b;
+		boolean stopped, finished, dead;
+		long sleepBlocks, steps;
+		String error;
+
+		Snapshot(Machine m, long height) {
+			this.height = height;
+			pc = m.pc;
+			pcs = m.pcs;
+			err = m.err;
+			csp = m.csp;
+			usp = m.usp;
+			a = m.a.clone();
+			b = m.b.clone();
+			stopped = m.stopped;
+			finished = m.finished;
+			dead = m.dead;
+			sleepBlocks = m.sleepBlocks;
+			steps = m.steps;
+			error = m.error;
+		}
+
+		void restore(Machine m) {
+			m.pc = pc;
+			m.pcs = pcs;
+			m.err = err;
+			m.csp = csp;
+			m.usp = usp;
+			System.arraycopy(a, 0, m.a, 0, a.length);
+			System.arraycopy(b, 0, m.b, 0, b.length);
+			m.stopped = stopped;
+			m.finished = finished;
+			m.dead = dead;
+			m.sleepBlocks = sleepBlocks;
+			m.steps = steps;
+			m.error = error;
+		}
+	}
+
+	Machine machine;
+	ArrayList<Snapshot> snapshots = new ArrayList<>();
+	int position;
+
+	/** The machine arrays on the current position */
+	long[] data, callStack, userStack;
+
+	/**
+	 * Starts the history of the given machine with its current state.
+	 *
+	 * @param height the block height for the current state
+	 */
+	public MachineHistory(Machine machine, long height) {
+		this.machine = machine;
+		boolean parked = machine.load();
+		data = machine.data.clone();
+		callStack = machine.callStack.clone();
+		userStack = machine.userStack.clone();
+		if (parked)
+			machine.park();
+
+		Snapshot s = new Snapshot(machine, height);
+		s.data = s.callStack = s.userStack = Delta.EMPTY;
+		snapshots.add(s);
+	}
+
+	/**
+	 * Records the current machine state, after the given block. If the history
+	 * was rewound, the snapshots after the current position are discarded.
+	 */
+	public void record(long height) {
+		while (snapshots.size() > position + 1)
+			snapshots.remove(snapshots.size() - 1);
+
+		Snapshot s = new Snapshot(machine, height);
+		boolean parked = machine.load();
+		s.data = Delta.diff(data, machine.data);
+		s.callStack = Delta.diff(callStack, machine.callStack);
+		s.userStack = Delta.diff(userStack, machine.userStack);
+		if (parked)
+			machine.park();
+		snapshots.add(s);
+		position++;
+	}
+
+	/**
+	 * Moves the machine to the state of the given snapshot. The machine must be
+	 * on a recorded state, changes not recorded would be mixed with the deltas.
+	 */
+	public void seek(int index) {
+		if (index < 0 || index >= snapshots.size())
+			throw new IndexOutOfBoundsException("snapshot " + index + " of " + snapshots.size());
+		boolean parked = machine.load();
+		while (position < index)
+			apply(snapshots.get(++position));
+		while (position > index)
+			apply(snapshots.get(position--));
+		snapshots.get(position).restore(machine);
+		if (parked)
+			machine.park();
+	}
+
+	/**
+	 * Moves the machine to its state after the given block, the last snapshot
+	 * not after it.
+	 *
+	 * @return false if there is no snapshot for this height
+	 */
+	public boolean seekHeight(long height) {
+		int low = 0, high = snapshots.size() - 1, index = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (snapshots.get(mid).height <= height) {
+				index = mid;
+				low = mid + 1;
+			} else
+				high = mid - 1;
+		}
+		if (index < 0)
+			return false;
+		seek(index);
+		return true;
+	}
+
+	/**
+	 * Moves the machine one snapshot back.
+	 *
+	 * @return false if already on the first one
+	 */
+	public boolean rewind() {
+		if (position == 0)
+			return false;
+		seek(position - 1);
+		return true;
+	}
+
+	private void apply(Snapshot s) {
+		// XOR deltas work on both directions, on the machine and on the shadow
+		s.data.apply(machine.data);
+		s.data.apply(data);
+		s.callStack.apply(machine.callStack);
+		s.callStack.apply(callStack);
+		s.userStack.apply(machine.userStack);
+		s.userStack.apply(userStack);
+	}
+
+	public int size() {
+		return snapshots.size();
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public long getHeight(int index) {
+		return snapshots.get(index).height;
+	}
+
+	/**
+	 * @return the number of cells changed on the given snapshot
+	 */
+	public int getChangedCells(int index) {
+		Snapshot s = snapshots.get(index);
+		return s.data.cells.length + s.callStack.cells.length + s.userStack.cells.length;
+	}
+}
@@ -2,6 +2,7 @@ package bt.compiler;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.TreeMap;
 
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -56,12 +57,16 @@ public class Method {
 	}
 
 	ArrayList<Jump> jumps = new ArrayList<>();
+	/** Java source line by code position, relative to the method start */
+	TreeMap<Integer, Integer> lines = new TreeMap<>();
 	ByteBuffer code;
 	MethodNode node;
 	int nargs;
 	int localArgPos[] = new int[MAX_ARGS];
 	int localArgSize[] = new int[MAX_ARGS];
 	int localArgTotal;
+	/** Data address of the local variable 1, for static frames */
+	int localsAddress;
 
 	long hash;
 	
@@ -13,7 +13,7 @@ final class OpCode {
   static final byte e_op_code_SET_DAT = 0x02;
   static final byte e_op_code_CLR_DAT = 0x03;
   static final byte e_op_code_INC_DAT = 0x04;
-  static final byte e_op_code_DEC_DAT = 0x05; // Unused
+  static final byte e_op_code_DEC_DAT = 0x05;
   static final byte e_op_code_ADD_DAT = 0x06;
   static final byte e_op_code_SUB_DAT = 0x07;
   static final byte e_op_code_MUL_DAT = 0x08;
@@ -21,7 +21,7 @@ final class OpCode {
   static final byte e_op_code_BOR_DAT = 0x0a;
   static final byte e_op_code_AND_DAT = 0x0b;
   static final byte e_op_code_XOR_DAT = 0x0c;
-  static final byte e_op_code_NOT_DAT = 0x0d; // Unused
+  static final byte e_op_code_NOT_DAT = 0x0d;
   static final byte e_op_code_SET_IND = 0x0e;
   static final byte e_op_code_SET_IDX = 0x0f; // Unused
   static final byte e_op_code_PSH_DAT = 0x10;
@@ -31,8 +31,8 @@ final class OpCode {
   static final byte e_op_code_IND_DAT = 0x14;
   static final byte e_op_code_IDX_DAT = 0x15; // Unused
   static final byte e_op_code_MOD_DAT = 0x16;
-  static final byte e_op_code_SHL_DAT = 0x17; // Unused
-  static final byte e_op_code_SHR_DAT = 0x18; // Unused
+  static final byte e_op_code_SHL_DAT = 0x17;
+  static final byte e_op_code_SHR_DAT = 0x18;
   static final byte e_op_code_JMP_ADR = 0x1a;
   static final byte e_op_code_BZR_DAT = 0x1b;
   static final byte e_op_code_BNZ_DAT = 0x1e;
@@ -40,19 +40,19 @@ final class OpCode {
   static final byte e_op_code_BLT_DAT = 0x20;
   static final byte e_op_code_BGE_DAT = 0x21;
   static final byte e_op_code_BLE_DAT = 0x22;
-  static final byte e_op_code_BEQ_DAT = 0x23; // Unused
-  static final byte e_op_code_BNE_DAT = 0x24; // Unused
+  static final byte e_op_code_BEQ_DAT = 0x23;
+  static final byte e_op_code_BNE_DAT = 0x24;
   static final byte e_op_code_SLP_DAT = 0x25;
-  static final byte e_op_code_FIZ_DAT = 0x26; // Unused
-  static final byte e_op_code_STZ_DAT = 0x27; // Unused
-  static final byte e_op_code_FIN_IMD = 0x28; // Unused
+  static final byte e_op_code_FIZ_DAT = 0x26;
+  static final byte e_op_code_STZ_DAT = 0x27; // Unused, contracts never stop, they finish with FIN_IMD or FIZ_DAT
+  static final byte e_op_code_FIN_IMD = 0x28;
   static final byte e_op_code_STP_IMD = 0x29; // Unused
   static final byte e_op_code_SLP_IMD = 0x2a;
   static final byte e_op_code_ERR_ADR = 0x2b; // Unused
   static final byte e_op_code_SET_PCS = 0x30;
   static final byte e_op_code_EXT_FUN = 0x32;
   static final byte e_op_code_EXT_FUN_DAT   = 0x33;
-  static final byte e_op_code_EXT_FUN_DAT_2 = 0x34; // Unused
+  static final byte e_op_code_EXT_FUN_DAT_2 = 0x34;
   static final byte e_op_code_EXT_FUN_RET   = 0x35;
   static final byte e_op_code_EXT_FUN_RET_DAT   = 0x36; // Unused
   static final byte e_op_code_EXT_FUN_RET_DAT_2 = 0x37;
@@ -61,14 +61,14 @@ final class OpCode {
   static final short Set_A2    = 0x0111; // EXT_FUN_DAT       sets A2 from $addr
   static final short Set_A3    = 0x0112; // EXT_FUN_DAT       sets A3 from $addr
   static final short Set_A4    = 0x0113; // EXT_FUN_DAT       sets A4 from $addr
-  static final short Set_A1_A2 = 0x0114; // EXT_FUN_DAT_2     sets A1 from $addr1 and A2 from $addr2 // Unused
-  static final short Set_A3_A4 = 0x0115; // EXT_FUN_DAT_2     sets A3 from $addr1 and A4 from $addr2 // Unused
+  static final short Set_A1_A2 = 0x0114; // EXT_FUN_DAT_2     sets A1 from $addr1 and A2 from $addr2
+  static final short Set_A3_A4 = 0x0115; // EXT_FUN_DAT_2     sets A3 from $addr1 and A4 from $addr2
   static final short Set_B1    = 0x0116; // EXT_FUN_DAT       sets B1 from $addr
-  static final short Set_B2    = 0x0117; // EXT_FUN_DAT       sets B2 from $addr // Unused
+  static final short Set_B2    = 0x0117; // EXT_FUN_DAT       sets B2 from $addr
   static final short Set_B3    = 0x0118; // EXT_FUN_DAT       sets B3 from $addr // Unused
   static final short Set_B4    = 0x0119; // EXT_FUN_DAT       sets B4 from $addr // Unused
-  static final short Set_B1_B2 = 0x011a; // EXT_FUN_DAT_2     sets B1 from $addr1 and B2 from $addr2 // Unused
-  static final short Set_B3_B4 = 0x011b; // EXT_FUN_DAT_2     sets B3 from $addr1 and B4 from $addr2 // Unused
+  static final short Set_B1_B2 = 0x011a; // EXT_FUN_DAT_2     sets B1 from $addr1 and B2 from $addr2
+  static final short Set_B3_B4 = 0x011b; // EXT_FUN_DAT_2     sets B3 from $addr1 and B4 from $addr2
   
   static final short Clear_A          = 0x0120; //  EXT_FUN           sets A to zero (A being A1..4)
   static final short Clear_B          = 0x0121; //  EXT_FUN           sets B to zero (B being B1..4) // Unused
@@ -77,7 +77,7 @@ final class OpCode {
   static final short Copy_B_From_A    = 0x0124; //  EXT_FUN           copies A into B // Unused
   static final short Check_A_Is_Zero  = 0x0125; //  EXT_FUN_RET       @addr to 1 if A is zero or 0 if it is not (i.e. bool) // Unused
   static final short Check_B_Is_Zero  = 0x0126; //  EXT_FUN_RET       @addr to 1 if B is zero of 0 if it is not (i.e. bool) // Unused
-  static final short Check_A_Equals_B = 0x0127; //  EXT_FUN_RET       @addr to bool if A is equal to B // Unused
+  static final short Check_A_Equals_B = 0x0127; //  EXT_FUN_RET       @addr to bool if A is equal to B // Unused, costs more steps than comparing the values, see Register.equals
   static final short Swap_A_and_B     = 0x0128; //  EXT_FUN           swap the values of A and B // Unused
   static final short OR_A_with_B      = 0x0129; //  EXT_FUN           sets A to A | B (bitwise OR) // Unused
   static final short OR_B_with_A      = 0x012a; //  EXT_FUN           sets B to B | A (bitwise OR) // Unused
@@ -122,4 +122,95 @@ final class OpCode {
   static final short Send_Old_To_Address_In_B = 0x0404; // EXT_FUN           if B is a valid address then send it the old balance** // Unused
   static final short Send_A_To_Address_In_B   = 0x0405; // EXT_FUN           if B is a valid address then send it A as a message
   static final short Add_Minutes_To_Timestamp = 0x0406; // EXT_FUN_RET_DAT_2 set @addr1 to timestamp $addr2 plus $addr3 minutes***
+
+  /**
+   * @return the size in bytes of an instruction (op code plus operands) or 0 if the op code is invalid
+   */
+  static int size(byte op) {
+    switch (op) {
+    case e_op_code_NOP:
+    case e_op_code_RET_SUB:
+    case e_op_code_FIN_IMD:
+    case e_op_code_STP_IMD:
+    case e_op_code_SLP_IMD:
+    case e_op_code_SET_PCS:
+      return 1;
+    case e_op_code_EXT_FUN:
+      return 3;
+    case e_op_code_CLR_DAT:
+    case e_op_code_INC_DAT:
+    case e_op_code_DEC_DAT:
+    case e_op_code_NOT_DAT:
+    case e_op_code_PSH_DAT:
+    case e_op_code_POP_DAT:
+    case e_op_code_JMP_SUB:
+    case e_op_code_JMP_ADR:
+    case e_op_code_SLP_DAT:
+    case e_op_code_FIZ_DAT:
+    case e_op_code_STZ_DAT:
+    case e_op_code_ERR_ADR:
+      return 5;
+    case e_op_code_BZR_DAT:
+    case e_op_code_BNZ_DAT:
+      return 6;
+    case e_op_code_EXT_FUN_DAT:
+    case e_op_code_EXT_FUN_RET:
+      return 7;
+    case e_op_code_SET_DAT:
+    case e_op_code_ADD_DAT:
+    case e_op_code_SUB_DAT:
+    case e_op_code_MUL_DAT:
+    case e_op_code_DIV_DAT:
+    case e_op_code_BOR_DAT:
+    case e_op_code_AND_DAT:
+    case e_op_code_XOR_DAT:
+    case e_op_code_SET_IND:
+    case e_op_code_IND_DAT:
+    case e_op_code_MOD_DAT:
+    case e_op_code_SHL_DAT:
+    case e_op_code_SHR_DAT:
+      return 9;
+    case e_op_code_BGT_DAT:
+    case e_op_code_BLT_DAT:
+    case e_op_code_BGE_DAT:
+    case e_op_code_BLE_DAT:
+    case e_op_code_BEQ_DAT:
+    case e_op_code_BNE_DAT:
+      return 10;
+    case e_op_code_EXT_FUN_DAT_2:
+    case e_op_code_EXT_FUN_RET_DAT:
+      return 11;
+    case e_op_code_SET_VAL:
+    case e_op_code_SET_IDX:
+    case e_op_code_IDX_DAT:
+      return 13;
+    case e_op_code_EXT_FUN_RET_DAT_2:
+      return 15;
+    default:
+      return 0;
+    }
+  }
+
+  /**
+   * @return the number of steps charged for executing the given op code
+   */
+  static int steps(byte op) {
+    // API calls are charged 10 steps, every other instruction is a single step
+    return op >= e_op_code_EXT_FUN && op <= e_op_code_EXT_FUN_RET_DAT_2 ? 10 : 1;
+  }
+
+  /**
+   * @return the name of the given op code, as in the constants here without the prefix
+   */
+  static String name(byte op) {
+    for (java.lang.reflect.Field f : OpCode.class.getDeclaredFields()) {
+      try {
+        if (f.getName().startsWith("e_op_code_") && f.getType() == byte.class && f.getByte(null) == op)
+          return f.getName().substring("e_op_code_".length());
+      } catch (IllegalAccessException e) {
+        // not expected, all fields are accessible here
+      }
+    }
+    return String.format("0x%02x", op);
+  }
 }
@@ -0,0 +1,1082 @@
+package bt.compiler;
+
+import java.io.PrintStream;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Peephole optimizer for the AT bytecode of a method, run after
+ * {@link Compiler} parses it and before linking.
+ *
+ * The code is decoded by the {@link Assembler} and rewritten with the rules on
+ * {@link #RULES} until none applies. Rules only combine instructions that are
+ * not jump targets and rely on the temporary variables and operand cells
+ * never being live when entering or leaving a method, arguments and return
+ * values go through the locals and the user stack.
+ *
+ * The analysis also follows what the A and B registers hold, so loading on
+ * them a value or transaction they already hold is removed.
+ */
+public class Peephole extends Assembler {
+
+	/**
+	 * The savings of a rule, static (not weighted by how often the code runs).
+	 */
+	public static class Stats {
+		final String rule;
+		int count, bytes, steps;
+
+		Stats(String rule) {
+			this.rule = rule;
+		}
+
+		public String getRule() {
+			return rule;
+		}
+
+		/**
+		 * @return the times the rule was applied
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public int getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the steps saved on the rewritten code, for one execution each
+		 */
+		public int getSteps() {
+			return steps;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-18s %5d %7d bytes %5d steps", rule, count, bytes, steps);
+		}
+	}
+
+	interface Rule {
+		/**
+		 * @return true if the instruction at the given index was rewritten
+		 */
+		boolean apply(Peephole p, int i);
+	}
+
+	static final String[] RULE_NAMES = { "unreachable", "jump-to-next", "branch-to-next", "jump-threading",
+			"tail-call", "self-copy", "copy-back", "push-pop", "copy-propagation", "result-forwarding",
+			"immediate-operand", "operate-on-copy", "redundant-load", "paired-set", "dead-store" };
+	static final Rule[] RULES = { Peephole::unreachable, Peephole::jumpToNext, Peephole::branchToNext,
+			Peephole::jumpThreading, Peephole::tailCall, Peephole::selfCopy, Peephole::copyBack, Peephole::pushPop,
+			Peephole::copyPropagation, Peephole::resultForwarding, Peephole::immediateOperand,
+			Peephole::operateOnCopy, Peephole::redundantLoad, Peephole::pairedSet, Peephole::deadStore };
+
+	/** Instructions moving a push to its pop can cross */
+	static final int PUSH_POP_WINDOW = 8;
+	/** Instructions between a constant and the operation using it */
+	static final int CONSTANT_WINDOW = 4;
+
+	/**
+	 * API functions setting two registers at once with EXT_FUN_DAT_2, each one
+	 * followed by the two it replaces.
+	 */
+	static final short[][] PAIRED_SETS = { { OpCode.Set_A1_A2, OpCode.Set_A1, OpCode.Set_A2 },
+			{ OpCode.Set_A3_A4, OpCode.Set_A3, OpCode.Set_A4 }, { OpCode.Set_B1_B2, OpCode.Set_B1, OpCode.Set_B2 },
+			{ OpCode.Set_B3_B4, OpCode.Set_B3, OpCode.Set_B4 } };
+
+	/**
+	 * Entries of the register state: the data address whose value each of A1..4
+	 * and B1..4 holds, then the one of the transaction whose sender address or
+	 * message is on B, {@link #UNKNOWN} if none. Each entry is followed, after
+	 * all of them, by a second address copied from the first.
+	 */
+	static final int A1 = 0, B1 = 4, TX_ADDRESS = 8, TX_MESSAGE = 9, REGISTERS = 10;
+	static final int UNKNOWN = -1;
+
+	boolean analyzed;
+	HashMap<LabelNode, Insn> labelTargets = new HashMap<>();
+	HashSet<Insn> targets = new HashSet<>();
+
+	Peephole(Compiler compiler, Method method, Map<String, Stats> stats) {
+		super(compiler, method, stats);
+	}
+
+	/**
+	 * Optimizes the code of the method, updating its jumps, labels and source
+	 * lines. The code is kept as is if it cannot be decoded.
+	 */
+	void optimize() {
+		if (!decode()) {
+			compiler.operandCellsUsed = Math.max(compiler.operandCellsUsed, compiler.operandCells);
+			return;
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int r = 0; r < RULES.length; r++) {
+				for (int i = 0; i < code.size(); i++) {
+					int bytes = getSize(), steps = getSteps();
+					if (RULES[r].apply(this, i)) {
+						analyzed = false;
+						changed = true;
+						Stats s = stats.computeIfAbsent(RULE_NAMES[r], Stats::new);
+						s.count++;
+						s.bytes += bytes - getSize();
+						s.steps += steps - getSteps();
+					}
+				}
+			}
+			if (!changed)
+				changed = allocateCells();
+		}
+		for (Insn insn : code) {
+			for (int offset : addressOffsets(insn.op())) {
+				int address = insn.addr(offset);
+				if (compiler.isOperandCell(address))
+					compiler.operandCellsUsed = Math.max(compiler.operandCellsUsed,
+							address - compiler.operandStart + 1);
+			}
+		}
+		encode();
+	}
+
+	/**
+	 * Moves the values of each operand cell to a temporary, or a lower cell,
+	 * never live at the same time, so fewer cells are needed.
+	 *
+	 * @return true if any cell was renamed
+	 */
+	boolean allocateCells() {
+		boolean ret = false;
+		for (int c = compiler.operandStart + compiler.operandCells - 1; c >= compiler.operandStart; c--) {
+			if (!uses(c))
+				continue;
+			for (int t = compiler.tmpVar1; t < c; t = t == compiler.tmpVar6 ? compiler.operandStart : t + 1) {
+				if (!interferes(c, t)) {
+					for (Insn insn : code)
+						rename(insn, c, t);
+					analyzed = false;
+					ret = true;
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+
+	boolean uses(int address) {
+		for (Insn insn : code) {
+			for (int offset : addressOffsets(insn.op())) {
+				if (insn.addr(offset) == address)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if one of the given temporaries is written while the other
+	 *         is live
+	 */
+	boolean interferes(int a, int b) {
+		analyze();
+		int am = 1 << tmpIndex(a), bm = 1 << tmpIndex(b);
+		if (!code.isEmpty() && (code.get(0).liveIn & am) != 0 && (code.get(0).liveIn & bm) != 0)
+			return true;
+		for (Insn insn : code) {
+			// a call writes them all
+			int w = insn.op() == OpCode.e_op_code_JMP_SUB ? am | bm : tmpMask(written(insn));
+			if (((w & am) != 0 && (insn.liveOut & bm) != 0) || ((w & bm) != 0 && (insn.liveOut & am) != 0))
+				return true;
+		}
+		return false;
+	}
+
+	static void rename(Insn insn, int from, int to) {
+		for (int offset : addressOffsets(insn.op())) {
+			if (insn.addr(offset) == from)
+				insn.setAddr(offset, to);
+		}
+	}
+
+	/**
+	 * @return the offsets of the addresses read or written by the given
+	 *         instruction
+	 */
+	static int[] addressOffsets(byte op) {
+		int[] reads = readOffsets(op);
+		int write = isOperation(op) ? 1 : writeOffset(op);
+		if (write < 0)
+			return reads;
+		int[] ret = new int[reads.length + 1];
+		System.arraycopy(reads, 0, ret, 0, reads.length);
+		ret[reads.length] = write;
+		return ret;
+	}
+
+	/**
+	 * Updates the jump targets, the liveness of the temporary variables and what
+	 * the A and B registers hold.
+	 */
+	void analyze() {
+		if (analyzed)
+			return;
+		analyzed = true;
+
+		labelTargets.clear();
+		targets.clear();
+		for (int i = 0; i < code.size(); i++) {
+			Insn insn = code.get(i);
+			insn.index = i;
+			for (LabelNode l : insn.labels)
+				labelTargets.put(l, insn);
+		}
+		end.index = code.size();
+		for (LabelNode l : end.labels)
+			labelTargets.put(l, end);
+		for (Insn insn : code) {
+			if (insn.target != null)
+				targets.add(insn.target);
+			if (insn.label != null) {
+				Insn t = labelTargets.get(insn.label);
+				if (t != null)
+					targets.add(t);
+			}
+		}
+
+		// backward data flow, falling through the end reaches unknown code
+		int all = (1 << (compiler.tmpVar6 - compiler.tmpVar1 + 1 + compiler.operandCells)) - 1;
+		end.liveIn = all;
+		for (Insn insn : code)
+			insn.liveIn = insn.liveOut = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = code.size() - 1; i >= 0; i--) {
+				Insn insn = code.get(i);
+				int out = 0;
+				for (Insn s : successors(insn, all))
+					out |= s.liveIn;
+				if (insn.label != null && labelTargets.get(insn.label) == null)
+					out = all;
+				int in = (out & ~tmpMask(written(insn))) | tmpMask(read(insn));
+				if (insn.op() == OpCode.e_op_code_JMP_SUB)
+					in = out & ~all;
+				if (in != insn.liveIn || out != insn.liveOut) {
+					insn.liveIn = in;
+					insn.liveOut = out;
+					changed = true;
+				}
+			}
+		}
+		analyzeRegisters();
+	}
+
+	/**
+	 * Forward data flow of what the A and B registers hold, merging the paths
+	 * reaching each instruction.
+	 */
+	void analyzeRegisters() {
+		for (Insn insn : code)
+			insn.registers = null;
+		if (code.isEmpty())
+			return;
+		code.get(0).registers = entryRegisters();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Insn insn : code) {
+				if (insn.registers == null)
+					continue; // not reached yet
+				int[] out = transfer(insn, insn.registers);
+				for (Insn s : successors(insn, 0)) {
+					if (s == end)
+						continue;
+					int[] in = s.registers == null ? out : meet(s.registers, out);
+					if (!Arrays.equals(in, s.registers)) {
+						s.registers = in;
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the registers when the method starts, methods run only for a
+	 *         transaction have it on A and, with public methods, its message on
+	 *         B
+	 */
+	int[] entryRegisters() {
+		int[] ret = new int[2 * REGISTERS];
+		Arrays.fill(ret, UNKNOWN);
+		String name = method.node.name;
+		boolean txReceived = name.equals(Compiler.TX_RECEIVED_METHOD);
+		boolean dispatched = !txReceived && !name.equals(Compiler.INIT_METHOD) && Modifier.isPublic(method.node.access);
+		if ((txReceived || dispatched) && !compiler.isCalled(method)) {
+			ret[A1] = compiler.lastTxReceived;
+			if (compiler.hasPublicMethods)
+				ret[TX_MESSAGE] = compiler.lastTxReceived;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the addresses held on both paths for each entry
+	 */
+	static int[] meet(int[] a, int[] b) {
+		int[] ret = new int[2 * REGISTERS];
+		Arrays.fill(ret, UNKNOWN);
+		for (int r = 0; r < REGISTERS; r++) {
+			if (holds(b, r, a[r]))
+				set(ret, r, a[r]);
+			if (holds(b, r, a[r + REGISTERS]))
+				copy(ret, r, a[r + REGISTERS]);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if the given register entry holds the value of the address
+	 */
+	static boolean holds(int[] registers, int r, int address) {
+		return address != UNKNOWN && (registers[r] == address || registers[r + REGISTERS] == address);
+	}
+
+	static void set(int[] registers, int r, int address) {
+		registers[r] = address;
+		registers[r + REGISTERS] = UNKNOWN;
+	}
+
+	/**
+	 * Adds the given address to the entry, as holding the same value.
+	 */
+	static void copy(int[] registers, int r, int address) {
+		if (registers[r] == UNKNOWN)
+			registers[r] = address;
+		else
+			registers[r + REGISTERS] = address;
+	}
+
+	static void clear(int[] registers, int from, int to) {
+		for (int r = from; r < to; r++)
+			set(registers, r, UNKNOWN);
+	}
+
+	/**
+	 * @return the registers after the given instruction, from the ones before
+	 */
+	int[] transfer(Insn insn, int[] in) {
+		int[] out = in.clone();
+		for (int r = 0; r < REGISTERS; r++) {
+			if (out[r + REGISTERS] != UNKNOWN && writes(insn, out[r + REGISTERS]))
+				out[r + REGISTERS] = UNKNOWN;
+			if (out[r] != UNKNOWN && writes(insn, out[r]))
+				set(out, r, out[r + REGISTERS]);
+		}
+		byte op = insn.op();
+		if (op == OpCode.e_op_code_JMP_SUB || op == OpCode.e_op_code_SLP_DAT || op == OpCode.e_op_code_SLP_IMD) {
+			clear(out, 0, REGISTERS);
+			return out;
+		}
+		if (isSetDat(insn)) {
+			for (int r = 0; r < REGISTERS; r++) {
+				if (holds(out, r, insn.addr(5)))
+					copy(out, r, insn.addr(1));
+			}
+		}
+		if (!isFunction(op))
+			return out;
+
+		short fun = fun(insn);
+		int r = register(fun);
+		short[] pair = pairedSet(fun);
+		if (r >= 0) {
+			set(out, r, insn.addr(3));
+			if (r >= B1)
+				clear(out, TX_ADDRESS, REGISTERS);
+		} else if (pair != null) {
+			set(out, register(pair[1]), insn.addr(3));
+			set(out, register(pair[2]), insn.addr(7));
+			if (register(pair[1]) >= B1)
+				clear(out, TX_ADDRESS, REGISTERS);
+		} else if (fun >= OpCode.Get_A1 && fun <= OpCode.Get_B4)
+			copy(out, A1 + fun - OpCode.Get_A1, insn.addr(3));
+		else if (fun == OpCode.B_To_Address_Of_Tx_In_A || fun == OpCode.Message_From_Tx_In_A_To_B) {
+			int tx = fun == OpCode.B_To_Address_Of_Tx_In_A ? TX_ADDRESS : TX_MESSAGE;
+			clear(out, B1, REGISTERS);
+			out[tx] = out[A1];
+			out[tx + REGISTERS] = out[A1 + REGISTERS];
+		} else if (!isRegisterRead(fun))
+			clear(out, 0, REGISTERS);
+		return out;
+	}
+
+	static boolean isFunction(byte op) {
+		return op >= OpCode.e_op_code_EXT_FUN && op <= OpCode.e_op_code_EXT_FUN_RET_DAT_2;
+	}
+
+	/**
+	 * @return the register entry set by the given API function, -1 if not
+	 *         setting a single one
+	 */
+	static int register(short fun) {
+		if (fun >= OpCode.Set_A1 && fun <= OpCode.Set_A4)
+			return A1 + fun - OpCode.Set_A1;
+		if (fun >= OpCode.Set_B1 && fun <= OpCode.Set_B4)
+			return B1 + fun - OpCode.Set_B1;
+		return -1;
+	}
+
+	/**
+	 * @return the entry of {@link #PAIRED_SETS} for the given API function, null
+	 *         if not setting two registers
+	 */
+	static short[] pairedSet(short fun) {
+		for (short[] pair : PAIRED_SETS) {
+			if (pair[0] == fun)
+				return pair;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true for the API functions leaving A and B as they are
+	 */
+	static boolean isRegisterRead(short fun) {
+		switch (fun) {
+		case OpCode.Check_A_Is_Zero:
+		case OpCode.Check_B_Is_Zero:
+		case OpCode.Check_A_Equals_B:
+		case OpCode.Check_MD5_A_With_B:
+		case OpCode.Check_HASH160_A_With_B:
+		case OpCode.Check_SHA256_A_With_B:
+		case OpCode.Get_Block_Timestamp:
+		case OpCode.Get_Creation_Timestamp:
+		case OpCode.Get_Last_Block_Timestamp:
+		case OpCode.Get_Type_For_Tx_In_A:
+		case OpCode.Get_Amount_For_Tx_In_A:
+		case OpCode.Get_Timestamp_For_Tx_In_A:
+		case OpCode.Get_Current_Balance:
+		case OpCode.Get_Previous_Balance:
+		case OpCode.Send_To_Address_In_B:
+		case OpCode.Send_All_To_Address_In_B:
+		case OpCode.Send_Old_To_Address_In_B:
+		case OpCode.Send_A_To_Address_In_B:
+		case OpCode.Add_Minutes_To_Timestamp:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	ArrayList<Insn> successors(Insn insn, int all) {
+		ArrayList<Insn> ret = new ArrayList<>(2);
+		byte op = insn.op();
+		if (op == OpCode.e_op_code_JMP_ADR) {
+			Insn t = insn.label != null ? labelTargets.get(insn.label) : null;
+			if (t != null)
+				ret.add(t);
+			return ret;
+		}
+		if (op == OpCode.e_op_code_RET_SUB || op == OpCode.e_op_code_FIN_IMD || op == OpCode.e_op_code_STP_IMD)
+			return ret;
+		ret.add(insn.index + 1 < code.size() ? code.get(insn.index + 1) : end);
+		if (insn.target != null)
+			ret.add(insn.target);
+		else if ((insn.isLabelBranch() || op == OpCode.e_op_code_ERR_ADR) && labelTargets.get(insn.label) != null)
+			ret.add(labelTargets.get(insn.label)); // also the handler set by ERR_ADR
+		return ret;
+	}
+
+	boolean isTarget(Insn insn) {
+		analyze();
+		return targets.contains(insn);
+	}
+
+	/**
+	 * @return true for the temporary variables and the operand cells
+	 */
+	boolean isTmp(int address) {
+		return tmpIndex(address) >= 0;
+	}
+
+	/**
+	 * @return the bit of the given temporary on the liveness masks, -1 if not a
+	 *         temporary
+	 */
+	int tmpIndex(int address) {
+		if (compiler.isTemporary(address))
+			return address - compiler.tmpVar1;
+		if (compiler.isOperandCell(address))
+			return compiler.tmpVar6 - compiler.tmpVar1 + 1 + address - compiler.operandStart;
+		return -1;
+	}
+
+	int tmpMask(int[] addresses) {
+		int ret = 0;
+		for (int a : addresses) {
+			if (isTmp(a))
+				ret |= 1 << tmpIndex(a);
+		}
+		return ret;
+	}
+
+	boolean isLiveOut(Insn insn, int tmp) {
+		analyze();
+		return (insn.liveOut & (1 << tmpIndex(tmp))) != 0;
+	}
+
+	/**
+	 * @return true for arithmetic and logic operations, reading and writing the
+	 *         first operand
+	 */
+	static boolean isOperation(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the offset of the address written by the given instruction
+	 *         (without reading it), -1 if none
+	 */
+	static int writeOffset(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_POP_DAT:
+			return 1;
+		case OpCode.e_op_code_EXT_FUN_RET:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the offsets of the addresses only read by the given instruction
+	 */
+	static int[] readOffsets(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return new int[] { 5 };
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			return new int[] { 1, 5 };
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+			return new int[] { 1 };
+		case OpCode.e_op_code_EXT_FUN_DAT:
+			return new int[] { 3 };
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+			return new int[] { 3, 7 };
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+			return new int[] { 7 };
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return new int[] { 7, 11 };
+		default:
+			return new int[0];
+		}
+	}
+
+	static int[] read(Insn insn) {
+		byte op = insn.op();
+		int[] offsets = readOffsets(op);
+		int[] ret = new int[offsets.length + (isOperation(op) ? 1 : 0)];
+		for (int i = 0; i < offsets.length; i++)
+			ret[i] = insn.addr(offsets[i]);
+		if (isOperation(op))
+			ret[offsets.length] = insn.addr(1);
+		return ret;
+	}
+
+	static int[] written(Insn insn) {
+		byte op = insn.op();
+		if (isOperation(op))
+			return new int[] { insn.addr(1) };
+		int offset = writeOffset(op);
+		return offset < 0 ? new int[0] : new int[] { insn.addr(offset) };
+	}
+
+	static boolean contains(int[] addresses, int address) {
+		for (int a : addresses) {
+			if (a == address)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the given instruction may write the given address
+	 */
+	boolean writes(Insn insn, int address) {
+		// indirect writes only reach locals and fields
+		if (insn.op() == OpCode.e_op_code_IND_DAT)
+			return !isTmp(address);
+		return contains(written(insn), address);
+	}
+
+	/**
+	 * @return true for instructions with no effect other than writing their
+	 *         first operand
+	 */
+	static boolean isPure(byte op) {
+		if (op == OpCode.e_op_code_DIV_DAT || op == OpCode.e_op_code_MOD_DAT)
+			return false; // division by zero stops the machine
+		return isOperation(op) || op == OpCode.e_op_code_SET_VAL || op == OpCode.e_op_code_SET_DAT
+				|| op == OpCode.e_op_code_CLR_DAT || op == OpCode.e_op_code_SET_IND;
+	}
+
+	static byte[] setDat(int dest, int src) {
+		ByteBuffer b = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
+		b.put(OpCode.e_op_code_SET_DAT);
+		b.putInt(dest);
+		b.putInt(src);
+		return b.array();
+	}
+
+	static boolean isSetDat(Insn insn) {
+		return insn.op() == OpCode.e_op_code_SET_DAT;
+	}
+
+	static short fun(Insn insn) {
+		return ByteBuffer.wrap(insn.bytes, 1, 2).order(ByteOrder.LITTLE_ENDIAN).getShort();
+	}
+
+	/**
+	 * @return the value of the given temporary when running the instruction at
+	 *         the given index, if set by a constant shortly before
+	 */
+	Long constantBefore(int i, int tmp) {
+		for (int j = i - 1; j >= 0 && j >= i - CONSTANT_WINDOW; j--) {
+			Insn insn = code.get(j);
+			if (isTarget(code.get(j + 1)))
+				return null;
+			if (insn.op() == OpCode.e_op_code_SET_VAL && insn.addr(1) == tmp)
+				return ByteBuffer.wrap(insn.bytes, 5, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+			if (insn.op() == OpCode.e_op_code_CLR_DAT && insn.addr(1) == tmp)
+				return 0L;
+			if ((!isPure(insn.op()) && insn.op() != OpCode.e_op_code_IND_DAT) || writes(insn, tmp))
+				return null;
+		}
+		return null;
+	}
+
+	// The rules
+
+	/** Removes code after unconditional jumps and returns, up to a target */
+	static boolean unreachable(Peephole p, int i) {
+		if (i == 0)
+			return false;
+		byte prev = p.code.get(i - 1).op();
+		if (prev != OpCode.e_op_code_JMP_ADR && prev != OpCode.e_op_code_RET_SUB && prev != OpCode.e_op_code_FIN_IMD
+				&& prev != OpCode.e_op_code_STP_IMD)
+			return false;
+		if (p.isTarget(p.code.get(i)))
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/** Removes jumps to the next instruction */
+	static boolean jumpToNext(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (insn.op() != OpCode.e_op_code_JMP_ADR || insn.label == null)
+			return false;
+		p.analyze();
+		if (p.labelTargets.get(insn.label) != p.next(i))
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/** Removes conditional branches to the next instruction */
+	static boolean branchToNext(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (!isBranch(insn.op()))
+			return false;
+		p.analyze();
+		Insn target = insn.target != null ? insn.target : p.labelTargets.get(insn.label);
+		if (target != p.next(i))
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/**
+	 * Jumps and branches to jumps go directly to the final target, jumps to
+	 * returns return
+	 */
+	static boolean jumpThreading(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		boolean branch = insn.isLabelBranch();
+		if ((insn.op() != OpCode.e_op_code_JMP_ADR && !branch) || insn.label == null)
+			return false;
+		p.analyze();
+		Insn target = p.labelTargets.get(insn.label);
+		if (target == null || target == insn)
+			return false;
+		if (branch) {
+			// branches only reach labels, not methods
+			if (target.op() != OpCode.e_op_code_JMP_ADR || target.label == null || target.label == insn.label)
+				return false;
+			insn.label = target.label;
+			return true;
+		}
+		if (target.op() == OpCode.e_op_code_RET_SUB) {
+			p.replace(i, new byte[] { OpCode.e_op_code_RET_SUB });
+			return true;
+		}
+		if (target.op() != OpCode.e_op_code_JMP_ADR || (target.label == null && target.method == null)
+				|| target.label == insn.label)
+			return false;
+		insn.label = target.label;
+		insn.method = target.method;
+		return true;
+	}
+
+	/** A call followed by a return jumps to the method instead */
+	static boolean tailCall(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (insn.op() != OpCode.e_op_code_JMP_SUB || insn.method == null
+				|| p.next(i).op() != OpCode.e_op_code_RET_SUB)
+			return false;
+		insn.bytes[0] = OpCode.e_op_code_JMP_ADR;
+		return true;
+	}
+
+	/** SET_DAT a, a */
+	static boolean selfCopy(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (!isSetDat(insn) || insn.addr(1) != insn.addr(5))
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/** SET_DAT a, b; SET_DAT b, a */
+	static boolean copyBack(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		Insn next = p.next(i);
+		if (!isSetDat(insn) || !isSetDat(next) || insn.addr(1) != next.addr(5) || insn.addr(5) != next.addr(1)
+				|| p.isTarget(next))
+			return false;
+		p.remove(i + 1);
+		return true;
+	}
+
+	/**
+	 * A push and its pop, with only data operations in between not changing the
+	 * pushed value, become a copy.
+	 */
+	static boolean pushPop(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (insn.op() != OpCode.e_op_code_PSH_DAT)
+			return false;
+		int src = insn.addr(1);
+		for (int j = i + 1; j < p.code.size() && j <= i + PUSH_POP_WINDOW; j++) {
+			Insn other = p.code.get(j);
+			if (p.isTarget(other))
+				return false;
+			if (other.op() == OpCode.e_op_code_POP_DAT) {
+				int dest = other.addr(1);
+				if (dest == src)
+					p.remove(j);
+				else
+					p.replace(j, setDat(dest, src));
+				p.remove(i);
+				return true;
+			}
+			if (!isPure(other.op()) && other.op() != OpCode.e_op_code_IND_DAT)
+				return false;
+			if (p.writes(other, src))
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * SET_DAT t, x followed by an instruction reading the temporary t for the
+	 * last time reads x instead.
+	 */
+	static boolean copyPropagation(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (!isSetDat(insn) || !p.isTmp(insn.addr(1)) || i + 1 >= p.code.size())
+			return false;
+		int tmp = insn.addr(1), src = insn.addr(5);
+		Insn next = p.code.get(i + 1);
+		if (p.isTarget(next) || p.isLiveOut(next, tmp) || contains(written(next), tmp))
+			return false;
+		int[] offsets = readOffsets(next.op());
+		boolean found = false;
+		for (int offset : offsets) {
+			if (next.addr(offset) == tmp) {
+				next.setAddr(offset, src);
+				found = true;
+			}
+		}
+		if (!found)
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/**
+	 * An instruction writing a temporary t followed by SET_DAT y, t, the last
+	 * use of t, writes y directly.
+	 */
+	static boolean resultForwarding(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		int offset = writeOffset(insn.op());
+		if (offset < 0 || !p.isTmp(insn.addr(offset)) || i + 1 >= p.code.size())
+			return false;
+		int tmp = insn.addr(offset);
+		Insn next = p.code.get(i + 1);
+		if (!isSetDat(next) || next.addr(5) != tmp || p.isTarget(next) || p.isLiveOut(next, tmp))
+			return false;
+		insn.setAddr(offset, next.addr(1));
+		p.remove(i + 1);
+		return true;
+	}
+
+	/**
+	 * Operations with a constant operand use the single instruction for them:
+	 * adding or subtracting 1 (INC_DAT and DEC_DAT, 5 bytes instead of 9) and
+	 * XOR with -1 (NOT_DAT). The ones with no effect are removed. The constant
+	 * is left for {@link #deadStore(Peephole, int)}.
+	 */
+	static boolean immediateOperand(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		byte op = insn.op();
+		if (!isOperation(op) || readOffsets(op).length != 1 || !p.isTmp(insn.addr(5)))
+			return false;
+		Long value = p.constantBefore(i, insn.addr(5));
+		if (value == null)
+			return false;
+		byte selected;
+		if ((op == OpCode.e_op_code_ADD_DAT && value == 1) || (op == OpCode.e_op_code_SUB_DAT && value == -1))
+			selected = OpCode.e_op_code_INC_DAT;
+		else if ((op == OpCode.e_op_code_SUB_DAT && value == 1) || (op == OpCode.e_op_code_ADD_DAT && value == -1))
+			selected = OpCode.e_op_code_DEC_DAT;
+		else if (op == OpCode.e_op_code_XOR_DAT && value == -1)
+			selected = OpCode.e_op_code_NOT_DAT;
+		else if ((value == 0 && (op == OpCode.e_op_code_ADD_DAT || op == OpCode.e_op_code_SUB_DAT
+				|| op == OpCode.e_op_code_BOR_DAT || op == OpCode.e_op_code_XOR_DAT || op == OpCode.e_op_code_SHL_DAT
+				|| op == OpCode.e_op_code_SHR_DAT))
+				|| (value == 1 && (op == OpCode.e_op_code_MUL_DAT || op == OpCode.e_op_code_DIV_DAT))) {
+			p.remove(i);
+			return true;
+		} else
+			return false;
+
+		ByteBuffer b = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+		b.put(selected);
+		b.putInt(insn.addr(1));
+		p.replace(i, b.array());
+		return true;
+	}
+
+	/**
+	 * SET_DAT t, x; an operation on t; SET_DAT y, t, the last use of t, becomes
+	 * SET_DAT y, x and the operation on y. When y is x the copy is then removed.
+	 */
+	static boolean operateOnCopy(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (!isSetDat(insn) || !p.isTmp(insn.addr(1)) || i + 2 >= p.code.size())
+			return false;
+		int tmp = insn.addr(1);
+		Insn op = p.code.get(i + 1), copy = p.code.get(i + 2);
+		if (!isOperation(op.op()) || op.addr(1) != tmp || !isSetDat(copy) || copy.addr(5) != tmp
+				|| p.isTarget(op) || p.isTarget(copy) || p.isLiveOut(copy, tmp))
+			return false;
+		int dest = copy.addr(1);
+		if (dest == tmp)
+			return false;
+		int[] offsets = readOffsets(op.op());
+		for (int offset : offsets) {
+			// the other operand would be overwritten first
+			if (op.addr(offset) == dest && dest != insn.addr(5))
+				return false;
+		}
+		insn.setAddr(1, dest);
+		op.setAddr(1, dest);
+		for (int offset : offsets) {
+			if (op.addr(offset) == tmp)
+				op.setAddr(offset, dest);
+		}
+		p.remove(i + 2);
+		return true;
+	}
+
+	/**
+	 * Removes loading on A or B what they already hold, as the sender or message
+	 * of a transaction read before. Setting two registers when one already holds
+	 * its value sets only the other.
+	 */
+	static boolean redundantLoad(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		byte op = insn.op();
+		if (op != OpCode.e_op_code_EXT_FUN && op != OpCode.e_op_code_EXT_FUN_DAT
+				&& op != OpCode.e_op_code_EXT_FUN_DAT_2)
+			return false;
+		p.analyze();
+		int[] in = insn.registers;
+		if (in == null)
+			return false; // unreachable
+		short fun = fun(insn);
+		if (op == OpCode.e_op_code_EXT_FUN) {
+			int tx;
+			if (fun == OpCode.B_To_Address_Of_Tx_In_A)
+				tx = TX_ADDRESS;
+			else if (fun == OpCode.Message_From_Tx_In_A_To_B)
+				tx = TX_MESSAGE;
+			else
+				return false;
+			// the same transaction on A as when loaded
+			if (!holds(in, A1, in[tx]) && !holds(in, A1, in[tx + REGISTERS]))
+				return false;
+			p.remove(i);
+			return true;
+		}
+		if (op == OpCode.e_op_code_EXT_FUN_DAT) {
+			int r = register(fun);
+			if (r < 0 || !holds(in, r, insn.addr(3)))
+				return false;
+			p.remove(i);
+			return true;
+		}
+		short[] pair = pairedSet(fun);
+		if (pair == null)
+			return false;
+		boolean first = holds(in, register(pair[1]), insn.addr(3));
+		boolean second = holds(in, register(pair[2]), insn.addr(7));
+		if (first && second)
+			p.remove(i);
+		else if (first || second) {
+			ByteBuffer b = ByteBuffer.allocate(7).order(ByteOrder.LITTLE_ENDIAN);
+			b.put(OpCode.e_op_code_EXT_FUN_DAT);
+			b.putShort(first ? pair[2] : pair[1]);
+			b.putInt(insn.addr(first ? 7 : 3));
+			p.replace(i, b.array());
+		} else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Two EXT_FUN_DAT setting the halves of A or B become one EXT_FUN_DAT_2 (11
+	 * bytes instead of 14, a single API call).
+	 */
+	static boolean pairedSet(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		Insn next = p.next(i);
+		if (insn.op() != OpCode.e_op_code_EXT_FUN_DAT || next.op() != OpCode.e_op_code_EXT_FUN_DAT
+				|| p.isTarget(next))
+			return false;
+		for (short[] pair : PAIRED_SETS) {
+			int first;
+			if (fun(insn) == pair[1] && fun(next) == pair[2])
+				first = i;
+			else if (fun(insn) == pair[2] && fun(next) == pair[1])
+				first = i + 1;
+			else
+				continue;
+			ByteBuffer b = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+			b.put(OpCode.e_op_code_EXT_FUN_DAT_2);
+			b.putShort(pair[0]);
+			b.putInt(p.code.get(first).addr(3));
+			b.putInt(p.code.get(first == i ? i + 1 : i).addr(3));
+			p.replace(i, b.array());
+			p.remove(i + 1);
+			return true;
+		}
+		return false;
+	}
+
+	/** Removes writes to temporaries never read after */
+	static boolean deadStore(Peephole p, int i) {
+		Insn insn = p.code.get(i);
+		if (!isPure(insn.op()) || !p.isTmp(insn.addr(1)) || p.isLiveOut(insn, insn.addr(1)))
+			return false;
+		p.remove(i);
+		return true;
+	}
+
+	/**
+	 * Prints the savings by rule.
+	 */
+	public static void printReport(PrintStream out, Iterable<Stats> stats) {
+		int count = 0, bytes = 0, steps = 0;
+		for (Stats s : stats) {
+			out.println(s);
+			count += s.count;
+			bytes += s.bytes;
+			steps += s.steps;
+		}
+		Stats total = new Stats("total");
+		total.count = count;
+		total.bytes = bytes;
+		total.steps = steps;
+		out.println(total);
+	}
+
+	static LinkedHashMap<String, Stats> newStats() {
+		LinkedHashMap<String, Stats> ret = new LinkedHashMap<>();
+		for (String name : RULE_NAMES)
+			ret.put(name, new Stats(name));
+		ret.put(SHORT_BRANCHES, new Stats(SHORT_BRANCHES));
+		return ret;
+	}
+}
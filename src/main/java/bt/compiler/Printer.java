@@ -70,6 +70,10 @@ public class Printer {
 				out.print(" (tmpVar4)");
 			else if (ad == c.localStart)
 				out.print(" (localStart)");
+			else if (ad >= c.operandStart && ad < c.operandStart + c.operandCells)
+				out.print(" (operand" + (ad - c.operandStart) + ")");
+			else if (ad >= c.constantsStart && ad < c.constantsStart + c.constants.size())
+				out.print(" (constant)");
 		}
 		out.println();
 		return ret;
@@ -209,6 +213,8 @@ public class Printer {
 			case OpCode.e_op_code_AND_DAT:
 			case OpCode.e_op_code_XOR_DAT:
 			case OpCode.e_op_code_MOD_DAT:
+			case OpCode.e_op_code_SHL_DAT:
+			case OpCode.e_op_code_SHR_DAT:
 				p += printOp(code, p, 1, out);
 				switch (op) {
 				case OpCode.e_op_code_ADD_DAT:
@@ -235,6 +241,12 @@ public class Printer {
 				case OpCode.e_op_code_MOD_DAT:
 					out.println("\tMOD_DAT");
 					break;
+				case OpCode.e_op_code_SHL_DAT:
+					out.println("\tSHL_DAT");
+					break;
+				case OpCode.e_op_code_SHR_DAT:
+					out.println("\tSHR_DAT");
+					break;
 				default:
 					out.println();
 				}
@@ -286,7 +298,7 @@ public class Printer {
 			case OpCode.e_op_code_EXT_FUN_DAT_2:
 			case OpCode.e_op_code_EXT_FUN_RET_DAT:
 				p += printOp(code, p, 1, out);
-				out.println("\tEXT_FUN_RET_" + (op == OpCode.e_op_code_EXT_FUN_DAT_2 ? "DAT_2" : "RET_DAT"));
+				out.println(op == OpCode.e_op_code_EXT_FUN_DAT_2 ? "\tEXT_FUN_DAT_2" : "\tEXT_FUN_RET_DAT");
 				out.print(tab);
 				p += print(code, p, 2, out);
 				out.println(" " + funcName(code, p));
@@ -354,6 +366,12 @@ public class Printer {
 				out.println("\tSLP_DAT");
 				p += printAddress(code, p, out, c);
 				break;
+			case OpCode.e_op_code_FIZ_DAT:
+			case OpCode.e_op_code_STZ_DAT:
+				p += printOp(code, p, 1, out);
+				out.println(op == OpCode.e_op_code_FIZ_DAT ? "\tFIZ_DAT" : "\tSTZ_DAT");
+				p += printAddress(code, p, out, c);
+				break;
 			case OpCode.e_op_code_SLP_IMD:
 				p += printOp(code, p, 1, out);
 				out.println("\tSLP_IMD");
@@ -364,11 +382,6 @@ public class Printer {
 				out.println("\tFIN");
 				break;
 
-			case OpCode.e_op_code_SHL_DAT:
-			case OpCode.e_op_code_SHR_DAT:
-
-			case OpCode.e_op_code_FIZ_DAT:
-			case OpCode.e_op_code_STZ_DAT:
 			case OpCode.e_op_code_STP_IMD:
 			case OpCode.e_op_code_ERR_ADR:
 
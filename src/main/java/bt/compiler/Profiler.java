@@ -0,0 +1,254 @@
+package bt.compiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution profiler for compiled contracts, aggregating the steps (the fees
+ * paid) by instruction, basic block, method and Java source line.
+ *
+ * Attach it to one or more machines running the same code, run a workload and
+ * print the report with {@link #printReport(PrintStream, int)} or the collapsed
+ * stacks for a flame graph with {@link #printCollapsed(PrintStream)}. Profiled
+ * machines always use the interpreter, never the translated code.
+ */
+public class Profiler {
+
+	/**
+	 * Steps per code address for a given call path.
+	 */
+	static class Frame {
+		final Frame parent;
+		/** Address of the JMP_SUB leading here, -1 for the root frame */
+		final int callSite;
+		final long[] steps;
+		final TreeMap<Integer, Frame> calls = new TreeMap<>();
+
+		Frame(Frame parent, int callSite, int codeLength) {
+			this.parent = parent;
+			this.callSite = callSite;
+			this.steps = new long[codeLength];
+		}
+
+		Frame call(int pc) {
+			Frame f = calls.get(pc);
+			if (f == null) {
+				f = new Frame(this, pc, steps.length);
+				calls.put(pc, f);
+			}
+			return f;
+		}
+
+		Frame ret() {
+			// a machine attached with calls already in the stack may return past the root
+			return parent != null ? parent : this;
+		}
+	}
+
+	Compiler compiler;
+	byte[] code;
+	Frame root;
+
+	public Profiler(Compiler compiler) {
+		this.compiler = compiler;
+		this.code = compiler.getCode();
+		this.root = new Frame(null, -1, code.length);
+	}
+
+	/**
+	 * Starts profiling the given machine, running the code of the compiler given
+	 * on the constructor.
+	 */
+	public void attach(Machine m) {
+		if (m.code.length != code.length)
+			throw new IllegalArgumentException("machine is not running the profiled code");
+		m.profile = root;
+	}
+
+	public void detach(Machine m) {
+		m.profile = null;
+	}
+
+	/**
+	 * Discards all the steps collected so far.
+	 */
+	public void reset() {
+		root = new Frame(null, -1, code.length);
+	}
+
+	/**
+	 * @return the steps on each code address, summing all call paths
+	 */
+	public long[] getSteps() {
+		long[] ret = new long[code.length];
+		for (Frame f : frames())
+			for (int i = 0; i < ret.length; i++)
+				ret[i] += f.steps[i];
+		return ret;
+	}
+
+	public long getTotalSteps() {
+		long total = 0;
+		for (long s : getSteps())
+			total += s;
+		return total;
+	}
+
+	/**
+	 * @return the source location for the given code address, as method:line
+	 */
+	public String getLocation(int address) {
+		Method m = compiler.getMethodAt(address);
+		if (m == null)
+			return "<entry>";
+		int line = compiler.getLineAt(address);
+		return line < 0 ? m.getName() : m.getName() + ":" + line;
+	}
+
+	/**
+	 * @return the steps by method, in descending order
+	 */
+	public Map<String, Long> getMethodSteps() {
+		HashMap<String, Long> ret = new HashMap<>();
+		long[] steps = getSteps();
+		for (int pc = 0; pc < steps.length; pc++) {
+			if (steps[pc] == 0)
+				continue;
+			Method m = compiler.getMethodAt(pc);
+			ret.merge(m == null ? "<entry>" : m.getName(), steps[pc], Long::sum);
+		}
+		return sorted(ret);
+	}
+
+	/**
+	 * @return the steps by Java source line (method:line), in descending order
+	 */
+	public Map<String, Long> getLineSteps() {
+		HashMap<String, Long> ret = new HashMap<>();
+		long[] steps = getSteps();
+		for (int pc = 0; pc < steps.length; pc++) {
+			if (steps[pc] != 0)
+				ret.merge(getLocation(pc), steps[pc], Long::sum);
+		}
+		return sorted(ret);
+	}
+
+	/**
+	 * @return the steps by basic block, keyed by the block start address, in
+	 *         descending order
+	 */
+	public Map<Integer, Long> getBlockSteps() {
+		Translator t = new Translator(code, 0);
+		t.decode();
+		HashMap<Integer, Long> ret = new HashMap<>();
+		long[] steps = getSteps();
+		for (int pc = 0; pc < steps.length; pc++) {
+			if (steps[pc] == 0)
+				continue;
+			Integer block = t.leaders.floor(pc);
+			ret.merge(block == null ? 0 : block, steps[pc], Long::sum);
+		}
+		return sorted(ret);
+	}
+
+	/**
+	 * Prints the steps by method, line, basic block and instruction.
+	 *
+	 * @param top the maximum number of blocks and instructions to print
+	 */
+	public void printReport(PrintStream out, int top) {
+		long total = getTotalSteps();
+		out.println("Profile of " + compiler.getClassName() + ", " + total + " steps");
+
+		out.println();
+		out.println("By method:");
+		for (Map.Entry<String, Long> e : getMethodSteps().entrySet())
+			printLine(out, e.getValue(), total, e.getKey());
+
+		out.println();
+		out.println("By line:");
+		for (Map.Entry<String, Long> e : getLineSteps().entrySet())
+			printLine(out, e.getValue(), total, e.getKey());
+
+		out.println();
+		out.println("By block (top " + top + "):");
+		int n = 0;
+		for (Map.Entry<Integer, Long> e : getBlockSteps().entrySet()) {
+			if (n++ == top)
+				break;
+			printLine(out, e.getValue(), total, String.format("@%04x %s", e.getKey(), getLocation(e.getKey())));
+		}
+
+		out.println();
+		out.println("By instruction (top " + top + "):");
+		HashMap<Integer, Long> instructions = new HashMap<>();
+		long[] steps = getSteps();
+		for (int pc = 0; pc < steps.length; pc++) {
+			if (steps[pc] != 0)
+				instructions.put(pc, steps[pc]);
+		}
+		n = 0;
+		for (Map.Entry<Integer, Long> e : sorted(instructions).entrySet()) {
+			if (n++ == top)
+				break;
+			int pc = e.getKey();
+			printLine(out, e.getValue(), total,
+					String.format("@%04x %-16s %s", pc, OpCode.name(code[pc]), getLocation(pc)));
+		}
+	}
+
+	/**
+	 * Prints the steps in the collapsed stacks format used by flame graph tools,
+	 * one line per call path and source line.
+	 */
+	public void printCollapsed(PrintStream out) {
+		TreeMap<String, Long> stacks = new TreeMap<>();
+		for (Frame f : frames()) {
+			// the location of the calls leading to this frame
+			StringBuilder prefix = new StringBuilder();
+			ArrayList<String> path = new ArrayList<>();
+			for (Frame p = f; p.parent != null; p = p.parent)
+				path.add(getLocation(p.callSite));
+			Collections.reverse(path);
+			for (String s : path)
+				prefix.append(s).append(';');
+
+			for (int pc = 0; pc < f.steps.length; pc++) {
+				if (f.steps[pc] != 0)
+					stacks.merge(prefix + getLocation(pc), f.steps[pc], Long::sum);
+			}
+		}
+		for (Map.Entry<String, Long> e : stacks.entrySet())
+			out.println(e.getKey() + " " + e.getValue());
+	}
+
+	ArrayList<Frame> frames() {
+		ArrayList<Frame> ret = new ArrayList<>();
+		ArrayList<Frame> pending = new ArrayList<>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			Frame f = pending.remove(pending.size() - 1);
+			ret.add(f);
+			pending.addAll(f.calls.values());
+		}
+		return ret;
+	}
+
+	static void printLine(PrintStream out, long steps, long total, String what) {
+		out.println(String.format("%12d %6.2f%%  %s", steps, total == 0 ? 0.0 : 100.0 * steps / total, what));
+	}
+
+	static <K> Map<K, Long> sorted(Map<K, Long> map) {
+		ArrayList<Map.Entry<K, Long>> entries = new ArrayList<>(map.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		LinkedHashMap<K, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<K, Long> e : entries)
+			ret.put(e.getKey(), e.getValue());
+		return ret;
+	}
+}
@@ -0,0 +1,167 @@
+package bt.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Computes the call stack and user stack cells needed by the linked code of a
+ * contract, following every path from the start: each JMP_SUB takes a call
+ * stack cell until its RET_SUB and each PSH_DAT a user stack cell until
+ * popped.
+ *
+ * Subroutines are followed once, with the stack use found added to the one of
+ * each caller. Recursive calls are rejected by the {@link Compiler} before, as
+ * their stack use has no bound, or given their pages by the options.
+ *
+ * Finishing keeps the stacks, so each finish is followed to every SET_PCS
+ * restart point, or to the start if there is none. Sleeping resumes on the
+ * next instruction, on the same path. An error jumps to its ERR_ADR handler
+ * with the stacks as they were, so the use of each handler is added to the
+ * deepest one of the code.
+ */
+class StackSizer {
+
+	/** Pushes beyond this on a single path are taken as a loop pushing */
+	static final int MAX_PUSHES = 1 << 16;
+
+	/**
+	 * The stack use of a subroutine: the deepest calls and pushes inside it and
+	 * the values left pushed when returning.
+	 */
+	static class Usage {
+		int calls;
+		int pushes;
+		int result;
+	}
+
+	byte[] code;
+	HashMap<Integer, Usage> subroutines = new HashMap<>();
+	HashSet<Integer> visiting = new HashSet<>();
+	/** Where the code restarts after finishing */
+	ArrayList<Integer> restarts = new ArrayList<>();
+	/** Where the code jumps on errors */
+	ArrayList<Integer> handlers = new ArrayList<>();
+	Usage usage;
+
+	StackSizer(byte[] code) {
+		this.code = code;
+		for (int pc = 0; pc < code.length;) {
+			byte op = code[pc];
+			int size = OpCode.size(op);
+			if (size == 0)
+				break;
+			if (op == OpCode.e_op_code_SET_PCS)
+				restarts.add(pc + 1);
+			else if (op == OpCode.e_op_code_ERR_ADR)
+				handlers.add(Machine.addr(code, pc + 1));
+			pc += size;
+		}
+		if (restarts.isEmpty())
+			restarts.add(0);
+
+		usage = analyze(0);
+		int calls = usage.calls, pushes = usage.pushes;
+		for (int handler : handlers) {
+			Usage error = analyze(handler);
+			usage.calls = Math.max(usage.calls, calls + error.calls);
+			usage.pushes = Math.max(usage.pushes, pushes + error.pushes);
+		}
+	}
+
+	/**
+	 * @return the call stack cells needed
+	 */
+	int getCallStackCells() {
+		return usage.calls;
+	}
+
+	/**
+	 * @return the user stack cells needed
+	 */
+	int getUserStackCells() {
+		return usage.pushes;
+	}
+
+	Usage subroutine(int start) {
+		Usage ret = subroutines.get(start);
+		if (ret != null)
+			return ret;
+		if (!visiting.add(start))
+			throw new IllegalStateException("recursive call to " + start);
+		ret = analyze(start);
+		visiting.remove(start);
+		subroutines.put(start, ret);
+		return ret;
+	}
+
+	/**
+	 * @return the stack use of the code from the given start, until its returns
+	 */
+	Usage analyze(int start) {
+		Usage ret = new Usage();
+		HashMap<Integer, Integer> depths = new HashMap<>();
+		ArrayDeque<Integer> pending = new ArrayDeque<>();
+		depths.put(start, 0);
+		pending.add(start);
+		while (!pending.isEmpty()) {
+			int pc = pending.poll();
+			int depth = depths.get(pc);
+			if (pc >= code.length)
+				continue;
+			byte op = code[pc];
+			int size = OpCode.size(op);
+			if (size == 0)
+				continue;
+			switch (op) {
+			case OpCode.e_op_code_PSH_DAT:
+				depth++;
+				break;
+			case OpCode.e_op_code_POP_DAT:
+				depth--;
+				break;
+			case OpCode.e_op_code_JMP_SUB:
+				Usage sub = subroutine(Machine.addr(code, pc + 1));
+				ret.calls = Math.max(ret.calls, 1 + sub.calls);
+				ret.pushes = Math.max(ret.pushes, depth + sub.pushes);
+				depth += sub.result;
+				break;
+			case OpCode.e_op_code_RET_SUB:
+				ret.result = Math.max(ret.result, depth);
+				continue;
+			case OpCode.e_op_code_FIN_IMD:
+			case OpCode.e_op_code_STP_IMD:
+				restart(depth, depths, pending);
+				continue;
+			case OpCode.e_op_code_FIZ_DAT:
+			case OpCode.e_op_code_STZ_DAT:
+				restart(depth, depths, pending);
+				break;
+			case OpCode.e_op_code_JMP_ADR:
+				follow(Machine.addr(code, pc + 1), depth, depths, pending);
+				continue;
+			}
+			ret.pushes = Math.max(ret.pushes, depth);
+			if (Assembler.isBranch(op))
+				follow(pc + code[pc + size - 1], depth, depths, pending);
+			follow(pc + size, depth, depths, pending);
+		}
+		return ret;
+	}
+
+	void restart(int depth, HashMap<Integer, Integer> depths, ArrayDeque<Integer> pending) {
+		for (int pc : restarts)
+			follow(pc, depth, depths, pending);
+	}
+
+	void follow(int pc, int depth, HashMap<Integer, Integer> depths, ArrayDeque<Integer> pending) {
+		Integer known = depths.get(pc);
+		if (known != null && known >= depth)
+			return;
+		if (depth > MAX_PUSHES)
+			throw new IllegalStateException("unbounded pushes at " + pc);
+		depths.put(pc, depth);
+		pending.add(pc);
+	}
+}
@@ -0,0 +1,128 @@
+package bt.compiler;
+
+/**
+ * Base class for the JVM classes generated by the {@link Translator}.
+ *
+ * The generated classes are defined on their own class loader, so they cannot
+ * access the package private state of {@link Machine}. The helpers here are
+ * the bridge, most of them are trivially inlined by the JIT.
+ */
+public abstract class TranslatedCode {
+
+	/**
+	 * Executes the machine from its current PC.
+	 *
+	 * @return true if the execution ended (finished, stopped or out of steps on a
+	 *         block boundary), false if the interpreter has to continue from the
+	 *         machine PC (a block not fitting the remaining steps or an address
+	 *         that was not translated)
+	 */
+	public abstract boolean execute(Machine m, long maxSteps);
+
+	protected static long[] data(Machine m) {
+		return m.data;
+	}
+
+	protected static int pc(Machine m) {
+		return m.pc;
+	}
+
+	protected static long steps(Machine m) {
+		return m.steps;
+	}
+
+	protected static void save(Machine m, int pc, long steps) {
+		m.pc = pc;
+		m.steps = steps;
+	}
+
+	protected static void setSteps(Machine m, long steps) {
+		m.steps = steps;
+	}
+
+	/**
+	 * Updates the machine state for an error on the instruction at the given
+	 * position, charging the steps up to (and including) this instruction only.
+	 */
+	protected static void fault(Machine m, int block, int at, long before) {
+		long steps = before;
+		int p = block;
+		while (p <= at) {
+			byte op = m.code[p];
+			steps += OpCode.steps(op);
+			p += OpCode.size(op);
+		}
+		m.pc = at;
+		m.steps = steps;
+	}
+
+	protected static int index(Machine m, long address) {
+		return m.index(address);
+	}
+
+	protected static long shl(long value, long shift) {
+		return Machine.shl(value, shift);
+	}
+
+	protected static long shr(long value, long shift) {
+		return Machine.shr(value, shift);
+	}
+
+	protected static void push(Machine m, long value) {
+		if (m.usp >= m.userStack.length)
+			throw new Machine.Fault("user stack overflow");
+		m.userStack[m.usp++] = value;
+	}
+
+	protected static long pop(Machine m) {
+		if (m.usp == 0)
+			throw new Machine.Fault("user stack underflow");
+		return m.userStack[--m.usp];
+	}
+
+	protected static void call(Machine m, int ret) {
+		if (m.csp >= m.callStack.length)
+			throw new Machine.Fault("call stack overflow");
+		m.callStack[m.csp++] = ret;
+	}
+
+	protected static int ret(Machine m) {
+		if (m.csp == 0)
+			throw new Machine.Fault("call stack underflow");
+		return (int) m.callStack[--m.csp];
+	}
+
+	protected static long function(Machine m, short fun, long arg1, long arg2) {
+		return m.function(fun, arg1, arg2);
+	}
+
+	protected static void setErr(Machine m, int err) {
+		m.err = err;
+	}
+
+	protected static void setPcs(Machine m, int pcs) {
+		m.pcs = pcs;
+	}
+
+	protected static void sleep(Machine m, int pc, long steps, long blocks) {
+		m.sleepBlocks = Math.max(0L, blocks);
+		m.stopped = true;
+		save(m, pc, steps);
+	}
+
+	protected static void stop(Machine m, int pc, long steps) {
+		m.stopped = true;
+		save(m, pc, steps);
+	}
+
+	/**
+	 * Stops (or finishes) the machine, resuming from PCS.
+	 */
+	protected static void stopToPcs(Machine m, long steps, boolean finish) {
+		if (finish)
+			m.finished = true;
+		else
+			m.stopped = true;
+		save(m, m.pcs, steps);
+	}
+}
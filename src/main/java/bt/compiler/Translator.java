@@ -0,0 +1,868 @@
+package bt.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Translates AT bytecode into a JVM class, so that compiled contracts run as
+ * JIT compiled code instead of being interpreted by the {@link Machine}.
+ *
+ * Each basic block becomes a labeled section of a static method, charging the
+ * steps of the entire block at its start. Blocks are grouped in chunk methods
+ * small enough to be JIT compiled, direct jumps and branches inside a chunk are
+ * JVM jumps, other transfers go through the
+ * {@link TranslatedCode#execute(Machine, long)} loop. When the remaining steps
+ * are not enough for a block, execution is handed back to the interpreter, so
+ * step counting and sleep/finish semantics are exactly the same.
+ */
+public class Translator {
+
+	private static Logger logger = LogManager.getLogger();
+
+	private static final String BASE = TranslatedCode.class.getName().replace('.', '/');
+	private static final String MACHINE = "L" + Machine.class.getName().replace('.', '/') + ";";
+
+	// chunk method locals
+	private static final int M = 0;
+	private static final int D = 1;
+	private static final int MAX_STEPS = 2;
+	private static final int PC = 4;
+	private static final int STEPS = 5;
+	private static final int AT = 7;
+	private static final int BLOCK = 8;
+	private static final int BEFORE = 9;
+
+	/** Chunk method return values */
+	private static final int RET_DONE = -1;
+	private static final int RET_INTERPRET = -2;
+
+	/**
+	 * Estimated JVM bytecode size limit for a chunk method, HotSpot does not
+	 * compile methods larger than 8000 bytes.
+	 */
+	private static final int CHUNK_SIZE = 6000;
+	private static final int BLOCK_SIZE_ESTIMATE = 40;
+	private static final int INSTRUCTION_SIZE_ESTIMATE = 40;
+
+	private static final AtomicInteger count = new AtomicInteger();
+	private static final HashMap<Key, TranslatedCode> cache = new HashMap<>();
+
+	private static class Key {
+		byte[] code;
+		int dataLength;
+
+		Key(byte[] code, int dataLength) {
+			this.code = code;
+			this.dataLength = dataLength;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(code) * 31 + dataLength;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return dataLength == other.dataLength && Arrays.equals(code, other.code);
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(TranslatedCode.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	byte[] code;
+	int dataLength;
+
+	/** Instruction op codes by position, for the valid code only */
+	TreeMap<Integer, Byte> instructions = new TreeMap<>();
+	TreeSet<Integer> leaders = new TreeSet<>();
+	HashMap<Integer, Label> labels = new HashMap<>();
+
+	/** Current chunk state */
+	MethodVisitor mv;
+	int chunkStart, chunkEnd;
+	Label dispatch;
+	Label exit;
+	ArrayList<Integer> stubs;
+	HashMap<Integer, Label> stubLabels;
+
+	Translator(byte[] code, int dataLength) {
+		this.code = code;
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Returns the translation for the given code and data length, reusing a
+	 * previous translation if available.
+	 *
+	 * @return the translated code or null if the code could not be translated
+	 */
+	public static TranslatedCode translate(byte[] code, int dataLength) {
+		Key key = new Key(code.clone(), dataLength);
+		synchronized (cache) {
+			if (cache.containsKey(key))
+				return cache.get(key);
+		}
+
+		TranslatedCode ret = null;
+		try {
+			String name = "bt/compiler/gen/AT" + count.incrementAndGet();
+			byte[] bytes = new Translator(key.code, dataLength).generate(name);
+			ret = (TranslatedCode) new Loader().define(name.replace('/', '.'), bytes).getConstructor()
+					.newInstance();
+		} catch (Exception e) {
+			// method too large, for instance, the interpreter will be used
+			logger.debug("Code not translated: {}", e.getMessage());
+		}
+
+		synchronized (cache) {
+			cache.put(key, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Decodes the code, finding the basic block leaders.
+	 */
+	void decode() {
+		int pc = 0;
+		leaders.add(0);
+		while (pc < code.length) {
+			byte op = code[pc];
+			int size = OpCode.size(op);
+			if (size == 0 || pc + size > code.length)
+				break;
+			instructions.put(pc, op);
+
+			int next = pc + size;
+			switch (op) {
+			case OpCode.e_op_code_JMP_ADR:
+			case OpCode.e_op_code_JMP_SUB:
+			case OpCode.e_op_code_ERR_ADR:
+				leaders.add(Machine.addr(code, pc + 1));
+				leaders.add(next);
+				break;
+			case OpCode.e_op_code_BZR_DAT:
+			case OpCode.e_op_code_BNZ_DAT:
+				leaders.add(pc + code[pc + 5]);
+				leaders.add(next);
+				break;
+			case OpCode.e_op_code_BGT_DAT:
+			case OpCode.e_op_code_BLT_DAT:
+			case OpCode.e_op_code_BGE_DAT:
+			case OpCode.e_op_code_BLE_DAT:
+			case OpCode.e_op_code_BEQ_DAT:
+			case OpCode.e_op_code_BNE_DAT:
+				leaders.add(pc + code[pc + 9]);
+				leaders.add(next);
+				break;
+			case OpCode.e_op_code_RET_SUB:
+			case OpCode.e_op_code_SLP_DAT:
+			case OpCode.e_op_code_FIZ_DAT:
+			case OpCode.e_op_code_STZ_DAT:
+			case OpCode.e_op_code_FIN_IMD:
+			case OpCode.e_op_code_STP_IMD:
+			case OpCode.e_op_code_SLP_IMD:
+			case OpCode.e_op_code_SET_PCS:
+				leaders.add(next);
+				break;
+			}
+			pc = next;
+		}
+		// only leaders on valid instructions are kept, others go to the interpreter
+		leaders.retainAll(instructions.keySet());
+		for (int l : leaders)
+			labels.put(l, new Label());
+	}
+
+	byte[] generate(String name) {
+		decode();
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, BASE, null);
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, BASE, "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		// split the blocks in chunks small enough to be JIT compiled
+		Integer[] starts = leaders.toArray(new Integer[leaders.size()]);
+		ArrayList<Integer> chunks = new ArrayList<>();
+		int size = 0;
+		for (int i = 0; i < starts.length; i++) {
+			int end = i + 1 < starts.length ? starts[i + 1] : code.length;
+			int blockSize = BLOCK_SIZE_ESTIMATE
+					+ instructions.subMap(starts[i], end).size() * INSTRUCTION_SIZE_ESTIMATE;
+			if (chunks.isEmpty() || size + blockSize > CHUNK_SIZE) {
+				chunks.add(starts[i]);
+				size = 0;
+			}
+			size += blockSize;
+		}
+		chunks.add(code.length);
+
+		for (int c = 0; c + 1 < chunks.size(); c++)
+			chunk(cw, c, chunks.get(c), chunks.get(c + 1));
+
+		// the execute method just calls the chunk for the current PC until done
+		mv = cw.visitMethod(ACC_PUBLIC, "execute", "(" + MACHINE + "J)Z", null, null);
+		mv.visitCode();
+		final int m = 1, maxSteps = 2, d = 4, pc = 5, ret = 6;
+		mv.visitVarInsn(ALOAD, m);
+		helper("data", "(" + MACHINE + ")[J");
+		mv.visitVarInsn(ASTORE, d);
+		mv.visitVarInsn(ALOAD, m);
+		helper("pc", "(" + MACHINE + ")I");
+		mv.visitVarInsn(ISTORE, pc);
+
+		Label loop = new Label();
+		Label result = new Label();
+		Label outside = new Label();
+		mv.visitLabel(loop);
+		mv.visitVarInsn(ILOAD, pc);
+		mv.visitJumpInsn(IFLT, outside);
+		for (int c = 0; c + 1 < chunks.size(); c++) {
+			Label next = new Label();
+			mv.visitVarInsn(ILOAD, pc);
+			push(chunks.get(c + 1));
+			mv.visitJumpInsn(IF_ICMPGE, next);
+			mv.visitVarInsn(ALOAD, m);
+			mv.visitVarInsn(ALOAD, d);
+			mv.visitVarInsn(LLOAD, maxSteps);
+			mv.visitVarInsn(ILOAD, pc);
+			mv.visitMethodInsn(INVOKESTATIC, name, "chunk" + c, "(" + MACHINE + "[JJI)I", false);
+			mv.visitJumpInsn(GOTO, result);
+			mv.visitLabel(next);
+		}
+		// not in the code, let the interpreter raise the error
+		mv.visitLabel(outside);
+		mv.visitVarInsn(ALOAD, m);
+		mv.visitVarInsn(ILOAD, pc);
+		mv.visitVarInsn(ALOAD, m);
+		helper("steps", "(" + MACHINE + ")J");
+		helper("save", "(" + MACHINE + "IJ)V");
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+
+		Label done = new Label();
+		mv.visitLabel(result);
+		mv.visitVarInsn(ISTORE, ret);
+		mv.visitVarInsn(ILOAD, ret);
+		mv.visitJumpInsn(IFLT, done);
+		mv.visitVarInsn(ILOAD, ret);
+		mv.visitVarInsn(ISTORE, pc);
+		mv.visitJumpInsn(GOTO, loop);
+		mv.visitLabel(done);
+		mv.visitVarInsn(ILOAD, ret);
+		push(RET_DONE);
+		Label interpret = new Label();
+		mv.visitJumpInsn(IF_ICMPNE, interpret);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(interpret);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Emits the static method for the blocks in the given address range.
+	 *
+	 * The method returns the next PC when leaving the chunk, {@link #RET_DONE}
+	 * when the machine stopped or finished and {@link #RET_INTERPRET} when the
+	 * interpreter should take over. The machine steps are always updated when
+	 * returning.
+	 */
+	void chunk(ClassWriter cw, int c, int start, int end) {
+		chunkStart = start;
+		chunkEnd = end;
+		dispatch = new Label();
+		exit = new Label();
+		stubs = new ArrayList<>();
+		stubLabels = new HashMap<>();
+
+		mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC, "chunk" + c, "(" + MACHINE + "[JJI)I", null, null);
+		mv.visitCode();
+
+		mv.visitVarInsn(ALOAD, M);
+		helper("steps", "(" + MACHINE + ")J");
+		mv.visitVarInsn(LSTORE, STEPS);
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, AT);
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, BLOCK);
+		mv.visitInsn(LCONST_0);
+		mv.visitVarInsn(LSTORE, BEFORE);
+
+		Label tryStart = new Label();
+		Label tryEnd = new Label();
+		Label handler = new Label();
+		mv.visitTryCatchBlock(tryStart, tryEnd, handler, "java/lang/RuntimeException");
+		mv.visitLabel(tryStart);
+		mv.visitJumpInsn(GOTO, dispatch);
+
+		Integer[] starts = leaders.subSet(start, end).toArray(new Integer[0]);
+		for (int i = 0; i < starts.length; i++) {
+			int blockEnd = i + 1 < starts.length ? starts[i + 1] : end;
+			block(starts[i], blockEnd);
+		}
+
+		// jumps leaving this chunk
+		for (int target : stubs) {
+			mv.visitLabel(stubLabels.get(target));
+			mv.visitVarInsn(ALOAD, M);
+			mv.visitVarInsn(LLOAD, STEPS);
+			helper("setSteps", "(" + MACHINE + "J)V");
+			push(target);
+			mv.visitInsn(IRETURN);
+		}
+
+		mv.visitLabel(dispatch);
+		mv.visitVarInsn(ILOAD, PC);
+		int[] keys = new int[starts.length];
+		Label[] targets = new Label[starts.length];
+		for (int i = 0; i < starts.length; i++) {
+			keys[i] = starts[i];
+			targets[i] = labels.get(starts[i]);
+		}
+		mv.visitLookupSwitchInsn(exit, keys, targets);
+
+		// continue on the interpreter from the current PC and steps
+		mv.visitLabel(exit);
+		mv.visitVarInsn(ALOAD, M);
+		mv.visitVarInsn(ILOAD, PC);
+		mv.visitVarInsn(LLOAD, STEPS);
+		helper("save", "(" + MACHINE + "IJ)V");
+		push(RET_INTERPRET);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(tryEnd);
+
+		mv.visitLabel(handler);
+		mv.visitVarInsn(ALOAD, M);
+		mv.visitVarInsn(ILOAD, BLOCK);
+		mv.visitVarInsn(ILOAD, AT);
+		mv.visitVarInsn(LLOAD, BEFORE);
+		helper("fault", "(" + MACHINE + "IIJ)V");
+		mv.visitInsn(ATHROW);
+
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Emits a basic block, from the given start position up to (not including)
+	 * the given end.
+	 */
+	void block(int start, int end) {
+		long cost = 0;
+		for (int pc = start; pc < end && instructions.containsKey(pc); pc += OpCode.size(code[pc]))
+			cost += OpCode.steps(code[pc]);
+
+		mv.visitLabel(labels.get(start));
+		push(start);
+		mv.visitVarInsn(ISTORE, BLOCK);
+
+		// not enough steps for this block, the interpreter goes step by step
+		Label ok = new Label();
+		mv.visitVarInsn(LLOAD, STEPS);
+		mv.visitLdcInsn(cost);
+		mv.visitInsn(LADD);
+		mv.visitVarInsn(LLOAD, MAX_STEPS);
+		mv.visitInsn(LCMP);
+		mv.visitJumpInsn(IFLE, ok);
+		push(start);
+		mv.visitVarInsn(ISTORE, PC);
+		mv.visitJumpInsn(GOTO, exit);
+		mv.visitLabel(ok);
+
+		mv.visitVarInsn(LLOAD, STEPS);
+		mv.visitVarInsn(LSTORE, BEFORE);
+		mv.visitVarInsn(LLOAD, STEPS);
+		mv.visitLdcInsn(cost);
+		mv.visitInsn(LADD);
+		mv.visitVarInsn(LSTORE, STEPS);
+
+		long charged = 0;
+		int pc = start;
+		while (pc < end) {
+			Byte op = instructions.get(pc);
+			if (op == null || !validAddresses(pc, op)) {
+				// invalid code, let the interpreter raise the error
+				exitAt(pc, charged);
+				return;
+			}
+			charged += OpCode.steps(op);
+			if (!instruction(pc, op, charged))
+				return;
+			pc += OpCode.size(op);
+		}
+		if (!instructions.containsKey(end))
+			exitAt(end, charged);
+		else if (end == chunkEnd)
+			mv.visitJumpInsn(GOTO, target(end));
+	}
+
+	/**
+	 * Hands the execution to the interpreter at the given position, with only
+	 * the given steps of the current block charged.
+	 */
+	void exitAt(int pc, long charged) {
+		mv.visitVarInsn(LLOAD, BEFORE);
+		mv.visitLdcInsn(charged);
+		mv.visitInsn(LADD);
+		mv.visitVarInsn(LSTORE, STEPS);
+		push(pc);
+		mv.visitVarInsn(ISTORE, PC);
+		mv.visitJumpInsn(GOTO, exit);
+	}
+
+	/**
+	 * @return true if all direct data addresses of the instruction are valid
+	 */
+	boolean validAddresses(int pc, byte op) {
+		int first = 1, n = 0;
+		switch (op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_POP_DAT:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+			n = 1;
+			break;
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			n = 2;
+			break;
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_IDX_DAT:
+			n = 3;
+			break;
+		case OpCode.e_op_code_EXT_FUN_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET:
+			first = 3;
+			n = 1;
+			break;
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+			first = 3;
+			n = 2;
+			break;
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			first = 3;
+			n = 3;
+			break;
+		}
+		for (int i = 0; i < n; i++) {
+			int a = Machine.addr(code, pc + first + 4 * i);
+			if (a < 0 || a >= dataLength)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Emits a single instruction.
+	 *
+	 * @return false if the rest of the block is not reachable
+	 */
+	boolean instruction(int pc, byte op, long charged) {
+		switch (op) {
+		case OpCode.e_op_code_NOP:
+			break;
+		case OpCode.e_op_code_SET_VAL:
+			dataRef(pc + 1);
+			mv.visitLdcInsn(Machine.value(code, pc + 5));
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_SET_DAT:
+			dataRef(pc + 1);
+			load(pc + 5);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_CLR_DAT:
+			dataRef(pc + 1);
+			mv.visitInsn(LCONST_0);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+			dataRef(pc + 1);
+			mv.visitInsn(DUP2);
+			mv.visitInsn(LALOAD);
+			if (op == OpCode.e_op_code_NOT_DAT) {
+				mv.visitLdcInsn(-1L);
+				mv.visitInsn(LXOR);
+			} else {
+				mv.visitInsn(LCONST_1);
+				mv.visitInsn(op == OpCode.e_op_code_INC_DAT ? LADD : LSUB);
+			}
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			at(pc);
+			dataRef(pc + 1);
+			mv.visitInsn(DUP2);
+			mv.visitInsn(LALOAD);
+			load(pc + 5);
+			arithmetic(op);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_SET_IND:
+			at(pc);
+			dataRef(pc + 1);
+			mv.visitVarInsn(ALOAD, D);
+			index(pc + 5, 0);
+			mv.visitInsn(LALOAD);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_SET_IDX:
+			at(pc);
+			dataRef(pc + 1);
+			mv.visitVarInsn(ALOAD, D);
+			index(pc + 5, pc + 9);
+			mv.visitInsn(LALOAD);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_IND_DAT:
+			at(pc);
+			mv.visitVarInsn(ALOAD, D);
+			index(pc + 1, 0);
+			load(pc + 5);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_IDX_DAT:
+			at(pc);
+			mv.visitVarInsn(ALOAD, D);
+			index(pc + 1, pc + 5);
+			load(pc + 9);
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_PSH_DAT:
+			at(pc);
+			mv.visitVarInsn(ALOAD, M);
+			load(pc + 1);
+			helper("push", "(" + MACHINE + "J)V");
+			break;
+		case OpCode.e_op_code_POP_DAT:
+			at(pc);
+			dataRef(pc + 1);
+			mv.visitVarInsn(ALOAD, M);
+			helper("pop", "(" + MACHINE + ")J");
+			mv.visitInsn(LASTORE);
+			break;
+		case OpCode.e_op_code_JMP_SUB:
+			at(pc);
+			mv.visitVarInsn(ALOAD, M);
+			push(pc + 5);
+			helper("call", "(" + MACHINE + "I)V");
+			mv.visitJumpInsn(GOTO, target(Machine.addr(code, pc + 1)));
+			return false;
+		case OpCode.e_op_code_RET_SUB:
+			at(pc);
+			mv.visitVarInsn(ALOAD, M);
+			helper("ret", "(" + MACHINE + ")I");
+			mv.visitVarInsn(ISTORE, PC);
+			mv.visitVarInsn(ALOAD, M);
+			mv.visitVarInsn(LLOAD, STEPS);
+			helper("setSteps", "(" + MACHINE + "J)V");
+			mv.visitVarInsn(ILOAD, PC);
+			mv.visitInsn(IRETURN);
+			return false;
+		case OpCode.e_op_code_JMP_ADR:
+			mv.visitJumpInsn(GOTO, target(Machine.addr(code, pc + 1)));
+			return false;
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+			load(pc + 1);
+			mv.visitInsn(LCONST_0);
+			mv.visitInsn(LCMP);
+			mv.visitJumpInsn(op == OpCode.e_op_code_BZR_DAT ? IFEQ : IFNE, target(pc + code[pc + 5]));
+			break;
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			load(pc + 1);
+			load(pc + 5);
+			mv.visitInsn(LCMP);
+			mv.visitJumpInsn(compare(op), target(pc + code[pc + 9]));
+			break;
+		case OpCode.e_op_code_SLP_DAT:
+			mv.visitVarInsn(ALOAD, M);
+			push(pc + 5);
+			mv.visitVarInsn(LLOAD, STEPS);
+			load(pc + 1);
+			helper("sleep", "(" + MACHINE + "IJJ)V");
+			push(RET_DONE);
+			mv.visitInsn(IRETURN);
+			return false;
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT: {
+			Label notZero = new Label();
+			load(pc + 1);
+			mv.visitInsn(LCONST_0);
+			mv.visitInsn(LCMP);
+			mv.visitJumpInsn(IFNE, notZero);
+			stopToPcs(op == OpCode.e_op_code_FIZ_DAT);
+			mv.visitLabel(notZero);
+			break;
+		}
+		case OpCode.e_op_code_FIN_IMD:
+			stopToPcs(true);
+			return false;
+		case OpCode.e_op_code_STP_IMD:
+			stopToPcs(false);
+			return false;
+		case OpCode.e_op_code_SLP_IMD:
+			mv.visitVarInsn(ALOAD, M);
+			push(pc + 1);
+			mv.visitVarInsn(LLOAD, STEPS);
+			helper("stop", "(" + MACHINE + "IJ)V");
+			push(RET_DONE);
+			mv.visitInsn(IRETURN);
+			return false;
+		case OpCode.e_op_code_ERR_ADR:
+			mv.visitVarInsn(ALOAD, M);
+			push(Machine.addr(code, pc + 1));
+			helper("setErr", "(" + MACHINE + "I)V");
+			break;
+		case OpCode.e_op_code_SET_PCS:
+			mv.visitVarInsn(ALOAD, M);
+			push(pc + 1);
+			helper("setPcs", "(" + MACHINE + "I)V");
+			break;
+		case OpCode.e_op_code_EXT_FUN:
+		case OpCode.e_op_code_EXT_FUN_DAT:
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+		case OpCode.e_op_code_EXT_FUN_RET:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			function(pc, op, charged);
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Emits an API function call, with the machine steps updated as the
+	 * function may depend on them (the current balance, for instance).
+	 */
+	void function(int pc, byte op, long charged) {
+		at(pc);
+		mv.visitVarInsn(ALOAD, M);
+		mv.visitVarInsn(LLOAD, BEFORE);
+		mv.visitLdcInsn(charged);
+		mv.visitInsn(LADD);
+		helper("setSteps", "(" + MACHINE + "J)V");
+
+		boolean ret = op == OpCode.e_op_code_EXT_FUN_RET || op == OpCode.e_op_code_EXT_FUN_RET_DAT
+				|| op == OpCode.e_op_code_EXT_FUN_RET_DAT_2;
+		int args = op == OpCode.e_op_code_EXT_FUN_DAT || op == OpCode.e_op_code_EXT_FUN_RET_DAT ? 1
+				: op == OpCode.e_op_code_EXT_FUN_DAT_2 || op == OpCode.e_op_code_EXT_FUN_RET_DAT_2 ? 2 : 0;
+		int argPos = ret ? pc + 7 : pc + 3;
+
+		if (ret)
+			dataRef(pc + 3);
+		mv.visitVarInsn(ALOAD, M);
+		push(Machine.fun(code, pc + 1));
+		for (int i = 0; i < 2; i++) {
+			if (i < args)
+				load(argPos + 4 * i);
+			else
+				mv.visitInsn(LCONST_0);
+		}
+		helper("function", "(" + MACHINE + "SJJ)J");
+		if (ret)
+			mv.visitInsn(LASTORE);
+		else
+			mv.visitInsn(POP2);
+	}
+
+	void stopToPcs(boolean finish) {
+		mv.visitVarInsn(ALOAD, M);
+		mv.visitVarInsn(LLOAD, STEPS);
+		mv.visitInsn(finish ? ICONST_1 : ICONST_0);
+		helper("stopToPcs", "(" + MACHINE + "JZ)V");
+		push(RET_DONE);
+		mv.visitInsn(IRETURN);
+	}
+
+	void arithmetic(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_ADD_DAT:
+			mv.visitInsn(LADD);
+			break;
+		case OpCode.e_op_code_SUB_DAT:
+			mv.visitInsn(LSUB);
+			break;
+		case OpCode.e_op_code_MUL_DAT:
+			mv.visitInsn(LMUL);
+			break;
+		case OpCode.e_op_code_DIV_DAT:
+			mv.visitInsn(LDIV);
+			break;
+		case OpCode.e_op_code_BOR_DAT:
+			mv.visitInsn(LOR);
+			break;
+		case OpCode.e_op_code_AND_DAT:
+			mv.visitInsn(LAND);
+			break;
+		case OpCode.e_op_code_XOR_DAT:
+			mv.visitInsn(LXOR);
+			break;
+		case OpCode.e_op_code_MOD_DAT:
+			mv.visitInsn(LREM);
+			break;
+		case OpCode.e_op_code_SHL_DAT:
+			helper("shl", "(JJ)J");
+			break;
+		case OpCode.e_op_code_SHR_DAT:
+			helper("shr", "(JJ)J");
+			break;
+		}
+	}
+
+	static int compare(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_BGT_DAT:
+			return IFGT;
+		case OpCode.e_op_code_BLT_DAT:
+			return IFLT;
+		case OpCode.e_op_code_BGE_DAT:
+			return IFGE;
+		case OpCode.e_op_code_BLE_DAT:
+			return IFLE;
+		case OpCode.e_op_code_BEQ_DAT:
+			return IFEQ;
+		default:
+			return IFNE;
+		}
+	}
+
+	/**
+	 * @return the label for a jump target, leaving the chunk if the target is not
+	 *         a block of the current chunk
+	 */
+	Label target(int address) {
+		Label l = labels.get(address);
+		if (l != null && address >= chunkStart && address < chunkEnd)
+			return l;
+		l = stubLabels.get(address);
+		if (l == null) {
+			l = new Label();
+			stubLabels.put(address, l);
+			stubs.add(address);
+		}
+		return l;
+	}
+
+	/** Keeps track of the instruction being executed, for errors */
+	void at(int pc) {
+		push(pc);
+		mv.visitVarInsn(ISTORE, AT);
+	}
+
+	/** Pushes the data array and the address read at the given position */
+	void dataRef(int pos) {
+		mv.visitVarInsn(ALOAD, D);
+		push(Machine.addr(code, pos));
+	}
+
+	/** Pushes the value of the address read at the given position */
+	void load(int pos) {
+		dataRef(pos);
+		mv.visitInsn(LALOAD);
+	}
+
+	/** Pushes the checked index for the value at pos1 (plus the value at pos2) */
+	void index(int pos1, int pos2) {
+		mv.visitVarInsn(ALOAD, M);
+		load(pos1);
+		if (pos2 > 0) {
+			load(pos2);
+			mv.visitInsn(LADD);
+		}
+		helper("index", "(" + MACHINE + "J)I");
+	}
+
+	void helper(String name, String desc) {
+		mv.visitMethodInsn(INVOKESTATIC, BASE, name, desc, false);
+	}
+
+	void push(int value) {
+		if (value >= -1 && value <= 5)
+			mv.visitInsn(ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			mv.visitIntInsn(BIPUSH, value);
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			mv.visitIntInsn(SIPUSH, value);
+		else
+			mv.visitLdcInsn(value);
+	}
+}
@@ -0,0 +1,153 @@
+package bt;
+
+/**
+ * A chain of calls deeper than a call stack page.
+ */
+public class CallChain extends Contract {
+
+	long result;
+
+	public void run(long x) {
+		result = level1(x);
+	}
+
+	long level1(long x) {
+		return level2(x) + 1;
+	}
+
+	long level2(long x) {
+		return level3(x) + 1;
+	}
+
+	long level3(long x) {
+		return level4(x) + 1;
+	}
+
+	long level4(long x) {
+		return level5(x) + 1;
+	}
+
+	long level5(long x) {
+		return level6(x) + 1;
+	}
+
+	long level6(long x) {
+		return level7(x) + 1;
+	}
+
+	long level7(long x) {
+		return level8(x) + 1;
+	}
+
+	long level8(long x) {
+		return level9(x) + 1;
+	}
+
+	long level9(long x) {
+		return level10(x) + 1;
+	}
+
+	long level10(long x) {
+		return level11(x) + 1;
+	}
+
+	long level11(long x) {
+		return level12(x) + 1;
+	}
+
+	long level12(long x) {
+		return level13(x) + 1;
+	}
+
+	long level13(long x) {
+		return level14(x) + 1;
+	}
+
+	long level14(long x) {
+		return level15(x) + 1;
+	}
+
+	long level15(long x) {
+		return level16(x) + 1;
+	}
+
+	long level16(long x) {
+		return level17(x) + 1;
+	}
+
+	long level17(long x) {
+		return level18(x) + 1;
+	}
+
+	long level18(long x) {
+		return level19(x) + 1;
+	}
+
+	long level19(long x) {
+		return level20(x) + 1;
+	}
+
+	long level20(long x) {
+		return level21(x) + 1;
+	}
+
+	long level21(long x) {
+		return level22(x) + 1;
+	}
+
+	long level22(long x) {
+		return level23(x) + 1;
+	}
+
+	long level23(long x) {
+		return level24(x) + 1;
+	}
+
+	long level24(long x) {
+		return level25(x) + 1;
+	}
+
+	long level25(long x) {
+		return level26(x) + 1;
+	}
+
+	long level26(long x) {
+		return level27(x) + 1;
+	}
+
+	long level27(long x) {
+		return level28(x) + 1;
+	}
+
+	long level28(long x) {
+		return level29(x) + 1;
+	}
+
+	long level29(long x) {
+		return level30(x) + 1;
+	}
+
+	long level30(long x) {
+		return level31(x) + 1;
+	}
+
+	long level31(long x) {
+		return level32(x) + 1;
+	}
+
+	long level32(long x) {
+		return level33(x) + 1;
+	}
+
+	long level33(long x) {
+		return level34(x) + 1;
+	}
+
+	long level34(long x) {
+		return x;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,47 @@
+package bt;
+
+/**
+ * Long and int comparisons, compiled to single compare-branches.
+ */
+public class Comparisons extends Contract {
+
+	long flags, loops;
+
+	public void compare(long a, long b) {
+		long f = 0;
+		if (a == b)
+			f |= 1;
+		if (a != b)
+			f |= 2;
+		if (a < b)
+			f |= 4;
+		if (a >= b)
+			f |= 8;
+		if (a > b)
+			f |= 16;
+		if (a <= b)
+			f |= 32;
+		int x = (int) a, y = (int) b;
+		if (x < y)
+			f |= 64;
+		if (x >= y)
+			f |= 128;
+		if (x > y)
+			f |= 256;
+		if (x <= y)
+			f |= 512;
+		flags = f;
+
+		if (b > 0) {
+			int n = (int) b;
+			for (int i = 0; i < n; i++)
+				loops++;
+			for (int i = n; i > 0; i--)
+				loops++;
+		}
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,66 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static bt.EmulatorFixture.ops;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+
+/**
+ * Comparisons fused with their branches.
+ */
+public class ComparisonsTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testComparisons() throws Exception {
+		// not an optional pass, the same code with every option
+		Compiler comp = fixture.compile(Comparisons.class);
+		Address contract = fixture.deploy(comp, "Comparisons");
+
+		long[][] cases = { { 3, 5 }, { 5, 5 }, { 7, 2 }, { Long.MAX_VALUE, -1 }, { Long.MIN_VALUE, 1 },
+				{ 1L << 32, 1 } };
+		long loops = 0;
+		for (long[] c : cases) {
+			fixture.call(contract, Comparisons.class, "compare", c[0], c[1]);
+
+			long a = c[0], b = c[1];
+			int x = (int) a, y = (int) b;
+			long flags = (a == b ? 1 : 0) | (a != b ? 2 : 0) | (a < b ? 4 : 0) | (a >= b ? 8 : 0)
+					| (a > b ? 16 : 0) | (a <= b ? 32 : 0) | (x < y ? 64 : 0) | (x >= y ? 128 : 0)
+					| (x > y ? 256 : 0) | (x <= y ? 512 : 0);
+			loops += b > 0 ? 2 * b : 0;
+			assertEquals(flags, field(comp, contract, "flags"));
+			assertEquals(loops, field(comp, contract, "loops"));
+		}
+	}
+
+	@Test
+	public void testCompareBranches() throws Exception {
+		List<String> ops = ops(fixture.compile(Comparisons.class), "compare");
+		List<String> branches = new ArrayList<>();
+		for (String op : ops) {
+			if (op.matches("B(EQ|NE|LT|GE|GT|LE)"))
+				branches.add(op);
+		}
+		// a single branch for each one of the Java code, with the opposite condition
+		assertEquals(Arrays.asList(
+				// LCMP and IFNE, IFEQ, IFGE, IFLT, IFLE, IFGT
+				"BNE", "BEQ", "BGE", "BLT", "BLE", "BGT",
+				// IF_ICMPGE, IF_ICMPLT, IF_ICMPLE, IF_ICMPGT
+				"BGE", "BLT", "BLE", "BGT",
+				// LCMP and IFLE against 0, then the loops on IF_ICMPGE and IFLE
+				"BLE", "BGE", "BLE"), branches);
+		// no subtraction tested for zero
+		assertFalse(ops.toString(), ops.contains("SUB_DAT"));
+		assertFalse(ops.toString(), ops.contains("BNZ"));
+		assertFalse(ops.toString(), ops.contains("BZR"));
+	}
+}
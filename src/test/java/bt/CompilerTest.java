@@ -654,10 +654,9 @@ public class CompilerTest extends BT {
         };
 
         String name = HashedTimeLock.class.getSimpleName() + System.currentTimeMillis();
-        BT.registerContract(BT.PASSPHRASE, compiled.getCode(), compiled.getDataPages(),
-                name, "test", data,
+        BT.registerContract(BT.PASSPHRASE, compiled, name, "test", data,
                 SignumValue.fromNQT(HashedTimeLock.ACTIVATION_FEE), BT.getMinRegisteringFee(compiled),
-                1000);
+                1000, null);
         BT.forgeBlock(BT.PASSPHRASE2);
         BT.forgeBlock(BT.PASSPHRASE2);
 
@@ -696,10 +695,9 @@ public class CompilerTest extends BT {
         };
 
         String name = HashedTimeLock.class.getSimpleName() + System.currentTimeMillis();
-        BT.registerContract(BT.PASSPHRASE, compiled.getCode(), compiled.getDataPages(),
-                name, "test", data,
+        BT.registerContract(BT.PASSPHRASE, compiled, name, "test", data,
                 SignumValue.fromNQT(HashedTimeLock.ACTIVATION_FEE), BT.getMinRegisteringFee(compiled),
-                1000);
+                1000, null);
         BT.forgeBlock(BT.PASSPHRASE2);
         BT.forgeBlock(BT.PASSPHRASE2);
 
@@ -0,0 +1,77 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+
+/**
+ * Constants folded on the Java bytecode, against the code as written.
+ */
+public class ConstantFoldingTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testConstantFolding() throws Exception {
+		List<Compiler> comps = fixture.run(Constants.class, EmulatorFixture.onOff(CompilerOptions::setConstantFolding),
+				(comp, contract) -> {
+					fixture.call(contract, Constants.class, "call", 3L);
+					assertEquals(35, field(comp, contract, "sum"));
+					assertEquals(2330, field(comp, contract, "quotient"));
+					assertEquals(5, field(comp, contract, "choice"));
+					assertEquals(0, field(comp, contract, "debug"));
+					assertEquals(15L << 32, field(comp, contract, "later"));
+				}, "timestamp");
+		assertTrue(comps.get(0).getCode().length < comps.get(1).getCode().length);
+	}
+
+	@Test
+	public void testWidths() throws Exception {
+		List<Compiler> comps = fixture.run(Widths.class, EmulatorFixture.onOff(CompilerOptions::setConstantFolding),
+				(comp, contract) -> {
+					fixture.call(contract, Widths.class, "call", 3L);
+					assertEquals(45, field(comp, contract, "small"));
+					assertEquals(1000003, field(comp, contract, "wide"));
+					assertEquals(6, field(comp, contract, "dropped"));
+				});
+
+		// folded values keep the width of the ones replaced
+		boolean intFolded = false, longFolded = false;
+		for (AbstractInsnNode insn : comps.get(0).getMethod("call").getNode().instructions.toArray()) {
+			intFolded |= insn.getOpcode() == Opcodes.BIPUSH && ((IntInsnNode) insn).operand == 42;
+			longFolded |= insn instanceof LdcInsnNode && Long.valueOf(1000000L).equals(((LdcInsnNode) insn).cst);
+			if (insn instanceof LdcInsnNode)
+				assertNotEquals(Long.valueOf(42L), ((LdcInsnNode) insn).cst);
+		}
+		assertTrue(intFolded);
+		assertTrue(longFolded);
+	}
+
+	@Test
+	public void testAddMinutes() throws Exception {
+		// the minutes folded are added on a copy, also of locals and fields, and
+		// with the constant pool not on the constant cell shared by both calls
+		for (List<CompilerOptions> options : Arrays.asList(EmulatorFixture.onOff(CompilerOptions::setConstantFolding),
+				EmulatorFixture.onOff(CompilerOptions::setConstantPool))) {
+			fixture.run(Later.class, options, (comp, contract) -> {
+				fixture.call(contract, Later.class, "run");
+				assertEquals(15L << 32, field(comp, contract, "fromLocal"));
+				assertEquals(0, field(comp, contract, "localAfter"));
+				assertEquals(15L << 32, field(comp, contract, "fromField"));
+				assertEquals(0, field(comp, contract, "fieldAfter"));
+				assertEquals(15L << 32, field(comp, contract, "again"));
+			}, "start");
+		}
+	}
+}
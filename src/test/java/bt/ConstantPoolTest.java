@@ -0,0 +1,48 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+
+/**
+ * Constants read from the initial data segment.
+ */
+public class ConstantPoolTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testConstantPool() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setConstantPool);
+		for (CompilerOptions o : options)
+			o.setMaxLinearDispatch(0);
+
+		List<Compiler> comps = fixture.run(Dispatch.class, options, (comp, contract) -> {
+			fixture.call(contract, Dispatch.class, "sixth", 10L, 20L, 30L);
+			assertEquals(6, field(comp, contract, "called"));
+		});
+
+		// the hashes compared by the dispatcher are on the initial data
+		long[] data = comps.get(0).getInitialData();
+		for (String name : new String[] { "first", "second", "third", "fourth", "fifth", "sixth" }) {
+			long hash = comps.get(0).getMethod(name).getHash();
+			assertTrue(Arrays.stream(data).anyMatch(v -> v == hash));
+		}
+		assertEquals(0, comps.get(1).getInitialData().length);
+		assertTrue(comps.get(0).getCode().length < comps.get(1).getCode().length);
+
+		// more field values than the constants take, all kept
+		long[] values = new long[data.length + 4];
+		Arrays.fill(values, 7L);
+		long[] withValues = comps.get(0).getInitialData(values);
+		assertEquals(values.length, withValues.length);
+		assertEquals(7L, withValues[values.length - 1]);
+	}
+}
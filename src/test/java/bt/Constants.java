@@ -0,0 +1,32 @@
+package bt;
+
+/**
+ * Local constants, branches on constants and timestamps with constant minutes.
+ */
+public class Constants extends Contract {
+
+	static final boolean DEBUG = false;
+
+	long sum, quotient, choice, debug, later;
+	Timestamp timestamp;
+
+	public void call(long x) {
+		long k = 10;
+		long m = k * 3 + 2;
+		if (m > 20)
+			sum = x + m;
+		else
+			sum = x - m;
+		if (DEBUG)
+			debug = 99;
+		long i = 7;
+		quotient = (i * 1000) / 3 - x;
+		choice = m == 32 ? 5 : 6;
+		timestamp = getBlockTimestamp().addMinutes(60);
+		later = timestamp.getValue() - getBlockTimestamp().getValue();
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,53 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.sample.Auction;
+import bt.sample.ForwardMin;
+import signumj.entity.SignumAddress;
+
+/**
+ * Constructor constants set on the initial data.
+ */
+public class ConstructorEvaluationTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testConstructorEvaluation() throws Exception {
+		long beneficiary = SignumAddress.fromRs(Auction.BENEFICIARY).getSignedLongId();
+		List<Compiler> comps = fixture.run(Auction.class,
+				EmulatorFixture.onOff(CompilerOptions::setConstructorEvaluation), (comp, contract) -> {
+					fixture.send(contract, EmulatorFixture.ACT_FEE);
+
+					assertEquals(beneficiary, field(comp, contract, "beneficiary"));
+					assertEquals(1, field(comp, contract, "isOpen"));
+					assertEquals(Auction.INITIAL_PRICE, field(comp, contract, "highestBid"));
+					assertTrue(field(comp, contract, "timeout") != 0);
+				}, "timeout");
+
+		// the constants are there before the first activation
+		for (int i = 0; i < comps.size(); i++) {
+			long[] data = comps.get(i).getInitialData();
+			int address = comps.get(i).getField("beneficiary").getAddress();
+			assertEquals(i == 0 ? beneficiary : 0, address < data.length ? data[address] : 0);
+		}
+		assertTrue(comps.get(0).getCode().length < comps.get(1).getCode().length);
+
+		// nothing left to run on the first activation
+		CompilerOptions options = new CompilerOptions();
+		options.setConstructorEvaluation(true);
+		Compiler comp = fixture.compile(ForwardMin.class, options);
+		for (AbstractInsnNode insn : comp.getMethod(Compiler.INIT_METHOD).getNode().instructions.toArray())
+			assertNotEquals(Opcodes.PUTFIELD, insn.getOpcode());
+	}
+}
@@ -0,0 +1,77 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Machine;
+
+/**
+ * Data pages sized from the cells actually used.
+ */
+public class DataPagesTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	/**
+	 * Checks the pages fit the cells counted, nothing is written after them.
+	 */
+	static void checkPages(Compiler comp, Address contract) {
+		Machine m = contract.getMachine();
+		int cells = comp.getDataCells();
+		assertEquals((cells + Machine.CELLS_PER_PAGE - 1) / Machine.CELLS_PER_PAGE, comp.getDataPages());
+		assertEquals(comp.getDataPages() * Machine.CELLS_PER_PAGE, m.getData().length);
+		for (int a = cells; a < m.getData().length; a++)
+			assertEquals(0, m.getData(a));
+	}
+
+	@Test
+	public void testDataPages() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setStaticFrames);
+		CompilerOptions called = new CompilerOptions();
+		called.setInlining(false);
+		options.add(0, called);
+
+		List<Compiler> comps = fixture.run(InternalCall.class, options, (comp, contract) -> {
+			fixture.call(contract, InternalCall.class, "call", 7L, 2L);
+			checkPages(comp, contract);
+		});
+		// static frames take the locals of the deepest chain only
+		assertTrue(comps.get(1).getDataCells() <= comps.get(2).getDataCells());
+	}
+
+	@Test
+	public void testPageBoundary() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setStaticFrames);
+		CompilerOptions called = new CompilerOptions();
+		called.setInlining(false);
+		called.setConstantPool(true);
+		options.add(0, called);
+
+		List<Compiler> comps = fixture.run(Frames.class, options, (comp, contract) -> {
+			fixture.call(contract, Frames.class, "run", 3L, 5L, 7L);
+			checkPages(comp, contract);
+		});
+
+		// the frames of run, outer and inner, the operands and the constants end
+		// on the second page, the last cell a constant
+		Compiler comp = comps.get(0);
+		assertEquals(2 * Machine.CELLS_PER_PAGE, comp.getDataCells());
+		assertEquals(2, comp.getDataPages());
+		assertEquals(comp.getDataCells(), comp.getInitialData().length);
+		assertNotEquals(0, comp.getInitialData()[comp.getDataCells() - 1]);
+		// one page more with the former cells / 32 + 1
+		assertEquals(3, comp.getDataCells() / Machine.CELLS_PER_PAGE + 1);
+
+		// moving frames go past the two pages of the static ones
+		assertEquals(2, comps.get(1).getDataPages());
+		for (Compiler moving : comps.subList(2, comps.size())) {
+			assertTrue(moving.getDataCells() > 2 * Machine.CELLS_PER_PAGE);
+			assertEquals(3, moving.getDataPages());
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package bt;
+
+/**
+ * Many public methods, to check the dispatcher.
+ */
+public class Dispatch extends Contract {
+
+	long called, arg, received;
+
+	public void first(long a) {
+		called = 1;
+		arg = a;
+	}
+
+	public void second(long a, long b) {
+		called = 2;
+		arg = a + b;
+	}
+
+	public void third() {
+		called = 3;
+	}
+
+	public void fourth(long a) {
+		called = 4;
+		arg = a;
+	}
+
+	public void fifth(long a, long b, long c) {
+		called = 5;
+		arg = a + b + c;
+	}
+
+	public void sixth() {
+		called = 6;
+	}
+
+	@Override
+	public void txReceived() {
+		received++;
+	}
+}
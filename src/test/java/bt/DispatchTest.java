@@ -0,0 +1,47 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.CompilerOptions;
+
+/**
+ * The dispatch of public methods, linear and by binary search.
+ */
+public class DispatchTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testDispatch() throws Exception {
+		// linear, binary search on ranges of 4 and down to single methods
+		List<CompilerOptions> options = new ArrayList<>();
+		for (int maxLinear : new int[] { Integer.MAX_VALUE, 4, 0 }) {
+			CompilerOptions o = new CompilerOptions();
+			o.setMaxLinearDispatch(maxLinear);
+			options.add(o);
+		}
+		options.add(EmulatorFixture.unoptimized());
+
+		fixture.run(Dispatch.class, options, (comp, contract) -> {
+			String[] names = { "first", "second", "third", "fourth", "fifth", "sixth" };
+			for (int i = 0; i < names.length; i++) {
+				fixture.call(contract, Dispatch.class, names[i], 10L, 20L, 30L);
+				assertEquals(i + 1, field(comp, contract, "called"));
+			}
+			assertEquals(60, field(comp, contract, "arg"));
+			assertEquals(0, field(comp, contract, "received"));
+
+			// not a method
+			fixture.emu.send(fixture.creator, contract, EmulatorFixture.ACT_FEE, Register.newInstance(1234, 0, 0, 0));
+			fixture.emu.forgeBlock();
+			fixture.emu.forgeBlock();
+			assertEquals(1, field(comp, contract, "received"));
+		});
+	}
+}
@@ -0,0 +1,185 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Field;
+import bt.compiler.Machine;
+import bt.compiler.Printer;
+
+/**
+ * Compiles test contracts and runs them on the {@link Emulator}, for the tests
+ * of the compiler passes.
+ *
+ * A scenario runs with the pass under test on, off, and with every pass off,
+ * the fields left by each run checked against the unoptimized one.
+ */
+class EmulatorFixture {
+
+	static final long ACT_FEE = Contract.ONE_BURST;
+
+	/** Deployed contracts, for unique names on the shared emulator */
+	private static int deployed;
+
+	final Emulator emu = Emulator.getInstance();
+	final Address creator;
+
+	/**
+	 * A scenario run on a contract deployed with the given compiled code.
+	 */
+	interface Scenario {
+		void run(Compiler comp, Address contract) throws Exception;
+	}
+
+	EmulatorFixture() {
+		creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+	}
+
+	/**
+	 * @return options with every optional pass off
+	 */
+	static CompilerOptions unoptimized() {
+		CompilerOptions options = new CompilerOptions();
+		options.setStaticFrames(false);
+		options.setPeephole(false);
+		options.setConstantFolding(false);
+		options.setConstantPool(false);
+		options.setConstructorEvaluation(false);
+		options.setPackedBooleans(false);
+		options.setInlining(false);
+		options.setMaxLinearDispatch(Integer.MAX_VALUE);
+		return options;
+	}
+
+	/**
+	 * @return the default options with the given one on, off, and the
+	 *         {@link #unoptimized()} ones, in this order
+	 */
+	static List<CompilerOptions> onOff(BiConsumer<CompilerOptions, Boolean> option) {
+		List<CompilerOptions> ret = new ArrayList<>();
+		for (boolean on : new boolean[] { true, false }) {
+			CompilerOptions options = new CompilerOptions();
+			option.accept(options, on);
+			ret.add(options);
+		}
+		ret.add(unoptimized());
+		return ret;
+	}
+
+	Compiler compile(Class<? extends Contract> contractClass, CompilerOptions options) throws Exception {
+		Compiler comp = BT.compileContract(contractClass, options);
+		assertTrue(comp.getErrors().toString(), comp.getErrors().isEmpty());
+		return comp;
+	}
+
+	Compiler compile(Class<? extends Contract> contractClass) throws Exception {
+		return compile(contractClass, new CompilerOptions());
+	}
+
+	/**
+	 * @return a new contract with the given code, after its creation block
+	 */
+	Address deploy(Compiler comp, String name) throws Exception {
+		Address contract = emu.getAddress(name + "_" + deployed++);
+		emu.createCompiledContract(creator, contract, comp, ACT_FEE);
+		emu.forgeBlock();
+		return contract;
+	}
+
+	/**
+	 * Sends the given amount and forges the blocks running the contract.
+	 */
+	void send(Address contract, long amount) throws Exception {
+		emu.send(creator, contract, amount);
+		emu.forgeBlock();
+		emu.forgeBlock();
+	}
+
+	/**
+	 * Calls the given public method and forges the blocks running it.
+	 */
+	void call(Address contract, long amount, Class<? extends Contract> contractClass, String name, Object... args)
+			throws Exception {
+		java.lang.reflect.Method method = null;
+		for (java.lang.reflect.Method m : contractClass.getMethods()) {
+			if (m.getName().equals(name))
+				method = m;
+		}
+		assertNotNull(name, method);
+		emu.send(creator, contract, amount, Register.newMethodCall(method, Arrays.copyOf(args, 3)));
+		emu.forgeBlock();
+		emu.forgeBlock();
+	}
+
+	void call(Address contract, Class<? extends Contract> contractClass, String name, Object... args)
+			throws Exception {
+		call(contract, ACT_FEE, contractClass, name, args);
+	}
+
+	/**
+	 * @return the value of the given field, also if packed
+	 */
+	static long field(Compiler comp, Address contract, String name) {
+		Field field = comp.getField(name);
+		return field.getValue(contract.getMachine().getData(field.getAddress()));
+	}
+
+	/**
+	 * @return the op codes of the given method, as disassembled
+	 */
+	static List<String> ops(Compiler comp, String method) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Printer.print(comp.getCode(), new PrintStream(bytes), comp);
+		List<String> ret = new ArrayList<>();
+		boolean in = false;
+		for (String line : bytes.toString().split("\n")) {
+			if (line.startsWith("-->"))
+				in = line.equals("--> " + method + " method");
+			else if (in && line.startsWith("@"))
+				ret.add(line.substring(line.indexOf('\t') + 1).trim());
+		}
+		return ret;
+	}
+
+	/**
+	 * Runs the scenario on the contract compiled with each of the given options,
+	 * checking the fields left against the ones of the last run, but for the
+	 * ignored ones.
+	 *
+	 * @return the compiled code for each of the options
+	 */
+	List<Compiler> run(Class<? extends Contract> contractClass, List<CompilerOptions> options, Scenario scenario,
+			String... ignored) throws Exception {
+		List<Compiler> ret = new ArrayList<>();
+		List<Address> contracts = new ArrayList<>();
+		for (CompilerOptions o : options) {
+			Compiler comp = compile(contractClass, o);
+			Address contract = deploy(comp, contractClass.getSimpleName());
+			scenario.run(comp, contract);
+			Machine m = contract.getMachine();
+			assertFalse(o.toString(), m.isDead());
+			ret.add(comp);
+			contracts.add(contract);
+		}
+
+		Compiler expected = ret.get(ret.size() - 1);
+		Address reference = contracts.get(contracts.size() - 1);
+		for (int i = 0; i < ret.size() - 1; i++) {
+			for (Field f : expected.getFields()) {
+				if (!Arrays.asList(ignored).contains(f.getName()))
+					assertEquals(options.get(i) + ", " + f.getName(), field(expected, reference, f.getName()),
+							field(ret.get(i), contracts.get(i), f.getName()));
+			}
+		}
+		return ret;
+	}
+}
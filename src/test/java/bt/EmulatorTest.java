@@ -0,0 +1,107 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Java emulation of contracts, as aligned with the compiled code.
+ */
+public class EmulatorTest {
+
+	Emulator emu;
+	Address creator, contract;
+
+	@Before
+	public void setUp() throws Exception {
+		emu = new Emulator();
+		Emulator.setCurrent(emu);
+		creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		contract = emu.getAddress("SENDS");
+		emu.createConctract(creator, contract, Sends.class, Contract.ONE_BURST);
+	}
+
+	@After
+	public void tearDown() {
+		Emulator.setCurrent(null);
+	}
+
+	Sends sends() {
+		return (Sends) contract.contract;
+	}
+
+	/**
+	 * @return the transactions sent by the contract on the given block
+	 */
+	List<Transaction> sent(Block block) {
+		List<Transaction> ret = new ArrayList<>();
+		for (Transaction tx : block.txs) {
+			if (tx.sender == contract)
+				ret.add(tx);
+		}
+		return ret;
+	}
+
+	void call(String name) throws Exception {
+		emu.send(creator, contract, Contract.ONE_BURST,
+				Register.newMethodCall(Sends.class.getMethod(name), new Object[3]));
+	}
+
+	@Test
+	public void testCreation() throws Exception {
+		emu.forgeBlock();
+
+		// a first block run on creation, as the compiled code does
+		assertEquals(1, sends().started);
+		assertEquals(1, sends().finished);
+
+		// sent by the constructor while forging, left for the next block
+		assertTrue(sent(emu.getPrevBlock()).isEmpty());
+		assertEquals(1, sent(emu.getCurrentBlock()).size());
+		long balance = creator.balance;
+		emu.forgeBlock();
+		assertEquals(balance + Sends.CREATION_SEND, creator.balance);
+		// no transaction received, no block run
+		assertEquals(1, sends().started);
+		assertEquals(1, sends().finished);
+	}
+
+	@Test
+	public void testZeroAmount() throws Exception {
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		call("sendZero");
+		emu.forgeBlock();
+		assertEquals(2, sends().started);
+		assertEquals(2, sends().finished);
+		// as on chain, no transaction for nothing
+		assertTrue(sent(emu.getCurrentBlock()).isEmpty());
+	}
+
+	@Test
+	public void testPendingSends() throws Exception {
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		call("sendHalf");
+		long balance = contract.balance + Contract.ONE_BURST;
+		emu.forgeBlock();
+
+		// the balance read and sent does not count the half already sent
+		List<Transaction> txs = sent(emu.getCurrentBlock());
+		assertEquals(2, txs.size());
+		assertEquals(balance / 2, txs.get(0).amount);
+		assertEquals(balance - balance / 2, sends().balanceLeft);
+		assertEquals(balance - balance / 2, txs.get(1).amount);
+
+		emu.forgeBlock();
+		assertEquals(0, contract.balance);
+	}
+}
@@ -0,0 +1,26 @@
+package bt;
+
+/**
+ * Boolean fields, sharing a cell when packed.
+ */
+public class Flags extends Contract {
+
+	boolean open, paid, approved;
+	long count;
+	boolean last = true;
+
+	public void set(long x) {
+		open = x > 1;
+		paid = !open;
+		approved = x == 3 || approved;
+		last = !last;
+		if (paid)
+			count++;
+		else
+			count += 10;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,40 @@
+package bt;
+
+/**
+ * Locals of a chain of calls, operands and constants taking more than a data
+ * page.
+ */
+public class Frames extends Contract {
+
+	long first, second, third, fourth, fifth, sixth, total;
+
+	public void run(long a, long b, long c) {
+		long d = a * 1000003L + b;
+		long e = b * 1000033L + c;
+		first = d;
+		second = e;
+		total = outer(d, e, c) + d * (e + c * (a + b * 1000037L));
+	}
+
+	long outer(long x, long y, long z) {
+		long p = x + 1000039L;
+		long q = y + 1000081L;
+		long r = z + 1000099L;
+		fourth = p;
+		fifth = q;
+		sixth = r;
+		third = inner(p, q, r) * (p + q * (r + x * (y + z)));
+		return third + p + q + r;
+	}
+
+	long inner(long u, long v, long w) {
+		long s = u * 1000117L;
+		long t = v * 1000121L;
+		long k = w * 1000133L;
+		return s + t * (k + u * (v + w * 1000151L));
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
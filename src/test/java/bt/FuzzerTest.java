@@ -0,0 +1,35 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import bt.sample.TXCounter;
+
+/**
+ * Compares the Java emulation against the compiled bytecode on random
+ * transactions.
+ */
+public class FuzzerTest {
+
+	void fuzz(Class<? extends Contract> contract, boolean translate) throws Exception {
+		Fuzzer fuzzer = new Fuzzer(contract);
+		assertTrue(fuzzer.isValid());
+		fuzzer.setTranslate(translate);
+		for (long seed = 1; seed <= 3; seed++) {
+			Fuzzer.Failure failure = fuzzer.fuzz(seed);
+			assertNull(String.valueOf(failure), failure);
+		}
+	}
+
+	@Test
+	public void testTxCounter() throws Exception {
+		fuzz(TXCounter.class, false);
+	}
+
+	@Test
+	public void testMethodCallArgs() throws Exception {
+		fuzz(MethodCallArgs.class, false);
+		fuzz(MethodCallArgs.class, true);
+	}
+}
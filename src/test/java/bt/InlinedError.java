@@ -0,0 +1,21 @@
+package bt;
+
+/**
+ * A helper not supported by the compiler, inlined on its caller.
+ */
+public class InlinedError extends Contract {
+
+	long value;
+
+	public void call(long x) {
+		value = helper(x);
+	}
+
+	long helper(long x) {
+		return Math.abs(x);
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,79 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+
+/**
+ * Helper methods inlined on their callers, against the calls.
+ */
+public class InliningTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testInlining() throws Exception {
+		List<Compiler> comps = fixture.run(InternalCall.class, EmulatorFixture.onOff(CompilerOptions::setInlining),
+				(comp, contract) -> {
+					fixture.call(contract, InternalCall.class, "call", 7L, 2L);
+					assertEquals(15, field(comp, contract, "nested"));
+				});
+		Compiler comp = comps.get(0), plain = comps.get(1);
+
+		// called only once, inlined and then removed
+		assertNotNull(plain.getMethod("nested"));
+		assertNull(comp.getMethod("nested"));
+		// called twice and too large
+		assertNotNull(comp.getMethod("diff"));
+		assertTrue(comp.getCode().length < plain.getCode().length);
+
+		// the locals of the copy come after the ones of the caller, no stale frames
+		MethodNode call = comp.getMethod("call").getNode();
+		LocalVariableNode k = call.localVariables.stream().filter(v -> v.name.equals("k")).findFirst().get();
+		assertTrue(k.index >= plain.getMethod("call").getNode().maxLocals);
+		assertTrue(call.instructions.contains(k.start));
+		for (AbstractInsnNode insn : call.instructions.toArray())
+			assertFalse(insn instanceof FrameNode);
+	}
+
+	@Test
+	public void testErrorLines() throws Exception {
+		// reported on the line of the helper, and on the one of the call if inlined
+		CompilerOptions options = new CompilerOptions();
+		options.setInlining(false);
+		String plain = BT.compileContract(InlinedError.class, options).getErrors().get(0).getMessage();
+		String inlined = BT.compileContract(InlinedError.class).getErrors().get(0).getMessage();
+		assertTrue(plain, plain.startsWith("line 15: "));
+		assertTrue(inlined, inlined.startsWith("line 15 (inlined on line 11): "));
+		assertEquals(plain.substring(plain.indexOf(": ")), inlined.substring(inlined.indexOf(": ")));
+	}
+
+	@Test
+	public void testRepeatedCalls() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setInlining);
+		options.get(0).setMaxInlineSize(64);
+		List<Compiler> comps = fixture.run(Repeated.class, options, (comp, contract) -> {
+			fixture.call(contract, Repeated.class, "run", 5L);
+			long total = 0;
+			for (long a = 5; a < 13; a++)
+				total += 4 * a - 1;
+			assertEquals(total, field(comp, contract, "total"));
+		});
+		Compiler comp = comps.get(0), plain = comps.get(1);
+		assertNull(comp.getMethod("scaled"));
+
+		// the copies share the locals, as the frame of the helper when called
+		assertTrue(comp.getDataCells() <= plain.getDataCells());
+		assertEquals(plain.getDataPages(), comp.getDataPages());
+	}
+}
@@ -0,0 +1,29 @@
+package bt;
+
+/**
+ * Internal calls with several arguments, nested.
+ */
+public class InternalCall extends Contract {
+
+	long diff, nested, inner;
+
+	public void call(long a, long b) {
+		diff = diff(a, b);
+		nested = nested(a, b, 5);
+	}
+
+	long diff(long x, long y) {
+		long t = x * 3;
+		return t - y;
+	}
+
+	long nested(long x, long y, long z) {
+		long k = diff(y, x) + z;
+		inner = k;
+		return k * 2 + x;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
@@ -0,0 +1,27 @@
+package bt;
+
+/**
+ * Timestamps with constant minutes added, left unchanged as in Java.
+ */
+public class Later extends Contract {
+
+	Timestamp start;
+	long fromLocal, localAfter, fromField, fieldAfter, again;
+
+	public void run() {
+		Timestamp t = getBlockTimestamp();
+		long before = t.getValue();
+		fromLocal = t.addMinutes(60).getValue() - before;
+		localAfter = t.getValue() - before;
+
+		start = getBlockTimestamp();
+		fromField = start.addMinutes(60).getValue() - before;
+		fieldAfter = start.getValue() - before;
+		// the same constant again, read from the pool when on
+		again = start.addMinutes(60).getValue() - before;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
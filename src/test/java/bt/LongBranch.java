@@ -0,0 +1,47 @@
+package bt;
+
+/**
+ * Branches farther than the 1 byte offset of the conditional branches.
+ */
+public class LongBranch extends Contract {
+
+	long a, b, c, d, far, near;
+
+	public void run(long n) {
+		do {
+			a += n;
+			b += a;
+			c += b;
+			d += c;
+			a += d;
+			b += a;
+			c += b;
+			d += c;
+			a += d;
+			b += a;
+			c += b;
+			d += c;
+			n--;
+		} while (n > 0);
+		if (a > 1000) {
+			far++;
+			b -= a;
+			c -= b;
+			d -= c;
+			a -= d;
+			b -= a;
+			c -= b;
+			d -= c;
+			a -= d;
+			b -= a;
+			c -= b;
+			d -= c;
+		}
+		if (c > 0)
+			near++;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
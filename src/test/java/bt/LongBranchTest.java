@@ -0,0 +1,52 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import bt.compiler.CompilerOptions;
+
+/**
+ * Conditional branches relaxed to the short form when in range, the long one
+ * otherwise.
+ */
+public class LongBranchTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testLongBranch() throws Exception {
+		for (long n : new long[] { 1, 3 }) {
+			long a = 0, b = 0, c = 0, d = 0, far = 0;
+			for (long i = n; i > 0; i--) {
+				for (int j = 0; j < 3; j++) {
+					a += j == 0 ? i : d;
+					b += a;
+					c += b;
+					d += c;
+				}
+			}
+			if (a > 1000) {
+				far++;
+				for (int j = 0; j < 3; j++) {
+					if (j > 0)
+						a -= d;
+					b -= a;
+					c -= b;
+					d -= c;
+				}
+			}
+			assertEquals(n == 1 ? 0 : 1, far);
+			long expectedA = a, expectedD = d, expectedFar = far, near = c > 0 ? 1 : 0;
+
+			fixture.run(LongBranch.class, EmulatorFixture.onOff(CompilerOptions::setPeephole), (comp, contract) -> {
+				fixture.call(contract, LongBranch.class, "run", n);
+				assertEquals(expectedFar, field(comp, contract, "far"));
+				assertEquals(expectedA, field(comp, contract, "a"));
+				assertEquals(expectedD, field(comp, contract, "d"));
+				assertEquals(near, field(comp, contract, "near"));
+			});
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Machine;
+import bt.compiler.MachineArena;
+import bt.compiler.MachineHistory;
+import bt.compiler.Profiler;
+import bt.sample.TXCounter;
+
+/**
+ * Runs the bytecode of compiled contracts on the emulator, no node needed.
+ */
+public class MachineTest {
+
+	static final long ACT_FEE = EmulatorFixture.ACT_FEE;
+
+	EmulatorFixture fixture = new EmulatorFixture();
+	Emulator emu = fixture.emu;
+
+	Address create(Class<? extends Contract> contractClass, String name) throws Exception {
+		Address contract = fixture.deploy(fixture.compile(contractClass), name);
+		emu.forgeBlock();
+
+		assertNotNull(contract.getMachine());
+		assertTrue(contract.getMachine().isFinished());
+		return contract;
+	}
+
+	long field(Address contract, Class<? extends Contract> contractClass, String name) throws Exception {
+		Compiler comp = BT.compileContract(contractClass);
+		return contract.getMachine().getData(comp.getField(name).getAddress());
+	}
+
+	@Test
+	public void testTxCounter() throws Exception {
+		Address contract = create(TXCounter.class, "TXCOUNTER");
+		Address sender = emu.getAddress(1234567L);
+		emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+		for (int i = 0; i < 3; i++)
+			emu.send(sender, contract, ACT_FEE);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertEquals(3, field(contract, TXCounter.class, "ntx"));
+		// blockFinished also runs on the creation block
+		assertEquals(2, field(contract, TXCounter.class, "nblocks"));
+		assertEquals(sender.getId(), field(contract, TXCounter.class, "address"));
+		assertFalse(contract.getMachine().isDead());
+	}
+
+	@Test
+	public void testLocalVar() throws Exception {
+		Address contract = create(LocalVar.class, "LOCALVAR");
+		Address sender = emu.getAddress(1234567L);
+		emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+		emu.send(sender, contract, 10 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+		assertEquals(10 * Contract.ONE_BURST - ACT_FEE + LocalVar.FEE, field(contract, LocalVar.class, "amountNoFee"));
+
+		emu.send(sender, contract, ACT_FEE, Register.newMethodCall(
+				LocalVar.class.getMethod("setValue", long.class), new Object[] { 512L, null, null }));
+		emu.forgeBlock();
+		emu.forgeBlock();
+		assertEquals(1024, field(contract, LocalVar.class, "valueTimes2"));
+	}
+
+	@Test
+	public void testMethodCallArgs() throws Exception {
+		Address contract = create(MethodCallArgs.class, "METHODCALLARGS");
+		Address sender = emu.getAddress(1234567L);
+		emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+		emu.send(sender, contract, ACT_FEE,
+				Register.newMethodCall(MethodCallArgs.class.getMethod("method3", long.class, long.class, long.class),
+						new Object[] { 1L, 2L, 3L }));
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertEquals(3, field(contract, MethodCallArgs.class, "methodCalled"));
+		assertEquals(1, field(contract, MethodCallArgs.class, "arg1"));
+		assertEquals(2, field(contract, MethodCallArgs.class, "arg2"));
+		assertEquals(3, field(contract, MethodCallArgs.class, "arg3"));
+	}
+
+	@Test
+	public void testTranslated() throws Exception {
+		emu.setTranslateMachines(true);
+		try {
+			Address contract = create(MethodCallArgs.class, "METHODCALLARGS_TRANSLATED");
+			assertTrue(contract.getMachine().isTranslated());
+			Address sender = emu.getAddress(1234567L);
+			emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+			emu.send(sender, contract, ACT_FEE, Register.newMethodCall(
+					MethodCallArgs.class.getMethod("method2", long.class, long.class), new Object[] { 5L, 7L, null }));
+			emu.forgeBlock();
+			emu.forgeBlock();
+
+			assertEquals(2, field(contract, MethodCallArgs.class, "methodCalled"));
+			assertEquals(5, field(contract, MethodCallArgs.class, "arg1"));
+			assertEquals(7, field(contract, MethodCallArgs.class, "arg2"));
+			assertEquals(-1, field(contract, MethodCallArgs.class, "arg3"));
+		} finally {
+			emu.setTranslateMachines(false);
+		}
+	}
+
+	@Test
+	public void testProfiler() throws Exception {
+		Address contract = create(TXCounter.class, "TXCOUNTER_PROFILED");
+		Machine m = contract.getMachine();
+		Profiler profiler = new Profiler(BT.compileContract(TXCounter.class));
+		profiler.attach(m);
+		Address sender = emu.getAddress(1234567L);
+		emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+		emu.send(sender, contract, ACT_FEE);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertEquals(m.getSteps(), profiler.getTotalSteps());
+		boolean txReceivedLine = false;
+		for (String line : profiler.getLineSteps().keySet())
+			txReceivedLine |= line.startsWith("txReceived:");
+		assertTrue(txReceivedLine);
+
+		ByteArrayOutputStream collapsed = new ByteArrayOutputStream();
+		profiler.printCollapsed(new PrintStream(collapsed));
+		assertTrue(collapsed.toString().contains("<entry>;txReceived:"));
+	}
+
+	@Test
+	public void testHistory() throws Exception {
+		emu.setRecordMachines(true);
+		try {
+			Address contract = create(TXCounter.class, "TXCOUNTER_HISTORY");
+			Machine m = contract.getMachine();
+			MachineHistory history = contract.getMachineHistory();
+			Address sender = emu.getAddress(1234567L);
+			emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+			long[] ntx = new long[3];
+			long[] heights = new long[3];
+			for (int i = 0; i < 3; i++) {
+				emu.send(sender, contract, ACT_FEE);
+				emu.forgeBlock();
+				emu.forgeBlock();
+				ntx[i] = field(contract, TXCounter.class, "ntx");
+				heights[i] = emu.getCurrentBlock().getHeight() - 1;
+			}
+			long[] last = m.getData().clone();
+			long pc = m.getPC();
+
+			assertTrue(history.seekHeight(heights[0]));
+			assertEquals(ntx[0], field(contract, TXCounter.class, "ntx"));
+			assertTrue(history.rewind());
+			assertTrue(history.seekHeight(heights[1]));
+			assertEquals(ntx[1], field(contract, TXCounter.class, "ntx"));
+
+			history.seek(history.size() - 1);
+			assertArrayEquals(last, m.getData());
+			assertEquals(pc, m.getPC());
+
+			// only a few cells change per block
+			for (int i = 1; i < history.size(); i++)
+				assertTrue(history.getChangedCells(i) < m.getData().length);
+		} finally {
+			emu.setRecordMachines(false);
+		}
+	}
+
+	@Test
+	public void testArena() throws Exception {
+		MachineArena arena = new MachineArena();
+		emu.setMachineArena(arena);
+		try {
+			Address contract = create(TXCounter.class, "TXCOUNTER_ARENA");
+			Address sender = emu.getAddress(1234567L);
+			emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+
+			for (int i = 0; i < 3; i++)
+				emu.send(sender, contract, ACT_FEE);
+			emu.forgeBlock();
+			emu.forgeBlock();
+
+			assertEquals(3, field(contract, TXCounter.class, "ntx"));
+			assertEquals(sender.getId(), field(contract, TXCounter.class, "address"));
+			assertTrue(arena.getAllocated() > 0);
+		} finally {
+			emu.setMachineArena(null);
+		}
+	}
+
+	@Test
+	public void testStepFees() throws Exception {
+		Address contract = create(TXCounter.class, "TXCOUNTER_FEES");
+		Machine m = contract.getMachine();
+
+		// the constructor steps were charged from the activation fee
+		assertEquals(ACT_FEE - m.getSteps() * Contract.STEP_FEE, contract.getBalance());
+	}
+
+	@Test
+	public void testImport() throws Exception {
+		Address contract = create(TXCounter.class, "TXCOUNTER_IMPORT");
+		Address sender = emu.getAddress(1234567L);
+		emu.airDrop(sender, 1000 * Contract.ONE_BURST);
+		emu.send(sender, contract, ACT_FEE);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		Path dump = Files.createTempFile("txcounter", ".json");
+		try {
+			DeployedContract.fromAddress(contract).save(dump);
+
+			// no node or Java class needed, only the dump
+			Emulator offline = new Emulator();
+			Address imported = offline.importContract(DeployedContract.load(dump));
+			assertEquals(contract.getId(), imported.getId());
+			assertEquals(contract.getBalance(), imported.getBalance());
+			assertEquals(emu.getCurrentBlock().getHeight(), offline.getCurrentBlock().getHeight());
+			assertArrayEquals(contract.getMachine().getData(), imported.getMachine().getData());
+
+			Address offlineSender = offline.getAddress(1234567L);
+			offline.airDrop(offlineSender, 1000 * Contract.ONE_BURST);
+			for (int i = 0; i < 2; i++) {
+				emu.send(sender, contract, ACT_FEE);
+				emu.forgeBlock();
+				emu.forgeBlock();
+				offline.send(offlineSender, imported, ACT_FEE);
+				offline.forgeBlock();
+				offline.forgeBlock();
+			}
+			assertEquals(3, field(imported, TXCounter.class, "ntx"));
+			assertEquals(field(contract, TXCounter.class, "ntx"), field(imported, TXCounter.class, "ntx"));
+			assertEquals(field(contract, TXCounter.class, "nblocks"), field(imported, TXCounter.class, "nblocks"));
+			assertEquals(contract.getBalance(), imported.getBalance());
+		} finally {
+			Files.delete(dump);
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Address contract = create(TXCounter.class, "TXCOUNTER_REPLAY");
+		long height = emu.getCurrentBlock().getHeight() + 5;
+
+		Path json = Files.createTempFile("txs", ".json");
+		Path binary = Files.createTempFile("txs", ".bin");
+		try {
+			String sender = Long.toUnsignedString(-1234567L);
+			Files.write(json, (
+					"{\"height\": " + height + ", \"sender\": \"" + sender + "\", \"amountNQT\": \"" + ACT_FEE + "\"}\n"
+					+ "{\"height\": " + height + ", \"sender\": \"7654321\", \"amountNQT\": \"" + 2 * ACT_FEE
+					+ "\", \"attachment\": {\"message\": \"0102\", \"messageIsText\": false}}\n"
+					+ "{\"height\": " + (height + 10) + ", \"sender\": \"" + sender + "\", \"amountNQT\": \"" + ACT_FEE + "\"}\n")
+					.getBytes());
+
+			TransactionReplay replay = new TransactionReplay(emu, contract);
+			assertEquals(3, replay.replay(json));
+			assertEquals(3, field(contract, TXCounter.class, "ntx"));
+			assertEquals(-1234567L, field(contract, TXCounter.class, "address"));
+
+			long[] heights = emu.getTxs().stream()
+					.filter(tx -> tx.getReceiverAddress() == contract && tx.getType() != Transaction.TYPE_AT_CREATE)
+					.mapToLong(tx -> tx.getBlock().getHeight()).toArray();
+			assertArrayEquals(new long[] { height, height, height + 10 }, heights);
+
+			// same transactions from the binary format
+			assertEquals(3, TransactionReplay.convert(json, binary));
+			assertEquals(3, new TransactionReplay(emu, contract).replay(binary));
+			assertEquals(6, field(contract, TXCounter.class, "ntx"));
+		} finally {
+			Files.delete(json);
+			Files.delete(binary);
+		}
+	}
+
+	@Test
+	public void testReplayKeepBlocks() throws Exception {
+		// on its own emulator, to count the blocks kept
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address contract = emu.getAddress("TXCOUNTER_KEEP");
+		emu.createCompiledContract(creator, contract, fixture.compile(TXCounter.class), ACT_FEE);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		int keep = 4, n = 200;
+		long height = emu.getCurrentBlock().getHeight();
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			json.append("{\"height\": " + (height + i) + ", \"sender\": \"1234\", \"amountNQT\": \"" + ACT_FEE + "\"}\n");
+
+		Block first = emu.getBlocks().get(0);
+		TransactionReplay replay = new TransactionReplay(emu, contract);
+		replay.setKeepBlocks(keep);
+		assertEquals(n, replay.replayJson(new StringReader(json.toString())));
+		emu.forgeBlock();
+		assertEquals(n, field(contract, TXCounter.class, "ntx"));
+
+		// the blocks and transactions kept are bounded
+		assertTrue(emu.getBlocks().size() <= 2 * keep + 1);
+		assertTrue(emu.getTxs().size() <= 2 * keep + 1);
+		assertNull(emu.getBlocks().get(0).prev);
+		// the pruned blocks do not hold each other
+		assertFalse(emu.getBlocks().contains(first));
+		assertNull(first.next);
+
+		// no transaction left on A once all were read, none held by the contract
+		assertNull(((EmulatedMachineApi) contract.getMachine().getApi()).txInA);
+	}
+
+	@Test
+	public void testAutotuner() throws Exception {
+		Autotuner tuner = new Autotuner(MethodCallArgs.class);
+		tuner.setRandomWorkload(1, 10);
+		tuner.setThreads(2);
+		List<Autotuner.Result> results = tuner.tune();
+
+		Autotuner.Result best = results.get(0);
+		assertNull(best.getError());
+		assertTrue(best.getCodePages() <= BT.getMaxMachineCodePages());
+		for (Autotuner.Result r : results) {
+			if (r.getError() == null)
+				assertTrue(best.getSteps() <= r.getSteps());
+		}
+
+		// never worse than the default options, always among the candidates
+		Autotuner.Result defaults = results.stream()
+				.filter(r -> r.getOptions().toString().equals(new CompilerOptions().toString())).findFirst().get();
+		assertNull(defaults.getError());
+		assertTrue(best.getSteps() <= defaults.getSteps());
+
+		// the passes are tried on and off, with the same results
+		assertTrue(results.stream().anyMatch(r -> !r.getOptions().isPeephole() && r.getError() == null));
+		assertTrue(results.stream().anyMatch(r -> !r.getOptions().isConstantFolding() && r.getError() == null));
+		assertTrue(results.stream().anyMatch(r -> !r.getOptions().isInlining() && r.getError() == null));
+		assertTrue(results.stream().anyMatch(r -> r.getOptions().isConstantPool() && r.getError() == null));
+		assertTrue(results.stream().anyMatch(r -> r.getOptions().isConstructorEvaluation() && r.getError() == null));
+		assertTrue(results.stream().anyMatch(r -> r.getOptions().isPackedBooleans() && r.getError() == null));
+		assertEquals(results.size(), results.stream().map(r -> r.getOptions().toString()).distinct().count());
+	}
+}
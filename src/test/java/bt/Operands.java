@@ -0,0 +1,51 @@
+package bt;
+
+/**
+ * Deep expressions, conditional values and calls in the middle of an
+ * expression, holding values on the operand cells, also fields the call
+ * writes.
+ */
+public class Operands extends Contract {
+
+	long a = 3, b = 5, c = 7, result, choice, called, chained;
+	long count, incremented, nested, deeper;
+
+	public void run(long x, boolean flag) {
+		result = (a + b) * (c - x) + (a * b - c) / (x + 1) + a * (b + c * (x + a));
+		choice = flag ? a : b;
+		choice += x > 2 ? c : a + b;
+		called = a * b + scale(x) * (b + scale(c));
+
+		int k = (int) x;
+		int i, j;
+		i = j = k;
+		chained = i + j;
+
+		count = 5;
+		incremented = count + inc();
+		incremented = incremented * 100 + (count + inc());
+	}
+
+	private long scale(long v) {
+		return v * b + a;
+	}
+
+	public void nest(long x) {
+		// with the one of the field set, as many values as operand cells
+		nested = b + (c + (x + (a + (b + (c + (x + (a + (b + (c + (x + (a + (b + (c + x)))))))))))));
+	}
+
+	public void nestDeeper(long x) {
+		// one more, pushed
+		deeper = a + (b + (c + (x + (a + (b + (c + (x + (a + (b + (c + (x + (a + (b + (c + x))))))))))))));
+	}
+
+	private long inc() {
+		count += 10;
+		return 1;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
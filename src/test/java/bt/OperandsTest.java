@@ -0,0 +1,60 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static bt.EmulatorFixture.ops;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+
+/**
+ * Stack values held on operand cells.
+ */
+public class OperandsTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testOperands() throws Exception {
+		long a = 3, b = 5, c = 7;
+		// not an optional pass, with static and moving frames
+		CompilerOptions moving = new CompilerOptions();
+		moving.setStaticFrames(false);
+		List<CompilerOptions> options = Arrays.asList(new CompilerOptions(), moving, EmulatorFixture.unoptimized());
+
+		List<Compiler> comps = fixture.run(Operands.class, options, (comp, contract) -> {
+			for (long x : new long[] { 1, 4 }) {
+				boolean flag = x > 2;
+				fixture.call(contract, Operands.class, "run", x, flag);
+
+				assertEquals((a + b) * (c - x) + (a * b - c) / (x + 1) + a * (b + c * (x + a)),
+						field(comp, contract, "result"));
+				assertEquals((flag ? a : b) + (x > 2 ? c : a + b), field(comp, contract, "choice"));
+				assertEquals(a * b + (x * b + a) * (b + (c * b + a)), field(comp, contract, "called"));
+				assertEquals(2 * x, field(comp, contract, "chained"));
+				// the field read before the call writes it
+				assertEquals(616, field(comp, contract, "incremented"));
+				assertEquals(25, field(comp, contract, "count"));
+
+				fixture.call(contract, Operands.class, "nest", x);
+				assertEquals(3 * a + 4 * (b + c + x), field(comp, contract, "nested"));
+				fixture.call(contract, Operands.class, "nestDeeper", x);
+				assertEquals(4 * (a + b + c + x), field(comp, contract, "deeper"));
+			}
+		});
+
+		for (Compiler comp : comps) {
+			// as many values as operand cells, none on the user stack
+			List<String> ops = ops(comp, "nest");
+			assertFalse(ops.toString(), ops.contains("PSH_DAT"));
+			assertFalse(ops.toString(), ops.contains("POP_DAT"));
+		}
+		// one more is pushed, seen with the peephole off
+		assertTrue(ops(comps.get(2), "nestDeeper").contains("PSH_DAT"));
+	}
+}
@@ -0,0 +1,43 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Field;
+
+/**
+ * Boolean fields packed on a single cell.
+ */
+public class PackedBooleansTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testPackedBooleans() throws Exception {
+		long[][] expected = { { 0, 1, 0, 0, 1 }, { 1, 0, 1, 1, 11 }, { 1, 0, 1, 0, 21 } };
+		String[] names = { "open", "paid", "approved", "last", "count" };
+		List<Compiler> comps = fixture.run(Flags.class, EmulatorFixture.onOff(CompilerOptions::setPackedBooleans),
+				(comp, contract) -> {
+					long[] args = { 1, 3, 2 };
+					for (int i = 0; i < args.length; i++) {
+						fixture.call(contract, Flags.class, "set", args[i]);
+						for (int f = 0; f < names.length; f++)
+							assertEquals(names[f], expected[i][f], field(comp, contract, names[f]));
+					}
+				});
+
+		for (int i = 0; i < comps.size(); i++) {
+			boolean packed = i == 0;
+			Field open = comps.get(i).getField("open"), last = comps.get(i).getField("last");
+			assertEquals(packed, open.getAddress() == last.getAddress());
+			assertEquals(packed ? 3 : 0, last.getBitOffset());
+		}
+		assertTrue(comps.get(0).getField("count").getAddress() < comps.get(1).getField("count").getAddress());
+	}
+}
@@ -0,0 +1,45 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Peephole;
+
+/**
+ * The {@link Peephole} rules, against the code as parsed.
+ */
+public class PeepholeTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testPeephole() throws Exception {
+		List<Compiler> comps = fixture.run(InternalCall.class, EmulatorFixture.onOff(CompilerOptions::setPeephole),
+				(comp, contract) -> {
+					fixture.call(contract, InternalCall.class, "call", 7L, 2L);
+					assertEquals(19, field(comp, contract, "diff"));
+				});
+		Compiler comp = comps.get(0), plain = comps.get(1);
+
+		int bytes = 0, plainBytes = 0;
+		for (Peephole.Stats s : comp.getPeepholeStats())
+			bytes += s.getBytes();
+		for (Peephole.Stats s : plain.getPeepholeStats())
+			plainBytes += s.getBytes();
+		assertTrue(bytes > plainBytes);
+		// both are compared to the code as parsed
+		assertEquals(plain.getCode().length + plainBytes, comp.getCode().length + bytes);
+
+		// every method instruction still has its source line
+		for (int a = 0; a < comp.getCode().length; a++) {
+			if (comp.getMethodAt(a) != null)
+				assertNotEquals(-1, comp.getLineAt(a));
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package bt;
+
+/**
+ * An expression nested deeper than the operand cells, the values left pushed
+ * going beyond a user stack page.
+ */
+public class Pushes extends Contract {
+
+	long a, b, total;
+
+	public void run(long x, long y) {
+		a = x;
+		b = y;
+		total = a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (
+				a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (
+				a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (
+				a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (
+				a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (a * b + (
+				a * b + (a * b + (a * b + (a * b + (a * b + (a * b)))))))))))))))))))))))))))))))))))))))))))))))))))))));
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
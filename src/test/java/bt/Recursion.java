@@ -0,0 +1,23 @@
+package bt;
+
+/**
+ * A recursive call, the stacks it needs have no bound.
+ */
+public class Recursion extends Contract {
+
+	long result;
+
+	public void factorial(long n) {
+		result = fact(n);
+	}
+
+	long fact(long n) {
+		if (n <= 1)
+			return 1;
+		return n * fact(n - 1);
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
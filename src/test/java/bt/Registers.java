@@ -0,0 +1,29 @@
+package bt;
+
+/**
+ * Reads the current transaction several times, with a message sent in between
+ * changing A and B.
+ */
+public class Registers extends Contract {
+
+	Register msg;
+	Address sender, again;
+	long amount, first, last;
+
+	public void read(long x) {
+		Transaction tx = getCurrentTx();
+		msg = tx.getMessage();
+		first = msg.getValue2();
+		sender = tx.getSenderAddress();
+		amount = tx.getAmount();
+		if (x > 2)
+			sendMessage(msg, sender);
+		msg = tx.getMessage();
+		last = msg.getValue2() + x;
+		again = tx.getSenderAddress();
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
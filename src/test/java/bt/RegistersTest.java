@@ -0,0 +1,48 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Peephole;
+
+/**
+ * Loads of A and B dropped when they already hold the value.
+ */
+public class RegistersTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	static int loads(Compiler comp) {
+		for (Peephole.Stats s : comp.getPeepholeStats()) {
+			if (s.getRule().equals("redundant-load"))
+				return s.getCount();
+		}
+		return 0;
+	}
+
+	@Test
+	public void testRegisters() throws Exception {
+		long amount = 10 * Contract.ONE_BURST;
+		List<Compiler> comps = fixture.run(Registers.class, EmulatorFixture.onOff(CompilerOptions::setPeephole),
+				(comp, contract) -> {
+					for (long x : new long[] { 1, 4 }) {
+						fixture.call(contract, amount, Registers.class, "read", x);
+
+						assertEquals(x, field(comp, contract, "first"));
+						assertEquals(2 * x, field(comp, contract, "last"));
+						assertEquals(fixture.creator.getId(), field(comp, contract, "sender"));
+						assertEquals(fixture.creator.getId(), field(comp, contract, "again"));
+						assertEquals(amount - EmulatorFixture.ACT_FEE, field(comp, contract, "amount"));
+					}
+				});
+		assertTrue(loads(comps.get(0)) > 0);
+		assertEquals(0, loads(comps.get(1)));
+		assertEquals(0, loads(comps.get(2)));
+	}
+}
@@ -0,0 +1,24 @@
+package bt;
+
+/**
+ * A helper with locals inlined on several calls.
+ */
+public class Repeated extends Contract {
+
+	long total;
+
+	public void run(long x) {
+		total = scaled(x) + scaled(x + 1) + scaled(x + 2) + scaled(x + 3) + scaled(x + 4) + scaled(x + 5)
+				+ scaled(x + 6) + scaled(x + 7);
+	}
+
+	long scaled(long a) {
+		long b = a * 3;
+		long c = b + a;
+		return c - 1;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
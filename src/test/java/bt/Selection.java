@@ -0,0 +1,31 @@
+package bt;
+
+/**
+ * Idioms compiled to single instructions: increments, complement, shifts and
+ * int locals.
+ */
+public class Selection extends Contract {
+
+	long counter = 10, down = 10, complement, shifted, unsigned, next, loops;
+
+	public void run(long x) {
+		counter++;
+		down--;
+		complement = ~x;
+		shifted = x << 8;
+		unsigned = -x >>> 60;
+		next = x + 1;
+		int n = 3;
+		while (n != 0) {
+			loops += x;
+			n--;
+		}
+		int k = 1000;
+		k += 300;
+		loops += k;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
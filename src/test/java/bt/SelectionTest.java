@@ -0,0 +1,59 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+
+/**
+ * Idioms compiled to single AT instructions.
+ */
+public class SelectionTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testSelection() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setPeephole);
+		CompilerOptions moving = new CompilerOptions();
+		moving.setStaticFrames(false);
+		options.add(2, moving);
+
+		List<Compiler> comps = fixture.run(Selection.class, options, (comp, contract) -> {
+			fixture.call(contract, Selection.class, "run", 3L);
+			assertEquals(11, field(comp, contract, "counter"));
+			assertEquals(9, field(comp, contract, "down"));
+			assertEquals(~3L, field(comp, contract, "complement"));
+			assertEquals(3L << 8, field(comp, contract, "shifted"));
+			assertEquals(-3L >>> 60, field(comp, contract, "unsigned"));
+			assertEquals(4, field(comp, contract, "next"));
+			assertEquals(3 * 3 + 1300, field(comp, contract, "loops"));
+		});
+		assertTrue(comps.get(0).getCode().length < comps.get(1).getCode().length);
+	}
+
+	@Test
+	public void testShifts() throws Exception {
+		for (long x : new long[] { 5, -5, 0x123456789L }) {
+			for (long n : new long[] { 3, 32, 40, -1 }) {
+				int i = (int) x, s = (int) n;
+				fixture.run(Shifts.class, EmulatorFixture.onOff(CompilerOptions::setConstantFolding),
+						(comp, contract) -> {
+							fixture.call(contract, Shifts.class, "run", x, n);
+							String c = x + ", " + n;
+							assertEquals(c, i << s, field(comp, contract, "ishl"));
+							assertEquals(c, i >>> s, field(comp, contract, "iushr"));
+							assertEquals(c, x << n, field(comp, contract, "lshl"));
+							assertEquals(c, x >>> n, field(comp, contract, "lushr"));
+							assertEquals(c, (i << 40) + (i >>> -1) + (x << 40) + (x >>> -1) + (i << 32) + (x << 64),
+									field(comp, contract, "constants"));
+						});
+			}
+		}
+	}
+}
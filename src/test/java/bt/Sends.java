@@ -0,0 +1,40 @@
+package bt;
+
+/**
+ * Sends from the constructor and from the methods, counting the blocks run.
+ */
+public class Sends extends Contract {
+
+	static final long CREATION_SEND = 1000;
+
+	long started, finished;
+	long balanceLeft;
+
+	public Sends() {
+		sendAmount(CREATION_SEND, getCreator());
+	}
+
+	@Override
+	protected void blockStarted() {
+		started++;
+	}
+
+	@Override
+	protected void blockFinished() {
+		finished++;
+	}
+
+	public void sendZero() {
+		sendAmount(0, getCurrentTxSender());
+	}
+
+	public void sendHalf() {
+		sendAmount(getCurrentBalance() / 2, getCurrentTxSender());
+		balanceLeft = getCurrentBalance();
+		sendBalance(getCurrentTxSender());
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
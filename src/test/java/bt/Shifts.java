@@ -0,0 +1,23 @@
+package bt;
+
+/**
+ * Int and long shifts, with counts out of range masked as in Java.
+ */
+public class Shifts extends Contract {
+
+	long ishl, iushr, lshl, lushr, constants;
+
+	public void run(long x, long n) {
+		int i = (int) x;
+		int s = (int) n;
+		ishl = i << s;
+		iushr = i >>> s;
+		lshl = x << n;
+		lushr = x >>> n;
+		constants = (i << 40) + (i >>> -1) + (x << 40) + (x >>> -1) + (i << 32) + (x << 64);
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
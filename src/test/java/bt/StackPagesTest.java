@@ -0,0 +1,118 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Machine;
+
+/**
+ * Call and user stacks sized from the code.
+ */
+public class StackPagesTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testStackPages() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setInlining);
+		List<Compiler> comps = fixture.run(InternalCall.class, options, (comp, contract) -> {
+			fixture.call(contract, InternalCall.class, "call", 7L, 2L);
+			assertEquals(19, field(comp, contract, "diff"));
+
+			Machine m = contract.getMachine();
+			assertEquals(comp.getCallStackPages(), m.getCallStackPages());
+			assertEquals(comp.getUserStackPages(), m.getUserStackPages());
+		});
+		// dispatcher, call, nested and diff fit on a page
+		for (Compiler comp : comps)
+			assertEquals(1, comp.getCallStackPages());
+	}
+
+	@Test
+	public void testDeepCalls() throws Exception {
+		List<Compiler> comps = fixture.run(CallChain.class, EmulatorFixture.onOff(CompilerOptions::setInlining),
+				(comp, contract) -> {
+					fixture.call(contract, CallChain.class, "run", 5L);
+					assertEquals(5 + 33, field(comp, contract, "result"));
+				});
+		// inlined in a single method, only called by the dispatcher
+		assertEquals(1, comps.get(0).getCallStackPages());
+		assertEquals(0, comps.get(0).getUserStackPages());
+		// the dispatcher and 34 levels, returning on the user stack
+		for (Compiler comp : comps.subList(1, comps.size())) {
+			assertEquals(2, comp.getCallStackPages());
+			assertEquals(1, comp.getUserStackPages());
+		}
+	}
+
+	@Test
+	public void testDeepPushes() throws Exception {
+		List<Compiler> comps = fixture.run(Pushes.class, EmulatorFixture.onOff(CompilerOptions::setStaticFrames),
+				(comp, contract) -> {
+					fixture.call(contract, Pushes.class, "run", 3L, 4L);
+					assertEquals(56 * 12, field(comp, contract, "total"));
+				});
+		// 56 products pending, the ones beyond the operand cells pushed
+		for (Compiler comp : comps) {
+			assertEquals(1, comp.getCallStackPages());
+			assertEquals(2, comp.getUserStackPages());
+		}
+
+		// nothing pushed, no user stack
+		assertEquals(0, fixture.compile(LocalVar.class).getUserStackPages());
+	}
+
+	@Test
+	public void testRecursion() throws Exception {
+		// no bound on the stacks
+		Compiler comp = BT.compileContract(Recursion.class, new CompilerOptions());
+		assertFalse(comp.getErrors().isEmpty());
+		String error = comp.getErrors().get(0).getMessage();
+		assertTrue(error, error.contains("Recursive calls are not supported: fact -> fact"));
+
+		// unless given by the caller, deep enough for 25 calls
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setStaticFrames);
+		for (CompilerOptions o : options)
+			o.setRecursionPages(2, 2, 2);
+		long expected = 1;
+		for (long n = 2; n <= 25; n++)
+			expected *= n;
+		long result = expected;
+		List<Compiler> comps = fixture.run(Recursion.class, options, (c, contract) -> {
+			fixture.call(contract, Recursion.class, "factorial", 25L);
+			assertEquals(result, field(c, contract, "result"));
+
+			Machine m = contract.getMachine();
+			assertFalse(m.isDead());
+			assertEquals(2, m.getCallStackPages());
+			assertEquals(2, m.getUserStackPages());
+		});
+		for (Compiler c : comps)
+			assertEquals((c.getDataCells() + Machine.CELLS_PER_PAGE - 1) / Machine.CELLS_PER_PAGE + 2,
+					c.getDataPages());
+	}
+
+	@Test
+	public void testRegisteringFee() throws Exception {
+		for (Class<? extends Contract> c : Arrays.<Class<? extends Contract>>asList(InternalCall.class,
+				LocalVar.class, Sleep.class)) {
+			Compiler comp = fixture.compile(c);
+			Machine m = fixture.deploy(comp, c.getSimpleName()).getMachine();
+
+			// the fee pays for the pages the contract gets
+			int dataPages = m.getData().length / Machine.CELLS_PER_PAGE;
+			assertEquals(comp.getDataPages(), dataPages);
+			assertEquals(BT.getMinRegisteringFee(comp).toNQT(), BT.getMinRegisteringFee(comp.getCodeNPages(),
+					dataPages, m.getCallStackPages(), m.getUserStackPages()).toNQT());
+			assertEquals(BT.getMinRegisteringFee(comp, false).toNQT(),
+					BT.getMinRegisteringFee(0, dataPages, m.getCallStackPages(), m.getUserStackPages()).toNQT());
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package bt;
+
+import static bt.EmulatorFixture.field;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import bt.compiler.CompilerOptions;
+
+/**
+ * Locals on static frames, against moving ones.
+ */
+public class StaticFramesTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	@Test
+	public void testInternalCall() throws Exception {
+		List<CompilerOptions> options = EmulatorFixture.onOff(CompilerOptions::setStaticFrames);
+		// with the helpers called instead of inlined
+		CompilerOptions called = new CompilerOptions();
+		called.setInlining(false);
+		options.add(0, called);
+
+		fixture.run(InternalCall.class, options, (comp, contract) -> {
+			fixture.call(contract, InternalCall.class, "call", 7L, 2L);
+			assertEquals(19, field(comp, contract, "diff"));
+			assertEquals(4, field(comp, contract, "inner"));
+			assertEquals(15, field(comp, contract, "nested"));
+		});
+	}
+}
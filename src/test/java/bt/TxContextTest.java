@@ -0,0 +1,44 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerOptions;
+import bt.compiler.Printer;
+import bt.sample.Auction;
+
+/**
+ * The sender and amount of each transaction read only if used.
+ */
+public class TxContextTest {
+
+	EmulatorFixture fixture = new EmulatorFixture();
+
+	String disassemble(Class<? extends Contract> contractClass, CompilerOptions options) throws Exception {
+		Compiler comp = fixture.compile(contractClass, options);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Printer.print(comp.getCode(), new PrintStream(bytes), comp);
+		return bytes.toString();
+	}
+
+	@Test
+	public void testTxContext() throws Exception {
+		// not an optional pass, the same with every option off
+		for (CompilerOptions options : new CompilerOptions[] { new CompilerOptions(),
+				EmulatorFixture.unoptimized() }) {
+			String code = disassemble(Comparisons.class, options);
+			assertFalse(code.contains("B_To_Address_Of_Tx_In_A"));
+			assertFalse(code.contains("Get_Amount_For_Tx_In_A"));
+			assertTrue(code.contains("Get_Timestamp_For_Tx_In_A"));
+
+			code = disassemble(Auction.class, options);
+			assertTrue(code.contains("B_To_Address_Of_Tx_In_A"));
+			assertTrue(code.contains("Get_Amount_For_Tx_In_A"));
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package bt;
+
+/**
+ * Int and long constants folded on the same method, and a long result dropped.
+ */
+public class Widths extends Contract {
+
+	int small;
+	long wide, dropped;
+
+	public void call(long x) {
+		int k = 6;
+		small = k * 7 + (int) x;
+		long w = 1000;
+		wide = w * w + x;
+		twice(x);
+	}
+
+	long twice(long x) {
+		dropped = 2 * x;
+		return dropped;
+	}
+
+	@Override
+	public void txReceived() {
+	}
+}
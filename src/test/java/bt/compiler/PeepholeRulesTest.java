@@ -0,0 +1,330 @@
+package bt.compiler;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import bt.InternalCall;
+
+/**
+ * Each {@link Peephole} rule on hand assembled code, where it applies and where
+ * it must not.
+ */
+public class PeepholeRulesTest {
+
+	/** For the data layout, the temporaries and fields */
+	Compiler comp;
+	int t1, t2, x, y, z;
+
+	@Before
+	public void setUp() throws Exception {
+		comp = new Compiler(InternalCall.class);
+		comp.compile();
+		t1 = comp.tmpVar1;
+		t2 = comp.tmpVar2;
+		x = comp.getField("diff").getAddress();
+		y = comp.getField("nested").getAddress();
+		z = comp.getField("inner").getAddress();
+	}
+
+	static ByteBuffer code() {
+		ByteBuffer code = ByteBuffer.allocate(256);
+		code.order(ByteOrder.LITTLE_ENDIAN);
+		return code;
+	}
+
+	static void put(ByteBuffer code, byte op, int... addresses) {
+		code.put(op);
+		for (int a : addresses)
+			code.putInt(a);
+	}
+
+	static void putFun(ByteBuffer code, byte op, short fun, int... addresses) {
+		code.put(op);
+		code.putShort(fun);
+		for (int a : addresses)
+			code.putInt(a);
+	}
+
+	Peephole decode(ByteBuffer code, Method.Jump... jumps) {
+		Method m = new Method();
+		m.node = new MethodNode(Opcodes.ACC_PRIVATE, "helper", "()V", null, null);
+		m.code = code;
+		for (Method.Jump j : jumps) {
+			m.jumps.add(j);
+			if (j.label != null)
+				m.node.instructions.add(j.label);
+		}
+		Peephole p = new Peephole(comp, m, new HashMap<>());
+		assertTrue(p.decode());
+		return p;
+	}
+
+	/**
+	 * @return the op codes and addresses of the code, as "SET_DAT 1 2"
+	 */
+	static List<String> ops(Peephole p) {
+		List<String> ret = new ArrayList<>();
+		for (Assembler.Insn insn : p.code) {
+			StringBuilder s = new StringBuilder(OpCode.name(insn.op()));
+			int[] offsets = Peephole.addressOffsets(insn.op());
+			Arrays.sort(offsets);
+			for (int offset : offsets)
+				s.append(' ').append(insn.addr(offset));
+			ret.add(s.toString());
+		}
+		return ret;
+	}
+
+	static List<String> list(String... ops) {
+		List<String> ret = new ArrayList<>();
+		for (String op : ops)
+			ret.add(op);
+		return ret;
+	}
+
+	@Test
+	public void testCopyPropagation() throws Exception {
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.copyPropagation(p, 0));
+		assertEquals(list("ADD_DAT " + y + " " + x, "FIN_IMD"), ops(p));
+
+		// the temporary still read after
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_ADD_DAT, z, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.copyPropagation(decode(code), 0));
+
+		// the reader is a jump target, reached without the copy
+		code = code();
+		put(code, OpCode.e_op_code_BZR_DAT, z);
+		code.put((byte) 15);
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.copyPropagation(decode(code), 1));
+	}
+
+	@Test
+	public void testResultForwarding() throws Exception {
+		ByteBuffer code = code();
+		putFun(code, OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Current_Balance, t1);
+		put(code, OpCode.e_op_code_SET_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.resultForwarding(p, 0));
+		assertEquals(list("EXT_FUN_RET " + y, "FIN_IMD"), ops(p));
+
+		// the result also read after the copy
+		code = code();
+		putFun(code, OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Current_Balance, t1);
+		put(code, OpCode.e_op_code_SET_DAT, y, t1);
+		put(code, OpCode.e_op_code_ADD_DAT, z, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.resultForwarding(decode(code), 0));
+	}
+
+	@Test
+	public void testOperateOnCopy() throws Exception {
+		// x++ through a temporary
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_INC_DAT, t1);
+		put(code, OpCode.e_op_code_SET_DAT, x, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.operateOnCopy(p, 0));
+		assertEquals(list("SET_DAT " + x + " " + x, "INC_DAT " + x, "FIN_IMD"), ops(p));
+
+		// y = x + y would overwrite y before reading it
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, t1, y);
+		put(code, OpCode.e_op_code_SET_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.operateOnCopy(decode(code), 0));
+
+		// the result still read from the temporary
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_INC_DAT, t1);
+		put(code, OpCode.e_op_code_SET_DAT, y, t1);
+		put(code, OpCode.e_op_code_ADD_DAT, z, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.operateOnCopy(decode(code), 0));
+	}
+
+	@Test
+	public void testPushPop() throws Exception {
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_PSH_DAT, x);
+		put(code, OpCode.e_op_code_ADD_DAT, t1, z);
+		put(code, OpCode.e_op_code_POP_DAT, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.pushPop(p, 0));
+		assertEquals(list("ADD_DAT " + t1 + " " + z, "SET_DAT " + y + " " + x, "FIN_IMD"), ops(p));
+
+		// a division can stop the machine with the value still pushed
+		code = code();
+		put(code, OpCode.e_op_code_PSH_DAT, x);
+		put(code, OpCode.e_op_code_DIV_DAT, t1, z);
+		put(code, OpCode.e_op_code_POP_DAT, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.pushPop(decode(code), 0));
+
+		code = code();
+		put(code, OpCode.e_op_code_PSH_DAT, x);
+		put(code, OpCode.e_op_code_MOD_DAT, t1, z);
+		put(code, OpCode.e_op_code_POP_DAT, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.pushPop(decode(code), 0));
+
+		// the pushed value changes before the pop
+		code = code();
+		put(code, OpCode.e_op_code_PSH_DAT, x);
+		put(code, OpCode.e_op_code_INC_DAT, x);
+		put(code, OpCode.e_op_code_POP_DAT, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.pushPop(decode(code), 0));
+	}
+
+	@Test
+	public void testTailCall() throws Exception {
+		Method callee = new Method();
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_JMP_SUB, 0);
+		put(code, OpCode.e_op_code_RET_SUB);
+		Peephole p = decode(code, new Method.Jump(1, callee));
+		assertTrue(Peephole.tailCall(p, 0));
+		assertEquals(OpCode.e_op_code_JMP_ADR, p.code.get(0).op());
+		assertSame(callee, p.code.get(0).method);
+
+		// more to run after the call
+		code = code();
+		put(code, OpCode.e_op_code_JMP_SUB, 0);
+		put(code, OpCode.e_op_code_INC_DAT, x);
+		put(code, OpCode.e_op_code_RET_SUB);
+		assertFalse(Peephole.tailCall(decode(code, new Method.Jump(1, callee)), 0));
+	}
+
+	@Test
+	public void testRedundantLoad() throws Exception {
+		ByteBuffer code = code();
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, y, z);
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.redundantLoad(p, 2));
+		assertEquals(list("EXT_FUN_DAT " + x, "ADD_DAT " + y + " " + z, "FIN_IMD"), ops(p));
+
+		// the value loaded changes in between
+		code = code();
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_INC_DAT, x);
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.redundantLoad(decode(code), 2));
+
+		// an indirect write can reach any field
+		code = code();
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_IND_DAT, t1, t2);
+		putFun(code, OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, x);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.redundantLoad(decode(code), 2));
+	}
+
+	@Test
+	public void testDeadStore() throws Exception {
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_MUL_DAT, t1, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code);
+		assertTrue(Peephole.deadStore(p, 1));
+		p.analyzed = false;
+		assertTrue(Peephole.deadStore(p, 0));
+		assertEquals(list("FIN_IMD"), ops(p));
+
+		// still read
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.deadStore(decode(code), 0));
+
+		// a division by zero stops the machine, kept even if the result is not read
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_DIV_DAT, t1, y);
+		put(code, OpCode.e_op_code_MOD_DAT, t2, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		p = decode(code);
+		assertFalse(Peephole.deadStore(p, 1));
+		assertFalse(Peephole.deadStore(p, 2));
+
+		// not a temporary, read by someone else
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, x, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.deadStore(decode(code), 0));
+
+		// falling through the end, the temporaries can be read there
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		assertFalse(Peephole.deadStore(decode(code), 0));
+	}
+
+	@Test
+	public void testErrorHandler() throws Exception {
+		// setting the handler goes on to the next instruction
+		ByteBuffer code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ERR_ADR, 0);
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		assertFalse(Peephole.deadStore(decode(code), 0));
+
+		// the handler reads the temporary too
+		LabelNode handler = new LabelNode();
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ERR_ADR, 0);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		comp.labels.put(handler, code.position());
+		put(code, OpCode.e_op_code_ADD_DAT, y, t1);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		Peephole p = decode(code, new Method.Jump(10, handler));
+		assertFalse(Peephole.deadStore(p, 0));
+
+		// not read after the handler is set, nor by it
+		code = code();
+		put(code, OpCode.e_op_code_SET_DAT, t1, x);
+		put(code, OpCode.e_op_code_ERR_ADR, 0);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		comp.labels.put(handler, code.position());
+		put(code, OpCode.e_op_code_INC_DAT, y);
+		put(code, OpCode.e_op_code_FIN_IMD);
+		p = decode(code, new Method.Jump(10, handler));
+		assertTrue(Peephole.deadStore(p, 0));
+	}
+}
@@ -0,0 +1,89 @@
+package bt.compiler;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Stack use of hand assembled code, on the paths the compiler does not emit.
+ */
+public class StackSizerTest {
+
+	static ByteBuffer code() {
+		ByteBuffer code = ByteBuffer.allocate(256);
+		code.order(ByteOrder.LITTLE_ENDIAN);
+		return code;
+	}
+
+	static byte[] bytes(ByteBuffer code) {
+		return Arrays.copyOf(code.array(), code.position());
+	}
+
+	@Test
+	public void testErrorHandler() throws Exception {
+		ByteBuffer code = code();
+		code.put(OpCode.e_op_code_ERR_ADR);
+		code.putInt(16);
+		code.put(OpCode.e_op_code_SET_PCS);
+		// division by zero, jumping to the handler
+		code.put(OpCode.e_op_code_DIV_DAT);
+		code.putInt(0);
+		code.putInt(1);
+		code.put(OpCode.e_op_code_FIN_IMD);
+		// the handler, pushing twice
+		assertEquals(16, code.position());
+		code.put(OpCode.e_op_code_PSH_DAT);
+		code.putInt(0);
+		code.put(OpCode.e_op_code_PSH_DAT);
+		code.putInt(0);
+		code.put(OpCode.e_op_code_POP_DAT);
+		code.putInt(2);
+		code.put(OpCode.e_op_code_POP_DAT);
+		code.putInt(2);
+		code.put(OpCode.e_op_code_FIN_IMD);
+
+		StackSizer sizer = new StackSizer(bytes(code));
+		assertEquals(2, sizer.getUserStackCells());
+		assertEquals(0, sizer.getCallStackCells());
+
+		// the machine with the stacks counted gets through the error path
+		Machine m = new Machine(bytes(code), 1, 0, 1);
+		m.setData(new long[] { 7, 0, 0 });
+		m.run(1000);
+		assertFalse(m.isDead());
+		assertTrue(m.isFinished());
+		assertEquals(7, m.getData(2));
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		ByteBuffer code = code();
+		code.put(OpCode.e_op_code_SET_PCS);
+		code.put(OpCode.e_op_code_PSH_DAT);
+		code.putInt(0);
+		code.put(OpCode.e_op_code_FIN_IMD);
+		// finishing keeps the value pushed, one more on each activation
+		try {
+			new StackSizer(bytes(code));
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("unbounded"));
+		}
+
+		code = code();
+		code.put(OpCode.e_op_code_PSH_DAT);
+		code.putInt(0);
+		code.put(OpCode.e_op_code_SET_PCS);
+		code.put(OpCode.e_op_code_POP_DAT);
+		code.putInt(1);
+		code.put(OpCode.e_op_code_PSH_DAT);
+		code.putInt(1);
+		code.put(OpCode.e_op_code_FIN_IMD);
+		// the value left pushed is popped when restarting
+		assertEquals(1, new StackSizer(bytes(code)).getUserStackCells());
+	}
+}